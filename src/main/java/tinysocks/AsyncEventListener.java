@@ -0,0 +1,189 @@
+package tinysocks;
+
+import tinysocks.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves event dispatch off the connection threads. publishing an event claims a slot of a
+ * preallocated ring with one CAS, a dedicated thread hands the events to the wrapped listener
+ * in batches. when the ring is full the event is dropped and counted, the data path never
+ * waits for a listener.
+ */
+public final class AsyncEventListener extends EventListener {
+  private static final int STARTED = 1;
+  private static final int STOPPED = 2;
+  private static final int NEGOTIATED = 3;
+  private static final int ESTABLISHED = 4;
+  private static final int CLOSED = 5;
+  private static final int MAX_BATCH = 256;
+  private static final long IDLE_PARK_NANOS = 100 * 1000 * 1000;
+
+  private final EventListener delegate;
+  private final Event[] events;
+  private final AtomicLongArray published;// sequence of the event in each slot
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread dispatcher;
+  private volatile long dispatched;
+  private volatile boolean idle;
+  private volatile boolean closed;
+
+  public AsyncEventListener(EventListener delegate) {
+    this(delegate, 8192);
+  }
+
+  /**
+   * @param capacity events the ring holds, rounded up to a power of two
+   */
+  public AsyncEventListener(EventListener delegate, int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.delegate = delegate;
+    this.events = new Event[size];
+    this.published = new AtomicLongArray(size);
+    this.mask = size - 1;
+    for (int i = 0; i < size; i++) {
+      events[i] = new Event();
+      published.set(i, -1);
+    }
+    this.dispatcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loopDispatch();
+      }
+    }, "EventListener");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * events lost because the ring was full.
+   */
+  public long droppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * dispatches what has been published so far and stops the dispatcher thread.
+   */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(dispatcher);
+  }
+
+  @Override
+  public void onTinySocksStarted(TinySocks tinySocks) {
+    publish(STARTED, tinySocks, null, null, null, null);
+  }
+
+  @Override
+  public void onTinySocksStopped(TinySocks tinySocks) {
+    publish(STOPPED, tinySocks, null, null, null, null);
+  }
+
+  @Override
+  public void onSocksNegotiated(TinySocks tinySocks, Socket client) {
+    publish(NEGOTIATED, tinySocks, client, null, null, null);
+  }
+
+  @Override
+  public void onConnectionEstablished(TinySocks tinySocks, Connection connection) {
+    publish(ESTABLISHED, tinySocks, null, connection, null, null);
+  }
+
+  @Override
+  public void onConnectionClosed(TinySocks tinySocks, Endpoint endpoint, IOException ex) {
+    publish(CLOSED, tinySocks, null, null, endpoint, ex);
+  }
+
+  private void publish(int type, TinySocks tinySocks, @Nullable Socket client, @Nullable Connection connection,
+                       @Nullable Endpoint endpoint, @Nullable IOException ex) {
+    if (closed) return;
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - dispatched >= events.length) {
+        dropped.incrementAndGet();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+    int index = (int) sequence & mask;
+    Event event = events[index];
+    event.type = type;
+    event.tinySocks = tinySocks;
+    event.client = client;
+    event.connection = connection;
+    event.endpoint = endpoint;
+    event.ex = ex;
+    published.set(index, sequence);
+    if (idle) {
+      LockSupport.unpark(dispatcher);
+    }
+  }
+
+  private void loopDispatch() {
+    long next = 0;
+    while (true) {
+      int batch = 0;
+      while (batch < MAX_BATCH && published.get((int) next & mask) == next) {
+        dispatch(events[(int) next & mask]);
+        next++;
+        batch++;
+      }
+      if (batch > 0) {
+        dispatched = next;// frees the slots of the whole batch
+        continue;
+      }
+      if (closed && claimed.get() == next) return;
+      idle = true;
+      if (published.get((int) next & mask) != next && !closed) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+      idle = false;
+    }
+  }
+
+  private void dispatch(Event event) {
+    try {
+      switch (event.type) {
+        case STARTED:
+          delegate.onTinySocksStarted(event.tinySocks);
+          break;
+        case STOPPED:
+          delegate.onTinySocksStopped(event.tinySocks);
+          break;
+        case NEGOTIATED:
+          delegate.onSocksNegotiated(event.tinySocks, event.client);
+          break;
+        case ESTABLISHED:
+          delegate.onConnectionEstablished(event.tinySocks, event.connection);
+          break;
+        case CLOSED:
+          delegate.onConnectionClosed(event.tinySocks, event.endpoint, event.ex);
+          break;
+      }
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+    // drop the references, the slot may sit unused for a long time
+    event.tinySocks = null;
+    event.client = null;
+    event.connection = null;
+    event.endpoint = null;
+    event.ex = null;
+  }
+
+  private static final class Event {
+    int type;
+    TinySocks tinySocks;
+    Socket client;
+    Connection connection;
+    Endpoint endpoint;
+    IOException ex;
+  }
+}
@@ -0,0 +1,69 @@
+package tinysocks;
+
+import tinysocks.annotation.Nullable;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code --name value} options of the main entry points. a bad command line prints the usage
+ * and exits with status 2.
+ */
+final class CommandLine {
+  private final String usage;
+  private final Map<String, String> values = new HashMap<>();
+
+  /**
+   * @param names the options accepted, without the leading dashes
+   */
+  CommandLine(String usage, String[] args, String... names) {
+    this.usage = usage;
+    List<String> known = Arrays.asList(names);
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-h") || arg.equals("--help")) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+      if (!arg.startsWith("--") || !known.contains(arg.substring(2))) fail("unknown option: " + arg);
+      if (i + 1 == args.length) fail("missing value of " + arg);
+      values.put(arg.substring(2), args[++i]);
+    }
+  }
+
+  @Nullable
+  String get(String name) {
+    return values.get(name);
+  }
+
+  String get(String name, String defaultValue) {
+    String value = values.get(name);
+    return value != null ? value : defaultValue;
+  }
+
+  int getInt(String name, int defaultValue) {
+    String value = values.get(name);
+    if (value == null) return defaultValue;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      fail("not a number: --" + name + " " + value);
+      return defaultValue;
+    }
+  }
+
+  @Nullable
+  File getFile(String name) {
+    String value = values.get(name);
+    return value != null ? new File(value) : null;
+  }
+
+  void fail(String message) {
+    System.err.println(message);
+    System.err.println(usage);
+    System.exit(2);
+  }
+}
@@ -24,6 +24,39 @@ public interface Connection {
   @NonNull
   OutputStream outputStream() throws IOException;
 
+  /**
+   * implemented by connections that can deliver received data themselves, without a thread
+   * blocked in {@link #inputStream()}.
+   */
+  interface Pushing {
+    /**
+     * from now on received data goes to {@code sink}, on the thread that received it, until
+     * the sink pauses. data received before is delivered first.
+     */
+    void push(@NonNull Sink sink);
+  }
+
+  interface Sink {
+    /**
+     * takes what it can without blocking, the connection's receiver serves other streams too.
+     * the buffer is only valid during the call.
+     *
+     * @return the bytes taken, fewer than {@code size} pauses the sink
+     */
+    int onData(@NonNull byte[] buffer, int offset, int size) throws IOException;
+
+    /**
+     * the sink took less than it was given: the rest is kept and nothing more is pushed, read
+     * it from {@link #inputStream()} from now on, on a thread of your own.
+     */
+    void onPaused();
+
+    /**
+     * no more data, {@code ex} is null when the remote side closed normally.
+     */
+    void onClosed(@Nullable IOException ex);
+  }
+
   interface Factory {
     @Nullable
     Connection newConnection(@NonNull Socket socksClient, @NonNull Endpoint endpoint) throws IOException;
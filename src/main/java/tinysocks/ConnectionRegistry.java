@@ -0,0 +1,61 @@
+package tinysocks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The live connections of a server: add and remove in constant time from any thread without
+ * a shared lock, and one {@link #close()} that hands back everything left for shutdown.
+ * <p>
+ * an add racing with the close either shows up in what the close returns or is refused, so
+ * no connection accepted while shutting down is missed.
+ */
+public final class ConnectionRegistry<T> {
+  private final Set<T> items;
+  private volatile boolean closed;
+
+  public ConnectionRegistry() {
+    this(64);
+  }
+
+  public ConnectionRegistry(int expected) {
+    items = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>(expected));
+  }
+
+  /**
+   * @return false once the registry is closed, the caller closes the connection itself
+   */
+  public boolean add(T item) {
+    items.add(item);
+    if (closed) {
+      items.remove(item);
+      return false;
+    }
+    return true;
+  }
+
+  public void remove(T item) {
+    items.remove(item);
+  }
+
+  public int size() {
+    return items.size();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * refuses further adds and returns the connections still registered.
+   */
+  public List<T> close() {
+    closed = true;
+    List<T> left = new ArrayList<>(items);
+    items.clear();
+    return left;
+  }
+}
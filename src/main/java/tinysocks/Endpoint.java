@@ -1,12 +1,13 @@
 package tinysocks;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 public final class Endpoint {
 
@@ -57,38 +58,30 @@ public final class Endpoint {
   }
 
   public static Endpoint parse(byte[] buffer) throws IOException {
-    ByteArrayInputStream in = new ByteArrayInputStream(buffer);
-    int hostType = in.read();
-    String hostname = null;
-    byte[] ip = null;
-    if(hostType == 1) {
-      hostname = new String(Util.readNBytes(in, in.read()), Util.ASCII);
-    } else {
-      ip = Util.readNBytes(in, 4);
-    }
-    int port = Util.readUnsignedShort(in);
-    return new Endpoint(hostname, ip, port);
+    return parse(ByteBuffer.wrap(buffer));
   }
 
-  public static Endpoint parseSocks(InputStream in) throws IOException {
-    byte[] bytes = Util.readNBytes(in, 4);
-    if (bytes[0] != 5 && bytes[1] != 1) {
-      throw new IOException("Unsupported socks command");
-    }
-    String hostname = null;
-    byte[] ip = null;
-    switch (bytes[3]) {
-      case 1:
-        ip = Util.readNBytes(in, 4);
-        break;
-      case 3:
-        hostname = new String(Util.readNBytes(in, in.read()), Util.ASCII);
-        break;
-      default:
-        throw new IOException("Unsupported host type: " + bytes[3]);
+  /**
+   * reads the remaining bytes of a connect frame payload, see {@link #toBytes()}.
+   */
+  public static Endpoint parse(ByteBuffer in) throws IOException {
+    try {
+      int hostType = in.get();
+      String hostname = null;
+      byte[] ip = null;
+      if (hostType == 1) {
+        byte[] name = new byte[in.get() & 0xFF];
+        in.get(name);
+        hostname = new String(name, Util.ASCII);
+      } else {
+        ip = new byte[4];
+        in.get(ip);
+      }
+      int port = in.getShort() & 0xFFFF;
+      return new Endpoint(hostname, ip, port);
+    } catch (BufferUnderflowException e) {
+      throw new EOFException("truncated endpoint");
     }
-    int port = Util.readUnsignedShort(in);
-    return new Endpoint(hostname, ip, port);
   }
 
   public InetSocketAddress toSocketAddress() throws IOException {
@@ -107,6 +100,10 @@ public final class Endpoint {
     return new Endpoint(hostname, null, port);
   }
 
+  public static Endpoint ofAddress(byte[] ip, int port) {
+    return new Endpoint(null, ip, port);
+  }
+
   public static String socketAddressToString(SocketAddress address) {
     return "";
   }
@@ -0,0 +1,538 @@
+package tinysocks;
+
+import tinysocks.annotation.Nullable;
+import tinysocks.limit.RateLimits;
+import tinysocks.limit.Throttle;
+import tinysocks.monitor.ConnectionTable;
+import tinysocks.relay.ByteArrayPool;
+import tinysocks.relay.IntMap;
+import tinysocks.relay.Link;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static tinysocks.relay.Link.TYPE_CLOSE;
+import static tinysocks.relay.Link.TYPE_CONNECT;
+
+/**
+ * Destination side of a relay node on a few selector threads instead of a thread per stream.
+ * <p>
+ * connects, reads and writes are non-blocking. data read from a destination goes from the
+ * loop's read buffer straight into a link frame; data for a destination is written from the
+ * link read buffer and only the part the socket does not take is copied, into pooled arrays.
+ * a stream stops being read while its link queue is full or its throttle asks for a pause, and
+ * stops being written during the pause too: a throttled stream's data always goes through the
+ * pending queue, which the loop writes and charges.
+ * what a destination has pending is bounded by the stream window, see {@link Link#STREAM_WINDOW},
+ * which is handed back as it is written, so the link reader never waits on a destination.
+ */
+final class NioEgress implements Link.WritableListener {
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+  private static final long MAX_SELECT_MILLIS = 1000;
+  private static final byte[] CONNECTED = {1};
+  private static final byte[] CONNECT_FAILED = {2};
+
+  private final Link link;
+  private final Executor resolver;
+  @Nullable
+  private final RateLimits rateLimits;
+  @Nullable
+  private final ConnectionTable connectionTable;
+  private final Loop[] loops;
+  private final IntMap<Stream> streams = new IntMap<>();// guarded by itself
+  private int nextLoop;// link reader only
+
+  /**
+   * @param resolver runs the blocking host name lookups
+   */
+  NioEgress(String name, Link link, int threads, Executor resolver, @Nullable RateLimits rateLimits,
+            @Nullable ConnectionTable connectionTable) throws IOException {
+    this.link = link;
+    this.resolver = resolver;
+    this.rateLimits = rateLimits;
+    this.connectionTable = connectionTable;
+    this.loops = new Loop[threads];
+    for (int i = 0; i < threads; i++) {
+      loops[i] = new Loop(name + "-Egress-" + i);
+    }
+    for (Loop loop : loops) {
+      Thread thread = new Thread(loop, loop.name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  int size() {
+    synchronized (streams) {
+      return streams.size();
+    }
+  }
+
+  @Nullable
+  private Stream stream(int connectionId) {
+    synchronized (streams) {
+      return streams.get(connectionId);
+    }
+  }
+
+  /**
+   * opens a stream, the connect result is sent over the link once known. link reader only.
+   */
+  void connect(final int connectionId, final Endpoint endpoint) {
+    Throttle throttle = rateLimits != null ? rateLimits.throttleFor(null, endpoint) : Throttle.NONE;
+    final Loop loop = loops[nextLoop];
+    nextLoop = (nextLoop + 1) % loops.length;
+    final Stream stream = new Stream(connectionId, loop, throttle);
+    if (connectionTable != null) {
+      stream.tableEntry = connectionTable.add(null, endpoint, stream);
+    }
+    synchronized (streams) {
+      streams.put(connectionId, stream);
+    }
+    if (endpoint.hostname == null) {
+      loop.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            loop.connect(stream, endpoint.toSocketAddress());
+          } catch (IOException e) {
+            loop.connectFailed(stream);
+          }
+        }
+      });
+      return;
+    }
+    resolver.execute(new Runnable() {
+      @Override
+      public void run() {
+        InetSocketAddress address = null;
+        try {
+          address = endpoint.toSocketAddress();
+        } catch (IOException ignored) {
+        }
+        final InetSocketAddress resolved = address;
+        loop.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (resolved == null) {
+              loop.connectFailed(stream);
+            } else {
+              loop.connect(stream, resolved);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * writes data for a destination, what the socket does not take now is kept for the loop.
+   * never blocks, link reader only.
+   */
+  void write(int connectionId, ByteBuffer payload) {
+    Stream stream = stream(connectionId);
+    if (stream == null) return;
+    int size = payload.remaining();
+    int written = 0;
+    synchronized (stream) {
+      if (stream.closed) return;
+      if (stream.pendingBytes == 0 && stream.key != null && stream.throttle == Throttle.NONE) {
+        try {
+          written = stream.channel.write(payload);
+          stream.bytesIn += written;
+        } catch (IOException e) {
+          stream.loop.closeLater(stream, true);
+          return;
+        }
+      }
+      if (payload.hasRemaining()) {
+        int remaining = payload.remaining();
+        byte[] copy = ByteArrayPool.take(remaining);
+        payload.get(copy, 0, remaining);
+        if (stream.pending == null) {
+          stream.pending = new ArrayDeque<>();
+        }
+        stream.pending.add(ByteBuffer.wrap(copy, 0, remaining));
+        stream.pendingBytes += remaining;
+        if (stream.pendingBytes == remaining && stream.key != null) {
+          stream.loop.updateInterestLater(stream);
+        }
+      }
+    }
+    // the pending bytes are handed back as the loop writes them
+    link.consumed(connectionId, Link.windowCost(size) - size + written);
+  }
+
+  /**
+   * the stream was closed by the other side of the link.
+   */
+  void close(int connectionId) {
+    final Stream stream = stream(connectionId);
+    if (stream == null) return;
+    stream.loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        stream.loop.closeWhenDrained(stream);
+      }
+    });
+  }
+
+  /**
+   * closes every stream without telling the link, e.g. because the session is gone.
+   */
+  void closeAll() {
+    List<Stream> open;
+    synchronized (streams) {
+      open = streams.values();
+    }
+    for (Stream stream : open) {
+      stream.loop.closeLater(stream, false);
+    }
+  }
+
+  void shutdown() {
+    closeAll();
+    for (Loop loop : loops) {
+      loop.stopped = true;
+      loop.selector.wakeup();
+    }
+  }
+
+  @Override
+  public void onWritable(int connectionId) {
+    final Stream stream = stream(connectionId);
+    if (stream == null) return;
+    stream.loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        stream.linkFull = false;
+        stream.loop.updateInterest(stream);
+      }
+    });
+  }
+
+  private static final class Stream implements ConnectionTable.Counters {
+    final int connectionId;
+    final Loop loop;
+    final Throttle throttle;
+    SocketChannel channel;
+    volatile SelectionKey key;// set once connected
+    long connectDeadline;
+    long resumeAt;// while throttled
+    boolean linkFull;
+    boolean throttled;
+    boolean closeWhenDrained;// the link side closed with data still pending
+    volatile boolean closed;
+    // guarded by this
+    ArrayDeque<ByteBuffer> pending;
+    int pendingBytes;
+    volatile long bytesIn;// guarded by this
+    volatile long bytesOut;// loop thread only
+    ConnectionTable.Entry tableEntry;
+
+    Stream(int connectionId, Loop loop, Throttle throttle) {
+      this.connectionId = connectionId;
+      this.loop = loop;
+      this.throttle = throttle;
+    }
+
+    @Override
+    public long bytesIn() {
+      return bytesIn;
+    }
+
+    @Override
+    public long bytesOut() {
+      return bytesOut;
+    }
+  }
+
+  private final class Loop implements Runnable {
+    final String name;
+    final Selector selector;
+    final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // connect timeouts are all the same, so the queue is in deadline order
+    final ArrayDeque<Stream> connecting = new ArrayDeque<>();
+    final PriorityQueue<Stream> throttled = new PriorityQueue<>(16, new Comparator<Stream>() {
+      @Override
+      public int compare(Stream a, Stream b) {
+        return Long.compare(a.resumeAt, b.resumeAt);
+      }
+    });
+    volatile boolean stopped;
+
+    Loop(String name) throws IOException {
+      this.name = name;
+      this.selector = Selector.open();
+    }
+
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        try {
+          selector.select(selectTimeoutMillis());
+        } catch (IOException e) {
+          System.out.println(name + " select failed: " + e.getMessage());
+          break;
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid()) {
+            handle(key);
+          }
+        }
+        long now = System.nanoTime();
+        expireConnects(now);
+        resumeThrottled(now);
+      }
+      for (SelectionKey key : selector.keys()) {
+        Util.closeQuietly(key.channel());
+      }
+      Util.closeQuietly(selector);
+    }
+
+    private long selectTimeoutMillis() {
+      Stream next = throttled.peek();
+      if (next == null) return MAX_SELECT_MILLIS;
+      long millis = TimeUnit.NANOSECONDS.toMillis(next.resumeAt - System.nanoTime());
+      return Math.max(1, Math.min(millis, MAX_SELECT_MILLIS));
+    }
+
+    private void handle(SelectionKey key) {
+      Stream stream = (Stream) key.attachment();
+      try {
+        if (key.isConnectable()) {
+          stream.channel.finishConnect();
+          connected(stream);
+          return;
+        }
+        if (key.isWritable() && !stream.throttled) {
+          writePending(stream);
+        }
+        if (key.isValid() && key.isReadable() && !stream.throttled) {
+          read(stream);
+        }
+      } catch (IOException e) {
+        if (stream.key == null) {
+          connectFailed(stream);
+        } else {
+          close(stream, true);
+        }
+      }
+    }
+
+    void connect(Stream stream, InetSocketAddress address) {
+      if (stream.closed) return;
+      try {
+        SocketChannel channel = SocketChannel.open();
+        stream.channel = channel;
+        channel.configureBlocking(false);
+        if (channel.connect(address)) {
+          connected(stream);
+        } else {
+          channel.register(selector, SelectionKey.OP_CONNECT, stream);
+          stream.connectDeadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+          connecting.add(stream);
+        }
+      } catch (IOException e) {
+        connectFailed(stream);
+      }
+    }
+
+    private void connected(Stream stream) throws IOException {
+      try {
+        link.send(stream.connectionId, TYPE_CONNECT, CONNECTED, 0, 1);
+      } catch (IOException e) {
+        close(stream, false);
+        return;
+      }
+      synchronized (stream) {
+        stream.key = stream.channel.register(selector, SelectionKey.OP_READ, stream);
+      }
+      // data that came in while connecting
+      updateInterest(stream);
+    }
+
+    void connectFailed(Stream stream) {
+      if (stream.closed) return;
+      try {
+        link.send(stream.connectionId, TYPE_CONNECT, CONNECT_FAILED, 0, 1);
+      } catch (IOException ignored) {
+      }
+      close(stream, true);
+    }
+
+    private void expireConnects(long now) {
+      Stream stream;
+      while ((stream = connecting.peek()) != null && (stream.key != null || stream.closed
+        || now - stream.connectDeadline >= 0)) {
+        connecting.poll();
+        if (stream.key == null && !stream.closed) {
+          connectFailed(stream);
+        }
+      }
+    }
+
+    private void resumeThrottled(long now) {
+      Stream stream;
+      while ((stream = throttled.peek()) != null && now - stream.resumeAt >= 0) {
+        throttled.poll();
+        stream.throttled = false;
+        updateInterest(stream);
+      }
+    }
+
+    private void read(Stream stream) throws IOException {
+      ByteBuffer buffer = readBuffer;
+      buffer.clear();
+      int read = stream.channel.read(buffer);
+      if (read < 0) throw new IOException("closed.");
+      if (read == 0) return;
+      if (!link.offer(stream.connectionId, buffer.array(), 0, read)) {
+        stream.linkFull = true;
+      }
+      stream.bytesOut += read;
+      charge(stream, read);
+      if (stream.linkFull || stream.throttled) {
+        updateInterest(stream);
+      }
+    }
+
+    // pauses both directions of the stream for as long as its throttle asks
+    private void charge(Stream stream, int bytes) {
+      long now = System.nanoTime();
+      long wait = stream.throttle.reserve(bytes, now);
+      if (wait <= 0) return;
+      if (stream.throttled) throttled.remove(stream);
+      stream.throttled = true;
+      stream.resumeAt = now + wait;
+      throttled.add(stream);
+    }
+
+    private void writePending(Stream stream) throws IOException {
+      boolean drained;
+      int total = 0;
+      synchronized (stream) {
+        ArrayDeque<ByteBuffer> pending = stream.pending;
+        while (pending != null && !pending.isEmpty()) {
+          ByteBuffer head = pending.peek();
+          int written = stream.channel.write(head);
+          stream.pendingBytes -= written;
+          stream.bytesIn += written;
+          total += written;
+          if (head.hasRemaining()) break;
+          pending.poll();
+          ByteArrayPool.recycle(head.array());
+        }
+        drained = stream.pendingBytes == 0;
+      }
+      if (total > 0) {
+        link.consumed(stream.connectionId, total);
+        charge(stream, total);
+      }
+      if (drained && stream.closeWhenDrained) {
+        close(stream, false);
+        return;
+      }
+      updateInterest(stream);
+    }
+
+    // data taken for the destination before the close still goes out, as a blocking write would
+    void closeWhenDrained(Stream stream) {
+      boolean drained;
+      synchronized (stream) {
+        drained = stream.pendingBytes == 0;
+      }
+      if (drained || stream.key == null) {
+        close(stream, false);
+        return;
+      }
+      stream.closeWhenDrained = true;
+      updateInterest(stream);
+    }
+
+    void updateInterestLater(final Stream stream) {
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          updateInterest(stream);
+        }
+      });
+    }
+
+    void updateInterest(Stream stream) {
+      SelectionKey key = stream.key;
+      if (key == null || !key.isValid()) return;
+      int ops = stream.linkFull || stream.throttled || stream.closeWhenDrained ? 0 : SelectionKey.OP_READ;
+      synchronized (stream) {
+        if (stream.pendingBytes > 0 && !stream.throttled) ops |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(ops);
+    }
+
+    void closeLater(final Stream stream, final boolean notifyLink) {
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          close(stream, notifyLink);
+        }
+      });
+    }
+
+    // loop thread only
+    void close(Stream stream, boolean notifyLink) {
+      if (stream.closed) return;
+      synchronized (stream) {
+        stream.closed = true;
+        if (stream.pending != null) {
+          for (ByteBuffer buffer : stream.pending) {
+            ByteArrayPool.recycle(buffer.array());
+          }
+          stream.pending = null;
+        }
+        stream.pendingBytes = 0;
+      }
+      synchronized (streams) {
+        streams.remove(stream.connectionId, stream);
+      }
+      Util.closeQuietly(stream.channel);
+      if (stream.tableEntry != null) {
+        stream.tableEntry.remove();
+      }
+      if (stream.throttled) {
+        throttled.remove(stream);
+      }
+      if (notifyLink) {
+        try {
+          link.send(stream.connectionId, TYPE_CLOSE, null, 0, 0);
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package tinysocks;
 
+import tinysocks.annotation.Nullable;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -21,6 +23,14 @@ public final class NoRelay {
     };
   }
 
+  /**
+   * the socket behind a direct connection, null for any other.
+   */
+  @Nullable
+  static Socket socketOf(Connection connection) {
+    return connection instanceof DirectConnection ? ((DirectConnection) connection).socket : null;
+  }
+
   private static final class DirectConnection implements Connection {
     private final Socket socket;
     private final Endpoint endpoint;
@@ -1,54 +1,157 @@
 package tinysocks;
 
 import tinysocks.annotation.Nullable;
-import tinysocks.relay.ByteArrayPool;
-
+import tinysocks.limit.RateLimits;
+import tinysocks.limit.Throttle;
+import tinysocks.monitor.ConnectionTable;
+import tinysocks.relay.FrameCapture;
+import tinysocks.relay.IntMap;
+import tinysocks.relay.Link;
+import tinysocks.relay.LinkCipher;
+import tinysocks.relay.MemoryGovernor;
+import tinysocks.relay.Protocol;
+import tinysocks.relay.ReceiveRing;
+import tinysocks.relay.SharedMemoryTransport;
+import tinysocks.relay.StreamPriority;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static tinysocks.relay.Link.TYPE_CLOSE;
+import static tinysocks.relay.Link.TYPE_CONNECT;
+import static tinysocks.relay.Link.TYPE_DATA;
 
 
-public final class RelayNode {
+public final class RelayNode implements Link.Handler {
   private static final boolean DEBUG_READ = false;
   private static final boolean DEBUG_WRITE = false;
-  private static final byte[] HELLO = "tiny_relay(v0.0.1)@".getBytes(Util.ASCII);
+  private static final byte[] HELLO = "tiny_relay(v0.0.5)@".getBytes(Util.ASCII);
 
-  private static final int TYPE_DATA = 1;
-  private static final int TYPE_CONNECT = 2;
-  private static final int TYPE_CLOSE = 3;
+  private static final long MIN_BACKOFF_MILLIS = 500;
+  private static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 10 * 1000;
 
   private static final IOException closedBySocks = new IOException("closed by socks");
+  private static final byte CONNECT_STATE_CONNECTED = 1;
+  private static final byte CONNECT_STATE_FAILED = 2;
+  private static final byte[] CONNECTED = {CONNECT_STATE_CONNECTED};
+  private static final byte[] CONNECT_FAILED = {CONNECT_STATE_FAILED};
+
+  private static final String USAGE = "usage: RelayNode [--host relay-host] [--port 10140] [--name node-name]"
+    + " [--secret secret] [--selector-threads n] [--unix-socket path] [--shared-memory file] [--memory-mb n]";
 
   private final String host;
   private final int port;
+  @Nullable
+  private final File sharedMemory;
+  @Nullable
+  private final File unixSocket;
   private final Executor executor;
 
   private final String nodeName;
 
-  private Socket socket;
+  private final Link link;
+
+  private final StreamPriority priority;
+
+  private final RateLimits rateLimits;
+
+  @Nullable
+  private final ConnectionTable connectionTable;
+
+  @Nullable
+  private final byte[] secret;
+
+  @Nullable
+  private final TinyRelay nextHop;
+
+  // destinations on selector threads instead of workers, see Builder#selectorThreads
+  @Nullable
+  private final NioEgress egress;
+
+  private volatile Closeable socket;
+
+  private boolean started;
 
-  private boolean stopped;
+  private volatile boolean stopped;
 
-  private boolean closed;
+  // guarded by itself
+  private final IntMap<Worker> workers = new IntMap<>();
 
-  private final Map<Integer, Worker> workers = new HashMap<>();
+  // stream id on our link -> the same stream on the next hop, guarded by itself
+  private final IntMap<Route> routes = new IntMap<>();
 
   private RelayNode(Builder builder) {
     this.host = builder.host;
     this.port = builder.port;
+    this.sharedMemory = builder.sharedMemory;
+    this.unixSocket = builder.unixSocket;
     this.executor = builder.executor;
     this.nodeName = builder.nodeName;
+    this.priority = builder.priority;
+    this.rateLimits = builder.rateLimits;
+    this.connectionTable = builder.connectionTable;
+    this.secret = builder.secret;
+    this.nextHop = builder.nextHop;
+    this.link = new Link("RelayNode#" + nodeName, this, 0, builder.maxReplayBytes, builder.pingIntervalMillis);
+    NioEgress egress = null;
+    if (builder.selectorThreads > 0) {
+      try {
+        egress = new NioEgress("RelayNode#" + nodeName, link, builder.selectorThreads, executor, rateLimits,
+          connectionTable);
+      } catch (IOException e) {
+        throw new RuntimeException("cannot open selector", e);
+      }
+      link.setWritableListener(egress);
+    }
+    this.egress = egress;
+    link.setCapture(builder.capture);
+  }
+
+  /**
+   * runs an egress node until the process is stopped, see {@link #USAGE}.
+   */
+  public static void main(String[] args) {
+    CommandLine options = new CommandLine(USAGE, args,
+      "host", "port", "name", "secret", "selector-threads", "unix-socket", "shared-memory", "memory-mb");
+    Builder builder = new Builder()
+      .host(options.get("host", "localhost"))
+      .port(options.getInt("port", 10140))
+      .nodeName(options.get("name", "NO_NAME"))
+      .selectorThreads(options.getInt("selector-threads", 0))
+      .unixSocket(options.getFile("unix-socket"))
+      .sharedMemory(options.getFile("shared-memory"));
+    if (options.get("secret") != null) {
+      builder.secret(options.get("secret"));
+    }
+    if (options.get("memory-mb") != null) {
+      MemoryGovernor.global().setLimit(options.getInt("memory-mb", 0) * 1024L * 1024);
+    }
+    final RelayNode node = builder.build();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        node.stop();
+      }
+    }));
+    node.start();
   }
 
   public void start() {
     synchronized (this) {
-      if (socket != null) throw new RuntimeException("already started.");
+      if (started) throw new RuntimeException("already started.");
+      started = true;
       executor.execute(new Runnable() {
         @Override
         public void run() {
@@ -60,77 +163,253 @@ public final class RelayNode {
 
   private void doStart() {
     Thread.currentThread().setName("RelayNode#" + nodeName);
-    socket = Util.connectSocket(Endpoint.ofHost(host, port));
-    if (socket == null) {
-      System.out.println("Cannot connect to relay server");
-      return;
+    long backoff = MIN_BACKOFF_MILLIS;
+    while (!stopped) {
+      Closeable socket = connectRelay();
+      if (socket == null) {
+        System.out.println("Cannot connect to relay server, retry in " + backoff + "ms.");
+      } else {
+        this.socket = socket;
+        try {
+          LinkCipher cipher = secret != null ? LinkCipher.newHandshake() : null;
+          InputStream in;
+          OutputStream out;
+          if (socket instanceof Socket) {
+            in = ((Socket) socket).getInputStream();
+            out = ((Socket) socket).getOutputStream();
+          } else {
+            in = ((SharedMemoryTransport) socket).getInputStream();
+            out = ((SharedMemoryTransport) socket).getOutputStream();
+          }
+          int peerReceived = handshake(socket, in, out, cipher);
+          if (cipher != null) {
+            in = cipher.wrap(in);
+            out = cipher.wrap(out);
+          }
+          backoff = MIN_BACKOFF_MILLIS;
+          link.run(socket, in, out, peerReceived);
+        } catch (IOException e) {
+          if (!stopped) {
+            System.out.println("Relay link lost (" + e.getMessage() + "), reconnecting.");
+          }
+        } finally {
+          Util.closeQuietly(socket);
+        }
+      }
+      if (stopped) break;
+      try {
+        Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+      } catch (InterruptedException ignored) {
+      }
+      backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+    }
+  }
+
+  @Nullable
+  private Closeable connectRelay() {
+    if (sharedMemory == null && unixSocket == null) {
+      return Util.connectSocket(Endpoint.ofHost(host, port));
     }
     try {
-      sendHello(socket.getOutputStream());
-      loopReader(socket.getInputStream());
+      if (unixSocket != null) {
+        return UnixSockets.connect(unixSocket);
+      }
+      return SharedMemoryTransport.connect(sharedMemory, HANDSHAKE_TIMEOUT_MILLIS);
     } catch (IOException e) {
-      close(e);
+      return null;
     }
   }
 
-  // relay_node(v0.0.1)@local_node
-  private void sendHello(OutputStream out) throws IOException {
-    out.write(HELLO);
+  // tiny_relay(v0.0.5)@local_node + session token + frames received + cipher [+ public key]
+  // answered by: session state + session token + frames received by the server
+  // encrypted, the server sends its public key first and the state only once the node's
+  // confirmation checked out, then its own confirmation; both cover the whole transcript
+  private int handshake(Closeable socket, InputStream in, OutputStream out, @Nullable LinkCipher cipher) throws IOException {
+    SharedMemoryTransport.setSoTimeout(socket, HANDSHAKE_TIMEOUT_MILLIS);
+    ByteArrayOutputStream transcript = new ByteArrayOutputStream(256);
+    transcript.write(HELLO);
     byte[] nodeNameBytes = nodeName.getBytes(Util.ASCII);
-    out.write(nodeNameBytes.length);
-    out.write(nodeNameBytes);
+    transcript.write(nodeNameBytes.length);
+    transcript.write(nodeNameBytes);
+    Util.writeLong(transcript, link.sessionToken());
+    Util.writeInt(transcript, link.receivedCount());
+    transcript.write(cipher != null ? LinkCipher.AES_GCM : LinkCipher.NONE);
+    if (cipher != null) {
+      cipher.writePublicKey(transcript);
+    }
+    transcript.writeTo(out);
     out.flush();
+
+    if (cipher != null) {
+      byte[] serverKey = LinkCipher.readPublicKey(in);
+      cipher.agree(secret, serverKey, true);
+      Util.writeShort(transcript, serverKey.length);
+      transcript.write(serverKey);
+      cipher.writeConfirmation(out, transcript.toByteArray(), true);
+      out.flush();
+    }
+    int state = in.read();
+    long token = Util.readLong(in);
+    int peerReceived = Util.readInt(in);
+    if (cipher != null) {
+      transcript.write(state);
+      Util.writeLong(transcript, token);
+      Util.writeInt(transcript, peerReceived);
+      // nothing of the session is touched before the server proved it knows the secret
+      cipher.verifyConfirmation(in, transcript.toByteArray(), false);
+    }
+    SharedMemoryTransport.setSoTimeout(socket, 0);
+    if (state == Link.SESSION_RESUMED && token == link.sessionToken()) {
+      System.out.println("Relay session resumed.");
+      return peerReceived;
+    }
+    if (state != Link.SESSION_NEW) {
+      throw new IOException("unexpected session state: " + state);
+    }
+    if (link.sessionToken() != 0) {
+      int streams = workerCount() + (egress != null ? egress.size() : 0);
+      System.out.println("Relay session expired, closing " + streams + " streams.");
+      closeWorkers();
+    }
+    link.reset(token);
+    return 0;
   }
 
   public boolean isConnected() {
-    return socket != null && socket.isConnected();
+    return link.isAttached();
+  }
+
+  public long rttMillis() {
+    return link.rttMillis();
   }
 
   public void stop() {
     if (stopped) return;
     stopped = true;
+    link.close();
     Util.closeQuietly(socket);
+    closeWorkers();
+    if (egress != null) {
+      egress.shutdown();
+    }
+    if (executor instanceof ExecutorService) {
+      ((ExecutorService) executor).shutdown();
+    }
   }
 
-  private void loopReader(InputStream in) throws IOException {
-    while (!socket.isClosed()) {
-      int connectionId = Util.readInt(in);
-      int type = in.read();
-      int size = Util.readUnsignedShort(in);
-      if (DEBUG_READ) {
-        Util.debugLogPacket("receive", connectionId, type, size);
-      }
-      byte[] buffer = null;
-      if (size > 0) {
-        buffer = ByteArrayPool.take(size);
-        Util.readNBytes(in, buffer, 0, size);
-      }
-      processPacket(connectionId, type, buffer, size);
-      if (buffer != null) {
-        ByteArrayPool.recycle(buffer);
-      }
+  private void closeWorkers() {
+    List<Worker> closing;
+    synchronized (workers) {
+      closing = workers.values();
+    }
+    for (Worker worker : closing) {
+      worker.close(closedBySocks);
+    }
+    List<Route> closed;
+    synchronized (routes) {
+      closed = routes.values();
+      routes.clear();
+    }
+    for (Route route : closed) {
+      route.close();
+    }
+    if (egress != null) {
+      egress.closeAll();
     }
   }
 
-  private void processPacket(int connectionId, int type, @Nullable byte[] buffer, int size) throws IOException {
+  @Override
+  public void onFrame(int connectionId, int type, ByteBuffer payload) throws IOException {
+    if (DEBUG_READ) {
+      Util.debugLogPacket("receive", connectionId, type, payload.remaining());
+    }
+    if (nextHop != null) {
+      forward(connectionId, type, payload);
+      return;
+    }
     switch (type) {
       case TYPE_CONNECT: {
-        Endpoint endpoint = Endpoint.parse(buffer);
+        Endpoint endpoint = Endpoint.parse(payload);
+        link.openStream(connectionId, priority.weightOf(endpoint));
+        if (egress != null) {
+          egress.connect(connectionId, endpoint);
+          break;
+        }
         Worker worker = new Worker(this, connectionId, endpoint);
         runWorker(worker);
         break;
       }
       case TYPE_CLOSE: {
-        Worker worker = workers.get(connectionId);
+        link.closeStream(connectionId);
+        if (egress != null) {
+          egress.close(connectionId);
+          break;
+        }
+        Worker worker = worker(connectionId);
         if (worker != null) {
-          worker.close(closedBySocks);
+          worker.finish();
         }
         break;
       }
       case TYPE_DATA: {
-        Worker worker = workers.get(connectionId);
+        if (egress != null) {
+          egress.write(connectionId, payload);
+          break;
+        }
+        Worker worker = worker(connectionId);
         if (worker != null) {
-          worker.sendToServer(buffer, size);
+          worker.sendToServer(payload);
+        }
+        break;
+      }
+    }
+  }
+
+  // cut-through: frames go to the next hop as they are read, only the stream id changes
+  private void forward(int connectionId, int type, ByteBuffer payload) throws IOException {
+    switch (type) {
+      case TYPE_CONNECT: {
+        byte[] endpoint = new byte[payload.remaining()];
+        payload.get(endpoint);
+        int weight = priority.weightOf(Endpoint.parse(endpoint));
+        link.openStream(connectionId, weight);
+        Protocol next = nextHop.protocol();
+        if (next == null) {
+          sendPacket(connectionId, TYPE_CONNECT, CONNECT_FAILED, 0, 1);
+          break;
+        }
+        Route route = new Route(connectionId, next);
+        synchronized (routes) {
+          routes.put(connectionId, route);
+        }
+        try {
+          route.remoteId = next.forward(endpoint, weight, route);
+        } catch (IOException e) {
+          synchronized (routes) {
+            routes.remove(connectionId);
+          }
+          sendPacket(connectionId, TYPE_CONNECT, CONNECT_FAILED, 0, 1);
+        }
+        break;
+      }
+      case TYPE_DATA: {
+        Route route;
+        synchronized (routes) {
+          route = routes.get(connectionId);
+        }
+        if (route != null) {
+          route.sendData(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        }
+        break;
+      }
+      case TYPE_CLOSE: {
+        link.closeStream(connectionId);
+        Route route;
+        synchronized (routes) {
+          route = routes.remove(connectionId);
+        }
+        if (route != null) {
+          route.close();
         }
         break;
       }
@@ -144,44 +423,40 @@ public final class RelayNode {
     executor.execute(worker);
   }
 
-  @SuppressWarnings("SynchronizeOnNonFinalField")
-  public void sendPacket(int connectionId, int type, byte[] buffer, int offset, int size) {
-    synchronized (socket) {
-      if (DEBUG_WRITE) {
-        Util.debugLogPacket("send", connectionId, type, size);
-      }
-      try {
-        OutputStream out = socket.getOutputStream();
-        Util.writeInt(out, connectionId);
-        out.write(type);
-        Util.writeShort(out, (short) size);// max count is 4096
-        if (size > 0) {
-          out.write(buffer, offset, size);
-        }
-        out.flush();
-      } catch (IOException e) {
-        close(e);
-      }
+  @Nullable
+  private Worker worker(int connectionId) {
+    synchronized (workers) {
+      return workers.get(connectionId);
     }
   }
 
-  private void close(IOException e) {
-    if(closed) return;
-    closed = true;
-    Util.closeQuietly(socket);
-    if (executor instanceof ExecutorService) {
-      ((ExecutorService) executor).shutdown();
+  private int workerCount() {
+    synchronized (workers) {
+      return workers.size();
     }
   }
 
-  static class Worker implements Runnable {
+  public void sendPacket(int connectionId, int type, byte[] buffer, int offset, int size) throws IOException {
+    if (DEBUG_WRITE) {
+      Util.debugLogPacket("send", connectionId, type, size);
+    }
+    link.send(connectionId, type, buffer, offset, size);
+  }
+
+  static class Worker implements Runnable, ConnectionTable.Counters {
     private final RelayNode node;
     private final int connectionId;
     private final Endpoint endpoint;
 
-    private Socket socket;
+    private volatile Socket socket;
 
-    private boolean closed;
+    private volatile boolean closed;
+    // queued by the link reader for the thread writing to the destination
+    private final ReceiveRing toServer = new ReceiveRing(Link.STREAM_WINDOW / Link.MIN_FRAME_COST);
+    // bytes in are written by the writing thread, bytes out by this worker
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile ConnectionTable.Entry tableEntry;
 
     public Worker(RelayNode node, int connectionId, Endpoint host) {
       this.node = node;
@@ -199,51 +474,173 @@ public final class RelayNode {
         if (socket == null) {
           throw new IOException("failed connect endpoint: " + endpoint);
         }
-        while (!closed) {
-          byte[] buffer = new byte[4096];
+        if (closed) {
+          Util.closeQuietly(socket);
+          return;
+        }
+        if (node.connectionTable != null) {
+          tableEntry = node.connectionTable.add(null, endpoint, this);
+          if (closed) tableEntry.remove();
+        }
+        // both directions are charged to the same buckets
+        final Throttle throttle = node.rateLimits != null ? node.rateLimits.throttleFor(null, endpoint)
+          : Throttle.NONE;
+        final Socket connected = socket;
+        node.executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            writeToServer(connected, throttle);
+          }
+        });
+        byte[] buffer = new byte[4096];
+        MemoryGovernor.global().reserve(buffer.length);
+        try {
           InputStream in = socket.getInputStream();
-          int read = in.read(buffer, 0, buffer.length);
-          if (read == -1) {
-            throw new IOException("closed.");
+          while (!closed) {
+            int read = in.read(buffer, 0, buffer.length);
+            if (read == -1) {
+              throw new IOException("closed.");
+            }
+            node.sendPacket(connectionId, TYPE_DATA, buffer, 0, read);
+            bytesOut += read;
+            throttle.consume(read);
           }
-          node.sendPacket(connectionId, TYPE_DATA, buffer, 0, read);
+        } finally {
+          MemoryGovernor.global().release(buffer.length);
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    // the link reader only queues, so a slow destination holds up its own stream alone
+    private void writeToServer(Socket socket, Throttle throttle) {
+      byte[] buffer = new byte[16 * 1024];
+      MemoryGovernor.global().reserve(buffer.length);
+      try {
+        OutputStream out = socket.getOutputStream();
+        int read;
+        while ((read = toServer.read(buffer, 0, buffer.length)) > 0) {
+          out.write(buffer, 0, read);
+          bytesIn += read;
+          // the window goes back after the pause, which holds the other side to the limit
+          throttle.consume(read);
+          node.link.consumed(connectionId, toServer.takeConsumedCost());
         }
+        // the other side closed and everything it sent is written
+        close(closedBySocks);
       } catch (IOException e) {
         close(e);
+      } finally {
+        MemoryGovernor.global().release(buffer.length);
       }
     }
 
+    /**
+     * the other side closed the stream, the destination still gets what it sent before.
+     */
+    void finish() {
+      toServer.finish();
+    }
+
     private void close(IOException ex) {
       if (closed) return;
       closed = true;
+      toServer.close();
       Util.closeQuietly(socket);
+      ConnectionTable.Entry tableEntry = this.tableEntry;
+      if (tableEntry != null) tableEntry.remove();
       node.workerClosed(this, ex);
     }
 
-    private void sendConnectResult(boolean succeed) {
-      byte[] buffer = new byte[1];
-      buffer[0] = (byte) (succeed ? 1 : 2);
-      node.sendPacket(connectionId, TYPE_CONNECT, buffer, 0, buffer.length);
+    private void sendConnectResult(boolean succeed) throws IOException {
+      node.sendPacket(connectionId, TYPE_CONNECT, succeed ? CONNECTED : CONNECT_FAILED, 0, 1);
+    }
+
+    /**
+     * queues data for the destination, never blocks. link reader only.
+     */
+    public void sendToServer(ByteBuffer payload) {
+      toServer.offer(payload);
     }
 
-    // todo sending data on separated thread.
-    public void sendToServer(byte[] buffer, int size) {
+    @Override
+    public long bytesIn() {
+      return bytesIn;
+    }
+
+    @Override
+    public long bytesOut() {
+      return bytesOut;
+    }
+  }
+
+  /**
+   * a stream passed on to the next hop, receives the frames coming back from it.
+   */
+  private final class Route implements Link.Handler {
+    final int connectionId;
+    final Protocol next;
+    volatile int remoteId;
+
+    Route(int connectionId, Protocol next) {
+      this.connectionId = connectionId;
+      this.next = next;
+    }
+
+    void send(int type, @Nullable byte[] buffer, int offset, int size) {
       try {
-        OutputStream out = socket.getOutputStream();
-        out.write(buffer, 0, size);
-        out.flush();
+        next.sendForward(remoteId, type, buffer, offset, size);
       } catch (IOException e) {
-        close(e);
+        // the next hop is gone, its protocol reports the close to onFrame
+      }
+    }
+
+    // never blocks: the window goes back to our link once the next hop has written the frame
+    void sendData(byte[] buffer, int offset, int size) {
+      try {
+        next.forwardData(remoteId, buffer, offset, size, link, connectionId);
+      } catch (IOException e) {
+        // the next hop is gone, its protocol reports the close to onFrame
+      }
+    }
+
+    void close() {
+      send(TYPE_CLOSE, null, 0, 0);
+    }
+
+    @Override
+    public void onFrame(int remoteId, int type, ByteBuffer payload) {
+      boolean failed = type == TYPE_CONNECT
+        && (!payload.hasRemaining() || payload.get(payload.position()) != CONNECT_STATE_CONNECTED);
+      if (type == TYPE_CLOSE || failed) {
+        synchronized (routes) {
+          if (!routes.remove(connectionId, this)) return;
+        }
+      }
+      try {
+        int offset = payload.arrayOffset() + payload.position();
+        if (type == TYPE_DATA) {
+          // called on the reader of the next hop, which must not wait for our link
+          link.forward(connectionId, payload.array(), offset, payload.remaining(), next, remoteId);
+        } else {
+          sendPacket(connectionId, type, payload.array(), offset, payload.remaining());
+        }
+      } catch (IOException ignored) {
+        // our link is closed, the node is stopping
       }
     }
   }
 
   private void workerClosed(Worker worker, IOException ex) {
-    synchronized (this) {
+    synchronized (workers) {
       workers.remove(worker.connectionId);
     }
     if (ex != closedBySocks) {
-      sendPacket(worker.connectionId, TYPE_CLOSE, null, 0, 0);
+      try {
+        sendPacket(worker.connectionId, TYPE_CLOSE, null, 0, 0);
+      } catch (IOException ignored) {
+      }
     }
   }
 
@@ -252,6 +649,17 @@ public final class RelayNode {
     private String host = "localhost";
     private int port = 10140;
     private String nodeName = "NO_NAME";
+    private int maxReplayBytes = Link.DEFAULT_REPLAY_BYTES;
+    private long pingIntervalMillis = Link.DEFAULT_PING_INTERVAL_MILLIS;
+    private StreamPriority priority = StreamPriority.BY_PORT;
+    private RateLimits rateLimits;
+    private byte[] secret;
+    private TinyRelay nextHop;
+    private int selectorThreads;
+    private FrameCapture capture;
+    private File sharedMemory;
+    private File unixSocket;
+    private ConnectionTable connectionTable;
 
     public Builder host(String host) {
       this.host = host;
@@ -273,6 +681,97 @@ public final class RelayNode {
       return this;
     }
 
+    /**
+     * bytes of unacknowledged frames kept to resume streams after a reconnect.
+     */
+    public Builder maxReplayBytes(int maxReplayBytes) {
+      this.maxReplayBytes = maxReplayBytes;
+      return this;
+    }
+
+    public Builder pingIntervalMillis(long pingIntervalMillis) {
+      this.pingIntervalMillis = pingIntervalMillis;
+      return this;
+    }
+
+    /**
+     * weights of streams sharing the link, {@link StreamPriority#BY_PORT} by default.
+     */
+    public Builder streamPriority(StreamPriority priority) {
+      this.priority = priority;
+      return this;
+    }
+
+    /**
+     * limits for the streams of the node, data both to and from destinations counts.
+     * {@link RateLimits.Builder#total} caps the link.
+     */
+    public Builder rateLimits(RateLimits rateLimits) {
+      this.rateLimits = rateLimits;
+      return this;
+    }
+
+    /**
+     * encrypts the link with AES-GCM, the relay server must use the same secret.
+     */
+    public Builder secret(String secret) {
+      this.secret = LinkCipher.secretOf(secret);
+      return this;
+    }
+
+    /**
+     * makes this node a middle hop: instead of connecting to destinations it passes every
+     * stream on to the relay node connected to {@code nextHop}, frame by frame.
+     */
+    public Builder forwardTo(TinyRelay nextHop) {
+      this.nextHop = nextHop;
+      return this;
+    }
+
+    /**
+     * connects to destinations and moves their data on this many selector threads, instead
+     * of a thread per stream. 0, the default, keeps the thread per stream.
+     */
+    public Builder selectorThreads(int selectorThreads) {
+      this.selectorThreads = selectorThreads;
+      return this;
+    }
+
+    /**
+     * records the frames of the link to the relay server, see {@link FrameCapture}.
+     */
+    public Builder capture(FrameCapture capture) {
+      this.capture = capture;
+      return this;
+    }
+
+    /**
+     * links to a relay server on the same host through this file instead of host and port,
+     * see {@link SharedMemoryTransport}.
+     */
+    public Builder sharedMemory(File file) {
+      this.sharedMemory = file;
+      return this;
+    }
+
+    /**
+     * links to a relay server on the same host through a unix domain socket at this path
+     * instead of host and port, JDK 16 or later, see {@link UnixSockets}.
+     */
+    public Builder unixSocket(File path) {
+      this.unixSocket = path;
+      return this;
+    }
+
+    /**
+     * lists the streams to destinations in {@code table}, see {@link ConnectionTable}. the
+     * node does not know the socks clients, only the destinations count for the top lists.
+     */
+    public Builder connectionTable(ConnectionTable table) {
+      this.connectionTable = table;
+      return this;
+    }
+
     public RelayNode build() {
       if (executor == null) {
         executor = Executors.newCachedThreadPool();
@@ -280,4 +779,4 @@ public final class RelayNode {
       return new RelayNode(this);
     }
   }
-}
\ No newline at end of file
+}
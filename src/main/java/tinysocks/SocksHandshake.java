@@ -0,0 +1,181 @@
+package tinysocks;
+
+import tinysocks.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * SOCKS5 greeting and CONNECT request of one client, parsed from a single buffer.
+ * <p>
+ * each read takes whatever the socket has, so a client sending the greeting and the request
+ * in one packet costs one read, and each reply is one write. bytes the client sent after the
+ * request (optimistic data) are kept and forwarded once the connection is up.
+ */
+final class SocksHandshake {
+  private static final int VERSION = 5;
+  private static final int METHOD_NO_AUTH = 0;
+  private static final int METHOD_PASSWORD = 2;
+  private static final int PASSWORD_VERSION = 1;
+  private static final int METHOD_NONE_ACCEPTABLE = 0xFF;
+  private static final int COMMAND_CONNECT = 1;
+  private static final int ATYPE_IPV4 = 1;
+  private static final int ATYPE_DOMAIN = 3;
+  static final int REPLY_SUCCEEDED = 0;
+  static final int REPLY_NOT_ALLOWED = 2;
+  static final int REPLY_HOST_UNREACHABLE = 4;
+  private static final int REPLY_COMMAND_NOT_SUPPORTED = 7;
+  private static final int REPLY_ATYPE_NOT_SUPPORTED = 8;
+
+  // greeting (2 + 255), password request (3 + 255 + 255) and request (4 + 1 + 255 + 2) fit together
+  private final byte[] buffer = new byte[2048];
+  private final byte[] reply = new byte[10];
+  private final InputStream in;
+  private final OutputStream out;
+  private int position;
+  private int limit;
+  // set by readCredentials
+  String username;
+  byte[] password;
+
+  SocksHandshake(InputStream in, OutputStream out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * reads the greeting and accepts "no authentication", or only username/password when
+   * {@code password} is set. the credentials are read next by {@link #readCredentials()}.
+   */
+  void negotiate(boolean password) throws IOException {
+    require(2);
+    if (buffer[0] != VERSION) throw new IOException("unsupported socks version: " + buffer[0]);
+    int methods = buffer[1] & 0xFF;
+    if (methods == 0) throw new IOException("no socks methods offered");
+    require(2 + methods);
+    int wanted = password ? METHOD_PASSWORD : METHOD_NO_AUTH;
+    boolean offered = false;
+    for (int i = 0; i < methods; i++) {
+      if (buffer[2 + i] == wanted) offered = true;
+    }
+    position = 2 + methods;
+    reply[0] = VERSION;
+    reply[1] = (byte) (offered ? wanted : METHOD_NONE_ACCEPTABLE);
+    out.write(reply, 0, 2);
+    out.flush();
+    if (!offered) throw new IOException("no acceptable socks method");
+  }
+
+  /**
+   * reads the username/password request of RFC 1929 into {@link #username} and
+   * {@link #password}, answered by {@link #sendAuthStatus(boolean)}.
+   */
+  void readCredentials() throws IOException {
+    require(position + 2);
+    int start = position;
+    if (buffer[start] != PASSWORD_VERSION) throw new IOException("unsupported auth version: " + buffer[start]);
+    int usernameLength = buffer[start + 1] & 0xFF;
+    require(start + 2 + usernameLength + 1);
+    int passwordLength = buffer[start + 2 + usernameLength] & 0xFF;
+    require(start + 3 + usernameLength + passwordLength);
+    username = new String(buffer, start + 2, usernameLength, StandardCharsets.UTF_8);
+    password = Arrays.copyOfRange(buffer, start + 3 + usernameLength, start + 3 + usernameLength + passwordLength);
+    position = start + 3 + usernameLength + passwordLength;
+  }
+
+  void sendAuthStatus(boolean success) throws IOException {
+    reply[0] = PASSWORD_VERSION;
+    reply[1] = (byte) (success ? 0 : 1);
+    out.write(reply, 0, 2);
+    out.flush();
+  }
+
+  Endpoint readRequest() throws IOException {
+    require(position + 5);
+    int start = position;
+    if (buffer[start] != VERSION) throw new IOException("unsupported socks version: " + buffer[start]);
+    if (buffer[start + 1] != COMMAND_CONNECT) {
+      fail(REPLY_COMMAND_NOT_SUPPORTED);
+      throw new IOException("unsupported socks command: " + buffer[start + 1]);
+    }
+    if (buffer[start + 2] != 0) throw new IOException("bad socks request");
+    Endpoint endpoint;
+    switch (buffer[start + 3]) {
+      case ATYPE_IPV4: {
+        require(start + 4 + 4 + 2);
+        byte[] ip = new byte[4];
+        System.arraycopy(buffer, start + 4, ip, 0, 4);
+        endpoint = Endpoint.ofAddress(ip, port(start + 8));
+        position = start + 10;
+        break;
+      }
+      case ATYPE_DOMAIN: {
+        int length = buffer[start + 4] & 0xFF;
+        if (length == 0) throw new IOException("empty socks hostname");
+        require(start + 5 + length + 2);
+        String hostname = new String(buffer, start + 5, length, Util.ASCII);
+        endpoint = Endpoint.ofHost(hostname, port(start + 5 + length));
+        position = start + 5 + length + 2;
+        break;
+      }
+      default:
+        fail(REPLY_ATYPE_NOT_SUPPORTED);
+        throw new IOException("unsupported host type: " + buffer[start + 3]);
+    }
+    return endpoint;
+  }
+
+  /**
+   * @param address bound address to report, null when the connection failed
+   */
+  void sendReply(int status, @Nullable byte[] address, int port) throws IOException {
+    reply[0] = VERSION;
+    reply[1] = (byte) status;
+    reply[2] = 0;
+    reply[3] = ATYPE_IPV4;
+    if (address != null && address.length == 4) {
+      System.arraycopy(address, 0, reply, 4, 4);
+    } else {
+      reply[4] = reply[5] = reply[6] = reply[7] = 0;
+    }
+    reply[8] = (byte) (port >> 8);
+    reply[9] = (byte) port;
+    out.write(reply, 0, 10);
+    out.flush();
+  }
+
+  /**
+   * forwards what the client sent after its request.
+   *
+   * @return bytes forwarded
+   */
+  int writeRemaining(OutputStream destination) throws IOException {
+    int remaining = limit - position;
+    if (remaining > 0) {
+      destination.write(buffer, position, remaining);
+      destination.flush();
+      position = limit;
+    }
+    return remaining;
+  }
+
+  private void fail(int status) throws IOException {
+    sendReply(status, null, 0);
+  }
+
+  private int port(int offset) {
+    return (buffer[offset] & 0xFF) << 8 | (buffer[offset + 1] & 0xFF);
+  }
+
+  private void require(int size) throws IOException {
+    while (limit < size) {
+      int read = in.read(buffer, limit, buffer.length - limit);
+      if (read < 0) throw new EOFException("socks handshake incomplete");
+      limit += read;
+    }
+  }
+}
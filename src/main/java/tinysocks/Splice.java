@@ -0,0 +1,513 @@
+package tinysocks;
+
+import tinysocks.annotation.Nullable;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.Socket;
+
+/**
+ * Forwarding between two TCP sockets with splice(2) on Linux: bytes move from one socket into
+ * a pipe and from the pipe into the other, and never reach the Java heap. the system calls go
+ * through the Foreign Function &amp; Memory API of JDK 22 (a preview in 21), reached by
+ * reflection like {@link UnixSockets} so the library still builds for Java 7.
+ * <p>
+ * the descriptor of a {@link Socket} is private to the JDK, reading it needs
+ * {@code --add-opens java.base/java.net=ALL-UNNAMED --add-opens java.base/java.io=ALL-UNNAMED},
+ * and the JDK warns about the native calls without
+ * {@code --enable-native-access=ALL-UNNAMED}. elsewhere {@link #isSupported()} is false and
+ * callers copy through the streams as before.
+ * <p>
+ * a splice works on duplicates of the descriptors, switched to blocking mode, so closing the
+ * sockets meanwhile can not hand their numbers to another connection under a running splice.
+ * a duplicate shares its mode with the original, so the {@link Socket} turns blocking too: the
+ * JDK reads it without blocking once it has a timeout and never checks the mode again, so a
+ * socket handed to {@link #open} must not use {@link Socket#setSoTimeout(int) SO_TIMEOUT} or
+ * be read or written through the JDK afterwards, only closed.
+ */
+public final class Splice {
+  // requested per pipe, the kernel may give less; two pipes per stream
+  private static final int PIPE_BYTES = 256 * 1024;
+  private static final int SPLICE_F_MOVE = 1;
+  private static final int SPLICE_F_MORE = 4;
+  private static final int F_GETFL = 3;
+  private static final int F_SETFL = 4;
+  private static final int F_SETPIPE_SZ = 1031;
+  private static final int F_GETPIPE_SZ = 1032;
+  private static final int O_NONBLOCK = 04000;
+  private static final int SHUT_RDWR = 2;
+  private static final int EINTR = 4;
+  private static final int EAGAIN = 11;
+  private static final int MSG_DONTWAIT = 0x40;
+  private static final int MSG_NOSIGNAL = 0x4000;
+  private static final int SEND_BUFFER_BYTES = 64 * 1024;
+
+  @Nullable
+  private static final Native NATIVE;
+  @Nullable
+  private static final String unsupportedReason;
+
+  static {
+    Native linked = null;
+    String reason = null;
+    if (!System.getProperty("os.name", "").startsWith("Linux")) {
+      reason = "splice(2) is only on Linux";
+    } else {
+      try {
+        linked = new Native();
+      } catch (ClassNotFoundException e) {
+        reason = "the Foreign Function & Memory API needs JDK 21 or later";
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        // setAccessible throws InaccessibleObjectException without the --add-opens
+        reason = "socket descriptors are not accessible, run with --add-opens java.base/java.net=ALL-UNNAMED"
+          + " --add-opens java.base/java.io=ALL-UNNAMED (" + e + ")";
+      }
+    }
+    NATIVE = linked;
+    unsupportedReason = reason;
+  }
+
+  private final int a;
+  private final int b;
+  private boolean closed;// guarded by this
+  private boolean released;// guarded by this
+  private int running;// guarded by this
+
+  private Splice(int a, int b) {
+    this.a = a;
+    this.b = b;
+  }
+
+  public static boolean isSupported() {
+    return NATIVE != null;
+  }
+
+  /**
+   * why {@link #isSupported()} is false, null when it is true.
+   */
+  @Nullable
+  public static String unsupportedReason() {
+    return unsupportedReason;
+  }
+
+  /**
+   * prepares splicing between two connected sockets, which stay open and owned by the caller.
+   * both are switched to blocking mode, see above.
+   *
+   * @return null when splicing is not supported or a socket has no descriptor, e.g. a
+   * {@link UnixSockets} connection; the caller copies instead
+   */
+  @Nullable
+  public static Splice open(Socket a, Socket b) throws IOException {
+    if (NATIVE == null) return null;
+    int fdA = NATIVE.descriptor(a);
+    int fdB = NATIVE.descriptor(b);
+    if (fdA < 0 || fdB < 0) return null;
+    int dupA = NATIVE.blockingDup(fdA);
+    int dupB;
+    try {
+      dupB = NATIVE.blockingDup(fdB);
+    } catch (IOException e) {
+      NATIVE.close(dupA);
+      throw e;
+    }
+    return new Splice(dupA, dupB);
+  }
+
+  /**
+   * prepares sending to a connected socket without ever blocking, see {@link Sender}.
+   *
+   * @return null when that is not supported or the socket has no descriptor
+   */
+  @Nullable
+  public static Sender openSender(Socket socket) throws IOException {
+    if (NATIVE == null) return null;
+    int fd = NATIVE.descriptor(socket);
+    if (fd < 0) return null;
+    int copy = Native.call(NATIVE.dup, fd);
+    if (copy < 0) throw new IOException("dup failed");
+    return new Sender(copy, NATIVE.callState(), NATIVE.sendBuffer());
+  }
+
+  /**
+   * moves bytes in one direction until its source closes, on the calling thread. each
+   * direction runs on its own thread, at most once.
+   *
+   * @param aToB from the first socket of {@link #open} to the second
+   * @throws IOException when a socket fails or the splice was closed
+   */
+  public void forward(boolean aToB, Listener listener) throws IOException {
+    synchronized (this) {
+      if (closed) throw new IOException("splice closed");
+      running++;
+    }
+    int[] pipe = null;
+    try {
+      pipe = NATIVE.pipe();
+      int capacity = NATIVE.fcntl(pipe[1], F_SETPIPE_SZ, PIPE_BYTES);
+      if (capacity <= 0) capacity = NATIVE.fcntl(pipe[1], F_GETPIPE_SZ, 0);
+      int from = aToB ? a : b;
+      int to = aToB ? b : a;
+      Object state = NATIVE.callState();
+      while (true) {
+        long moved = NATIVE.splice(state, from, pipe[1], capacity, SPLICE_F_MOVE | SPLICE_F_MORE);
+        if (moved == 0) return;
+        listener.onSpliced((int) moved);
+        while (moved > 0) {
+          // no SPLICE_F_MORE here: on a TCP socket it holds back the last partial segment
+          long written = NATIVE.splice(state, pipe[0], to, moved, SPLICE_F_MOVE);
+          if (written == 0) throw new IOException("splice to socket failed");
+          moved -= written;
+        }
+      }
+    } finally {
+      if (pipe != null) {
+        NATIVE.close(pipe[0]);
+        NATIVE.close(pipe[1]);
+      }
+      synchronized (this) {
+        running--;
+        if (closed) release();
+      }
+    }
+  }
+
+  /**
+   * stops both directions: running splices return and the duplicated descriptors are closed
+   * once they have. call it once the stream ends, before closing the sockets.
+   */
+  public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    if (running > 0) {
+      // wakes the blocked splices, the last one to leave releases the descriptors
+      NATIVE.shutdown(a);
+      NATIVE.shutdown(b);
+    }
+    release();
+  }
+
+  // with the lock held
+  private void release() {
+    if (running > 0 || released) return;
+    released = true;
+    NATIVE.close(a);
+    NATIVE.close(b);
+  }
+
+  public interface Listener {
+    /**
+     * called with the bytes taken from the source, before they are written out.
+     *
+     * @throws IOException to stop the direction, e.g. over a quota
+     */
+    void onSpliced(int bytes) throws IOException;
+  }
+
+  /**
+   * send(2) with {@code MSG_DONTWAIT} on a duplicate of a socket's descriptor, for a thread that
+   * must not wait on the socket. the bytes are copied to native memory first.
+   */
+  public static final class Sender {
+    private final int fd;
+    private final Object state;
+    private final Object buffer;
+    private boolean closed;// guarded by this
+
+    private Sender(int fd, Object state, Object buffer) {
+      this.fd = fd;
+      this.state = state;
+      this.buffer = buffer;
+    }
+
+    /**
+     * @return the bytes the socket took, 0 when its send buffer is full
+     */
+    public synchronized int send(byte[] b, int off, int len) throws IOException {
+      if (closed) throw new IOException("sender closed");
+      int sent = 0;
+      while (sent < len) {
+        int chunk = Math.min(len - sent, SEND_BUFFER_BYTES);
+        int n = NATIVE.send(state, fd, buffer, b, off + sent, chunk);
+        sent += n;
+        if (n < chunk) break;
+      }
+      return sent;
+    }
+
+    /**
+     * closes the duplicate, the socket stays open. call it before closing the socket.
+     */
+    public synchronized void close() {
+      if (closed) return;
+      closed = true;
+      NATIVE.close(fd);
+    }
+  }
+
+  // the linked system calls and the reflective way to a socket's descriptor
+  private static final class Native {
+    private final MethodHandle splice;// (MemorySegment state, int in, int out, long len, int flags)long
+    private final MethodHandle pipe;// (MemorySegment fds)int
+    private final MethodHandle fcntl;// (int fd, int cmd, int arg)int
+    private final MethodHandle dup;// (int)int
+    private final MethodHandle close;// (int)int
+    private final MethodHandle shutdown;// (int fd, int how)int
+    private final MethodHandle send;// (MemorySegment state, int fd, MemorySegment buf, long len, int flags)long
+    private final MethodHandle copy;// MemorySegment.copy(byte[], int, MemorySegment, ValueLayout, long, int)
+    private final Object javaByte;
+    private final Method ofAuto;
+    private final Method allocate;
+    private final Method getInt;
+    private final Object javaInt;
+    private final long stateSize;
+    private final long errnoOffset;
+    private final Field socketImpl;
+    @Nullable
+    private final Class<?> delegating;
+    @Nullable
+    private final Field delegate;
+    private final Field implDescriptor;
+    private final Field descriptor;
+
+    Native() throws ReflectiveOperationException {
+      Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+      Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+      Class<?> layoutClass = Class.forName("java.lang.foreign.MemoryLayout");
+      Class<?> valueLayout = Class.forName("java.lang.foreign.ValueLayout");
+      Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+      Class<?> descriptorClass = Class.forName("java.lang.foreign.FunctionDescriptor");
+      Class<?> arenaClass = Class.forName("java.lang.foreign.Arena");
+      Object linker = linkerClass.getMethod("nativeLinker").invoke(null);
+      Object lookup = linkerClass.getMethod("defaultLookup").invoke(linker);
+      Method find = Class.forName("java.lang.foreign.SymbolLookup").getMethod("find", String.class);
+      Method of = descriptorClass.getMethod("of", layoutClass, Array.newInstance(layoutClass, 0).getClass());
+      Method downcall = linkerClass.getMethod("downcallHandle", segmentClass, descriptorClass,
+        Array.newInstance(optionClass, 0).getClass());
+      Object noOptions = Array.newInstance(optionClass, 0);
+      // errno is saved right after the call, before the JVM can overwrite it
+      Object captureErrno = Array.newInstance(optionClass, 1);
+      Array.set(captureErrno, 0, optionClass.getMethod("captureCallState", String[].class)
+        .invoke(null, (Object) new String[]{"errno"}));
+      Object stateLayout = optionClass.getMethod("captureStateLayout").invoke(null);
+      Class<?> pathClass = Class.forName("java.lang.foreign.MemoryLayout$PathElement");
+      Object errnoPath = Array.newInstance(pathClass, 1);
+      Array.set(errnoPath, 0, pathClass.getMethod("groupElement", String.class).invoke(null, "errno"));
+      errnoOffset = (Long) layoutClass.getMethod("byteOffset", errnoPath.getClass()).invoke(stateLayout, errnoPath);
+      stateSize = (Long) layoutClass.getMethod("byteSize").invoke(stateLayout);
+      Object varargs = Array.newInstance(optionClass, 1);
+      Array.set(varargs, 0, optionClass.getMethod("firstVariadicArg", int.class).invoke(null, 2));
+      javaInt = valueLayout.getField("JAVA_INT").get(null);
+      Object javaLong = valueLayout.getField("JAVA_LONG").get(null);
+      Object address = valueLayout.getField("ADDRESS").get(null);
+      Object nul = segmentClass.getField("NULL").get(null);
+
+      Object[] layouts = {javaInt, address, javaInt, address, javaLong, javaInt};
+      MethodHandle handle = (MethodHandle) downcall.invoke(linker, symbol(find, lookup, "splice"),
+        descriptor(of, layoutClass, javaLong, layouts), captureErrno);
+      // no offsets, both ends of every splice here are a socket or a pipe
+      handle = MethodHandles.insertArguments(MethodHandles.insertArguments(handle, 4, nul), 2, nul);
+      splice = handle.asType(handle.type().changeParameterType(0, Object.class));
+      pipe = (MethodHandle) downcall.invoke(linker, symbol(find, lookup, "pipe"),
+        descriptor(of, layoutClass, javaInt, new Object[]{address}), noOptions);
+      fcntl = (MethodHandle) downcall.invoke(linker, symbol(find, lookup, "fcntl"),
+        descriptor(of, layoutClass, javaInt, new Object[]{javaInt, javaInt, javaInt}), varargs);
+      dup = (MethodHandle) downcall.invoke(linker, symbol(find, lookup, "dup"),
+        descriptor(of, layoutClass, javaInt, new Object[]{javaInt}), noOptions);
+      close = (MethodHandle) downcall.invoke(linker, symbol(find, lookup, "close"),
+        descriptor(of, layoutClass, javaInt, new Object[]{javaInt}), noOptions);
+      shutdown = (MethodHandle) downcall.invoke(linker, symbol(find, lookup, "shutdown"),
+        descriptor(of, layoutClass, javaInt, new Object[]{javaInt, javaInt}), noOptions);
+      handle = (MethodHandle) downcall.invoke(linker, symbol(find, lookup, "send"),
+        descriptor(of, layoutClass, javaLong, new Object[]{javaInt, address, javaLong, javaInt}), captureErrno);
+      send = handle.asType(handle.type().changeParameterType(0, Object.class).changeParameterType(2, Object.class));
+      javaByte = valueLayout.getField("JAVA_BYTE").get(null);
+      handle = MethodHandles.publicLookup().unreflect(segmentClass.getMethod("copy", Object.class, int.class,
+        segmentClass, valueLayout, long.class, int.class));
+      copy = handle.asType(handle.type().changeParameterType(2, Object.class).changeParameterType(3, Object.class));
+      ofAuto = arenaClass.getMethod("ofAuto");
+      allocate = arenaClass.getMethod("allocate", long.class);
+      getInt = segmentClass.getMethod("get", Class.forName("java.lang.foreign.ValueLayout$OfInt"), long.class);
+
+      socketImpl = Socket.class.getDeclaredField("impl");
+      socketImpl.setAccessible(true);
+      Class<?> delegatingClass = null;
+      Field delegateField = null;
+      try {
+        // JDK 13 and later wrap the platform impl of client sockets
+        delegatingClass = Class.forName("java.net.DelegatingSocketImpl");
+        delegateField = delegatingClass.getDeclaredField("delegate");
+        delegateField.setAccessible(true);
+      } catch (ClassNotFoundException ignored) {
+        delegatingClass = null;
+      }
+      delegating = delegatingClass;
+      delegate = delegateField;
+      implDescriptor = Class.forName("java.net.SocketImpl").getDeclaredField("fd");
+      implDescriptor.setAccessible(true);
+      descriptor = FileDescriptor.class.getDeclaredField("fd");
+      descriptor.setAccessible(true);
+    }
+
+    private static Object symbol(Method find, Object lookup, String name) throws ReflectiveOperationException {
+      Object optional = find.invoke(lookup, name);
+      if (!(Boolean) optional.getClass().getMethod("isPresent").invoke(optional)) {
+        throw new NoSuchMethodException(name);
+      }
+      return optional.getClass().getMethod("get").invoke(optional);
+    }
+
+    private static Object descriptor(Method of, Class<?> layoutClass, Object result, Object[] arguments)
+      throws ReflectiveOperationException {
+      Object array = Array.newInstance(layoutClass, arguments.length);
+      for (int i = 0; i < arguments.length; i++) {
+        Array.set(array, i, arguments[i]);
+      }
+      return of.invoke(null, result, array);
+    }
+
+    // -1 for sockets that are not plain TCP sockets or not connected
+    int descriptor(Socket socket) {
+      if (socket.getClass() != Socket.class) return -1;
+      try {
+        Object impl = socketImpl.get(socket);
+        if (delegating != null && delegating.isInstance(impl)) impl = delegate.get(impl);
+        FileDescriptor fd = impl != null ? (FileDescriptor) implDescriptor.get(impl) : null;
+        return fd != null && fd.valid() ? descriptor.getInt(fd) : -1;
+      } catch (IllegalAccessException e) {
+        return -1;
+      }
+    }
+
+    int blockingDup(int fd) throws IOException {
+      int copy = call(dup, fd);
+      if (copy < 0) throw new IOException("dup failed");
+      try {
+        blocking(copy);
+      } catch (IOException e) {
+        close(copy);
+        throw e;
+      }
+      return copy;
+    }
+
+    private void blocking(int fd) throws IOException {
+      int flags = fcntl(fd, F_GETFL, 0);
+      if (flags < 0 || (flags & O_NONBLOCK) != 0 && fcntl(fd, F_SETFL, flags & ~O_NONBLOCK) < 0) {
+        throw new IOException("fcntl failed");
+      }
+    }
+
+    int[] pipe() throws IOException {
+      try {
+        Object fds = allocate.invoke(ofAuto.invoke(null), 8L);
+        if ((Integer) pipe.invokeWithArguments(fds) != 0) throw new IOException("pipe failed");
+        return new int[]{(Integer) getInt.invoke(fds, javaInt, 0L), (Integer) getInt.invoke(fds, javaInt, 4L)};
+      } catch (IOException e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IOException(e);
+      }
+    }
+
+    // where a call leaves its errno, one per thread making calls
+    Object callState() throws IOException {
+      try {
+        return allocate.invoke(ofAuto.invoke(null), stateSize);
+      } catch (ReflectiveOperationException e) {
+        throw new IOException(e);
+      }
+    }
+
+    /**
+     * retries a call interrupted by a signal, and one that found a descriptor non-blocking:
+     * it shares its mode with the socket, which the JDK may switch back at any time.
+     */
+    long splice(Object state, int in, int out, long length, int flags) throws IOException {
+      while (true) {
+        long moved;
+        try {
+          moved = (long) splice.invokeExact(state, in, out, length, flags);
+        } catch (Throwable e) {
+          throw new IOException(e);
+        }
+        if (moved >= 0) return moved;
+        int errno = errno(state);
+        if (errno == EAGAIN) {
+          blocking(in);
+          blocking(out);
+        } else if (errno != EINTR) {
+          throw new IOException("splice failed, errno " + errno);
+        }
+      }
+    }
+
+    Object sendBuffer() throws IOException {
+      try {
+        return allocate.invoke(ofAuto.invoke(null), (long) SEND_BUFFER_BYTES);
+      } catch (ReflectiveOperationException e) {
+        throw new IOException(e);
+      }
+    }
+
+    // at most SEND_BUFFER_BYTES, 0 when the socket would block
+    int send(Object state, int fd, Object buffer, byte[] b, int off, int len) throws IOException {
+      while (true) {
+        long sent;
+        try {
+          copy.invokeExact((Object) b, off, buffer, javaByte, 0L, len);
+          sent = (long) send.invokeExact(state, fd, buffer, (long) len, MSG_DONTWAIT | MSG_NOSIGNAL);
+        } catch (Throwable e) {
+          throw new IOException(e);
+        }
+        if (sent >= 0) return (int) sent;
+        int errno = errno(state);
+        if (errno == EAGAIN) return 0;
+        if (errno != EINTR) throw new IOException("send failed, errno " + errno);
+      }
+    }
+
+    private int errno(Object state) throws IOException {
+      try {
+        return (Integer) getInt.invoke(state, javaInt, errnoOffset);
+      } catch (ReflectiveOperationException e) {
+        throw new IOException(e);
+      }
+    }
+
+    int fcntl(int fd, int command, int argument) throws IOException {
+      try {
+        return (int) fcntl.invokeExact(fd, command, argument);
+      } catch (Throwable e) {
+        throw new IOException(e);
+      }
+    }
+
+    void shutdown(int fd) {
+      try {
+        int ignored = (int) shutdown.invokeExact(fd, SHUT_RDWR);
+      } catch (Throwable ignored) {
+      }
+    }
+
+    void close(int fd) {
+      try {
+        call(close, fd);
+      } catch (IOException ignored) {
+      }
+    }
+
+    private static int call(MethodHandle handle, int fd) throws IOException {
+      try {
+        return (int) handle.invokeExact(fd);
+      } catch (Throwable e) {
+        throw new IOException(e);
+      }
+    }
+  }
+}
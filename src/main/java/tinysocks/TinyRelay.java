@@ -1,22 +1,61 @@
 package tinysocks;
 
+import tinysocks.annotation.Nullable;
+import tinysocks.relay.FrameCapture;
+import tinysocks.relay.Link;
+import tinysocks.relay.LinkCipher;
 import tinysocks.relay.Protocol;
+import tinysocks.relay.SharedMemoryTransport;
+import tinysocks.relay.StreamPriority;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.security.SecureRandom;
 import java.util.Arrays;
 
 public final class TinyRelay {
-  private static final byte[] HELLO = "tiny_relay(v0.0.1)@".getBytes(Util.ASCII);
+  private static final byte[] HELLO = "tiny_relay(v0.0.5)@".getBytes(Util.ASCII);
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 10 * 1000;
+  // a session without a node is only handed to a node with another token after this long
+  private static final long SESSION_TAKEOVER_MILLIS = 10 * 1000;
   private final int port;
-  private Protocol protocol;
+  private final StreamPriority priority;
+  @Nullable
+  private final byte[] secret;
+  @Nullable
+  private final FrameCapture capture;
+  @Nullable
+  private final File sharedMemory;
+  @Nullable
+  private final File unixSocket;
+  private final SecureRandom random = new SecureRandom();
+  private final Object sessionLock = new Object();
+  private volatile Protocol protocol;
   private Thread thread;
   private ServerSocket serverSocket;
 
   public TinyRelay(int port) {
-    this.port = port;
+    this(new Builder().port(port));
+  }
+
+  public TinyRelay(int port, StreamPriority priority) {
+    this(new Builder().port(port).streamPriority(priority));
+  }
+
+  private TinyRelay(Builder builder) {
+    this.port = builder.port;
+    this.priority = builder.priority;
+    this.secret = builder.secret;
+    this.capture = builder.capture;
+    this.sharedMemory = builder.sharedMemory;
+    this.unixSocket = builder.unixSocket;
   }
 
   public void start() {
@@ -28,39 +67,232 @@ public final class TinyRelay {
       public void run() {
         runServer();
       }
-    }, "TinyRelay[" + port + "]");
+    }, "TinyRelay[" + (sharedMemory != null ? sharedMemory.getName() : unixSocket != null ? unixSocket.getName() : port) + "]");
     thread.start();
   }
 
   private void runServer() {
+    if (sharedMemory != null) {
+      runSharedMemoryServer();
+      return;
+    }
     try {
-      serverSocket = new ServerSocket(port);
-      System.out.println("TinyRelay running at port " + port + ".");
-      while (protocol == null) {
-        Socket socket = serverSocket.accept();
-        InputStream in = socket.getInputStream();
-        byte[] hello = Util.readNBytes(in, HELLO.length);
-        if (!Arrays.equals(hello, HELLO)) {
-          throw new IOException("unknown node");
+      ServerSocketChannel unixServer = null;
+      if (unixSocket != null) {
+        unixServer = UnixSockets.bind(unixSocket);
+        System.out.println("TinyRelay running on " + unixSocket + ".");
+      } else {
+        serverSocket = new ServerSocket(port);
+        System.out.println("TinyRelay running at port " + port + ".");
+      }
+      while (true) {
+        Socket socket = unixServer != null ? UnixSockets.accept(unixServer) : serverSocket.accept();
+        try {
+          startHandshake(socket, socket.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+          Util.closeQuietly(socket);
         }
-        String nodeName = new String(Util.readNBytes(in, in.read()), Util.ASCII);
-        System.out.println("Relay node ["+ nodeName +"] connected.");
-        protocol = new Protocol(socket, socket.getInputStream(), socket.getOutputStream());
       }
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  private void runSharedMemoryServer() {
+    try {
+      SharedMemoryTransport.Server server = SharedMemoryTransport.listen(sharedMemory, SharedMemoryTransport.DEFAULT_RING_SIZE);
+      System.out.println("TinyRelay running on " + sharedMemory + ".");
+      while (true) {
+        SharedMemoryTransport transport = server.accept();
+        startHandshake(transport, transport.getInputStream(), transport.getOutputStream());
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // a silent peer must not hold up the accept loop for the handshake timeout
+  private void startHandshake(final Closeable socket, final InputStream in, final OutputStream out) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          handshake(socket, in, out);
+        } catch (IOException e) {
+          System.out.println("Relay node rejected: " + e.getMessage());
+          Util.closeQuietly(socket);
+        }
+      }
+    }, "TinyRelay-Handshake");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // see RelayNode.handshake()
+  private void handshake(Closeable socket, InputStream in, OutputStream out) throws IOException {
+    SharedMemoryTransport.setSoTimeout(socket, HANDSHAKE_TIMEOUT_MILLIS);
+    byte[] hello = Util.readNBytes(in, HELLO.length);
+    if (!Arrays.equals(hello, HELLO)) {
+      throw new IOException("unknown node");
+    }
+    byte[] nodeNameBytes = Util.readNBytes(in, in.read());
+    String nodeName = new String(nodeNameBytes, Util.ASCII);
+    long token = Util.readLong(in);
+    int peerReceived = Util.readInt(in);
+    int cipherType = in.read();
+    if (cipherType != (secret != null ? LinkCipher.AES_GCM : LinkCipher.NONE)) {
+      throw new IOException("node [" + nodeName + "] link encryption does not match");
+    }
+    LinkCipher cipher = null;
+    ByteArrayOutputStream transcript = null;
+    if (secret != null) {
+      cipher = LinkCipher.newHandshake();
+      byte[] nodeKey = LinkCipher.readPublicKey(in);
+      // what the node sent, as it sent it
+      transcript = new ByteArrayOutputStream(256);
+      transcript.write(HELLO);
+      transcript.write(nodeNameBytes.length);
+      transcript.write(nodeNameBytes);
+      Util.writeLong(transcript, token);
+      Util.writeInt(transcript, peerReceived);
+      transcript.write(cipherType);
+      Util.writeShort(transcript, nodeKey.length);
+      transcript.write(nodeKey);
+      cipher.writePublicKey(transcript);
+      cipher.writePublicKey(out);
+      out.flush();
+      cipher.agree(secret, nodeKey, false);
+      // the current session is only touched by a node that proved it knows the secret
+      cipher.verifyConfirmation(in, transcript.toByteArray(), true);
+    }
+    SharedMemoryTransport.setSoTimeout(socket, 0);
+
+    synchronized (sessionLock) {
+      Protocol current = protocol;
+      boolean resumed = false;
+      if (current != null && !current.isClosed()) {
+        if (token != 0 && token == current.sessionToken()) {
+          // the old socket may not have noticed the drop yet
+          current.detach();
+          resumed = current.canResume(peerReceived);
+        } else if (current.detachedMillis() < SESSION_TAKEOVER_MILLIS) {
+          // a live session is never closed for a node that cannot name it
+          throw new IOException("node [" + nodeName + "] does not hold the session in use");
+        }
+      }
+      if (!resumed) {
+        if (current != null) {
+          current.close();
+        }
+        current = new Protocol(newSessionToken(), priority);
+        current.setCapture(capture);
+        peerReceived = 0;
+      }
+      int state = resumed ? Link.SESSION_RESUMED : Link.SESSION_NEW;
+      out.write(state);
+      Util.writeLong(out, current.sessionToken());
+      Util.writeInt(out, current.receivedCount());
+      if (cipher != null) {
+        transcript.write(state);
+        Util.writeLong(transcript, current.sessionToken());
+        Util.writeInt(transcript, current.receivedCount());
+        cipher.writeConfirmation(out, transcript.toByteArray(), false);
+      }
+      out.flush();
+      if (cipher != null) {
+        in = cipher.wrap(in);
+        out = cipher.wrap(out);
+      }
+      System.out.println("Relay node [" + nodeName + "] " + (resumed ? "resumed." : "connected."));
+      protocol = current;
+      current.attach(socket, in, out, peerReceived);
+    }
+  }
+
+  private long newSessionToken() {
+    long token;
+    do {
+      token = random.nextLong();
+    } while (token == 0);
+    return token;
+  }
+
   private void waitRelayNodeOnline() {
   }
 
+  /**
+   * the session of the relay node currently connected, if any.
+   */
+  @Nullable
+  Protocol protocol() {
+    Protocol current = protocol;
+    return current != null && !current.isClosed() ? current : null;
+  }
+
   public Connection.Factory connectionFactory() {
     return new Connection.Factory() {
       @Override
       public Connection newConnection(Socket socksClient, Endpoint endpoint) {
-        return protocol != null ? protocol.newConnection(endpoint) : null;
+        Protocol current = protocol;
+        return current != null ? current.newConnection(endpoint) : null;
       }
     };
   }
-}
\ No newline at end of file
+
+  public static class Builder {
+    private int port = 10140;
+    private StreamPriority priority = StreamPriority.BY_PORT;
+    private byte[] secret;
+    private FrameCapture capture;
+    private File sharedMemory;
+    private File unixSocket;
+
+    public Builder port(int port) {
+      this.port = port;
+      return this;
+    }
+
+    public Builder streamPriority(StreamPriority priority) {
+      this.priority = priority;
+      return this;
+    }
+
+    /**
+     * encrypts the link with AES-GCM, relay nodes must be configured with the same secret.
+     */
+    public Builder secret(String secret) {
+      this.secret = LinkCipher.secretOf(secret);
+      return this;
+    }
+
+    /**
+     * records the frames of the link to the relay node, see {@link FrameCapture}.
+     */
+    public Builder capture(FrameCapture capture) {
+      this.capture = capture;
+      return this;
+    }
+
+    /**
+     * serves a relay node on the same host through this file instead of the port, see
+     * {@link SharedMemoryTransport}. the node must be built with the same file.
+     */
+    public Builder sharedMemory(File file) {
+      this.sharedMemory = file;
+      return this;
+    }
+
+    /**
+     * serves relay nodes on a unix domain socket at this path instead of the port, JDK 16 or
+     * later, see {@link UnixSockets}.
+     */
+    public Builder unixSocket(File path) {
+      this.unixSocket = path;
+      return this;
+    }
+
+    public TinyRelay build() {
+      return new TinyRelay(this);
+    }
+  }
+}
@@ -1,40 +1,113 @@
 package tinysocks;
 
+import tinysocks.auth.Authenticator;
+import tinysocks.auth.StaticCredentials;
+import tinysocks.auth.UserAccount;
+import tinysocks.limit.RateLimits;
+import tinysocks.limit.Throttle;
+import tinysocks.log.AccessLog;
+import tinysocks.monitor.ConnectionTable;
+import tinysocks.relay.MemoryGovernor;
+
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.*;
 
 public final class TinySocks {
+  private static final IOException closedByServer = new IOException("server closed");
+
+  private static final String USAGE = "usage: TinySocks [--port 10010] [--unix-socket path]"
+    + " [--relay-port port [--secret secret]] [--users user-password.properties] [--memory-mb n]";
+
   // configurations
   private final int port;
+  private final File unixSocket;
   private final Executor executor;
   private final Connection.Factory connectionFactory;
   private final EventListener eventListener;
+  private final boolean ownsEventListener;
+  private final RateLimits rateLimits;
+  private final AccessLog accessLog;
+  private final ConnectionTable connectionTable;
+  private final Authenticator authenticator;
+  private final boolean splice;
 
-  private final List<Worker> workers = new ArrayList<>();
-  private boolean closed;
-  private ServerSocket serverSocket;
+  private final ConnectionRegistry<Worker> workers = new ConnectionRegistry<>(1024);
+  private volatile boolean closed;
+  private volatile Closeable serverSocket;
 
   private TinySocks(Builder builder) {
     this.port = builder.port;
+    this.unixSocket = builder.unixSocket;
     this.connectionFactory = builder.connectionFactory;
-    this.eventListener = builder.eventListener;
+    this.ownsEventListener = builder.eventListener == null;
+    this.eventListener = ownsEventListener
+      ? new AsyncEventListener(EventListener.LOG_LISTENER)
+      : builder.eventListener;
     this.executor = builder.executor;
+    this.rateLimits = builder.rateLimits;
+    this.accessLog = builder.accessLog;
+    this.connectionTable = builder.connectionTable;
+    this.authenticator = builder.authenticator;
+    this.splice = builder.splice && Splice.isSupported();
+  }
+
+  /**
+   * runs a socks server until the process is stopped. with --relay-port it also listens for a
+   * relay node there and sends every stream through it, otherwise it connects directly.
+   */
+  public static void main(String[] args) throws IOException {
+    CommandLine options = new CommandLine(USAGE, args, "port", "unix-socket", "relay-port", "secret", "users",
+      "memory-mb");
+    Builder builder = new Builder()
+      .port(options.getInt("port", 10010))
+      .unixSocket(options.getFile("unix-socket"));
+    if (options.get("relay-port") != null) {
+      TinyRelay.Builder relay = new TinyRelay.Builder().port(options.getInt("relay-port", 10140));
+      if (options.get("secret") != null) {
+        relay.secret(options.get("secret"));
+      }
+      TinyRelay tinyRelay = relay.build();
+      tinyRelay.start();
+      builder.connectionFactory(tinyRelay.connectionFactory());
+    } else if (options.get("secret") != null) {
+      options.fail("--secret needs --relay-port");
+    }
+    if (options.get("users") != null) {
+      builder.authenticator(new Authenticator.Builder()
+        .credentials(StaticCredentials.load(options.getFile("users")))
+        .build());
+    }
+    if (options.get("memory-mb") != null) {
+      MemoryGovernor.global().setLimit(options.getInt("memory-mb", 0) * 1024L * 1024);
+    }
+    final TinySocks tinySocks = builder.build();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        tinySocks.close();
+      }
+    }));
+    tinySocks.start();
   }
 
   public void close() {
     if (closed) return;
     closed = true;
     Util.closeQuietly(serverSocket);
-    synchronized (workers) {
-      workers.clear();
+    for (Worker worker : workers.close()) {
+      worker.close(closedByServer);
     }
     eventListener.onTinySocksStopped(this);
+    if (ownsEventListener) {
+      ((AsyncEventListener) eventListener).close();
+    }
   }
 
   public void start() {
@@ -42,7 +115,7 @@ public final class TinySocks {
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        Thread.currentThread().setName("TinySocks[" + port +"]");
+        Thread.currentThread().setName("TinySocks[" + (unixSocket != null ? unixSocket.getName() : port) + "]");
         doStartSocksServer();
       }
     });
@@ -50,43 +123,71 @@ public final class TinySocks {
 
   private void doStartSocksServer() {
     try {
-      serverSocket = new ServerSocket(port);
-      eventListener.onTinySocksStarted(this);
-      while (!closed) {
-        Socket socket = serverSocket.accept();
-//        System.out.println("accepted....");
-        Worker worker = new Worker(socket, this);
-        synchronized (this) {
-          workers.add(worker);
+      if (unixSocket != null) {
+        ServerSocketChannel server = UnixSockets.bind(unixSocket);
+        serverSocket = server;
+        eventListener.onTinySocksStarted(this);
+        while (!closed) {
+          accepted(UnixSockets.accept(server));
+        }
+      } else {
+        ServerSocket server = new ServerSocket(port);
+        serverSocket = server;
+        eventListener.onTinySocksStarted(this);
+        while (!closed) {
+          accepted(server.accept());
         }
-        executor.execute(worker);
-//        System.out.println("submitted....");
       }
     } catch (IOException e) {
       close();
     }
   }
 
+  private void accepted(Socket socket) {
+    Worker worker = new Worker(socket, this);
+    if (!workers.add(worker)) {
+      Util.closeQuietly(socket);
+      return;
+    }
+    executor.execute(worker);
+  }
+
   public int port() {
     return port;
   }
 
+  /**
+   * live connections, including those still negotiating.
+   */
+  public int connectionCount() {
+    return workers.size();
+  }
+
   private void workerFinished(Worker worker, IOException ex) {
-    synchronized (this) {
-      workers.remove(worker);
-    }
+    workers.remove(worker);
     if(!closed) {
       eventListener.onConnectionClosed(this, worker.endpoint, ex);
     }
 //    System.out.println("worker count: " + workers.size());
   }
 
-  private static class Worker implements Runnable {
+  private static class Worker implements Runnable, ConnectionTable.Counters {
     private final Socket client;
     private final TinySocks tinySocks;
     private Connection connection;
     private volatile boolean closed;
     private Endpoint endpoint;
+    private Throttle throttle = Throttle.NONE;
+    private UserAccount.Meter meterIn = UserAccount.Meter.NONE;
+    private UserAccount.Meter meterOut = UserAccount.Meter.NONE;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    // each written by its own pipe
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile ConnectionTable.Entry tableEntry;
+    private volatile Splice splice;
+    private volatile Splice.Sender sender;
 
     public Worker(Socket socket, TinySocks tinySocks) {
       this.client = socket;
@@ -95,37 +196,120 @@ public final class TinySocks {
 
     @Override
     public void run() {
+      UserAccount account = null;
       try {
         final InputStream input = client.getInputStream();
         final OutputStream output = client.getOutputStream();
-        negotiation(input, output);
+        SocksHandshake handshake = new SocksHandshake(input, output);
+        Authenticator authenticator = tinySocks.authenticator;
+        handshake.negotiate(authenticator != null);
+        UserAccount user = null;
+        if (authenticator != null) {
+          handshake.readCredentials();
+          try {
+            user = authenticator.authenticate(handshake.username, handshake.password);
+          } finally {
+            handshake.sendAuthStatus(user != null);
+          }
+          if (user == null) throw new IOException("authentication failed for user " + handshake.username);
+        }
         tinySocks.eventListener.onSocksNegotiated(tinySocks, client);
-        endpoint = Endpoint.parseSocks(input);
+        endpoint = handshake.readRequest();
+        if (user != null) {
+          if (!user.open()) {
+            handshake.sendReply(SocksHandshake.REPLY_NOT_ALLOWED, null, 0);
+            throw new IOException("too many connections for user " + user.name());
+          }
+          account = user;
+          meterIn = user.meter(true);
+          meterOut = user.meter(false);
+        }
         connection = tinySocks.connectionFactory.newConnection(client, endpoint);
-        sendConnectResult(output);
         if (connection == null) {
+          handshake.sendReply(SocksHandshake.REPLY_HOST_UNREACHABLE, null, 0);
           throw new IOException("connection not established.");
         }
+        handshake.sendReply(SocksHandshake.REPLY_SUCCEEDED, connection.remoteAddress(), connection.remotePort());
+        bytesIn += handshake.writeRemaining(connection.outputStream());
         tinySocks.eventListener.onConnectionEstablished(tinySocks, connection);
-        @SuppressWarnings("resource")
-        final InputStream serverIn = connection.inputStream();
-        tinySocks.executor.execute(new Runnable() {
-          @Override
-          public void run() {
-            runPipe(serverIn, output, false);
-          }
-        });
+        if (tinySocks.connectionTable != null) {
+          tableEntry = tinySocks.connectionTable.add(client.getInetAddress(), endpoint, this);
+          if (closed) tableEntry.remove();
+        }
+        if (tinySocks.rateLimits != null) {
+          throttle = tinySocks.rateLimits.throttleFor(client.getInetAddress(), endpoint);
+        }
+        Socket direct = tinySocks.splice ? NoRelay.socketOf(connection) : null;
+        Splice splice = direct != null ? Splice.open(client, direct) : null;
+        if (splice != null) {
+          runSplice(splice);
+          return;
+        }
+        // the connection's receiver must never wait: a throttled stream has to pause, and
+        // only a send that can not block may write to the client on it
+        final Splice.Sender sender = connection instanceof Connection.Pushing && throttle == Throttle.NONE
+          ? Splice.openSender(client) : null;
+        if (sender != null) {
+          this.sender = sender;
+          if (closed) sender.close();
+          ((Connection.Pushing) connection).push(new Connection.Sink() {
+            @Override
+            public int onData(byte[] buffer, int offset, int size) throws IOException {
+              int sent = sender.send(buffer, offset, size);
+              meterOut.consume(sent);
+              bytesOut += sent;
+              return sent;
+            }
+
+            @Override
+            public void onPaused() {
+              startPipeToClient(output);
+            }
+
+            @Override
+            public void onClosed(IOException ex) {
+              close(ex != null ? ex : new IOException("read eof, localToServer=false"));
+            }
+          });
+        } else {
+          startPipeToClient(output);
+        }
         runPipe(input, connection.outputStream(), true);
       } catch (IOException e) {
         close(e);
       } catch (Throwable e) {
         System.out.println("Fatal error occurred. worker will exit.");
         close(new IOException(e));
+      } finally {
+        // the pipe back to the client may still be running, its meter refuses bytes from now on
+        if (account != null) {
+          meterIn.release();
+          meterOut.release();
+          account.close();
+        }
       }
     }
 
+    private void startPipeToClient(final OutputStream output) {
+      final InputStream serverIn;
+      try {
+        serverIn = connection.inputStream();
+      } catch (IOException e) {
+        close(e);
+        return;
+      }
+      tinySocks.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          runPipe(serverIn, output, false);
+        }
+      });
+    }
+
     private void runPipe(InputStream input, OutputStream output, boolean localToServer) {
       byte[] buffer = new byte[4096];
+      UserAccount.Meter meter = localToServer ? meterIn : meterOut;
+      MemoryGovernor.global().reserve(buffer.length);
       int read;
       try {
         while (!closed) {
@@ -133,50 +317,99 @@ public final class TinySocks {
           if (read == -1) {
             throw new IOException("read eof, localToServer=" + localToServer);
           } else {
+            meter.consume(read);
             output.write(buffer, 0, read);
             output.flush();
+            if (localToServer) {
+              bytesIn += read;
+            } else {
+              bytesOut += read;
+            }
+            throttle.consume(read);
           }
         }
       } catch (IOException e) {
         close(e);
+      } finally {
+        MemoryGovernor.global().release(buffer.length);
+      }
+    }
+
+    // both directions stay in the kernel, see Splice
+    private void runSplice(final Splice splice) {
+      this.splice = splice;
+      if (closed) splice.close();
+      tinySocks.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          runSplice(splice, false);
+        }
+      });
+      runSplice(splice, true);
+    }
+
+    private void runSplice(Splice splice, final boolean localToServer) {
+      final UserAccount.Meter meter = localToServer ? meterIn : meterOut;
+      try {
+        splice.forward(localToServer, new Splice.Listener() {
+          @Override
+          public void onSpliced(int bytes) throws IOException {
+            meter.consume(bytes);
+            if (localToServer) {
+              bytesIn += bytes;
+            } else {
+              bytesOut += bytes;
+            }
+            throttle.consume(bytes);
+          }
+        });
+        close(new IOException("read eof, localToServer=" + localToServer));
+      } catch (IOException e) {
+        close(e);
       }
     }
 
     private void close(IOException e) {
       if (closed) return;
       closed = true;
+      // before the sockets, it holds duplicates of them
+      Splice splice = this.splice;
+      if (splice != null) splice.close();
+      Splice.Sender sender = this.sender;
+      if (sender != null) sender.close();
       Util.closeQuietly(client);
       if (connection != null) connection.close();
+      ConnectionTable.Entry tableEntry = this.tableEntry;
+      if (tableEntry != null) tableEntry.remove();
+      if (tinySocks.accessLog != null) {
+        tinySocks.accessLog.append(client.getInetAddress(), client.getPort(), endpoint, startMillis,
+          (System.nanoTime() - startNanos) / 1000000, bytesIn, bytesOut, e);
+      }
       tinySocks.workerFinished(this, e);
     }
 
-    private void sendConnectResult(OutputStream clientOut) throws IOException {
-      byte[] response = {5/*Socks5 version*/, connection != null ? 0/*success*/ : (byte) 4/*host unreached*/, 0/*reserved*/, 1/*atype, ipv4*/};
-      clientOut.write(response);
-      // write server address
-      clientOut.write(connection != null ? connection.remoteAddress() : new byte[4]);
-      // write server port
-      int port = connection != null ? connection.remotePort() : 0;
-      Util.writeShort(clientOut, (short) port);
-      clientOut.flush();
+    @Override
+    public long bytesIn() {
+      return bytesIn;
     }
 
-    private void negotiation(InputStream input, OutputStream output) throws IOException {
-      int version = input.read();
-      int nMethods = input.read();
-      byte[] methods = Util.readNBytes(input, nMethods);
-
-      output.write(5/*Socks version 5*/);
-      output.write(0 /*No Authentication*/);
-      output.flush();
+    @Override
+    public long bytesOut() {
+      return bytesOut;
     }
   }
 
   public static class Builder {
     private Executor executor;
     private int port = 10010;
+    private File unixSocket;
     private Connection.Factory connectionFactory = NoRelay.connectionFactory();
-    private EventListener eventListener = EventListener.LOG_LISTENER;
+    private EventListener eventListener;// logs asynchronously when not set
+    private RateLimits rateLimits;
+    private AccessLog accessLog;
+    private ConnectionTable connectionTable;
+    private Authenticator authenticator;
+    private boolean splice;
 
     public Builder executor(Executor executor) {
       this.executor = executor;
@@ -188,16 +421,64 @@ public final class TinySocks {
       return this;
     }
 
+    /**
+     * listens on a unix domain socket at this path instead of the port, JDK 16 or later.
+     * clients are seen as coming from the loopback address, see {@link UnixSockets}.
+     */
+    public Builder unixSocket(File path) {
+      this.unixSocket = path;
+      return this;
+    }
+
     public Builder connectionFactory(Connection.Factory connectionFactory) {
       this.connectionFactory = connectionFactory;
       return this;
     }
 
+    /**
+     * listeners are called on the connection threads, wrap slow ones in an
+     * {@link AsyncEventListener}.
+     */
     public Builder eventListener(EventListener eventListener) {
       this.eventListener = eventListener;
       return this;
     }
 
+    public Builder rateLimits(RateLimits rateLimits) {
+      this.rateLimits = rateLimits;
+      return this;
+    }
+
+    public Builder accessLog(AccessLog accessLog) {
+      this.accessLog = accessLog;
+      return this;
+    }
+
+    /**
+     * lists the live connections in {@code table}, see {@link ConnectionTable}.
+     */
+    public Builder connectionTable(ConnectionTable table) {
+      this.connectionTable = table;
+      return this;
+    }
+
+    /**
+     * requires clients to log in with a username and password, see {@link Authenticator}.
+     */
+    public Builder authenticator(Authenticator authenticator) {
+      this.authenticator = authenticator;
+      return this;
+    }
+
+    /**
+     * forwards direct connections with splice(2) where {@link Splice#isSupported()}, so their
+     * bytes never leave the kernel; other streams and other systems copy as usual.
+     */
+    public Builder splice(boolean splice) {
+      this.splice = splice;
+      return this;
+    }
+
     public TinySocks build() {
       if (executor == null) {
         executor = new ThreadPoolExecutor(
@@ -0,0 +1,287 @@
+package tinysocks;
+
+import tinysocks.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unix domain socket listeners and connections for local clients and co-located relays, on
+ * JDK 16 and later. the JDK API is reached by reflection so the library still builds for Java 7.
+ * <p>
+ * connections are handed out as {@link Socket}s, so socks workers, the relay handshake and the
+ * link run on them unchanged. they report the loopback address and port 0 as their peer,
+ * TCP options are ignored, and a read timeout closes the connection once it expires.
+ */
+public final class UnixSockets {
+  @Nullable
+  private static final ProtocolFamily UNIX;
+  @Nullable
+  private static final Method addressOf;
+  @Nullable
+  private static final Method openServer;
+  @Nullable
+  private static final Method openChannel;
+
+  static {
+    ProtocolFamily unix = null;
+    Method of = null;
+    Method server = null;
+    Method channel = null;
+    try {
+      unix = StandardProtocolFamily.valueOf("UNIX");
+      of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+      server = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+      channel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+    } catch (IllegalArgumentException | ClassNotFoundException | NoSuchMethodException ignored) {
+      unix = null;
+    }
+    UNIX = unix;
+    addressOf = of;
+    openServer = server;
+    openChannel = channel;
+  }
+
+  private static ScheduledExecutorService timer;
+
+  private UnixSockets() {
+  }
+
+  public static boolean isSupported() {
+    return UNIX != null;
+  }
+
+  /**
+   * listens on {@code path}, replacing a socket file left by an earlier run.
+   */
+  public static ServerSocketChannel bind(File path) throws IOException {
+    SocketAddress address = addressOf(path);
+    if (path.exists() && !path.delete()) {
+      throw new IOException("can not remove " + path);
+    }
+    ServerSocketChannel server = (ServerSocketChannel) invoke(openServer, UNIX);
+    try {
+      server.bind(address);
+    } catch (IOException e) {
+      Util.closeQuietly(server);
+      throw e;
+    }
+    path.deleteOnExit();
+    return server;
+  }
+
+  public static Socket accept(ServerSocketChannel server) throws IOException {
+    return new ChannelSocket(server.accept());
+  }
+
+  public static Socket connect(File path) throws IOException {
+    SocketAddress address = addressOf(path);
+    SocketChannel channel = (SocketChannel) invoke(openChannel, UNIX);
+    try {
+      channel.connect(address);
+    } catch (IOException e) {
+      Util.closeQuietly(channel);
+      throw e;
+    }
+    return new ChannelSocket(channel);
+  }
+
+  private static SocketAddress addressOf(File path) throws IOException {
+    if (UNIX == null) throw new IOException("unix domain sockets need JDK 16 or later.");
+    return (SocketAddress) invoke(addressOf, path.getPath());
+  }
+
+  private static Object invoke(Method method, Object argument) throws IOException {
+    try {
+      return method.invoke(null, argument);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    } catch (IllegalAccessException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static synchronized ScheduledExecutorService timer() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "UnixSockets-Timeout");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+
+  // a blocking channel behind the Socket API, one reader and one writer thread at a time
+  private static final class ChannelSocket extends Socket {
+    private final SocketChannel channel;
+    private final InputStream in = new ChannelInputStream();
+    private final OutputStream out = new ChannelOutputStream();
+    private volatile int soTimeout;
+    private volatile boolean timedOut;
+
+    ChannelSocket(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return out;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+      soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+      return soTimeout;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+      return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public int getPort() {
+      return 0;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+      return new InetSocketAddress(getInetAddress(), 0);
+    }
+
+    @Override
+    public boolean isConnected() {
+      return channel.isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+      return !channel.isOpen();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+      channel.shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+
+    @Override
+    public String toString() {
+      return "UnixSocket[" + channel + "]";
+    }
+
+    private final class ChannelInputStream extends InputStream {
+      private final byte[] single = new byte[1];
+      private byte[] array;
+      private ByteBuffer wrapper;
+
+      @Override
+      public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) return 0;
+        if (buffer != array) {
+          array = buffer;
+          wrapper = ByteBuffer.wrap(buffer);
+        }
+        wrapper.limit(offset + size).position(offset);
+        int timeout = soTimeout;
+        if (timeout <= 0) return channel.read(wrapper);
+        ScheduledFuture<?> expiry = timer().schedule(new Runnable() {
+          @Override
+          public void run() {
+            timedOut = true;
+            Util.closeQuietly(channel);
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
+        try {
+          return channel.read(wrapper);
+        } catch (IOException e) {
+          if (timedOut) throw new SocketTimeoutException("read timed out");
+          throw e;
+        } finally {
+          expiry.cancel(false);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        ChannelSocket.this.close();
+      }
+    }
+
+    private final class ChannelOutputStream extends OutputStream {
+      private final byte[] single = new byte[1];
+      private byte[] array;
+      private ByteBuffer wrapper;
+
+      @Override
+      public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] buffer, int offset, int size) throws IOException {
+        if (buffer != array) {
+          array = buffer;
+          wrapper = ByteBuffer.wrap(buffer);
+        }
+        wrapper.limit(offset + size).position(offset);
+        while (wrapper.hasRemaining()) {
+          channel.write(wrapper);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        ChannelSocket.this.close();
+      }
+    }
+  }
+}
@@ -57,6 +57,27 @@ public class Util {
     out.write((v >>> 0) & 0xFF);
   }
 
+  public static long readLong(@NonNull InputStream in) throws IOException {
+    return ((long) readInt(in) << 32) + (readInt(in) & 0xFFFFFFFFL);
+  }
+
+  public static void writeLong(@NonNull OutputStream out, long v) throws IOException {
+    writeInt(out, (int) (v >>> 32));
+    writeInt(out, (int) v);
+  }
+
+  public static void putInt(@NonNull byte[] buffer, int offset, int v) {
+    buffer[offset] = (byte) (v >>> 24);
+    buffer[offset + 1] = (byte) (v >>> 16);
+    buffer[offset + 2] = (byte) (v >>> 8);
+    buffer[offset + 3] = (byte) (v >>> 0);
+  }
+
+  public static void putLong(@NonNull byte[] buffer, int offset, long v) {
+    putInt(buffer, offset, (int) (v >>> 32));
+    putInt(buffer, offset + 4, (int) v);
+  }
+
   @Nullable
   public static Socket connectSocket(@NonNull Endpoint endpoint) {
     Socket socket = new Socket();
@@ -117,6 +138,22 @@ public class Util {
         result.append("close   ");
         break;
       }
+      case 4: {
+        result.append("ping    ");
+        break;
+      }
+      case 5: {
+        result.append("pong    ");
+        break;
+      }
+      case 6: {
+        result.append("ack     ");
+        break;
+      }
+      case 7: {
+        result.append("window  ");
+        break;
+      }
     }
     result.append(", size=").append(size);
     System.out.println(result);
@@ -0,0 +1,218 @@
+package tinysocks.auth;
+
+import tinysocks.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Username/password authentication (RFC 1929) for a {@link tinysocks.TinySocks}, and the
+ * {@link UserAccount} of every user that logged in:
+ * <pre>
+ * Authenticator authenticator = new Authenticator.Builder()
+ *   .credentials(StaticCredentials.load(new File("users.properties")))
+ *   .quota("guest", 10L * 1024 * 1024 * 1024, 16)
+ *   .build();
+ * new TinySocks.Builder().authenticator(authenticator).build().start();
+ * </pre>
+ * a successful check is cached for {@link Builder#cacheMillis(long)} as a salted SHA-256 of
+ * the password, so a client reconnecting with the same password costs a hash and a map
+ * lookup instead of a trip to the {@link CredentialStore}. failed checks always go to the
+ * store.
+ */
+public final class Authenticator {
+  private static final int MAX_CACHED_USERS = 64 * 1024;
+
+  private final CredentialStore credentials;
+  private final long cacheNanos;
+  private final long defaultQuotaBytes;
+  private final int defaultMaxConnections;
+  private final Map<String, long[]> quotas;
+  private final byte[] salt = new byte[16];
+  private final ConcurrentMap<String, Verified> verified = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, UserAccount> accounts = new ConcurrentHashMap<>();
+  private final StripedCounter cacheHits = new StripedCounter();
+  private final StripedCounter storeChecks = new StripedCounter();
+  private final StripedCounter failures = new StripedCounter();
+  private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  private Authenticator(Builder builder) {
+    if (builder.credentials == null) throw new IllegalArgumentException("no credential store");
+    this.credentials = builder.credentials;
+    this.cacheNanos = TimeUnit.MILLISECONDS.toNanos(builder.cacheMillis);
+    this.defaultQuotaBytes = builder.defaultQuotaBytes;
+    this.defaultMaxConnections = builder.defaultMaxConnections;
+    this.quotas = new HashMap<>(builder.quotas);
+    new SecureRandom().nextBytes(salt);
+  }
+
+  /**
+   * @return the user's account, null when the credentials are wrong
+   * @throws IOException when the credential store failed
+   */
+  @Nullable
+  public UserAccount authenticate(String username, byte[] password) throws IOException {
+    byte[] hash = hash(password);
+    long now = System.nanoTime();
+    Verified cached = verified.get(username);
+    if (cached != null && now - cached.nanos < cacheNanos && MessageDigest.isEqual(cached.hash, hash)) {
+      cacheHits.add(1);
+      return account(username, true);
+    }
+    storeChecks.add(1);
+    if (!credentials.verify(username, password)) {
+      failures.add(1);
+      return null;
+    }
+    if (cacheNanos > 0) {
+      if (verified.size() >= MAX_CACHED_USERS) {
+        evictExpired(now);
+      }
+      verified.put(username, new Verified(hash, now));
+    }
+    return account(username, true);
+  }
+
+  /**
+   * drops the cached check of a user, e.g. after its password changed.
+   */
+  public void forget(String username) {
+    verified.remove(username);
+  }
+
+  /**
+   * @return null when the user has not logged in since the start
+   */
+  @Nullable
+  public UserAccount account(String username) {
+    return account(username, false);
+  }
+
+  public List<UserAccount> accounts() {
+    return new ArrayList<>(accounts.values());
+  }
+
+  /**
+   * logins answered from the cache.
+   */
+  public long cacheHits() {
+    return cacheHits.sum();
+  }
+
+  /**
+   * logins checked with the credential store.
+   */
+  public long storeChecks() {
+    return storeChecks.sum();
+  }
+
+  public long failures() {
+    return failures.sum();
+  }
+
+  @Nullable
+  private UserAccount account(String username, boolean create) {
+    UserAccount account = accounts.get(username);
+    if (account != null || !create) return account;
+    long[] quota = quotas.get(username);
+    account = quota != null
+      ? new UserAccount(username, quota[0], (int) quota[1])
+      : new UserAccount(username, defaultQuotaBytes, defaultMaxConnections);
+    UserAccount existing = accounts.putIfAbsent(username, account);
+    return existing != null ? existing : account;
+  }
+
+  private byte[] hash(byte[] password) {
+    MessageDigest digest = digests.get();
+    digest.update(salt);
+    return digest.digest(password);
+  }
+
+  private void evictExpired(long now) {
+    Iterator<Verified> i = verified.values().iterator();
+    while (i.hasNext()) {
+      if (now - i.next().nanos >= cacheNanos) {
+        i.remove();
+      }
+    }
+    if (verified.size() >= MAX_CACHED_USERS) {
+      verified.clear();
+    }
+  }
+
+  private static final class Verified {
+    final byte[] hash;
+    final long nanos;
+
+    Verified(byte[] hash, long nanos) {
+      this.hash = hash;
+      this.nanos = nanos;
+    }
+  }
+
+  public static class Builder {
+    private CredentialStore credentials;
+    private long cacheMillis = TimeUnit.MINUTES.toMillis(5);
+    private long defaultQuotaBytes = -1;
+    private int defaultMaxConnections;
+    private final Map<String, long[]> quotas = new HashMap<>();
+
+    public Builder credentials(CredentialStore credentials) {
+      this.credentials = credentials;
+      return this;
+    }
+
+    /**
+     * how long a successful check is trusted before the store is asked again, 5 minutes by
+     * default, 0 to ask it for every connection.
+     */
+    public Builder cacheMillis(long cacheMillis) {
+      this.cacheMillis = cacheMillis;
+      return this;
+    }
+
+    /**
+     * quotas of users without their own.
+     *
+     * @param bytes both directions together, -1 for no limit
+     * @param maxConnections concurrent connections, 0 for no limit
+     */
+    public Builder defaultQuota(long bytes, int maxConnections) {
+      this.defaultQuotaBytes = bytes;
+      this.defaultMaxConnections = maxConnections;
+      return this;
+    }
+
+    /**
+     * @param bytes both directions together, -1 for no limit
+     * @param maxConnections concurrent connections, 0 for no limit
+     */
+    public Builder quota(String username, long bytes, int maxConnections) {
+      quotas.put(username, new long[]{bytes, maxConnections});
+      return this;
+    }
+
+    public Authenticator build() {
+      return new Authenticator(this);
+    }
+  }
+}
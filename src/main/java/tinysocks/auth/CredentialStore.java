@@ -0,0 +1,15 @@
+package tinysocks.auth;
+
+import java.io.IOException;
+
+/**
+ * Checks a username and password, e.g. against a password file or a directory server.
+ * {@link Authenticator} caches the successful checks, so a store may be slow; it is called
+ * on the connection threads and has to be thread safe.
+ */
+public interface CredentialStore {
+  /**
+   * @throws IOException when the store could not be asked, the client is refused
+   */
+  boolean verify(String username, byte[] password) throws IOException;
+}
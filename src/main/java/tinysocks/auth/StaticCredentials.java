@@ -0,0 +1,50 @@
+package tinysocks.auth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Usernames and passwords held in memory, from code or a properties file of
+ * {@code user=password} lines.
+ */
+public final class StaticCredentials implements CredentialStore {
+  private final ConcurrentMap<String, byte[]> passwords = new ConcurrentHashMap<>();
+
+  public static StaticCredentials load(File file) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    StaticCredentials credentials = new StaticCredentials();
+    for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+      credentials.put((String) entry.getKey(), (String) entry.getValue());
+    }
+    return credentials;
+  }
+
+  public StaticCredentials put(String username, String password) {
+    passwords.put(username, password.getBytes(StandardCharsets.UTF_8));
+    return this;
+  }
+
+  public void remove(String username) {
+    passwords.remove(username);
+  }
+
+  @Override
+  public boolean verify(String username, byte[] password) {
+    byte[] expected = passwords.get(username);
+    return expected != null && MessageDigest.isEqual(expected, password);
+  }
+}
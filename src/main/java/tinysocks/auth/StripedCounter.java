@@ -0,0 +1,38 @@
+package tinysocks.auth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum spread over cells on separate cache lines, each thread adding to the cell its id
+ * hashes to, so streams of one user counting on many threads do not fight over a line.
+ * reading sums all cells and is not atomic against concurrent adds.
+ */
+final class StripedCounter {
+  // 16 longs apart, two cache lines, so adjacent line prefetching does not pair cells either
+  private static final int PAD_SHIFT = 4;
+  private static final int STRIPES;
+
+  static {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+      stripes <<= 1;
+    }
+    STRIPES = Math.max(4, stripes);
+  }
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES << PAD_SHIFT);
+
+  void add(long delta) {
+    long id = Thread.currentThread().getId();
+    int stripe = (int) (id * 0x9E3779B97F4A7C15L >>> 32) & (STRIPES - 1);
+    cells.getAndAdd(stripe << PAD_SHIFT, delta);
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i << PAD_SHIFT);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,188 @@
+package tinysocks.auth;
+
+import tinysocks.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic of one authenticated user across all its streams, and its optional quotas: a byte
+ * budget for both directions together and a limit on concurrent connections.
+ * <p>
+ * the pipes of a stream count through their own {@link Meter}: bytes go to striped counters,
+ * and the budget is handed out in leases of {@link #LEASE_BYTES}, so a busy stream touches the
+ * shared budget once per lease and never takes a lock. a stream can overrun the quota by
+ * nothing, but up to a lease per direction of each open stream is held back from the others.
+ */
+public final class UserAccount {
+  public static final long LEASE_BYTES = 256 * 1024;
+  // a released meter's lease, far below anything a stream can owe
+  private static final long RELEASED = Long.MIN_VALUE / 2;
+
+  private final String name;
+  private final StripedCounter bytesIn = new StripedCounter();
+  private final StripedCounter bytesOut = new StripedCounter();
+  private final StripedCounter connections = new StripedCounter();
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  private final int maxConnections;// 0 for no limit
+  // bytes not leased to a stream yet, null without a quota
+  @Nullable
+  private final AtomicLong budget;
+
+  UserAccount(String name, long quotaBytes, int maxConnections) {
+    this.name = name;
+    this.maxConnections = maxConnections;
+    this.budget = quotaBytes >= 0 ? new AtomicLong(quotaBytes) : null;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  /**
+   * bytes from the user's clients to their destinations.
+   */
+  public long bytesIn() {
+    return bytesIn.sum();
+  }
+
+  /**
+   * bytes from the destinations back to the user's clients.
+   */
+  public long bytesOut() {
+    return bytesOut.sum();
+  }
+
+  /**
+   * connections accepted since the account was created.
+   */
+  public long connections() {
+    return connections.sum();
+  }
+
+  public int activeConnections() {
+    return activeConnections.get();
+  }
+
+  /**
+   * bytes of the quota not leased to a stream yet, -1 without a quota.
+   */
+  public long remainingBytes() {
+    return budget != null ? budget.get() : -1;
+  }
+
+  /**
+   * tops up the byte quota, e.g. at the start of a billing period.
+   *
+   * @throws IllegalStateException when the account has no byte quota
+   */
+  public void addQuotaBytes(long bytes) {
+    if (budget == null) throw new IllegalStateException(name + " has no byte quota");
+    budget.addAndGet(bytes);
+  }
+
+  /**
+   * counts a new connection.
+   *
+   * @return false when the user has as many open as it may, the connection is refused
+   */
+  public boolean open() {
+    if (maxConnections > 0) {
+      while (true) {
+        int active = activeConnections.get();
+        if (active >= maxConnections) return false;
+        if (activeConnections.compareAndSet(active, active + 1)) break;
+      }
+    } else {
+      activeConnections.incrementAndGet();
+    }
+    connections.add(1);
+    return true;
+  }
+
+  /**
+   * called once for every successful {@link #open()}.
+   */
+  public void close() {
+    activeConnections.decrementAndGet();
+  }
+
+  /**
+   * the meter for one direction of a stream, used by a single pipe at a time.
+   *
+   * @param in true for client to destination
+   */
+  public Meter meter(boolean in) {
+    return new Meter(this, in ? bytesIn : bytesOut);
+  }
+
+  private long lease(long owed) throws IOException {
+    while (true) {
+      long available = budget.get();
+      if (available < owed) throw new IOException("quota exceeded for user " + name);
+      long granted = Math.min(available, owed + LEASE_BYTES);
+      if (budget.compareAndSet(available, available - granted)) return granted;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "UserAccount[" + name + " in=" + bytesIn() + " out=" + bytesOut() + " connections=" + connections()
+      + " active=" + activeConnections() + " remaining=" + remainingBytes() + "]";
+  }
+
+  public static final class Meter {
+    /**
+     * counts nothing, for streams without a user.
+     */
+    public static final Meter NONE = new Meter(null, null);
+
+    @Nullable
+    private final UserAccount account;
+    @Nullable
+    private final StripedCounter counter;
+    // bytes this stream may still move before it needs another lease
+    private final AtomicLong leased = new AtomicLong();
+
+    private Meter(@Nullable UserAccount account, @Nullable StripedCounter counter) {
+      this.account = account;
+      this.counter = counter;
+    }
+
+    /**
+     * charges bytes about to be forwarded, called by the pipe loops before they write.
+     *
+     * @throws IOException when they would go over the user's quota, the stream has to close
+     */
+    public void consume(int bytes) throws IOException {
+      if (account == null) return;
+      if (account.budget != null && leased.addAndGet(-bytes) < 0) {
+        refill();
+      }
+      counter.add(bytes);
+    }
+
+    private void refill() throws IOException {
+      long owed = -leased.get();
+      if (owed <= 0) return;// another consume of this pipe refilled already
+      if (owed > -RELEASED / 2) throw new IOException("stream closed");
+      long granted = account.lease(owed);
+      if (leased.addAndGet(granted) < RELEASED / 2) {
+        // released meanwhile, the lease goes straight back
+        account.budget.addAndGet(granted);
+        throw new IOException("stream closed");
+      }
+    }
+
+    /**
+     * gives the unused part of the lease back to the account; the meter refuses bytes from
+     * now on. called once when the stream closes, from any thread.
+     */
+    public void release() {
+      if (account == null || account.budget == null) return;
+      long left = leased.getAndSet(RELEASED);
+      if (left > 0) account.budget.addAndGet(left);
+    }
+  }
+}
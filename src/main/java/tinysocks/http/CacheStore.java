@@ -0,0 +1,274 @@
+package tinysocks.http;
+
+import tinysocks.Util;
+import tinysocks.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Responses kept in memory mapped segment files of a fixed size, the index on the heap.
+ * <p>
+ * new entries are appended to the active segment. when it is full the least recently
+ * activated segment takes over and everything in it is evicted, so the cache never holds
+ * more than its segments. an entry read from the older half of the segments is copied to the
+ * active one, which keeps popular entries alive like an LRU would.
+ * <p>
+ * the lock only guards handing out space and pinning; copying in and out of the mappings
+ * happens outside it. a segment that is being written or read is pinned and skipped when
+ * the next one is picked, so no reader sees its entry overwritten.
+ */
+final class CacheStore {
+  private final Segment[] segments;
+  private final int segmentSize;
+  private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<>();
+  private final AtomicLong evictions = new AtomicLong();
+  // guarded by this
+  @Nullable
+  private Segment active;
+  private long activations;
+
+  CacheStore(File directory, long maxBytes, int segmentSize) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("can not create " + directory);
+    }
+    this.segmentSize = segmentSize;
+    this.segments = new Segment[(int) Math.max(2, maxBytes / segmentSize)];
+    for (int i = 0; i < segments.length; i++) {
+      RandomAccessFile file = new RandomAccessFile(new File(directory, "segment-" + i + ".tsc"), "rw");
+      try {
+        file.setLength(segmentSize);
+        // the mapping stays valid after the file is closed
+        segments[i] = new Segment(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+      } finally {
+        Util.closeQuietly(file);
+      }
+    }
+  }
+
+  int maxEntrySize() {
+    return segmentSize;
+  }
+
+  int size() {
+    return index.size();
+  }
+
+  long evictions() {
+    return evictions.get();
+  }
+
+  @Nullable
+  Entry get(String key) {
+    Entry entry = index.get(key);
+    if (entry != null && entry.segment.generation != entry.generation) {
+      index.remove(key, entry);
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * keeps the entry's bytes in place until {@link #unpin(Entry)}.
+   *
+   * @return false when it was evicted already
+   */
+  synchronized boolean pin(Entry entry) {
+    if (entry.segment.generation != entry.generation) return false;
+    entry.segment.pins++;
+    return true;
+  }
+
+  synchronized void unpin(Entry entry) {
+    entry.segment.pins--;
+  }
+
+  /**
+   * whether a pinned entry is in the older half of the segments, and worth a {@link #refresh}.
+   */
+  synchronized boolean isOld(Entry entry) {
+    return activations - entry.segment.activation >= segments.length / 2;
+  }
+
+  /**
+   * space for an entry of {@code size} bytes, null when every segment is in use.
+   */
+  @Nullable
+  Slot reserve(int size) {
+    if (size > segmentSize) return null;
+    Segment recycled = null;
+    Slot slot;
+    synchronized (this) {
+      if (active == null || active.position + size > segmentSize) {
+        Segment next = null;
+        for (Segment segment : segments) {
+          if (segment.pins == 0 && segment != active && (next == null || segment.activation < next.activation)) {
+            next = segment;
+          }
+        }
+        if (next == null) return null;
+        next.generation++;
+        next.position = 0;
+        next.activation = ++activations;
+        active = next;
+        recycled = next;
+      }
+      slot = new Slot(active, active.generation, active.position, size);
+      active.position += size;
+      active.pins++;
+    }
+    if (recycled != null) {
+      for (Entry entry : index.values()) {
+        if (entry.segment == recycled && entry.generation != recycled.generation && index.remove(entry.key, entry)) {
+          evictions.incrementAndGet();
+        }
+      }
+    }
+    return slot;
+  }
+
+  /**
+   * copies a pinned entry into the active segment, keeping it from the next evictions.
+   */
+  void refresh(Entry entry) {
+    Slot slot = reserve(entry.headLength + entry.bodyLength);
+    if (slot == null) return;
+    ByteBuffer source = entry.segment.view(entry.offset, entry.headLength + entry.bodyLength);
+    byte[] buffer = new byte[Math.min(64 * 1024, source.remaining())];
+    while (source.hasRemaining()) {
+      int n = Math.min(buffer.length, source.remaining());
+      source.get(buffer, 0, n);
+      slot.write(buffer, 0, n);
+    }
+    Entry copy = slot.entry(entry.key, entry.headLength, entry.storedMillis, entry.initialAge, entry.freshUntil,
+      entry.etag, entry.lastModified, entry.vary);
+    synchronized (this) {
+      slot.segment.pins--;
+    }
+    index.replace(entry.key, entry, copy);
+  }
+
+  static final class Segment {
+    final MappedByteBuffer mapping;
+    volatile int generation;
+    // guarded by the store
+    int position;
+    int pins;
+    long activation;
+
+    Segment(MappedByteBuffer mapping) {
+      this.mapping = mapping;
+    }
+
+    ByteBuffer view(int offset, int length) {
+      ByteBuffer view = mapping.duplicate();
+      view.limit(offset + length).position(offset);
+      return view;
+    }
+  }
+
+  /**
+   * space being filled with a response, published by {@link #commit} or given up by
+   * {@link #abort()}.
+   */
+  final class Slot {
+    final Segment segment;
+    final int generation;
+    final int offset;
+    final int size;
+    private final ByteBuffer view;
+
+    Slot(Segment segment, int generation, int offset, int size) {
+      this.segment = segment;
+      this.generation = generation;
+      this.offset = offset;
+      this.size = size;
+      this.view = segment.view(offset, size);
+    }
+
+    int remaining() {
+      return view.remaining();
+    }
+
+    void write(byte[] buffer, int offset, int length) {
+      view.put(buffer, offset, length);
+    }
+
+    Entry entry(String key, int headLength, long storedMillis, long initialAge, long freshUntil,
+                @Nullable String etag, @Nullable String lastModified, @Nullable String vary) {
+      return new Entry(key, segment, generation, offset, headLength, size - headLength, storedMillis, initialAge,
+        freshUntil, etag, lastModified, vary);
+    }
+
+    void commit(Entry entry) {
+      synchronized (CacheStore.this) {
+        segment.pins--;
+      }
+      index.put(entry.key, entry);
+    }
+
+    void abort() {
+      synchronized (CacheStore.this) {
+        segment.pins--;
+      }
+    }
+  }
+
+  /**
+   * A stored response: the head without its final empty line, then the body as received.
+   */
+  static final class Entry {
+    final String key;
+    final Segment segment;
+    final int generation;
+    final int offset;
+    final int headLength;
+    final int bodyLength;
+    final long storedMillis;
+    final long initialAge;// seconds
+    volatile long freshUntil;
+    @Nullable
+    final String etag;
+    @Nullable
+    final String lastModified;
+    // the Accept-Encoding of the request it answered, null when the response did not vary
+    @Nullable
+    final String vary;
+
+    Entry(String key, Segment segment, int generation, int offset, int headLength, int bodyLength,
+          long storedMillis, long initialAge, long freshUntil, @Nullable String etag,
+          @Nullable String lastModified, @Nullable String vary) {
+      this.key = key;
+      this.segment = segment;
+      this.generation = generation;
+      this.offset = offset;
+      this.headLength = headLength;
+      this.bodyLength = bodyLength;
+      this.storedMillis = storedMillis;
+      this.initialAge = initialAge;
+      this.freshUntil = freshUntil;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.vary = vary;
+    }
+
+    boolean isFresh(long now) {
+      return now < freshUntil;
+    }
+
+    ByteBuffer head() {
+      return segment.view(offset, headLength);
+    }
+
+    ByteBuffer body() {
+      return segment.view(offset + headLength, bodyLength);
+    }
+  }
+}
@@ -0,0 +1,779 @@
+package tinysocks.http;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stream to a cached port. the client's requests are parsed as they are written and each
+ * becomes an {@link Exchange}, answered in order by the response side: from the cache, or by
+ * reading one response from upstream, which is stored on the way when it may be.
+ * <p>
+ * requests and responses run on the two pipe threads of the stream, the queue of exchanges
+ * is all they share.
+ */
+final class CachingConnection implements Connection {
+  private static final int MAX_HEAD_SIZE = 32 * 1024;
+  private static final String[] HOP_BY_HOP = {"age", "connection", "keep-alive", "proxy-connection"};
+
+  private final HttpCache cache;
+  private final CacheStore store;
+  private final Connection upstream;
+  private final String destination;
+  private final OutputStream upstreamOut;
+  private final InputStream upstreamIn;
+  private final Requests requests = new Requests();
+  private final Responses responses = new Responses();
+  private final ArrayDeque<Exchange> exchanges = new ArrayDeque<>();// guarded by itself
+  private volatile boolean closed;
+
+  CachingConnection(HttpCache cache, Connection upstream) throws IOException {
+    this.cache = cache;
+    this.store = cache.store;
+    this.upstream = upstream;
+    this.destination = destinationOf(upstream.endpoint());
+    this.upstreamOut = upstream.outputStream();
+    this.upstreamIn = upstream.inputStream();
+  }
+
+  // part of every key: a client must not fill the cache for a host with another server's answers
+  private static String destinationOf(Endpoint endpoint) {
+    if (endpoint.hostname != null) return endpoint.hostname.toLowerCase(Locale.ROOT) + ":" + endpoint.port;
+    StringBuilder builder = new StringBuilder(21);
+    for (byte b : endpoint.ip) {
+      builder.append(b & 0xFF).append('.');
+    }
+    builder.setLength(builder.length() - 1);
+    return builder.append(':').append(endpoint.port).toString();
+  }
+
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+    upstream.close();
+    Exchange current = responses.current;
+    if (current != null) {
+      current.release();
+    }
+    synchronized (exchanges) {
+      for (Exchange exchange : exchanges) {
+        exchange.release();
+      }
+      exchanges.clear();
+      exchanges.notifyAll();
+    }
+  }
+
+  @Override
+  public byte[] remoteAddress() {
+    return upstream.remoteAddress();
+  }
+
+  @Override
+  public int remotePort() {
+    return upstream.remotePort();
+  }
+
+  @Override
+  public Endpoint endpoint() {
+    return upstream.endpoint();
+  }
+
+  @Override
+  public InputStream inputStream() {
+    return responses;
+  }
+
+  @Override
+  public OutputStream outputStream() {
+    return requests;
+  }
+
+  private void enqueue(Exchange exchange) throws IOException {
+    synchronized (exchanges) {
+      if (closed) {
+        exchange.release();
+        throw new IOException("connection closed.");
+      }
+      exchanges.add(exchange);
+      exchanges.notifyAll();
+    }
+  }
+
+  @Nullable
+  private Exchange take() {
+    synchronized (exchanges) {
+      while (exchanges.isEmpty() && !closed) {
+        try {
+          exchanges.wait();
+        } catch (InterruptedException e) {
+          return null;
+        }
+      }
+      return exchanges.poll();
+    }
+  }
+
+  private final class Exchange {
+    static final int PASS = 0;// to upstream, stored when storable
+    static final int HIT = 1;
+    static final int NOT_MODIFIED = 2;// the client's own validator matched a fresh entry
+    static final int REVALIDATE = 3;// sent upstream with the entry's validator
+    static final int TUNNEL = 4;// everything from here on is passed through
+
+    final int kind;
+    @Nullable
+    final HttpHead request;
+    @Nullable
+    final String key;
+    final boolean storable;
+    final boolean bodiless;// a HEAD request, the response has no body
+    @Nullable
+    final CacheStore.Entry entry;
+    // guarded by this
+    private boolean pinned;// the entry
+    @Nullable
+    private CacheStore.Slot slot;// the response being stored
+    private boolean released;
+
+    Exchange(int kind, @Nullable HttpHead request, @Nullable String key, boolean storable, boolean bodiless,
+             @Nullable CacheStore.Entry entry) {
+      this.kind = kind;
+      this.request = request;
+      this.key = key;
+      this.storable = storable;
+      this.bodiless = bodiless;
+      this.entry = entry;
+      this.pinned = entry != null;
+    }
+
+    synchronized void releaseEntry() {
+      if (!pinned) return;
+      pinned = false;
+      store.unpin(entry);
+    }
+
+    /**
+     * gives up everything still held, also called by close() from other threads.
+     */
+    synchronized void release() {
+      released = true;
+      releaseEntry();
+      if (slot != null) {
+        slot.abort();
+        slot = null;
+      }
+    }
+
+    synchronized void attach(CacheStore.Slot slot) {
+      if (released) {
+        slot.abort();
+      } else {
+        this.slot = slot;
+      }
+    }
+
+    synchronized void write(byte[] buffer, int offset, int size) {
+      if (slot != null) slot.write(buffer, offset, size);
+    }
+
+    @Nullable
+    synchronized CacheStore.Slot slot() {
+      return slot;
+    }
+
+    synchronized boolean commit(CacheStore.Entry stored) {
+      if (slot == null) return false;
+      slot.commit(stored);
+      slot = null;
+      return true;
+    }
+  }
+
+  private final class Requests extends OutputStream {
+    private final byte[] single = new byte[1];
+    private final byte[] head = new byte[MAX_HEAD_SIZE];
+    private int headSize;
+    private long bodyRemaining;
+    private boolean tunnel;
+
+    @Override
+    public void write(int b) throws IOException {
+      single[0] = (byte) b;
+      write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int size) throws IOException {
+      while (size > 0) {
+        if (tunnel) {
+          upstreamOut.write(buffer, offset, size);
+          return;
+        }
+        if (bodyRemaining > 0) {
+          int n = (int) Math.min(size, bodyRemaining);
+          upstreamOut.write(buffer, offset, n);
+          bodyRemaining -= n;
+          offset += n;
+          size -= n;
+          continue;
+        }
+        while (size > 0) {
+          byte c = buffer[offset++];
+          size--;
+          // empty lines between requests are allowed
+          if (headSize == 0 && (c == '\r' || c == '\n')) continue;
+          head[headSize++] = c;
+          if (c == '\n' && endsHead()) {
+            request();
+            headSize = 0;
+            break;
+          }
+          if (headSize == head.length) {
+            startTunnel();
+            upstreamOut.write(head, 0, headSize);
+            headSize = 0;
+            break;
+          }
+        }
+      }
+    }
+
+    private boolean endsHead() {
+      return headSize >= 2 && head[headSize - 2] == '\n'
+        || headSize >= 4 && head[headSize - 2] == '\r' && head[headSize - 3] == '\n';
+    }
+
+    @Override
+    public void flush() throws IOException {
+      upstreamOut.flush();
+    }
+
+    @Override
+    public void close() {
+      CachingConnection.this.close();
+    }
+
+    private void startTunnel() throws IOException {
+      tunnel = true;
+      enqueue(new Exchange(Exchange.TUNNEL, null, null, false, false, null));
+    }
+
+    private void request() throws IOException {
+      HttpHead request;
+      try {
+        request = HttpHead.parse(head, 0, headSize);
+      } catch (IOException e) {
+        startTunnel();
+        upstreamOut.write(head, 0, headSize);
+        return;
+      }
+      String method = request.token(0);
+      String target = request.token(1);
+      String version = request.token(2);
+      if (target == null || version == null || !version.startsWith("HTTP/1.") || "CONNECT".equals(method)) {
+        startTunnel();
+        upstreamOut.write(head, 0, headSize);
+        return;
+      }
+      if (request.has("transfer-encoding")) {
+        // a chunked request body is not followed, the rest of the stream is passed through
+        enqueue(new Exchange(Exchange.PASS, request, null, false, false, null));
+        startTunnel();
+        upstreamOut.write(head, 0, headSize);
+        return;
+      }
+      long length = request.contentLength();
+      bodyRemaining = Math.max(0, length);
+      if (!"GET".equals(method) || length > 0 || request.has("range")) {
+        enqueue(new Exchange(Exchange.PASS, request, null, false, "HEAD".equals(method), null));
+        upstreamOut.write(head, 0, headSize);
+        return;
+      }
+      String cacheControl = request.get("cache-control");
+      String key = keyOf(request, target);
+      if (key == null || HttpHead.directive(cacheControl, "no-store") >= 0) {
+        enqueue(new Exchange(Exchange.PASS, request, null, false, false, null));
+        upstreamOut.write(head, 0, headSize);
+        return;
+      }
+      String pragma = request.get("pragma");
+      boolean revalidate = HttpHead.directive(cacheControl, "no-cache") >= 0
+        || HttpHead.directive(cacheControl, "max-age") == 0
+        || cacheControl == null && pragma != null && pragma.contains("no-cache");
+      CacheStore.Entry entry = HttpCache.matching(store.get(key), request);
+      if (entry != null && !store.pin(entry)) entry = null;
+      if (entry != null) {
+        if (!revalidate && entry.isFresh(System.currentTimeMillis())) {
+          String ifNoneMatch = request.get("if-none-match");
+          boolean matched = ifNoneMatch != null && entry.etag != null && matchesEtag(ifNoneMatch, entry.etag);
+          enqueue(new Exchange(matched ? Exchange.NOT_MODIFIED : Exchange.HIT, request, key, false, false, entry));
+          return;
+        }
+        boolean conditional = request.has("if-none-match") || request.has("if-modified-since");
+        if (!conditional && (entry.etag != null || entry.lastModified != null)) {
+          enqueue(new Exchange(Exchange.REVALIDATE, request, key, true, false, entry));
+          upstreamOut.write(request.toBytes());
+          String validator = entry.etag != null
+            ? "If-None-Match: " + entry.etag
+            : "If-Modified-Since: " + entry.lastModified;
+          upstreamOut.write((validator + "\r\n\r\n").getBytes(HttpHead.LATIN1));
+          return;
+        }
+        store.unpin(entry);
+      }
+      enqueue(new Exchange(Exchange.PASS, request, key, true, false, null));
+      upstreamOut.write(head, 0, headSize);
+    }
+  }
+
+  @Nullable
+  private String keyOf(HttpHead request, String target) {
+    if (target.regionMatches(true, 0, "http://", 0, 7)) {
+      return destination + " " + target;
+    }
+    String host = request.get("host");
+    if (host == null || !target.startsWith("/")) return null;
+    return destination + " http://" + host.toLowerCase(Locale.ROOT) + target;
+  }
+
+  private static boolean matchesEtag(String ifNoneMatch, String etag) {
+    if (ifNoneMatch.trim().equals("*")) return true;
+    String weak = etag.startsWith("W/") ? etag.substring(2) : etag;
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = candidate.trim();
+      if (tag.startsWith("W/")) tag = tag.substring(2);
+      if (tag.equals(weak)) return true;
+    }
+    return false;
+  }
+
+  private final class Responses extends InputStream {
+    private static final int DONE = 0;
+    private static final int HEAD = 1;// waiting for a response head from upstream
+    private static final int EMIT = 2;// copying the head out of the buffer
+    private static final int BODY = 3;
+    private static final int CHUNKED = 4;
+    private static final int UNTIL_EOF = 5;
+    private static final int RAW = 6;
+    private static final int SERVE = 7;// from the cache
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_EXTENSION = 1;
+    private static final int CHUNK_DATA = 2;
+    private static final int CHUNK_DATA_END = 3;
+    private static final int CHUNK_TRAILER = 4;
+
+    private final byte[] single = new byte[1];
+    private final byte[] buffer = new byte[MAX_HEAD_SIZE];
+    private int position;
+    private int limit;
+
+    volatile Exchange current;
+    private int state;
+    private int afterEmit;
+    private int emit;
+    private long remaining;
+    private int chunkState;
+    private long chunkSize;
+    private int trailerLine;
+
+    // the response being stored
+    @Nullable
+    private HttpHead response;
+    private int storedHeadLength;
+    @Nullable
+    private byte[] chunked;
+    private int chunkedSize;
+
+    // a response from the cache
+    @Nullable
+    private byte[] serveHead;
+    private int serveHeadPosition;
+    @Nullable
+    private ByteBuffer serveBody;
+    private long served;
+
+    @Override
+    public int read() throws IOException {
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int size) throws IOException {
+      if (size == 0) return 0;
+      try {
+        while (true) {
+          if (current == null) {
+            Exchange next = take();
+            if (next == null) return -1;
+            begin(next);
+          }
+          int n = step(b, offset, size);
+          if (n != 0) return n;
+        }
+      } catch (IOException e) {
+        Exchange current = this.current;
+        if (current != null) current.release();
+        throw e;
+      }
+    }
+
+    @Override
+    public void close() {
+      CachingConnection.this.close();
+    }
+
+    private void begin(Exchange exchange) {
+      current = exchange;
+      switch (exchange.kind) {
+        case Exchange.HIT:
+          serve(exchange.entry, false);
+          break;
+        case Exchange.NOT_MODIFIED:
+          serve(exchange.entry, true);
+          break;
+        case Exchange.TUNNEL:
+          state = RAW;
+          break;
+        default:
+          state = HEAD;
+      }
+    }
+
+    private int step(byte[] b, int offset, int size) throws IOException {
+      switch (state) {
+        case HEAD:
+          return head();
+        case EMIT: {
+          int n = Math.min(size, emit);
+          System.arraycopy(buffer, position, b, offset, n);
+          position += n;
+          emit -= n;
+          cache.bytesFetched.addAndGet(n);
+          if (emit == 0) {
+            state = afterEmit;
+            if (state == DONE) finish();
+          }
+          return n;
+        }
+        case BODY: {
+          if (remaining == 0) {
+            finish();
+            return 0;
+          }
+          if (position == limit && fill() < 0) throw new IOException("response truncated.");
+          int n = (int) Math.min(Math.min(size, remaining), limit - position);
+          System.arraycopy(buffer, position, b, offset, n);
+          position += n;
+          remaining -= n;
+          capture(b, offset, n);
+          if (remaining == 0) finish();
+          return n;
+        }
+        case CHUNKED:
+          return chunked(b, offset, size);
+        case UNTIL_EOF:
+        case RAW: {
+          if (position == limit && fill() < 0) {
+            if (state == UNTIL_EOF) finish();
+            return -1;
+          }
+          int n = Math.min(size, limit - position);
+          System.arraycopy(buffer, position, b, offset, n);
+          position += n;
+          cache.bytesFetched.addAndGet(n);
+          return n;
+        }
+        case SERVE:
+          return serveStep(b, offset, size);
+        default:
+          throw new IllegalStateException("state " + state);
+      }
+    }
+
+    private int fill() throws IOException {
+      if (position == limit) {
+        position = 0;
+        limit = 0;
+      } else if (limit == buffer.length) {
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+      }
+      int read = upstreamIn.read(buffer, limit, buffer.length - limit);
+      if (read > 0) limit += read;
+      return read;
+    }
+
+    private int headEnd() {
+      for (int i = position; i < limit; i++) {
+        if (buffer[i] != '\n') continue;
+        if (i + 1 < limit && buffer[i + 1] == '\n') return i + 2;
+        if (i + 2 < limit && buffer[i + 1] == '\r' && buffer[i + 2] == '\n') return i + 3;
+      }
+      return -1;
+    }
+
+    private int head() throws IOException {
+      int end;
+      while ((end = headEnd()) < 0) {
+        if (position == 0 && limit == buffer.length) throw new IOException("response head too large.");
+        if (fill() < 0) {
+          if (position == limit) return -1;
+          throw new IOException("response truncated.");
+        }
+      }
+      Exchange exchange = current;
+      HttpHead response = HttpHead.parse(buffer, position, end - position);
+      int status;
+      try {
+        status = Integer.parseInt(response.token(1));
+      } catch (NumberFormatException e) {
+        throw new IOException("bad status line: " + response.startLine);
+      }
+      if (status / 100 == 1 && status != 101) {
+        // informational, the final response follows
+        emit = end - position;
+        state = EMIT;
+        afterEmit = HEAD;
+        return 0;
+      }
+      long now = System.currentTimeMillis();
+      if (exchange.kind == Exchange.REVALIDATE) {
+        if (status == 304 && exchange.entry != null) {
+          position = end;
+          CacheStore.Entry entry = exchange.entry;
+          long lifetime = response.has("cache-control") || response.has("expires")
+            ? HttpCache.freshnessLifetime(response, now)
+            : entry.freshUntil - entry.storedMillis + TimeUnit.SECONDS.toMillis(entry.initialAge);
+          entry.freshUntil = now + Math.max(0, lifetime);
+          cache.revalidated.incrementAndGet();
+          serve(entry, false);
+          return 0;
+        }
+        exchange.releaseEntry();
+      }
+      if (exchange.storable) {
+        cache.misses.incrementAndGet();
+      }
+      this.response = null;
+      this.chunked = null;
+      long length = response.contentLength();
+      boolean bodiless = exchange.bodiless || status == 204 || status == 304 || status == 101;
+      if (status == 101) {
+        afterEmit = RAW;
+      } else if (bodiless) {
+        afterEmit = DONE;
+      } else if (response.isChunked()) {
+        afterEmit = CHUNKED;
+        chunkState = CHUNK_SIZE;
+        chunkSize = 0;
+      } else if (length >= 0) {
+        afterEmit = BODY;
+        remaining = length;
+      } else {
+        afterEmit = UNTIL_EOF;
+      }
+      if (exchange.storable && exchange.request != null
+        && (afterEmit == BODY || afterEmit == CHUNKED) && HttpCache.isStorable(exchange.request, response)) {
+        byte[] storedHead = response.toBytes(HOP_BY_HOP);
+        if (afterEmit == CHUNKED) {
+          chunked = Arrays.copyOf(storedHead, Math.max(storedHead.length * 2, 16 * 1024));
+          chunkedSize = storedHead.length;
+        } else if (storedHead.length + length <= cache.maxEntryBytes()) {
+          CacheStore.Slot slot = store.reserve((int) (storedHead.length + length));
+          if (slot != null) {
+            slot.write(storedHead, 0, storedHead.length);
+            exchange.attach(slot);
+          }
+        }
+        this.response = response;
+        this.storedHeadLength = storedHead.length;
+      }
+      emit = end - position;
+      state = EMIT;
+      return 0;
+    }
+
+    private int chunked(byte[] b, int offset, int size) throws IOException {
+      int copied = 0;
+      boolean done = false;
+      while (copied < size && !done) {
+        if (position == limit) {
+          if (copied > 0) break;
+          if (fill() < 0) throw new IOException("response truncated.");
+        }
+        if (chunkState == CHUNK_DATA) {
+          int n = (int) Math.min(Math.min(size - copied, remaining), limit - position);
+          System.arraycopy(buffer, position, b, offset + copied, n);
+          position += n;
+          copied += n;
+          remaining -= n;
+          if (remaining == 0) chunkState = CHUNK_DATA_END;
+          continue;
+        }
+        byte c = buffer[position++];
+        b[offset + copied++] = c;
+        switch (chunkState) {
+          case CHUNK_SIZE: {
+            int digit = Character.digit(c, 16);
+            if (digit >= 0) {
+              if (chunkSize > Integer.MAX_VALUE) throw new IOException("chunk too large.");
+              chunkSize = chunkSize * 16 + digit;
+            } else if (c == '\n') {
+              done = chunkSizeRead();
+            } else if (c == ';' || c == ' ' || c == '\t') {
+              chunkState = CHUNK_EXTENSION;
+            } else if (c != '\r') {
+              throw new IOException("bad chunk size.");
+            }
+            break;
+          }
+          case CHUNK_EXTENSION:
+            if (c == '\n') done = chunkSizeRead();
+            break;
+          case CHUNK_DATA_END:
+            if (c == '\n') {
+              chunkState = CHUNK_SIZE;
+              chunkSize = 0;
+            }
+            break;
+          case CHUNK_TRAILER:
+            if (c == '\n') {
+              if (trailerLine == 0) done = true;
+              trailerLine = 0;
+            } else if (c != '\r') {
+              trailerLine++;
+            }
+            break;
+        }
+      }
+      capture(b, offset, copied);
+      if (done) finish();
+      return copied;
+    }
+
+    private boolean chunkSizeRead() {
+      if (chunkSize == 0) {
+        chunkState = CHUNK_TRAILER;
+        trailerLine = 0;
+      } else {
+        chunkState = CHUNK_DATA;
+        remaining = chunkSize;
+      }
+      return false;
+    }
+
+    private void capture(byte[] b, int offset, int n) {
+      cache.bytesFetched.addAndGet(n);
+      if (response == null) return;
+      if (chunked != null) {
+        if (chunkedSize + n > cache.maxChunkedBytes()) {
+          chunked = null;
+          response = null;
+          return;
+        }
+        if (chunkedSize + n > chunked.length) {
+          chunked = Arrays.copyOf(chunked, Math.max(chunked.length * 2, chunkedSize + n));
+        }
+        System.arraycopy(b, offset, chunked, chunkedSize, n);
+        chunkedSize += n;
+        return;
+      }
+      current.write(b, offset, n);
+    }
+
+    // a response from upstream is complete
+    private void finish() {
+      Exchange exchange = current;
+      HttpHead response = this.response;
+      if (response != null && exchange.request != null && exchange.key != null) {
+        if (chunked != null) {
+          CacheStore.Slot slot = store.reserve(chunkedSize);
+          if (slot != null) {
+            slot.write(chunked, 0, chunkedSize);
+            exchange.attach(slot);
+          }
+        }
+        long now = System.currentTimeMillis();
+        long date = response.date("date");
+        long initialAge = Math.max(HttpCache.age(response), date > 0 ? Math.max(0, (now - date) / 1000) : 0);
+        long freshUntil = now + HttpCache.freshnessLifetime(response, now) - TimeUnit.SECONDS.toMillis(initialAge);
+        String vary = null;
+        if (response.has("vary")) {
+          String acceptEncoding = exchange.request.get("accept-encoding");
+          vary = acceptEncoding != null ? acceptEncoding : "";
+        }
+        CacheStore.Slot slot = exchange.slot();
+        if (slot != null && slot.remaining() == 0) {
+          CacheStore.Entry stored = slot.entry(exchange.key, storedHeadLength, now, initialAge, freshUntil,
+            response.get("etag"), response.get("last-modified"), vary);
+          if (exchange.commit(stored)) {
+            cache.stored.incrementAndGet();
+          }
+        }
+      }
+      this.response = null;
+      this.chunked = null;
+      exchange.release();
+      current = null;
+      state = DONE;
+    }
+
+    private void serve(CacheStore.Entry entry, boolean notModified) {
+      cache.hits.incrementAndGet();
+      long age = entry.initialAge + (System.currentTimeMillis() - entry.storedMillis) / 1000;
+      if (notModified) {
+        serveHead = ("HTTP/1.1 304 Not Modified\r\nETag: " + entry.etag + "\r\nAge: " + age + "\r\n\r\n")
+          .getBytes(HttpHead.LATIN1);
+        serveBody = null;
+      } else {
+        byte[] ageLine = ("Age: " + age + "\r\n\r\n").getBytes(HttpHead.LATIN1);
+        serveHead = new byte[entry.headLength + ageLine.length];
+        entry.head().get(serveHead, 0, entry.headLength);
+        System.arraycopy(ageLine, 0, serveHead, entry.headLength, ageLine.length);
+        serveBody = entry.body();
+      }
+      serveHeadPosition = 0;
+      served = 0;
+      state = SERVE;
+    }
+
+    private int serveStep(byte[] b, int offset, int size) {
+      int n;
+      if (serveHeadPosition < serveHead.length) {
+        n = Math.min(size, serveHead.length - serveHeadPosition);
+        System.arraycopy(serveHead, serveHeadPosition, b, offset, n);
+        serveHeadPosition += n;
+      } else if (serveBody != null && serveBody.hasRemaining()) {
+        n = Math.min(size, serveBody.remaining());
+        serveBody.get(b, offset, n);
+      } else {
+        Exchange exchange = current;
+        cache.bytesSaved.addAndGet(served);
+        if (exchange.entry != null && store.isOld(exchange.entry)) {
+          store.refresh(exchange.entry);
+        }
+        exchange.release();
+        serveHead = null;
+        serveBody = null;
+        current = null;
+        state = DONE;
+        return 0;
+      }
+      served += n;
+      return n;
+    }
+  }
+}
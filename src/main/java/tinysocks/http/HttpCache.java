@@ -0,0 +1,265 @@
+package tinysocks.http;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.NoRelay;
+import tinysocks.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection factory that answers repeated plaintext HTTP GETs from a shared cache, for
+ * package mirrors and artifact servers reached through a {@link tinysocks.TinySocks}:
+ * <pre>
+ * HttpCache cache = new HttpCache.Builder()
+ *   .directory(new File("http-cache"))
+ *   .upstream(relay.connectionFactory())
+ *   .build();
+ * new TinySocks.Builder().connectionFactory(cache).build().start();
+ * </pre>
+ * streams to other ports go straight to the upstream factory. on a cached port the requests
+ * of a stream are parsed as HTTP/1.1: fresh responses are served from the cache, stale ones
+ * are revalidated with their ETag or Last-Modified, everything else goes upstream and is
+ * stored when Cache-Control allows a shared cache to. a stream that stops looking like
+ * HTTP/1.x is passed through untouched from then on.
+ * <p>
+ * responses are stored in memory mapped segments, see {@link CacheStore}; the index lives on
+ * the heap, so the cache starts empty after a restart.
+ */
+public final class HttpCache implements Connection.Factory {
+  // a day, the most a response without freshness information is trusted for
+  private static final long MAX_HEURISTIC_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private final Connection.Factory upstream;
+  private final int[] ports;
+  private final int maxEntryBytes;
+  private final int maxChunkedBytes;
+  final CacheStore store;
+
+  final AtomicLong hits = new AtomicLong();
+  final AtomicLong misses = new AtomicLong();
+  final AtomicLong revalidated = new AtomicLong();
+  final AtomicLong stored = new AtomicLong();
+  final AtomicLong bytesSaved = new AtomicLong();
+  final AtomicLong bytesFetched = new AtomicLong();
+
+  private HttpCache(Builder builder) throws IOException {
+    this.upstream = builder.upstream;
+    this.ports = builder.ports.clone();
+    Arrays.sort(ports);
+    this.store = new CacheStore(builder.directory, builder.maxBytes, builder.segmentSize);
+    this.maxEntryBytes = Math.min(builder.maxEntryBytes, store.maxEntrySize());
+    this.maxChunkedBytes = Math.min(builder.maxChunkedBytes, maxEntryBytes);
+  }
+
+  @Override
+  public Connection newConnection(Socket socksClient, Endpoint endpoint) throws IOException {
+    Connection connection = upstream.newConnection(socksClient, endpoint);
+    if (connection == null || Arrays.binarySearch(ports, endpoint.port) < 0) return connection;
+    return new CachingConnection(this, connection);
+  }
+
+  int maxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  int maxChunkedBytes() {
+    return maxChunkedBytes;
+  }
+
+  /**
+   * requests answered from the cache, including revalidated ones.
+   */
+  public long hits() {
+    return hits.get();
+  }
+
+  /**
+   * cacheable requests that had to go upstream for the whole response.
+   */
+  public long misses() {
+    return misses.get();
+  }
+
+  /**
+   * hits that took a 304 from upstream first.
+   */
+  public long revalidated() {
+    return revalidated.get();
+  }
+
+  public double hitRate() {
+    long hits = hits();
+    long total = hits + misses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * response bytes served from the cache instead of upstream.
+   */
+  public long bytesSaved() {
+    return bytesSaved.get();
+  }
+
+  /**
+   * response bytes read from upstream on cached ports.
+   */
+  public long bytesFetched() {
+    return bytesFetched.get();
+  }
+
+  public int entryCount() {
+    return store.size();
+  }
+
+  public long evictions() {
+    return store.evictions();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("HttpCache[hits=%d (%d revalidated) misses=%d hit rate=%.1f%% saved=%.1fMB fetched=%.1fMB"
+        + " entries=%d stored=%d evicted=%d]", hits(), revalidated(), misses(), hitRate() * 100,
+      bytesSaved() / 1048576.0, bytesFetched() / 1048576.0, entryCount(), stored.get(), evictions());
+  }
+
+  /**
+   * whether a shared cache may store this response to a GET, RFC 9111 section 3.
+   */
+  static boolean isStorable(HttpHead request, HttpHead response) {
+    if (!"200".equals(response.token(1))) return false;
+    String cacheControl = response.get("cache-control");
+    if (HttpHead.directive(cacheControl, "no-store") >= 0 || HttpHead.directive(cacheControl, "private") >= 0) {
+      return false;
+    }
+    if (response.has("set-cookie")) return false;
+    String vary = response.get("vary");
+    if (vary != null && !vary.trim().equalsIgnoreCase("accept-encoding")) return false;
+    if (request.has("authorization") && HttpHead.directive(cacheControl, "public") < 0
+      && HttpHead.directive(cacheControl, "s-maxage") < 0) {
+      return false;
+    }
+    return freshnessLifetime(response, System.currentTimeMillis()) > 0
+      || response.has("etag") || response.has("last-modified");
+  }
+
+  /**
+   * how long a response stays fresh from its date, 0 when it always has to be revalidated.
+   */
+  static long freshnessLifetime(HttpHead response, long now) {
+    String cacheControl = response.get("cache-control");
+    if (HttpHead.directive(cacheControl, "no-cache") >= 0) return 0;
+    long seconds = HttpHead.directive(cacheControl, "s-maxage");
+    if (seconds < 0) seconds = HttpHead.directive(cacheControl, "max-age");
+    if (seconds >= 0) return TimeUnit.SECONDS.toMillis(seconds);
+    long date = response.date("date");
+    if (date < 0) date = now;
+    long expires = response.date("expires");
+    if (expires >= 0) return Math.max(0, expires - date);
+    if (response.has("expires")) return 0;// an invalid date means already expired
+    long lastModified = response.date("last-modified");
+    if (lastModified >= 0 && lastModified < date) {
+      return Math.min((date - lastModified) / 10, MAX_HEURISTIC_MILLIS);
+    }
+    return 0;
+  }
+
+  /**
+   * the Age header in seconds, 0 when absent.
+   */
+  static long age(HttpHead response) {
+    String value = response.get("age");
+    if (value == null) return 0;
+    try {
+      return Math.max(0, Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return null when the entry does not answer this request's Accept-Encoding
+   */
+  @Nullable
+  static CacheStore.Entry matching(@Nullable CacheStore.Entry entry, HttpHead request) {
+    if (entry == null || entry.vary == null) return entry;
+    String acceptEncoding = request.get("accept-encoding");
+    return entry.vary.equals(acceptEncoding != null ? acceptEncoding : "") ? entry : null;
+  }
+
+  public static class Builder {
+    private File directory = new File("http-cache");
+    private Connection.Factory upstream = NoRelay.connectionFactory();
+    private int[] ports = {80};
+    private long maxBytes = 1024L * 1024 * 1024;
+    private int segmentSize = 64 * 1024 * 1024;
+    private int maxEntryBytes = 64 * 1024 * 1024;
+    private int maxChunkedBytes = 4 * 1024 * 1024;
+
+    /**
+     * where the segment files go.
+     */
+    public Builder directory(File directory) {
+      this.directory = directory;
+      return this;
+    }
+
+    /**
+     * carries misses and every stream to other ports, direct by default.
+     */
+    public Builder upstream(Connection.Factory upstream) {
+      this.upstream = upstream;
+      return this;
+    }
+
+    /**
+     * destination ports treated as plaintext HTTP, 80 by default.
+     */
+    public Builder ports(int... ports) {
+      this.ports = ports;
+      return this;
+    }
+
+    /**
+     * bytes of all segments together, divided into segments of {@link #segmentSize(int)}.
+     */
+    public Builder maxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * the unit of eviction; a response has to fit into one segment.
+     */
+    public Builder segmentSize(int segmentSize) {
+      this.segmentSize = segmentSize;
+      return this;
+    }
+
+    /**
+     * larger responses are passed through without being stored.
+     */
+    public Builder maxEntryBytes(int maxEntryBytes) {
+      this.maxEntryBytes = maxEntryBytes;
+      return this;
+    }
+
+    /**
+     * chunked responses are collected on the heap before they are stored, as their size is
+     * only known at the end; larger ones are not stored.
+     */
+    public Builder maxChunkedBytes(int maxChunkedBytes) {
+      this.maxChunkedBytes = maxChunkedBytes;
+      return this;
+    }
+
+    public HttpCache build() throws IOException {
+      return new HttpCache(this);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,160 @@
+package tinysocks.http;
+
+import tinysocks.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The start line and header fields of an HTTP/1.x request or response, plus the few rules
+ * of RFC 9111 the cache needs: Cache-Control directives and HTTP dates.
+ */
+final class HttpHead {
+  static final Charset LATIN1 = StandardCharsets.ISO_8859_1;
+
+  final String startLine;
+  // names in lower case, values trimmed
+  private final List<String> names = new ArrayList<>();
+  private final List<String> values = new ArrayList<>();
+
+  private HttpHead(String startLine) {
+    this.startLine = startLine;
+  }
+
+  /**
+   * @param length up to and including the empty line ending the head
+   */
+  static HttpHead parse(byte[] buffer, int offset, int length) throws IOException {
+    String text = new String(buffer, offset, length, LATIN1);
+    int lineEnd = text.indexOf('\n');
+    if (lineEnd < 0) throw new IOException("no start line");
+    HttpHead head = new HttpHead(text.substring(0, lineEnd).trim());
+    if (head.startLine.isEmpty()) throw new IOException("empty start line");
+    int start = lineEnd + 1;
+    while (start < text.length()) {
+      lineEnd = text.indexOf('\n', start);
+      if (lineEnd < 0) lineEnd = text.length();
+      String line = text.substring(start, lineEnd);
+      start = lineEnd + 1;
+      if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+      if (line.isEmpty()) break;
+      if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+        // obsolete line folding continues the previous value
+        if (head.values.isEmpty()) throw new IOException("folded first header");
+        int last = head.values.size() - 1;
+        head.values.set(last, head.values.get(last) + " " + line.trim());
+        continue;
+      }
+      int colon = line.indexOf(':');
+      if (colon <= 0) throw new IOException("bad header line: " + line);
+      head.names.add(line.substring(0, colon).trim().toLowerCase(Locale.ROOT));
+      head.values.add(line.substring(colon + 1).trim());
+    }
+    return head;
+  }
+
+  /**
+   * the value of a field, fields given more than once joined with commas.
+   */
+  @Nullable
+  String get(String lowerName) {
+    String value = null;
+    for (int i = 0; i < names.size(); i++) {
+      if (names.get(i).equals(lowerName)) {
+        value = value == null ? values.get(i) : value + ", " + values.get(i);
+      }
+    }
+    return value;
+  }
+
+  boolean has(String lowerName) {
+    return names.contains(lowerName);
+  }
+
+  /**
+   * the token of the start line at {@code index}, the method or status code and so on.
+   */
+  @Nullable
+  String token(int index) {
+    String[] tokens = startLine.split(" ", 3);
+    return index < tokens.length ? tokens[index] : null;
+  }
+
+  /**
+   * -1 when absent or not a number.
+   */
+  long contentLength() {
+    String value = get("content-length");
+    if (value == null) return -1;
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  boolean isChunked() {
+    String value = get("transfer-encoding");
+    return value != null && value.toLowerCase(Locale.ROOT).contains("chunked");
+  }
+
+  /**
+   * the head without the fields in {@code dropped}, ending with the line break of its last
+   * field so more fields can follow.
+   */
+  byte[] toBytes(String... dropped) {
+    StringBuilder builder = new StringBuilder(256).append(startLine).append("\r\n");
+    outer:
+    for (int i = 0; i < names.size(); i++) {
+      for (String drop : dropped) {
+        if (names.get(i).equals(drop)) continue outer;
+      }
+      builder.append(names.get(i)).append(": ").append(values.get(i)).append("\r\n");
+    }
+    return builder.toString().getBytes(LATIN1);
+  }
+
+  /**
+   * a Cache-Control directive: -1 when absent, its value in seconds, or 0 when it has none.
+   */
+  static long directive(@Nullable String cacheControl, String name) {
+    if (cacheControl == null) return -1;
+    for (String part : cacheControl.split(",")) {
+      String directive = part.trim();
+      int equals = directive.indexOf('=');
+      String key = (equals < 0 ? directive : directive.substring(0, equals)).trim();
+      if (!key.equalsIgnoreCase(name)) continue;
+      if (equals < 0) return 0;
+      String value = directive.substring(equals + 1).trim();
+      if (value.length() >= 2 && value.charAt(0) == '"') value = value.substring(1, value.length() - 1);
+      try {
+        return Math.max(0, Long.parseLong(value));
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * an HTTP date in millis, -1 when absent or malformed.
+   */
+  long date(String lowerName) {
+    String value = get(lowerName);
+    if (value == null) return -1;
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return format.parse(value).getTime();
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package tinysocks.limit;
+
+import tinysocks.Endpoint;
+import tinysocks.annotation.Nullable;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bandwidth limits shared by the streams of a {@link tinysocks.TinySocks} or a
+ * {@link tinysocks.RelayNode}. a stream is charged to every limit that applies to it:
+ * <ul>
+ * <li>per client: one bucket per source ip</li>
+ * <li>per destination: one bucket per matching rule, shared by all its destinations</li>
+ * <li>total: one bucket for everything, on a RelayNode this caps its relay link</li>
+ * </ul>
+ * bytes in both directions count.
+ */
+public final class RateLimits {
+  private static final int MAX_IDLE_CLIENTS = 64 * 1024;
+
+  private final long clientBytesPerSecond;
+  private final long clientBurstBytes;
+  private final List<DestinationRule> destinationRules;
+  @Nullable
+  private final TokenBucket total;
+  private final ConcurrentMap<InetAddress, TokenBucket> clients = new ConcurrentHashMap<>();
+
+  private RateLimits(Builder builder) {
+    this.clientBytesPerSecond = builder.clientBytesPerSecond;
+    this.clientBurstBytes = builder.clientBurstBytes;
+    this.destinationRules = new ArrayList<>(builder.destinationRules);
+    this.total = builder.totalBytesPerSecond > 0
+      ? new TokenBucket(builder.totalBytesPerSecond, builder.totalBurstBytes)
+      : null;
+  }
+
+  /**
+   * @param client source of the stream, null when unknown (e.g. on a relay node)
+   */
+  public Throttle throttleFor(@Nullable InetAddress client, Endpoint endpoint) {
+    List<TokenBucket> buckets = new ArrayList<>(3);
+    if (client != null && clientBytesPerSecond > 0) {
+      buckets.add(clientBucket(client));
+    }
+    for (DestinationRule rule : destinationRules) {
+      if (rule.matches(endpoint)) {
+        buckets.add(rule.bucket);
+        break;
+      }
+    }
+    if (total != null) {
+      buckets.add(total);
+    }
+    return buckets.isEmpty() ? Throttle.NONE : new Throttle(buckets.toArray(new TokenBucket[buckets.size()]));
+  }
+
+  private TokenBucket clientBucket(InetAddress client) {
+    TokenBucket bucket = clients.get(client);
+    if (bucket != null) return bucket;
+    if (clients.size() >= MAX_IDLE_CLIENTS) {
+      evictIdleClients();
+    }
+    bucket = new TokenBucket(clientBytesPerSecond, clientBurstBytes);
+    TokenBucket existing = clients.putIfAbsent(client, bucket);
+    return existing != null ? existing : bucket;
+  }
+
+  private void evictIdleClients() {
+    long now = System.nanoTime();
+    Iterator<TokenBucket> i = clients.values().iterator();
+    while (i.hasNext()) {
+      if (i.next().isIdle(now)) {
+        i.remove();
+      }
+    }
+  }
+
+  private static final class DestinationRule {
+    private final String hostPattern;
+    private final int port;// -1 for any port
+    private final TokenBucket bucket;
+
+    DestinationRule(String pattern, TokenBucket bucket) {
+      int colon = pattern.lastIndexOf(':');
+      if (colon >= 0 && !"*".equals(pattern.substring(colon + 1))) {
+        this.port = Integer.parseInt(pattern.substring(colon + 1));
+      } else {
+        this.port = -1;
+      }
+      this.hostPattern = (colon >= 0 ? pattern.substring(0, colon) : pattern).toLowerCase(Locale.ROOT);
+      this.bucket = bucket;
+    }
+
+    boolean matches(Endpoint endpoint) {
+      if (port != -1 && port != endpoint.port) return false;
+      if (endpoint.hostname != null && glob(hostPattern, endpoint.hostname.toLowerCase(Locale.ROOT))) {
+        return true;
+      }
+      if (endpoint.ip != null) {
+        String ip = (endpoint.ip[0] & 0xFF) + "." + (endpoint.ip[1] & 0xFF) + "."
+          + (endpoint.ip[2] & 0xFF) + "." + (endpoint.ip[3] & 0xFF);
+        return glob(hostPattern, ip);
+      }
+      return false;
+    }
+
+    // '*' matches any run of characters
+    private static boolean glob(String pattern, String text) {
+      int star = pattern.indexOf('*');
+      if (star < 0) return pattern.equals(text);
+      if (!text.startsWith(pattern.substring(0, star))) return false;
+      int from = star;
+      String[] parts = pattern.substring(star + 1).split("\\*", -1);
+      for (int i = 0; i < parts.length; i++) {
+        String part = parts[i];
+        if (i == parts.length - 1) {
+          return text.length() - part.length() >= from && text.endsWith(part);
+        }
+        int found = text.indexOf(part, from);
+        if (found < 0) return false;
+        from = found + part.length();
+      }
+      return true;
+    }
+  }
+
+  public static class Builder {
+    private long clientBytesPerSecond;
+    private long clientBurstBytes;
+    private long totalBytesPerSecond;
+    private long totalBurstBytes;
+    private final List<DestinationRule> destinationRules = new ArrayList<>();
+
+    /**
+     * limit per source ip.
+     */
+    public Builder perClient(long bytesPerSecond, long burstBytes) {
+      this.clientBytesPerSecond = bytesPerSecond;
+      this.clientBurstBytes = burstBytes;
+      return this;
+    }
+
+    /**
+     * limit shared by all destinations matching the pattern, e.g. {@code *.example.com},
+     * {@code 10.0.*:22} or {@code *:873}. the first matching rule applies.
+     */
+    public Builder perDestination(String pattern, long bytesPerSecond, long burstBytes) {
+      destinationRules.add(new DestinationRule(pattern, new TokenBucket(bytesPerSecond, burstBytes)));
+      return this;
+    }
+
+    /**
+     * limit for all streams together.
+     */
+    public Builder total(long bytesPerSecond, long burstBytes) {
+      this.totalBytesPerSecond = bytesPerSecond;
+      this.totalBurstBytes = burstBytes;
+      return this;
+    }
+
+    public RateLimits build() {
+      return new RateLimits(this);
+    }
+  }
+}
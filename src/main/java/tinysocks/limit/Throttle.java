@@ -0,0 +1,44 @@
+package tinysocks.limit;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The buckets a single stream is charged to, resolved once when the stream is set up.
+ */
+public final class Throttle {
+  public static final Throttle NONE = new Throttle(new TokenBucket[0]);
+
+  private final TokenBucket[] buckets;
+
+  Throttle(TokenBucket[] buckets) {
+    this.buckets = buckets;
+  }
+
+  /**
+   * charges {@code bytes} to every bucket and parks the calling thread as long as the
+   * slowest of them requires. called by the pipe loops after a chunk has been written,
+   * so nothing extra is buffered while the stream is paused.
+   */
+  public void consume(int bytes) {
+    if (buckets.length == 0) return;
+    long now = System.nanoTime();
+    long wait = reserve(bytes, now);
+    long deadline = now + wait;
+    while (wait > 0 && !Thread.currentThread().isInterrupted()) {
+      LockSupport.parkNanos(this, wait);
+      wait = deadline - System.nanoTime();
+    }
+  }
+
+  /**
+   * charges {@code bytes} like {@link #consume(int)} but returns the pause instead of taking
+   * it, for event loops that stop reading the stream for that long.
+   */
+  public long reserve(int bytes, long now) {
+    long wait = 0;
+    for (TokenBucket bucket : buckets) {
+      wait = Math.max(wait, bucket.reserve(bytes, now));
+    }
+    return wait;
+  }
+}
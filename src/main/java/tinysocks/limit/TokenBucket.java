@@ -0,0 +1,62 @@
+package tinysocks.limit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, kept as the time the bucket will be full again
+ * (generic cell rate algorithm). refilling is implicit, a reservation is one CAS.
+ * <p>
+ * a reservation always succeeds; when it goes over the burst the caller is told how long
+ * to pause, so throttled streams sleep instead of spinning or retrying.
+ */
+public final class TokenBucket {
+  private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+  // far above any real burst, and fullAt plus a few of them still fits in a long
+  private static final long MAX_COST_NANOS = Long.MAX_VALUE / 4;
+
+  private final long bytesPerSecond;
+  private final long burstNanos;
+  private final AtomicLong fullAt;
+
+  public TokenBucket(long bytesPerSecond, long burstBytes) {
+    if (bytesPerSecond <= 0) throw new IllegalArgumentException("bytesPerSecond <= 0");
+    this.bytesPerSecond = bytesPerSecond;
+    this.burstNanos = costNanos(Math.max(burstBytes, 1));
+    this.fullAt = new AtomicLong(System.nanoTime());
+  }
+
+  public long bytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * takes {@code bytes} tokens and returns the nanos the caller has to wait
+   * before using them, 0 when they were available.
+   */
+  public long reserve(int bytes, long now) {
+    long cost = costNanos(bytes);
+    while (true) {
+      long current = fullAt.get();
+      long next = Math.max(current, now) + cost;
+      if (fullAt.compareAndSet(current, next)) {
+        long wait = next - now - burstNanos;
+        return wait > 0 ? wait : 0;
+      }
+    }
+  }
+
+  /**
+   * true if the bucket has been full for a while, it can be dropped and recreated.
+   */
+  boolean isIdle(long now) {
+    return now - fullAt.get() > burstNanos;
+  }
+
+  private long costNanos(long bytes) {
+    if (bytes > MAX_COST_NANOS / NANOS_PER_SECOND) {
+      // bytes * NANOS_PER_SECOND would overflow, a huge burst means no limit on bursts
+      return Math.min(bytes / bytesPerSecond, MAX_COST_NANOS / NANOS_PER_SECOND) * NANOS_PER_SECOND;
+    }
+    return bytes * NANOS_PER_SECOND / bytesPerSecond;
+  }
+}
@@ -0,0 +1,225 @@
+package tinysocks.log;
+
+import tinysocks.Endpoint;
+import tinysocks.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Binary access log, one fixed size record per connection appended to memory mapped files.
+ * <p>
+ * a writer claims its slot with one atomic add and fills it with absolute puts, no lock and
+ * no allocation but the copy of the client address. the marker at the start of a record is
+ * written last, so a record cut short by a crash is skipped when decoding. a file is rotated
+ * when it is full or older than the rotation interval; only the rotation itself takes a lock.
+ * <p>
+ * record layout, big endian ({@link AccessLogDecoder} turns files into CSV or JSON):
+ * <pre>
+ *   0 int   marker
+ *   4 int   duration millis
+ *   8 long  start millis
+ *  16 long  bytes client to destination
+ *  24 long  bytes destination to client
+ *  32 16B   client ip
+ *  48 short client port
+ *  50 short destination port
+ *  52 4B    destination ip
+ *  56 byte  client ip length, 4 or 16 for IPv6
+ *  57 byte  destination hostname length
+ *  58 byte  close reason length
+ *  59 byte  flags, 1: destination ip present
+ *  60 68B   destination hostname
+ * 128 64B   close reason
+ * </pre>
+ * the first record slot of a file is its header: magic, version, record size, creation time.
+ */
+public final class AccessLog {
+  static final int MAGIC = 0x5453414C;// TSAL
+  static final int VERSION = 1;
+  static final int MARKER = 0x52454331;
+  static final int RECORD_SIZE = 192;
+  static final int HOST_OFFSET = 60;
+  static final int HOST_SIZE = 68;
+  static final int REASON_OFFSET = 128;
+  static final int REASON_SIZE = 64;
+  static final String SUFFIX = ".tal";
+
+  private final File directory;
+  private final String prefix;
+  private final int fileSize;
+  private final long rotateMillis;
+  private volatile Segment segment;
+  private volatile boolean closed;
+  private int sequence;
+
+  private AccessLog(Builder builder) throws IOException {
+    this.directory = builder.directory;
+    this.prefix = builder.prefix;
+    this.fileSize = Math.max(2, builder.fileSize / RECORD_SIZE) * RECORD_SIZE;
+    this.rotateMillis = builder.rotateMillis;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("can not create " + directory);
+    }
+    this.segment = openSegment(System.currentTimeMillis());
+  }
+
+  /**
+   * @param reason why the connection closed, null for a normal close
+   */
+  public void append(InetAddress client, int clientPort, @Nullable Endpoint endpoint,
+                     long startMillis, long durationMillis, long bytesIn, long bytesOut,
+                     @Nullable IOException reason) {
+    while (!closed) {
+      Segment segment = this.segment;
+      long now = startMillis + durationMillis;
+      if (now < segment.expiresAt) {
+        int offset = segment.cursor.getAndAdd(RECORD_SIZE);
+        if (offset <= fileSize - RECORD_SIZE) {
+          write(segment.buffer, offset, client, clientPort, endpoint, startMillis,
+            durationMillis, bytesIn, bytesOut, reason);
+          return;
+        }
+      }
+      try {
+        rotate(segment, now);
+      } catch (IOException e) {
+        System.out.println("access log rotation failed: " + e.getMessage());
+        return;
+      }
+    }
+  }
+
+  public void close() {
+    closed = true;
+    synchronized (this) {
+      segment.close();
+    }
+  }
+
+  private synchronized void rotate(Segment full, long now) throws IOException {
+    if (segment != full || closed) return;
+    full.close();
+    segment = openSegment(now);
+  }
+
+  private Segment openSegment(long now) throws IOException {
+    File file = new File(directory, prefix + now + "-" + (sequence++) + SUFFIX);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, RECORD_SIZE);
+      buffer.putLong(16, now);
+      buffer.putInt(0, MAGIC);
+      return new Segment(raf, buffer, now + rotateMillis);
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  private static void write(MappedByteBuffer buffer, int offset, InetAddress client, int clientPort,
+                            @Nullable Endpoint endpoint, long startMillis, long durationMillis,
+                            long bytesIn, long bytesOut, @Nullable IOException reason) {
+    buffer.putInt(offset + 4, (int) Math.min(durationMillis, Integer.MAX_VALUE));
+    buffer.putLong(offset + 8, startMillis);
+    buffer.putLong(offset + 16, bytesIn);
+    buffer.putLong(offset + 24, bytesOut);
+    byte[] ip = client.getAddress();
+    for (int i = 0; i < ip.length; i++) {
+      buffer.put(offset + 32 + i, ip[i]);
+    }
+    buffer.put(offset + 56, (byte) ip.length);
+    buffer.putShort(offset + 48, (short) clientPort);
+    if (endpoint != null) {
+      buffer.putShort(offset + 50, (short) endpoint.port);
+      if (endpoint.ip != null) {
+        for (int i = 0; i < 4; i++) {
+          buffer.put(offset + 52 + i, endpoint.ip[i]);
+        }
+        buffer.put(offset + 59, (byte) 1);
+      }
+      buffer.put(offset + 57, (byte) putAscii(buffer, offset + HOST_OFFSET, HOST_SIZE, endpoint.hostname));
+    }
+    if (reason != null) {
+      String message = reason.getMessage();
+      buffer.put(offset + 58, (byte) putAscii(buffer, offset + REASON_OFFSET, REASON_SIZE,
+        message != null ? message : reason.getClass().getName()));
+    }
+    buffer.putInt(offset, MARKER);
+  }
+
+  private static int putAscii(MappedByteBuffer buffer, int offset, int size, @Nullable String text) {
+    if (text == null) return 0;
+    int length = Math.min(text.length(), size);
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      buffer.put(offset + i, (byte) (c < 128 ? c : '?'));
+    }
+    return length;
+  }
+
+  private static final class Segment {
+    final RandomAccessFile file;
+    final MappedByteBuffer buffer;
+    final long expiresAt;
+    final AtomicInteger cursor = new AtomicInteger(RECORD_SIZE);// slot 0 is the header
+
+    Segment(RandomAccessFile file, MappedByteBuffer buffer, long expiresAt) {
+      this.file = file;
+      this.buffer = buffer;
+      this.expiresAt = expiresAt;
+    }
+
+    // the mapping stays valid after the file is closed, late writers still land in it
+    void close() {
+      try {
+        file.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  public static class Builder {
+    private File directory = new File("access-log");
+    private String prefix = "access-";
+    private int fileSize = 64 * 1024 * 1024;
+    private long rotateMillis = 60 * 60 * 1000;
+
+    public Builder directory(File directory) {
+      this.directory = directory;
+      return this;
+    }
+
+    public Builder prefix(String prefix) {
+      this.prefix = prefix;
+      return this;
+    }
+
+    /**
+     * size of each file, rounded down to whole records. files are sparse until written.
+     */
+    public Builder fileSize(int fileSize) {
+      this.fileSize = fileSize;
+      return this;
+    }
+
+    /**
+     * starts a new file when the current one is older than this.
+     */
+    public Builder rotateMillis(long rotateMillis) {
+      this.rotateMillis = rotateMillis;
+      return this;
+    }
+
+    public AccessLog build() throws IOException {
+      return new AccessLog(this);
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package tinysocks.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Converts {@link AccessLog} files to CSV or JSON lines.
+ * <p>
+ * usage: AccessLogDecoder [--json] file-or-directory...
+ */
+public final class AccessLogDecoder {
+  private final boolean json;
+  private final PrintStream out;
+  private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+  private final StringBuilder line = new StringBuilder(256);
+
+  public AccessLogDecoder(boolean json, PrintStream out) {
+    this.json = json;
+    this.out = out;
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  public static void main(String[] args) throws IOException {
+    boolean json = false;
+    AccessLogDecoder decoder = null;
+    for (String arg : args) {
+      if ("--json".equals(arg)) {
+        json = true;
+        continue;
+      }
+      if (decoder == null) {
+        decoder = new AccessLogDecoder(json, System.out);
+        decoder.printHeader();
+      }
+      File file = new File(arg);
+      if (file.isDirectory()) {
+        File[] files = file.listFiles();
+        if (files == null) continue;
+        Arrays.sort(files);
+        for (File f : files) {
+          if (f.getName().endsWith(AccessLog.SUFFIX)) decoder.decode(f);
+        }
+      } else {
+        decoder.decode(file);
+      }
+    }
+    if (decoder == null) {
+      System.out.println("usage: AccessLogDecoder [--json] file-or-directory...");
+    }
+    System.out.flush();
+  }
+
+  public void printHeader() {
+    if (!json) {
+      out.println("start,duration_ms,client,client_port,host,ip,port,bytes_in,bytes_out,reason");
+    }
+  }
+
+  /**
+   * @return records decoded
+   */
+  public int decode(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buffer.limit() < AccessLog.RECORD_SIZE || buffer.getInt(0) != AccessLog.MAGIC) {
+        throw new IOException(file + " is not an access log");
+      }
+      if (buffer.getInt(4) != AccessLog.VERSION || buffer.getInt(8) != AccessLog.RECORD_SIZE) {
+        throw new IOException(file + ": unsupported version " + buffer.getInt(4));
+      }
+      int count = 0;
+      for (int offset = AccessLog.RECORD_SIZE; offset + AccessLog.RECORD_SIZE <= buffer.limit();
+           offset += AccessLog.RECORD_SIZE) {
+        if (buffer.getInt(offset) != AccessLog.MARKER) continue;// unused or torn
+        print(buffer, offset);
+        count++;
+      }
+      return count;
+    } finally {
+      raf.close();
+    }
+  }
+
+  private void print(ByteBuffer buffer, int offset) {
+    String start = format.format(new Date(buffer.getLong(offset + 8)));
+    String client = ip(buffer, offset + 32, buffer.get(offset + 56));
+    int clientPort = buffer.getShort(offset + 48) & 0xFFFF;
+    String host = ascii(buffer, offset + AccessLog.HOST_OFFSET, buffer.get(offset + 57) & 0xFF);
+    String ip = (buffer.get(offset + 59) & 1) != 0 ? ip(buffer, offset + 52, 4) : "";
+    int port = buffer.getShort(offset + 50) & 0xFFFF;
+    String reason = ascii(buffer, offset + AccessLog.REASON_OFFSET, buffer.get(offset + 58) & 0xFF);
+    line.setLength(0);
+    if (json) {
+      line.append("{\"start\":\"").append(start)
+        .append("\",\"duration_ms\":").append(buffer.getInt(offset + 4))
+        .append(",\"client\":\"").append(client)
+        .append("\",\"client_port\":").append(clientPort)
+        .append(",\"host\":");
+      quoteJson(host);
+      line.append(",\"ip\":\"").append(ip)
+        .append("\",\"port\":").append(port)
+        .append(",\"bytes_in\":").append(buffer.getLong(offset + 16))
+        .append(",\"bytes_out\":").append(buffer.getLong(offset + 24))
+        .append(",\"reason\":");
+      quoteJson(reason);
+      line.append('}');
+    } else {
+      line.append(start).append(',')
+        .append(buffer.getInt(offset + 4)).append(',')
+        .append(client).append(',')
+        .append(clientPort).append(',');
+      quoteCsv(host);
+      line.append(',').append(ip).append(',')
+        .append(port).append(',')
+        .append(buffer.getLong(offset + 16)).append(',')
+        .append(buffer.getLong(offset + 24)).append(',');
+      quoteCsv(reason);
+    }
+    out.println(line);
+  }
+
+  private void quoteJson(String text) {
+    line.append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c < 0x20) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+
+  private void quoteCsv(String text) {
+    if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0) {
+      line.append(text);
+      return;
+    }
+    line.append('"').append(text.replace("\"", "\"\"")).append('"');
+  }
+
+  private static String ip(ByteBuffer buffer, int offset, int length) {
+    StringBuilder builder = new StringBuilder(40);
+    if (length == 4) {
+      for (int i = 0; i < 4; i++) {
+        if (i > 0) builder.append('.');
+        builder.append(buffer.get(offset + i) & 0xFF);
+      }
+    } else if (length == 16) {
+      for (int i = 0; i < length; i += 2) {
+        if (i > 0) builder.append(':');
+        builder.append(Integer.toHexString(buffer.getShort(offset + i) & 0xFFFF));
+      }
+    }
+    return builder.toString();
+  }
+
+  private static String ascii(ByteBuffer buffer, int offset, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char) (buffer.get(offset + i) & 0x7F);
+    }
+    return new String(chars);
+  }
+}
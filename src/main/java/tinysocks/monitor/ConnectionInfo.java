@@ -0,0 +1,76 @@
+package tinysocks.monitor;
+
+import tinysocks.annotation.Nullable;
+
+/**
+ * One live stream at the time of {@link ConnectionTable#snapshot()}. bytes in go from the
+ * client to the destination, bytes out come back.
+ */
+public final class ConnectionInfo {
+  @Nullable
+  private final String client;
+  private final String destination;
+  private final long startMillis;
+  private final long ageMillis;
+  private final long bytesIn;
+  private final long bytesOut;
+  private final long rateIn;
+  private final long rateOut;
+
+  ConnectionInfo(@Nullable String client, String destination, long startMillis, long ageMillis,
+                 long bytesIn, long bytesOut, long rateIn, long rateOut) {
+    this.client = client;
+    this.destination = destination;
+    this.startMillis = startMillis;
+    this.ageMillis = ageMillis;
+    this.bytesIn = bytesIn;
+    this.bytesOut = bytesOut;
+    this.rateIn = rateIn;
+    this.rateOut = rateOut;
+  }
+
+  /**
+   * client ip, null on a relay node, which does not know it.
+   */
+  @Nullable
+  public String getClient() {
+    return client;
+  }
+
+  public String getDestination() {
+    return destination;
+  }
+
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  public long getAgeMillis() {
+    return ageMillis;
+  }
+
+  public long getBytesIn() {
+    return bytesIn;
+  }
+
+  public long getBytesOut() {
+    return bytesOut;
+  }
+
+  /**
+   * bytes per second over the last second.
+   */
+  public long getRateIn() {
+    return rateIn;
+  }
+
+  public long getRateOut() {
+    return rateOut;
+  }
+
+  @Override
+  public String toString() {
+    return (client != null ? client : "-") + " -> " + destination + " age=" + ageMillis + "ms in=" + bytesIn
+      + " out=" + bytesOut + " rate=" + rateIn + "/" + rateOut + "B/s";
+  }
+}
@@ -0,0 +1,293 @@
+package tinysocks.monitor;
+
+import tinysocks.Endpoint;
+import tinysocks.annotation.Nullable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live streams of a {@link tinysocks.TinySocks} or a {@link tinysocks.RelayNode}, and the
+ * client ips and destinations that moved the most bytes over about the last minute. one table
+ * can be shared by several servers.
+ * <p>
+ * streams keep counting their bytes in their own fields; the table only reads them. once a
+ * second a ticker turns the growth of each stream into its current rate and adds it to the
+ * heavy hitter sketches, so the data path takes no lock and does no extra work, and a
+ * {@link #snapshot()} is a walk over a concurrent set.
+ * <p>
+ * the top lists come from {@link #WINDOWS} Space-Saving sketches per dimension, each covering
+ * {@link #WINDOW_MILLIS}; the oldest one is cleared when a new window starts. memory stays at
+ * {@code counters} entries per sketch however many clients and destinations there are.
+ * <p>
+ * read it with {@link #snapshot()} and {@link #topClients(int)}, over JMX after
+ * {@link #registerMBean(String)}, or over HTTP through a {@link StatusServer}.
+ */
+public final class ConnectionTable implements ConnectionTableMXBean, Closeable {
+  public static final int DEFAULT_COUNTERS = 256;
+  public static final int DEFAULT_TOP = 10;
+  static final int WINDOWS = 6;
+  static final long WINDOW_MILLIS = 10 * 1000;
+  private static final long TICK_MILLIS = 1000;
+
+  private final Set<Entry> entries = Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>());
+  // guarded by this
+  private final SpaceSaving[] clients = new SpaceSaving[WINDOWS];
+  private final SpaceSaving[] destinations = new SpaceSaving[WINDOWS];
+  private long window;
+  private long lastTickNanos = System.nanoTime();
+
+  private final ScheduledExecutorService ticker;
+  @Nullable
+  private volatile ObjectName mbeanName;
+
+  public ConnectionTable() {
+    this(DEFAULT_COUNTERS);
+  }
+
+  /**
+   * @param counters entries per heavy hitter sketch, keys that carried more than 1 / counters
+   *                 of the bytes of a window are never missed
+   */
+  public ConnectionTable(int counters) {
+    for (int i = 0; i < WINDOWS; i++) {
+      clients[i] = new SpaceSaving(counters);
+      destinations[i] = new SpaceSaving(counters);
+    }
+    window = System.currentTimeMillis() / WINDOW_MILLIS;
+    ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ConnectionTable");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    ticker.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        tick();
+      }
+    }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * byte counts of a stream, read by the ticker while the stream writes them.
+   */
+  public interface Counters {
+    /**
+     * bytes from the client to the destination so far.
+     */
+    long bytesIn();
+
+    /**
+     * bytes from the destination to the client so far.
+     */
+    long bytesOut();
+  }
+
+  /**
+   * lists a stream until its {@link Entry#remove()}.
+   *
+   * @param client null when unknown, e.g. on a relay node
+   */
+  public Entry add(@Nullable InetAddress client, Endpoint endpoint, Counters counters) {
+    Entry entry = new Entry(client != null ? client.getHostAddress() : null, destinationOf(endpoint), counters);
+    entries.add(entry);
+    return entry;
+  }
+
+  private static String destinationOf(Endpoint endpoint) {
+    if (endpoint.hostname != null) return endpoint.hostname + ":" + endpoint.port;
+    StringBuilder builder = new StringBuilder(21);
+    for (byte b : endpoint.ip) {
+      builder.append(b & 0xFF).append('.');
+    }
+    builder.setLength(builder.length() - 1);
+    return builder.append(':').append(endpoint.port).toString();
+  }
+
+  /**
+   * the live streams, the fastest first.
+   */
+  public List<ConnectionInfo> snapshot() {
+    long now = System.nanoTime();
+    List<ConnectionInfo> infos = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      if (entry.closed) continue;
+      infos.add(new ConnectionInfo(entry.client, entry.destination, entry.startMillis,
+        TimeUnit.NANOSECONDS.toMillis(now - entry.startNanos), entry.counters.bytesIn(), entry.counters.bytesOut(),
+        entry.rateIn, entry.rateOut));
+    }
+    Collections.sort(infos, new Comparator<ConnectionInfo>() {
+      @Override
+      public int compare(ConnectionInfo a, ConnectionInfo b) {
+        return Long.compare(b.getRateIn() + b.getRateOut(), a.getRateIn() + a.getRateOut());
+      }
+    });
+    return infos;
+  }
+
+  public List<HeavyHitter> topClients(int n) {
+    return top(clients, n);
+  }
+
+  public List<HeavyHitter> topDestinations(int n) {
+    return top(destinations, n);
+  }
+
+  private synchronized List<HeavyHitter> top(SpaceSaving[] sketches, int n) {
+    rotate(System.currentTimeMillis());
+    Map<String, long[]> totals = new HashMap<>();
+    for (SpaceSaving sketch : sketches) {
+      sketch.mergeInto(totals);
+    }
+    List<HeavyHitter> top = new ArrayList<>(totals.size());
+    for (Map.Entry<String, long[]> total : totals.entrySet()) {
+      top.add(new HeavyHitter(total.getKey(), total.getValue()[0], total.getValue()[1]));
+    }
+    Collections.sort(top, new Comparator<HeavyHitter>() {
+      @Override
+      public int compare(HeavyHitter a, HeavyHitter b) {
+        return Long.compare(b.getBytes(), a.getBytes());
+      }
+    });
+    return top.size() > n ? new ArrayList<>(top.subList(0, n)) : top;
+  }
+
+  synchronized void tick() {
+    long now = System.nanoTime();
+    long elapsed = Math.max(1, now - lastTickNanos);
+    lastTickNanos = now;
+    rotate(System.currentTimeMillis());
+    SpaceSaving clients = this.clients[(int) (window % WINDOWS)];
+    SpaceSaving destinations = this.destinations[(int) (window % WINDOWS)];
+    for (Entry entry : entries) {
+      // read before the counters, so the counts of a removed stream are final
+      boolean closed = entry.closed;
+      long in = entry.counters.bytesIn();
+      long out = entry.counters.bytesOut();
+      long deltaIn = in - entry.countedIn;
+      long deltaOut = out - entry.countedOut;
+      entry.countedIn = in;
+      entry.countedOut = out;
+      entry.rateIn = deltaIn * TimeUnit.SECONDS.toNanos(1) / elapsed;
+      entry.rateOut = deltaOut * TimeUnit.SECONDS.toNanos(1) / elapsed;
+      long delta = deltaIn + deltaOut;
+      if (delta > 0) {
+        if (entry.client != null) {
+          clients.add(entry.client, delta);
+        }
+        destinations.add(entry.destination, delta);
+      }
+      if (closed) {
+        entries.remove(entry);
+      }
+    }
+  }
+
+  private void rotate(long nowMillis) {
+    long current = nowMillis / WINDOW_MILLIS;
+    if (current <= window) return;
+    for (long w = Math.max(window + 1, current - WINDOWS + 1); w <= current; w++) {
+      clients[(int) (w % WINDOWS)].clear();
+      destinations[(int) (w % WINDOWS)].clear();
+    }
+    window = current;
+  }
+
+  /**
+   * registers the table with the platform MBean server as
+   * {@code tinysocks:type=ConnectionTable,name=<name>}, until {@link #close()}.
+   */
+  public void registerMBean(String name) throws JMException {
+    ObjectName objectName = new ObjectName("tinysocks:type=ConnectionTable,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    mbeanName = objectName;
+  }
+
+  @Override
+  public void close() {
+    ticker.shutdown();
+    ObjectName objectName = mbeanName;
+    if (objectName != null) {
+      mbeanName = null;
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+        server.unregisterMBean(objectName);
+      } catch (JMException ignored) {
+      }
+    }
+  }
+
+  @Override
+  public int getActiveConnections() {
+    int count = 0;
+    for (Entry entry : entries) {
+      if (!entry.closed) count++;
+    }
+    return count;
+  }
+
+  @Override
+  public List<ConnectionInfo> getConnections() {
+    return snapshot();
+  }
+
+  @Override
+  public List<HeavyHitter> getTopClients() {
+    return topClients(DEFAULT_TOP);
+  }
+
+  @Override
+  public List<HeavyHitter> getTopDestinations() {
+    return topDestinations(DEFAULT_TOP);
+  }
+
+  /**
+   * A listed stream.
+   */
+  public static final class Entry {
+    @Nullable
+    final String client;
+    final String destination;
+    final Counters counters;
+    final long startMillis = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+    volatile boolean closed;
+    // written by the ticker
+    long countedIn;
+    long countedOut;
+    volatile long rateIn;
+    volatile long rateOut;
+
+    Entry(@Nullable String client, String destination, Counters counters) {
+      this.client = client;
+      this.destination = destination;
+      this.counters = counters;
+    }
+
+    /**
+     * drops the stream from the table, its last bytes still count for the top lists.
+     */
+    public void remove() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package tinysocks.monitor;
+
+import java.util.List;
+
+/**
+ * JMX view of a {@link ConnectionTable}, see {@link ConnectionTable#registerMBean(String)}.
+ */
+public interface ConnectionTableMXBean {
+  int getActiveConnections();
+
+  List<ConnectionInfo> getConnections();
+
+  List<HeavyHitter> getTopClients();
+
+  List<HeavyHitter> getTopDestinations();
+
+  List<HeavyHitter> topClients(int n);
+
+  List<HeavyHitter> topDestinations(int n);
+}
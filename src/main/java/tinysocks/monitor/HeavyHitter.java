@@ -0,0 +1,39 @@
+package tinysocks.monitor;
+
+/**
+ * A client ip or destination among the largest by bytes, see {@link ConnectionTable#topClients}.
+ */
+public final class HeavyHitter {
+  private final String key;
+  private final long bytes;
+  private final long error;
+
+  HeavyHitter(String key, long bytes, long error) {
+    this.key = key;
+    this.bytes = bytes;
+    this.error = error;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * estimated bytes in both directions, never less than the real count.
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * by how much {@link #getBytes()} may be too high.
+   */
+  public long getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return key + " " + bytes + (error > 0 ? " (+-" + error + ")" : "");
+  }
+}
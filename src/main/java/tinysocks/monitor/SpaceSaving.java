@@ -0,0 +1,64 @@
+package tinysocks.monitor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving heavy hitter sketch: at most {@code capacity} counters. a key without one takes
+ * over the smallest counter and inherits its count as error, so any key that carried more than
+ * total / capacity bytes is always present and no count is ever too low. not thread safe.
+ */
+final class SpaceSaving {
+  private final int capacity;
+  // key -> {count, error}
+  private final Map<String, long[]> counters;
+
+  SpaceSaving(int capacity) {
+    this.capacity = capacity;
+    this.counters = new HashMap<>(capacity * 2);
+  }
+
+  void add(String key, long amount) {
+    long[] counter = counters.get(key);
+    if (counter != null) {
+      counter[0] += amount;
+      return;
+    }
+    if (counters.size() < capacity) {
+      counters.put(key, new long[]{amount, 0});
+      return;
+    }
+    // a linear scan, adds come from the table's ticker once per stream and second
+    String smallest = null;
+    long min = Long.MAX_VALUE;
+    for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+      if (entry.getValue()[0] < min) {
+        min = entry.getValue()[0];
+        smallest = entry.getKey();
+      }
+    }
+    counter = counters.remove(smallest);
+    counter[0] = min + amount;
+    counter[1] = min;
+    counters.put(key, counter);
+  }
+
+  /**
+   * adds the counts and errors of this sketch to {@code totals}.
+   */
+  void mergeInto(Map<String, long[]> totals) {
+    for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+      long[] total = totals.get(entry.getKey());
+      if (total == null) {
+        totals.put(entry.getKey(), new long[]{entry.getValue()[0], entry.getValue()[1]});
+      } else {
+        total[0] += entry.getValue()[0];
+        total[1] += entry.getValue()[1];
+      }
+    }
+  }
+
+  void clear() {
+    counters.clear();
+  }
+}
@@ -0,0 +1,165 @@
+package tinysocks.monitor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import tinysocks.annotation.Nullable;
+import tinysocks.relay.MemoryGovernor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Serves a {@link ConnectionTable} as JSON over HTTP, on one thread:
+ * <pre>
+ *   GET /connections   the live streams, the fastest first
+ *   GET /top?n=10      the top client ips and destinations by bytes over the last minute
+ *   GET /memory        use and pressure of the global {@link MemoryGovernor}
+ * </pre>
+ * it binds the loopback address unless told otherwise, the table shows who talks to whom.
+ */
+public final class StatusServer implements Closeable {
+  private final ConnectionTable table;
+  private final HttpServer server;
+
+  public StatusServer(ConnectionTable table, int port) throws IOException {
+    this(table, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+  }
+
+  public StatusServer(ConnectionTable table, InetSocketAddress address) throws IOException {
+    this.table = table;
+    this.server = HttpServer.create(address, 0);
+    server.createContext("/connections", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, connections());
+      }
+    });
+    server.createContext("/top", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, top(parseTop(exchange.getRequestURI().getQuery())));
+      }
+    });
+    server.createContext("/memory", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, memory(MemoryGovernor.global()));
+      }
+    });
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private static int parseTop(@Nullable String query) {
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        if (parameter.startsWith("n=")) {
+          try {
+            return Math.max(1, Integer.parseInt(parameter.substring(2)));
+          } catch (NumberFormatException ignored) {
+          }
+        }
+      }
+    }
+    return ConnectionTable.DEFAULT_TOP;
+  }
+
+  private static void respond(HttpExchange exchange, String json) throws IOException {
+    if (!"GET".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      exchange.close();
+      return;
+    }
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  String connections() {
+    StringBuilder json = new StringBuilder(4096).append('[');
+    for (ConnectionInfo info : table.snapshot()) {
+      if (json.length() > 1) json.append(',');
+      json.append("{\"client\":");
+      quote(json, info.getClient());
+      json.append(",\"destination\":");
+      quote(json, info.getDestination());
+      json.append(",\"startMillis\":").append(info.getStartMillis())
+        .append(",\"ageMillis\":").append(info.getAgeMillis())
+        .append(",\"bytesIn\":").append(info.getBytesIn())
+        .append(",\"bytesOut\":").append(info.getBytesOut())
+        .append(",\"rateIn\":").append(info.getRateIn())
+        .append(",\"rateOut\":").append(info.getRateOut())
+        .append('}');
+    }
+    return json.append(']').toString();
+  }
+
+  String top(int n) {
+    StringBuilder json = new StringBuilder(1024).append("{\"clients\":");
+    hitters(json, table.topClients(n));
+    json.append(",\"destinations\":");
+    hitters(json, table.topDestinations(n));
+    return json.append('}').toString();
+  }
+
+  static String memory(MemoryGovernor governor) {
+    return "{\"limitBytes\":" + governor.getLimitBytes() + ",\"usedBytes\":" + governor.getUsedBytes()
+      + ",\"pressure\":" + governor.getPressure() + ",\"waits\":" + governor.getWaits() + "}";
+  }
+
+  private static void hitters(StringBuilder json, List<HeavyHitter> hitters) {
+    json.append('[');
+    for (int i = 0; i < hitters.size(); i++) {
+      HeavyHitter hitter = hitters.get(i);
+      if (i > 0) json.append(',');
+      json.append("{\"key\":");
+      quote(json, hitter.getKey());
+      json.append(",\"bytes\":").append(hitter.getBytes())
+        .append(",\"error\":").append(hitter.getError())
+        .append('}');
+    }
+    json.append(']');
+  }
+
+  private static void quote(StringBuilder json, @Nullable String value) {
+    if (value == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+}
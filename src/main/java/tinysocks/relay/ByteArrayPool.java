@@ -1,31 +1,71 @@
 package tinysocks.relay;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.ArrayDeque;
 
+/**
+ * Arrays of four sizes up to the largest frame, each size kept on its own stack of at most
+ * {@link #MAX_POOLED_BYTES}. taking and recycling does not allocate once the stacks are warm;
+ * arrays of other lengths are not pooled.
+ * <p>
+ * pooled sizes count against the {@link MemoryGovernor#global() memory budget} from
+ * allocation until they are dropped, in use or idle on a stack; under high pressure recycled
+ * arrays are dropped instead of kept.
+ */
 public final class ByteArrayPool {
-  private static int maxPoolSize = 30;
-  private static List<byte[]> pool = new LinkedList<>();
+  private static final int[] SIZES = {1024, 4096, 16 * 1024, 64 * 1024};
+  private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static final ArrayDeque<byte[]>[] pools = new ArrayDeque[SIZES.length];
+
+  static {
+    for (int i = 0; i < SIZES.length; i++) {
+      pools[i] = new ArrayDeque<>(MAX_POOLED_BYTES / SIZES[i]);
+    }
+  }
 
   public static byte[] take(int arraySize) {
-    synchronized (ByteArrayPool.class) {
-      Iterator<byte[]> i = pool.iterator();
-      while (i.hasNext()) {
-        byte[] item = i.next();
-        if (item.length >= arraySize) {
-          i.remove();
-          return item;
+    for (int i = 0; i < SIZES.length; i++) {
+      if (arraySize <= SIZES[i]) {
+        ArrayDeque<byte[]> pool = pools[i];
+        synchronized (pool) {
+          byte[] item = pool.pollLast();
+          if (item != null) return item;
         }
+        MemoryGovernor.global().reserve(SIZES[i]);
+        return new byte[SIZES[i]];
+      }
+    }
+    return new byte[arraySize];
+  }
+
+  /**
+   * forgets an array that is not recycled, e.g. one another thread may still read.
+   */
+  public static void drop(byte[] bytes) {
+    for (int size : SIZES) {
+      if (bytes.length == size) {
+        MemoryGovernor.global().release(size);
+        return;
       }
     }
-    return new byte[Math.max(arraySize, 4096)];
   }
 
   public static void recycle(byte[] bytes) {
-    synchronized (ByteArrayPool.class) {
-      if (pool.size() < maxPoolSize) {
-        pool.add(bytes);
+    for (int i = 0; i < SIZES.length; i++) {
+      if (bytes.length == SIZES[i]) {
+        ArrayDeque<byte[]> pool = pools[i];
+        MemoryGovernor governor = MemoryGovernor.global();
+        if (governor.pressure() < MemoryGovernor.PRESSURE_HIGH) {
+          synchronized (pool) {
+            if (pool.size() < MAX_POOLED_BYTES / SIZES[i]) {
+              pool.addLast(bytes);
+              return;
+            }
+          }
+        }
+        governor.release(bytes.length);
+        return;
       }
     }
   }
@@ -0,0 +1,62 @@
+package tinysocks.relay;
+
+import tinysocks.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * A stream frame waiting in a scheduler queue or in the replay buffer.
+ * the buffer comes from {@link ByteArrayPool} and is owned by the frame, both go back to
+ * their pools on {@link #recycle()}.
+ */
+final class Frame {
+  private static final int MAX_POOLED = 4096;
+  private static final ArrayDeque<Frame> pool = new ArrayDeque<>(MAX_POOLED);
+
+  int connectionId;
+  int type;
+  @Nullable
+  byte[] buffer;
+  int size;
+  // a forwarded frame hands window back to the link it came from once written, see Link.forward()
+  @Nullable
+  StreamWindow origin;
+  int originId;
+
+  private Frame() {
+  }
+
+  /**
+   * a frame holding a copy of the payload.
+   */
+  static Frame copyOf(int connectionId, int type, @Nullable byte[] payload, int offset, int size) {
+    Frame frame;
+    synchronized (pool) {
+      frame = pool.pollLast();
+    }
+    if (frame == null) {
+      frame = new Frame();
+    }
+    frame.connectionId = connectionId;
+    frame.type = type;
+    frame.size = size;
+    if (size > 0) {
+      frame.buffer = ByteArrayPool.take(size);
+      System.arraycopy(payload, offset, frame.buffer, 0, size);
+    }
+    return frame;
+  }
+
+  void recycle() {
+    origin = null;
+    if (buffer != null) {
+      ByteArrayPool.recycle(buffer);
+      buffer = null;
+    }
+    synchronized (pool) {
+      if (pool.size() < MAX_POOLED) {
+        pool.addLast(this);
+      }
+    }
+  }
+}
@@ -0,0 +1,274 @@
+package tinysocks.relay;
+
+import tinysocks.Util;
+import tinysocks.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records the stream frames of a link to a file, for replaying real traffic offline, see
+ * {@link tinysocks.test.CaptureReplay}. attached with {@code capture(...)} on the
+ * {@link tinysocks.TinyRelay} or {@link tinysocks.RelayNode} builder.
+ * <p>
+ * frames are copied into one buffer under a lock and written out when it is full, so the
+ * link threads only do file I/O once per buffer. connect and close payloads are always kept,
+ * data payloads only when asked for; without them a capture holds the shape of the traffic
+ * at 11 bytes per frame. recording stops when the file reaches its size limit.
+ * <p>
+ * file layout, big endian: {@code [int magic][byte version][byte flags][long start millis]}
+ * then one record per frame:
+ * <pre>
+ *  0 int    micros since the previous record
+ *  4 byte   type, the high bit set for frames sent, clear for frames received
+ *  5 int    connection id
+ *  9 ushort payload size
+ * 11 payload, when kept
+ * </pre>
+ */
+public final class FrameCapture implements Closeable {
+  static final int MAGIC = 0x54534643;// TSFC
+  static final int VERSION = 1;
+  static final int FLAG_PAYLOADS = 1;
+  static final int HEADER_SIZE = 14;
+  static final int RECORD_HEADER_SIZE = 11;
+  private static final int SENT = 0x80;
+
+  private final File file;
+  private final boolean payloads;
+  private final long maxBytes;
+  private final FileOutputStream out;
+  private final byte[] buffer;
+  // guarded by this
+  private int count;
+  private long written;
+  private long lastNanos;
+  private boolean stopped;
+
+  private FrameCapture(Builder builder) throws IOException {
+    this.file = builder.file;
+    this.payloads = builder.payloads;
+    this.maxBytes = builder.maxBytes;
+    this.buffer = new byte[builder.bufferSize];
+    this.out = new FileOutputStream(file);
+    Util.putInt(buffer, 0, MAGIC);
+    buffer[4] = VERSION;
+    buffer[5] = (byte) (payloads ? FLAG_PAYLOADS : 0);
+    Util.putLong(buffer, 6, System.currentTimeMillis());
+    count = HEADER_SIZE;
+    lastNanos = System.nanoTime();
+  }
+
+  public File file() {
+    return file;
+  }
+
+  void sent(int connectionId, int type, @Nullable byte[] payload, int offset, int size) {
+    record(SENT | type, connectionId, payload, offset, size);
+  }
+
+  void received(int connectionId, int type, ByteBuffer payload) {
+    record(type, connectionId, payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+  }
+
+  private synchronized void record(int type, int connectionId, @Nullable byte[] payload, int offset, int size) {
+    if (stopped) return;
+    boolean keep = size > 0 && (payloads || (type & ~SENT) != Link.TYPE_DATA);
+    int recordSize = RECORD_HEADER_SIZE + (keep ? size : 0);
+    if (written + count + recordSize > maxBytes) {
+      System.out.println("Frame capture " + file + " is full, stopped recording.");
+      stop();
+      return;
+    }
+    if (buffer.length - count < recordSize && !drain()) return;
+    int micros = (int) Math.min((System.nanoTime() - lastNanos) / 1000, Integer.MAX_VALUE);
+    // advanced by what is recorded, so the dropped remainders do not add up over a capture
+    lastNanos += micros * 1000L;
+    Util.putInt(buffer, count, micros);
+    buffer[count + 4] = (byte) type;
+    Util.putInt(buffer, count + 5, connectionId);
+    buffer[count + 9] = (byte) (size >> 8);
+    buffer[count + 10] = (byte) size;
+    count += RECORD_HEADER_SIZE;
+    if (keep) {
+      System.arraycopy(payload, offset, buffer, count, size);
+      count += size;
+    }
+  }
+
+  private boolean drain() {
+    try {
+      out.write(buffer, 0, count);
+      written += count;
+      count = 0;
+      return true;
+    } catch (IOException e) {
+      System.out.println("Frame capture " + file + " failed, stopped recording: " + e.getMessage());
+      stopped = true;
+      return false;
+    }
+  }
+
+  private void stop() {
+    if (stopped) return;
+    drain();
+    stopped = true;
+  }
+
+  /**
+   * writes out what is buffered and stops recording.
+   */
+  @Override
+  public synchronized void close() {
+    stop();
+    Util.closeQuietly(out);
+  }
+
+  public static class Builder {
+    private final File file;
+    private boolean payloads;
+    private long maxBytes = 1024L * 1024 * 1024;// 1GB
+    private int bufferSize = 256 * 1024;
+
+    public Builder(File file) {
+      this.file = file;
+    }
+
+    /**
+     * keeps data payloads too. off by default: sizes and timing are enough to replay the
+     * traffic shape, and the capture holds no user data.
+     */
+    public Builder payloads(boolean payloads) {
+      this.payloads = payloads;
+      return this;
+    }
+
+    /**
+     * recording stops before the file grows beyond this, 1GB by default.
+     */
+    public Builder maxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    public Builder bufferSize(int bufferSize) {
+      this.bufferSize = bufferSize;
+      return this;
+    }
+
+    public FrameCapture build() throws IOException {
+      bufferSize = Math.max(bufferSize, HEADER_SIZE + RECORD_HEADER_SIZE + 0xFFFF);
+      return new FrameCapture(this);
+    }
+  }
+
+  /**
+   * Reads a capture file record by record. a record cut short at the end of the file, as
+   * left by a crash, ends the capture.
+   */
+  public static final class Reader implements Closeable {
+    private final DataInputStream in;
+    private final boolean payloads;
+    private final long startMillis;
+    private final byte[] payload = new byte[0xFFFF];
+    private long nanos;
+    private boolean sent;
+    private int type;
+    private int connectionId;
+    private int size;
+    private boolean hasPayload;
+
+    public Reader(File file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+      try {
+        if (in.readInt() != MAGIC) throw new IOException(file + " is not a frame capture");
+        int version = in.readUnsignedByte();
+        if (version != VERSION) throw new IOException("unsupported capture version " + version);
+        payloads = (in.readUnsignedByte() & FLAG_PAYLOADS) != 0;
+        startMillis = in.readLong();
+      } catch (IOException e) {
+        Util.closeQuietly(in);
+        throw e;
+      }
+    }
+
+    /**
+     * true when data payloads were recorded.
+     */
+    public boolean payloads() {
+      return payloads;
+    }
+
+    public long startMillis() {
+      return startMillis;
+    }
+
+    /**
+     * @return false at the end of the capture
+     */
+    public boolean next() throws IOException {
+      try {
+        nanos += (in.readInt() & 0xFFFFFFFFL) * 1000;
+        int flags = in.readUnsignedByte();
+        sent = (flags & SENT) != 0;
+        type = flags & ~SENT;
+        connectionId = in.readInt();
+        size = in.readUnsignedShort();
+        hasPayload = size > 0 && (payloads || type != Link.TYPE_DATA);
+        if (hasPayload) {
+          in.readFully(payload, 0, size);
+        }
+        return true;
+      } catch (EOFException e) {
+        return false;
+      }
+    }
+
+    /**
+     * time of the current record since the capture started.
+     */
+    public long nanos() {
+      return nanos;
+    }
+
+    /**
+     * true for a frame the capturing side sent, false for one it received.
+     */
+    public boolean sent() {
+      return sent;
+    }
+
+    public int type() {
+      return type;
+    }
+
+    public int connectionId() {
+      return connectionId;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    /**
+     * the payload of the current record in the first {@link #size()} bytes, or null when it
+     * was not recorded. overwritten by {@link #next()}.
+     */
+    @Nullable
+    public byte[] payload() {
+      return hasPayload ? payload : null;
+    }
+
+    @Override
+    public void close() {
+      Util.closeQuietly(in);
+    }
+  }
+}
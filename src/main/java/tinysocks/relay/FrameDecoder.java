@@ -0,0 +1,102 @@
+package tinysocks.relay;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the link input into frames, {@code [int connectionId][byte type][ushort size][payload]}.
+ * <p>
+ * every read fills as much of one large buffer as the stream has, and the frames in it are
+ * decoded without further reads. payloads are handed out as a view of that buffer, valid
+ * until the next call to {@link #next()}.
+ */
+public final class FrameDecoder {
+  public static final int HEADER_SIZE = 7;
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream in;
+  private final ByteBuffer buffer;
+  private final ByteBuffer payload;
+  private int connectionId;
+  private int type;
+  private int size;
+
+  public FrameDecoder(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize raised to hold at least one frame of the largest size
+   */
+  public FrameDecoder(InputStream in, int bufferSize) {
+    this.in = in;
+    this.buffer = ByteBuffer.allocate(Math.max(bufferSize, HEADER_SIZE + 0xFFFF));
+    this.buffer.flip();// empty, ready to be read from
+    this.payload = buffer.duplicate();
+  }
+
+  /**
+   * decodes the next frame, reading from the stream only when the buffer does not hold it.
+   *
+   * @return false when the stream ended between two frames
+   */
+  public boolean next() throws IOException {
+    buffer.position(buffer.position() + size);
+    if (!fill(HEADER_SIZE)) {
+      size = 0;
+      return false;
+    }
+    int position = buffer.position();
+    connectionId = buffer.getInt(position);
+    type = buffer.get(position + 4) & 0xFF;
+    int frameSize = buffer.getShort(position + 5) & 0xFFFF;
+    if (!fill(HEADER_SIZE + frameSize)) throw new EOFException("link closed in the middle of a frame.");
+    position = buffer.position() + HEADER_SIZE;
+    buffer.position(position);
+    size = frameSize;
+    payload.limit(position + size);
+    payload.position(position);
+    return true;
+  }
+
+  public int connectionId() {
+    return connectionId;
+  }
+
+  public int type() {
+    return type;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * the payload of the current frame. a view of the read buffer: position and limit bound
+   * the payload, {@code array()} is available.
+   */
+  public ByteBuffer payload() {
+    return payload;
+  }
+
+  private boolean fill(int bytes) throws IOException {
+    if (buffer.remaining() >= bytes) return true;
+    if (buffer.capacity() - buffer.position() < bytes) {
+      buffer.compact();
+      buffer.flip();
+    }
+    byte[] array = buffer.array();
+    while (buffer.remaining() < bytes) {
+      int limit = buffer.limit();
+      int read = in.read(array, limit, buffer.capacity() - limit);
+      if (read < 0) {
+        if (buffer.remaining() == 0) return false;
+        throw new EOFException("link closed in the middle of a frame.");
+      }
+      buffer.limit(limit + read);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,63 @@
+package tinysocks.relay;
+
+import tinysocks.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Collects frames in one buffer and writes them to the link in a single write per flush.
+ * a header is stored with one 8 byte put, the eighth byte is overwritten by the payload.
+ */
+public final class FrameEncoder {
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  private final OutputStream out;
+  private final ByteBuffer buffer;
+
+  public FrameEncoder(OutputStream out) {
+    this(out, DEFAULT_BUFFER_SIZE);
+  }
+
+  public FrameEncoder(OutputStream out, int bufferSize) {
+    this.out = out;
+    this.buffer = ByteBuffer.allocate(Math.max(bufferSize, FrameDecoder.HEADER_SIZE + 1));
+  }
+
+  public void write(int connectionId, int type, @Nullable byte[] payload, int offset, int size) throws IOException {
+    if (buffer.remaining() < FrameDecoder.HEADER_SIZE + 1 + size) {
+      drain();
+    }
+    int position = buffer.position();
+    buffer.putLong(position, (long) connectionId << 32 | (long) (type & 0xFF) << 24 | (size & 0xFFFF) << 8);
+    position += FrameDecoder.HEADER_SIZE;
+    buffer.position(position);
+    if (size == 0) return;
+    if (buffer.remaining() >= size) {
+      buffer.put(payload, offset, size);
+    } else {// bigger than the buffer
+      drain();
+      out.write(payload, offset, size);
+    }
+  }
+
+  /**
+   * true when frames are waiting for {@link #flush()}.
+   */
+  public boolean hasPending() {
+    return buffer.position() > 0;
+  }
+
+  public void flush() throws IOException {
+    drain();
+    out.flush();
+  }
+
+  private void drain() throws IOException {
+    if (buffer.position() > 0) {
+      out.write(buffer.array(), 0, buffer.position());
+      buffer.clear();
+    }
+  }
+}
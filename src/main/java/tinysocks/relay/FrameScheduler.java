@@ -0,0 +1,398 @@
+package tinysocks.relay;
+
+import tinysocks.Util;
+import tinysocks.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Per-stream frame queues in front of the link writer, served by deficit round robin.
+ * <p>
+ * Each active stream gets {@code weight * QUANTUM} bytes per round, so a bulk stream
+ * can not hold the link while a small frame of another stream waits: the small frame
+ * goes out within one round. Connect and close frames share the stream queue to keep
+ * their order with the data. a stream out of window waits outside the round until the peer
+ * hands some back, and window frames go before any stream.
+ * <p>
+ * the per-stream limit and the window handed to the peer shrink with the pressure on the
+ * {@link MemoryGovernor}, which the frame buffers count against.
+ */
+final class FrameScheduler {
+  static final int QUANTUM = 4096;
+  static final int MAX_STREAM_QUEUE_BYTES = 64 * 1024;
+  // what a stream window shrinks to at most under memory pressure
+  private static final int MIN_WINDOW = 64 * 1024;
+
+  // a monitor rather than a ReentrantLock: waiting on it allocates nothing
+  private final Object lock = new Object();
+  private final MemoryGovernor governor = MemoryGovernor.global();
+  private final IntMap<StreamQueue> streams = new IntMap<>();
+  private final ArrayDeque<StreamQueue> active = new ArrayDeque<>();
+  private final ArrayDeque<StreamQueue> windows = new ArrayDeque<>();// owing the peer a window frame
+  private final byte[] windowPayload = new byte[4];
+  private int control;
+  private boolean closed;
+  private boolean writerWaiting;
+  private boolean replayFull;// the head data frame waits for the peer to ack
+  private boolean ackWanted;// replay buffer just filled up, see takeAckWanted()
+  private int spaceWaiters;
+  @Nullable
+  private volatile Link.WritableListener writableListener;
+
+  void open(int connectionId, int weight) {
+    synchronized (lock) {
+      StreamQueue queue = queue(connectionId);
+      queue.quantum = Math.max(1, Math.min(weight, StreamPriority.MAX_WEIGHT)) * QUANTUM;
+    }
+  }
+
+  /**
+   * the stream is gone, its queue is dropped once drained.
+   */
+  void release(int connectionId) {
+    synchronized (lock) {
+      StreamQueue queue = streams.get(connectionId);
+      if (queue != null) {
+        queue.released = true;
+        if (queue.stalled) {
+          // the peer is gone, it will not hand back the window the frames wait for
+          for (Frame frame : queue.frames) {
+            frame.recycle();
+          }
+          queue.frames.clear();
+          queue.bytes = 0;
+          queue.stalled = false;
+        }
+        if (!queue.active) {
+          streams.remove(connectionId);
+        }
+      }
+    }
+  }
+
+  /**
+   * queues a frame; data frames block while the stream already has too much queued.
+   */
+  void enqueue(Frame frame) throws IOException {
+    synchronized (lock) {
+      StreamQueue queue = queue(frame.connectionId);
+      if (frame.type == Link.TYPE_DATA && isFull(queue, frame.size)) {
+        governor.waited();
+        while (!closed && !queue.dead && isFull(queue, frame.size)) {
+          spaceWaiters++;
+          try {
+            lock.wait();
+          } catch (InterruptedException ignored) {
+          } finally {
+            spaceWaiters--;
+          }
+        }
+        if (queue.dead) {
+          frame.recycle();
+          throw new IOException("session reset.");
+        }
+      }
+      add(queue, frame);
+    }
+  }
+
+  /**
+   * queues a frame without waiting.
+   *
+   * @return false when the stream is now over its limit, the writable listener is called
+   * once it has drained to half of it
+   */
+  boolean offer(Frame frame) throws IOException {
+    synchronized (lock) {
+      StreamQueue queue = queue(frame.connectionId);
+      add(queue, frame);
+      if (queue.bytes < governor.streamLimit(MAX_STREAM_QUEUE_BYTES)) return true;
+      queue.refused = true;
+      return false;
+    }
+  }
+
+  // called with lock held. a stream with nothing queued always takes a frame
+  private boolean isFull(StreamQueue queue, int size) {
+    return queue.bytes > 0 && queue.bytes + size > governor.streamLimit(MAX_STREAM_QUEUE_BYTES);
+  }
+
+  void setWritableListener(@Nullable Link.WritableListener listener) {
+    this.writableListener = listener;
+  }
+
+  // called with lock held
+  private void add(StreamQueue queue, Frame frame) throws IOException {
+    if (closed) {
+      frame.recycle();
+      throw new IOException("link closed.");
+    }
+    if (frame.type == Link.TYPE_CLOSE) {
+      queue.released = true;
+    }
+    queue.frames.add(frame);
+    queue.bytes += frame.size;
+    if (!queue.active && !queue.stalled) {
+      queue.active = true;
+      queue.deficit = queue.quantum;
+      active.add(queue);
+    }
+    wakeWriter();
+  }
+
+  /**
+   * the peer handed back window of a stream, see {@link Link#STREAM_WINDOW}.
+   */
+  void credit(int connectionId, int cost) {
+    synchronized (lock) {
+      StreamQueue queue = streams.get(connectionId);
+      if (queue == null) return;
+      queue.credit += cost;
+      if (queue.stalled && queue.credit > 0) {
+        queue.stalled = false;
+        queue.active = true;
+        queue.deficit = queue.quantum;
+        active.add(queue);
+        wakeWriter();
+      }
+    }
+  }
+
+  /**
+   * the stream consumed {@code cost} of what it received, a window frame is due once that
+   * adds up to a quarter of the window. under memory pressure part of the window is withheld,
+   * so the peer sends less into a stream rather than the reader waiting on it.
+   */
+  void consumed(int connectionId, int cost) {
+    synchronized (lock) {
+      StreamQueue queue = streams.get(connectionId);
+      if (queue == null) return;// closed, the peer sends nothing more
+      int window = Math.max(governor.streamLimit(Link.STREAM_WINDOW), MIN_WINDOW);
+      int withhold = Link.STREAM_WINDOW - window;
+      if (queue.withheld < withhold) {
+        int kept = Math.min(cost, withhold - queue.withheld);
+        queue.withheld += kept;
+        cost -= kept;
+      } else {
+        // the pressure eased, what was withheld goes back too
+        cost += queue.withheld - withhold;
+        queue.withheld = withhold;
+      }
+      queue.consumed += cost;
+      if (!queue.windowDue && queue.consumed >= window / 4) {
+        queue.windowDue = true;
+        windows.add(queue);
+        wakeWriter();
+      }
+    }
+  }
+
+  /**
+   * wakes the writer, e.g. because the replay buffer has room again.
+   */
+  void signal() {
+    synchronized (lock) {
+      wakeWriter();
+    }
+  }
+
+  /**
+   * asks the writer for a control frame, control frames go before any stream.
+   */
+  void requestControl(int bits) {
+    synchronized (lock) {
+      control |= bits;
+      wakeWriter();
+    }
+  }
+
+  /**
+   * whether the replay buffer filled up since the last call. the peer acks only every so
+   * many frames, a buffer smaller than that would wait for the next ping without asking.
+   */
+  boolean takeAckWanted() {
+    synchronized (lock) {
+      boolean wanted = ackWanted;
+      ackWanted = false;
+      return wanted;
+    }
+  }
+
+  int takeControl() {
+    synchronized (lock) {
+      int bits = control;
+      control = 0;
+      return bits;
+    }
+  }
+
+  /**
+   * next frame in deficit round robin order, or null when nothing is ready within the
+   * timeout or a control frame is due. a data frame is only handed out when the replay
+   * buffer has room for it.
+   */
+  Frame next(ReplayBuffer replay, long timeoutNanos) {
+    synchronized (lock) {
+      if (control != 0) return null;
+      Frame frame = poll(replay);
+      if (frame == null && !closed && timeoutNanos > 0) {
+        writerWaiting = true;
+        try {
+          lock.wait(timeoutNanos / 1000000, (int) (timeoutNanos % 1000000));
+        } catch (InterruptedException ignored) {
+        } finally {
+          writerWaiting = false;
+        }
+        if (control != 0) return null;
+        frame = poll(replay);
+      }
+      return frame;
+    }
+  }
+
+  boolean isClosed() {
+    synchronized (lock) {
+      return closed;
+    }
+  }
+
+  void close() {
+    synchronized (lock) {
+      closed = true;
+      for (StreamQueue queue : streams.values()) {
+        for (Frame frame : queue.frames) {
+          frame.recycle();
+        }
+      }
+      streams.clear();
+      active.clear();
+      windows.clear();
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * drops everything queued, used when a new session starts. producers still waiting on a
+   * dropped queue fail instead of waiting for a drain that never comes.
+   */
+  void reset() {
+    synchronized (lock) {
+      for (StreamQueue queue : streams.values()) {
+        for (Frame frame : queue.frames) {
+          frame.recycle();
+        }
+        queue.frames.clear();
+        queue.bytes = 0;
+        queue.dead = true;
+      }
+      streams.clear();
+      active.clear();
+      windows.clear();
+      replayFull = false;
+      ackWanted = false;
+      wakeProducers();
+    }
+  }
+
+  // called with lock held. the writer and blocked producers share the monitor, so wake all
+  private void wakeWriter() {
+    if (writerWaiting) lock.notifyAll();
+  }
+
+  private void wakeProducers() {
+    if (spaceWaiters > 0) lock.notifyAll();
+  }
+
+  private Frame poll(ReplayBuffer replay) {
+    StreamQueue owed = windows.poll();
+    if (owed != null) {
+      owed.windowDue = false;
+      Util.putInt(windowPayload, 0, owed.consumed);
+      owed.consumed = 0;
+      return Frame.copyOf(owed.connectionId, Link.TYPE_WINDOW, windowPayload, 0, 4);
+    }
+    while (!active.isEmpty()) {
+      StreamQueue queue = active.peek();
+      Frame head = queue.frames.peek();
+      if (head.type == Link.TYPE_DATA && queue.credit <= 0) {
+        // out of window until the peer hands some back, see credit()
+        active.poll();
+        queue.active = false;
+        queue.stalled = true;
+        continue;
+      }
+      if (head.size > queue.deficit) {
+        // turn is over, the stream goes to the back of the round with a new quantum
+        active.poll();
+        queue.deficit += queue.quantum;
+        active.add(queue);
+        continue;
+      }
+      if (head.type == Link.TYPE_DATA) {
+        if (!replay.hasSpace(head.size)) {
+          if (!replayFull) {
+            replayFull = true;
+            ackWanted = true;
+          }
+          return null;
+        }
+        replayFull = false;
+      }
+      queue.frames.poll();
+      queue.deficit -= head.size;
+      queue.bytes -= head.size;
+      if (head.type == Link.TYPE_DATA) {
+        queue.credit -= Link.windowCost(head.size);
+      }
+      if (queue.refused && queue.bytes <= governor.streamLimit(MAX_STREAM_QUEUE_BYTES) / 2) {
+        queue.refused = false;
+        Link.WritableListener listener = writableListener;
+        if (listener != null && !queue.released) {
+          listener.onWritable(queue.connectionId);
+        }
+      }
+      if (queue.frames.isEmpty()) {
+        active.poll();
+        queue.active = false;
+        queue.deficit = 0;
+        if (queue.released) {
+          streams.remove(queue.connectionId);
+        }
+      }
+      wakeProducers();
+      return head;
+    }
+    return null;
+  }
+
+  private StreamQueue queue(int connectionId) {
+    StreamQueue queue = streams.get(connectionId);
+    if (queue == null) {
+      queue = new StreamQueue(connectionId);
+      streams.put(connectionId, queue);
+    }
+    return queue;
+  }
+
+  private static final class StreamQueue {
+    final int connectionId;
+    final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    int quantum = QUANTUM;
+    int deficit;
+    int bytes;
+    boolean active;
+    boolean released;
+    boolean refused;// an offer went over the limit
+    boolean dead;// dropped by reset()
+    int credit = Link.STREAM_WINDOW;// window left for sending, may go below zero by one frame
+    boolean stalled;// out of window with frames queued
+    int consumed;// received and consumed, not handed back yet
+    int withheld;// consumed, kept from the peer while there is memory pressure
+    boolean windowDue;
+
+    StreamQueue(int connectionId) {
+      this.connectionId = connectionId;
+    }
+  }
+}
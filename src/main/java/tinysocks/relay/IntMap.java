@@ -0,0 +1,198 @@
+package tinysocks.relay;
+
+import tinysocks.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map from stream id to stream, open addressing with linear probing. lookups by id run for
+ * every frame, so keys are not boxed and neither lookups nor updates allocate once the table
+ * has grown. not thread safe, callers hold their own lock.
+ */
+public final class IntMap<V> {
+  private static final int FREE = 0;// key 0 is kept aside in zeroValue
+
+  private int[] keys;
+  private Object[] values;
+  private int size;
+  private boolean hasZero;
+  private Object zeroValue;
+
+  public IntMap() {
+    this(16);
+  }
+
+  public IntMap(int capacity) {
+    int size = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1;
+    keys = new int[size];
+    values = new Object[size];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V get(int key) {
+    if (key == FREE) return hasZero ? (V) zeroValue : null;
+    int index = indexOf(key);
+    return index < 0 ? null : (V) values[index];
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V put(int key, V value) {
+    if (key == FREE) {
+      V previous = (V) zeroValue;
+      if (!hasZero) size++;
+      hasZero = true;
+      zeroValue = value;
+      return previous;
+    }
+    int mask = keys.length - 1;
+    int index = hash(key) & mask;
+    while (keys[index] != FREE) {
+      if (keys[index] == key) {
+        V previous = (V) values[index];
+        values[index] = value;
+        return previous;
+      }
+      index = (index + 1) & mask;
+    }
+    keys[index] = key;
+    values[index] = value;
+    if (++size * 2 > keys.length) {
+      resize(keys.length * 2);
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V remove(int key) {
+    if (key == FREE) {
+      V previous = (V) zeroValue;
+      if (hasZero) size--;
+      hasZero = false;
+      zeroValue = null;
+      return previous;
+    }
+    int index = indexOf(key);
+    if (index < 0) return null;
+    V previous = (V) values[index];
+    removeAt(index);
+    return previous;
+  }
+
+  /**
+   * removes the entry only if it still maps to {@code value}.
+   */
+  public boolean remove(int key, V value) {
+    if (key == FREE) {
+      if (!hasZero || zeroValue != value) return false;
+      remove(key);
+      return true;
+    }
+    int index = indexOf(key);
+    if (index < 0 || values[index] != value) return false;
+    removeAt(index);
+    return true;
+  }
+
+  public void clear() {
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = FREE;
+      values[i] = null;
+    }
+    hasZero = false;
+    zeroValue = null;
+    size = 0;
+  }
+
+  /**
+   * a copy of the keys, for walking the map while it changes.
+   */
+  public int[] keys() {
+    int[] copy = new int[size];
+    int n = 0;
+    if (hasZero) copy[n++] = FREE;
+    for (int key : keys) {
+      if (key != FREE) copy[n++] = key;
+    }
+    return copy;
+  }
+
+  /**
+   * a copy of the values, for walking the map while it changes.
+   */
+  @SuppressWarnings("unchecked")
+  public List<V> values() {
+    List<V> copy = new ArrayList<>(size);
+    if (hasZero) copy.add((V) zeroValue);
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != FREE) copy.add((V) values[i]);
+    }
+    return copy;
+  }
+
+  private int indexOf(int key) {
+    int mask = keys.length - 1;
+    int index = hash(key) & mask;
+    int k;
+    while ((k = keys[index]) != FREE) {
+      if (k == key) return index;
+      index = (index + 1) & mask;
+    }
+    return -1;
+  }
+
+  // shifts the following entries back so every probe sequence stays unbroken
+  private void removeAt(int index) {
+    int mask = keys.length - 1;
+    keys[index] = FREE;
+    values[index] = null;
+    size--;
+    int next = (index + 1) & mask;
+    while (keys[next] != FREE) {
+      int home = hash(keys[next]) & mask;
+      // move the entry if its home is not in (index, next]
+      if (((next - home) & mask) >= ((next - index) & mask)) {
+        keys[index] = keys[next];
+        values[index] = values[next];
+        keys[next] = FREE;
+        values[next] = null;
+        index = next;
+      }
+      next = (next + 1) & mask;
+    }
+  }
+
+  private void resize(int capacity) {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new int[capacity];
+    values = new Object[capacity];
+    int mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] == FREE) continue;
+      int index = hash(oldKeys[i]) & mask;
+      while (keys[index] != FREE) {
+        index = (index + 1) & mask;
+      }
+      keys[index] = oldKeys[i];
+      values[index] = oldValues[i];
+    }
+  }
+
+  // ids are sequential, spread them so neighbours do not form runs
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
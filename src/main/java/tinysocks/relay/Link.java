@@ -0,0 +1,536 @@
+package tinysocks.relay;
+
+import tinysocks.Util;
+import tinysocks.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One side of the relay link session shared by {@link Protocol} and {@link tinysocks.RelayNode}.
+ * <p>
+ * Stream frames (data, connect, close) are numbered and kept in a {@link ReplayBuffer} until
+ * the peer acknowledges them. When the socket drops, the session survives: a new socket is
+ * handed to {@link #run(Closeable, InputStream, OutputStream, int)} and everything the peer
+ * has not received is written again. the socket is TCP or a {@link SharedMemoryTransport}.
+ * Ping/pong frames keep the link alive, detect dead sockets and measure the round trip.
+ * <p>
+ * Senders only queue frames; a single writer thread drains the {@link FrameScheduler} so
+ * streams share the link fairly.
+ * <p>
+ * Each stream may have {@link #STREAM_WINDOW} of data in flight to the peer, counted with
+ * {@link #windowCost(int)}. the receiver hands the window back in window frames as the stream
+ * consumes what it got, see {@link #consumed(int, int)}. so the receiver can always take a
+ * frame without waiting, and the reader, which also reads the acks, never waits on one stream.
+ */
+public final class Link implements StreamWindow {
+  public static final int TYPE_DATA = 1;
+  public static final int TYPE_CONNECT = 2;
+  public static final int TYPE_CLOSE = 3;
+  public static final int TYPE_PING = 4;
+  public static final int TYPE_PONG = 5;
+  public static final int TYPE_ACK = 6;
+  public static final int TYPE_WINDOW = 7;
+
+  public static final int SESSION_NEW = 1;
+  public static final int SESSION_RESUMED = 2;
+
+  public static final int DEFAULT_REPLAY_BYTES = 1024 * 1024;// 1MB
+  public static final long DEFAULT_PING_INTERVAL_MILLIS = 5000;
+  public static final int STREAM_WINDOW = 512 * 1024;
+  // so a window holds at most STREAM_WINDOW / MIN_FRAME_COST frames
+  public static final int MIN_FRAME_COST = 1024;
+
+  private static final int ACK_EVERY_FRAMES = 32;
+  private static final int CONTROL_CONNECTION_ID = 0;
+  private static final int CONTROL_PING = 1;
+  private static final int CONTROL_PONG = 2;
+  private static final int CONTROL_ACK = 4;
+  private static final long WRITER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  public interface Handler {
+    /**
+     * called on the reader thread for every data, connect and close frame.
+     * the payload is a view of the read buffer, valid only during the call.
+     */
+    void onFrame(int connectionId, int type, ByteBuffer payload) throws IOException;
+  }
+
+  public interface WritableListener {
+    /**
+     * a stream refused by {@link #offer(int, byte[], int, int)} can take data again. called on
+     * the writer thread with the scheduler locked, so it must only hand the work off.
+     */
+    void onWritable(int connectionId);
+  }
+
+  private final Handler handler;
+  private final ReplayBuffer replay;
+  private final FrameScheduler scheduler = new FrameScheduler();
+  private final long idleTimeoutNanos;
+  private final ScheduledExecutorService timer;
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final byte[] controlBuffer = new byte[12];
+  private final Object detached = new Object();
+
+  private volatile long token;
+  private volatile int received;// stream frames received in this session
+  private volatile int receivedAcked;
+  private volatile long pongTimestamp;
+  private volatile long lastReceiveNanos;
+  private volatile boolean dispatching;
+  private volatile long rttNanos = -1;
+  private volatile boolean closed;
+  @Nullable
+  private volatile FrameCapture capture;
+
+  // guarded by writeLock
+  private FrameEncoder encoder;
+  private boolean dirty;
+  private volatile Closeable socket;
+  private volatile long detachedNanos = System.nanoTime();
+
+  private final Runnable keepaliveTask = new Runnable() {
+    @Override
+    public void run() {
+      Closeable current = socket;
+      if (current == null) return;
+      if (!dispatching && System.nanoTime() - lastReceiveNanos > idleTimeoutNanos) {
+        System.out.println("Relay link idle for too long, dropping it.");
+        Util.closeQuietly(current);
+        return;
+      }
+      scheduler.requestControl(CONTROL_PING);
+    }
+  };
+
+  public Link(String name, Handler handler, long token, int maxReplayBytes, long pingIntervalMillis) {
+    this.handler = handler;
+    this.token = token;
+    this.replay = new ReplayBuffer(maxReplayBytes);
+    this.idleTimeoutNanos = 3 * TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis);
+    this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads(name + "-Keepalive"));
+    this.timer.scheduleWithFixedDelay(keepaliveTask, pingIntervalMillis, pingIntervalMillis, TimeUnit.MILLISECONDS);
+    Thread writer = daemonThreads(name + "-Writer").newThread(new Runnable() {
+      @Override
+      public void run() {
+        loopWriter();
+      }
+    });
+    writer.start();
+  }
+
+  public long sessionToken() {
+    return token;
+  }
+
+  public int receivedCount() {
+    return received;
+  }
+
+  public boolean canResume(int peerReceived) {
+    return !closed && replay.canResume(peerReceived);
+  }
+
+  public boolean isAttached() {
+    return socket != null;
+  }
+
+  /**
+   * how long the link has been without a socket, 0 while one is attached.
+   */
+  public long detachedMillis() {
+    if (socket != null) return 0;
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - detachedNanos);
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * smoothed round trip time of ping frames, -1 if unknown yet.
+   */
+  public long rttMillis() {
+    long rtt = rttNanos;
+    return rtt < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(rtt);
+  }
+
+  /**
+   * what a data frame of {@code size} bytes takes from the window of its stream.
+   */
+  public static int windowCost(int size) {
+    return Math.max(size, MIN_FRAME_COST);
+  }
+
+  public int unackedBytes() {
+    return replay.bytes();
+  }
+
+  /**
+   * sets the scheduling weight of a stream, see {@link StreamPriority}.
+   */
+  public void openStream(int connectionId, int weight) {
+    scheduler.open(connectionId, weight);
+  }
+
+  /**
+   * the peer closed the stream, nothing more will be sent on it.
+   */
+  public void closeStream(int connectionId) {
+    scheduler.release(connectionId);
+  }
+
+  /**
+   * starts a new session, frames of the previous one are dropped.
+   */
+  public void reset(long token) {
+    writeLock.lock();
+    try {
+      this.token = token;
+      scheduler.reset();
+      replay.reset();
+      received = 0;
+      receivedAcked = 0;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * attaches the socket, replays frames the peer has not received and reads the link
+   * until it fails. returns only by throwing.
+   *
+   * @param in  the socket input, or its {@link LinkCipher} wrapper
+   * @param out the socket output, or its {@link LinkCipher} wrapper
+   */
+  public void run(Closeable socket, InputStream in, OutputStream output, int peerReceived) throws IOException {
+    if (socket instanceof Socket) {
+      // the writer batches frames itself, nagle would only add delay
+      ((Socket) socket).setTcpNoDelay(true);
+    }
+    writeLock.lock();
+    try {
+      if (closed) throw new IOException("link closed.");
+      if (!replay.canResume(peerReceived)) throw new IOException("peer is out of sync.");
+      replay.ack(peerReceived);
+      // one encoder flush is one write, or one record on an encrypted link
+      FrameEncoder encoder = new FrameEncoder(output, LinkCipher.MAX_RECORD_SIZE);
+      replay.writeTo(encoder);
+      this.encoder = encoder;
+      this.dirty = false;
+      this.socket = socket;
+    } finally {
+      writeLock.unlock();
+    }
+    scheduler.signal();
+    lastReceiveNanos = System.nanoTime();
+    try {
+      loopReader(in);
+    } finally {
+      writeLock.lock();
+      try {
+        if (this.socket == socket) {
+          this.detachedNanos = System.nanoTime();
+          this.socket = null;
+          this.encoder = null;
+        }
+      } finally {
+        writeLock.unlock();
+      }
+      Util.closeQuietly(socket);
+      synchronized (detached) {
+        detached.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * drops the current socket and waits for its reader, so {@link #receivedCount()} is final.
+   */
+  public void detach() {
+    Closeable current = socket;
+    if (current == null) return;
+    Util.closeQuietly(current);
+    long deadline = System.currentTimeMillis() + 5000;
+    synchronized (detached) {
+      long remaining;
+      while (socket == current && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        try {
+          detached.wait(remaining);
+        } catch (InterruptedException ignored) {
+        }
+      }
+    }
+  }
+
+  public void close() {
+    if (closed) return;
+    closed = true;
+    timer.shutdownNow();
+    scheduler.close();
+    Util.closeQuietly(socket);
+    writeLock.lock();
+    try {
+      replay.reset();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * queues a stream frame. data frames block while the stream has too much queued, and
+   * stay queued while the link is down or the peer is too far behind.
+   */
+  public void send(int connectionId, int type, @Nullable byte[] buffer, int offset, int size) throws IOException {
+    if (closed) throw new IOException("link closed.");
+    scheduler.enqueue(Frame.copyOf(connectionId, type, buffer, offset, size));
+  }
+
+  /**
+   * queues a data frame without blocking, for callers that must not wait.
+   *
+   * @return false when the stream has too much queued now; the data is queued anyway and
+   * the {@link WritableListener} is told when the stream can take more
+   */
+  public boolean offer(int connectionId, byte[] buffer, int offset, int size) throws IOException {
+    if (closed) throw new IOException("link closed.");
+    return scheduler.offer(Frame.copyOf(connectionId, TYPE_DATA, buffer, offset, size));
+  }
+
+  /**
+   * queues a data frame without blocking, for a hop forwarding a stream it received on
+   * another link: the window of that stream is only handed back once the frame is written,
+   * or moved to the replay buffer while the link waits to resume, so the hop queues no more
+   * of the stream than that window.
+   */
+  public void forward(int connectionId, byte[] buffer, int offset, int size, StreamWindow origin, int originId)
+    throws IOException {
+    if (closed) throw new IOException("link closed.");
+    Frame frame = Frame.copyOf(connectionId, TYPE_DATA, buffer, offset, size);
+    frame.origin = origin;
+    frame.originId = originId;
+    scheduler.offer(frame);
+  }
+
+  /**
+   * hands window back to the peer, see {@link StreamWindow}. called by whatever consumes the
+   * stream's data, on any thread.
+   */
+  @Override
+  public void consumed(int connectionId, int cost) {
+    scheduler.consumed(connectionId, cost);
+  }
+
+  public void setWritableListener(@Nullable WritableListener listener) {
+    scheduler.setWritableListener(listener);
+  }
+
+  /**
+   * records the stream frames going both ways from now on, null stops recording.
+   */
+  public void setCapture(@Nullable FrameCapture capture) {
+    this.capture = capture;
+  }
+
+  private void loopWriter() {
+    while (!scheduler.isClosed()) {
+      int control = scheduler.takeControl();
+      Frame frame = null;
+      if (control == 0) {
+        frame = scheduler.next(replay, dirty ? 0 : WRITER_IDLE_NANOS);
+        if (frame == null && scheduler.takeAckWanted()) {
+          // the pong carries what the peer received, which frees the replay buffer
+          control = CONTROL_PING;
+        }
+      }
+      StreamWindow origin = null;
+      int originId = 0;
+      int cost = 0;
+      if (frame != null && frame.origin != null) {
+        origin = frame.origin;
+        originId = frame.originId;
+        cost = windowCost(frame.size);// the replay buffer may recycle the frame once written
+        frame.origin = null;
+      }
+      writeLock.lock();
+      try {
+        if (closed) {
+          if (frame != null) frame.recycle();
+          return;
+        }
+        if (control != 0) {
+          writeControl(control);
+        }
+        if (frame != null) {
+          // numbered by the order it goes on the wire
+          replay.append(frame);
+          writeStreamFrame(frame);
+        } else if (control == 0 && dirty) {
+          flush();
+        }
+      } finally {
+        writeLock.unlock();
+      }
+      if (origin != null) {
+        // no lock held, the origin takes the lock of its own link
+        origin.consumed(originId, cost);
+      }
+    }
+  }
+
+  private void loopReader(InputStream in) throws IOException {
+    FrameDecoder decoder = new FrameDecoder(in);
+    while (true) {
+      if (!decoder.next()) throw new EOFException("link closed.");
+      lastReceiveNanos = System.nanoTime();
+      int type = decoder.type();
+      ByteBuffer payload = decoder.payload();
+      int position = payload.position();
+      switch (type) {
+        case TYPE_PING: {
+          if (decoder.size() < 12) throw new IOException("bad ping frame.");
+          onAck(payload.getInt(position + 8));
+          pongTimestamp = payload.getLong(position);
+          scheduler.requestControl(CONTROL_PONG);
+          break;
+        }
+        case TYPE_PONG: {
+          if (decoder.size() < 12) throw new IOException("bad pong frame.");
+          onAck(payload.getInt(position + 8));
+          long sample = System.nanoTime() - payload.getLong(position);
+          long rtt = rttNanos;
+          rttNanos = rtt < 0 ? sample : rtt - (rtt >> 3) + (sample >> 3);
+          break;
+        }
+        case TYPE_ACK: {
+          if (decoder.size() < 4) throw new IOException("bad ack frame.");
+          onAck(payload.getInt(position));
+          break;
+        }
+        default: {
+          FrameCapture capture = this.capture;
+          if (capture != null) {
+            capture.received(decoder.connectionId(), type, payload);
+          }
+          if (type == TYPE_WINDOW) {
+            // numbered like stream frames, so it is replayed after a drop
+            if (decoder.size() < 4) throw new IOException("bad window frame.");
+            scheduler.credit(decoder.connectionId(), payload.getInt(position));
+          } else {
+            dispatching = true;
+            try {
+              handler.onFrame(decoder.connectionId(), type, payload);
+            } finally {
+              dispatching = false;
+            }
+          }
+          received++;
+          int unacked = received - receivedAcked;
+          if (unacked >= ACK_EVERY_FRAMES && unacked % ACK_EVERY_FRAMES == 0) {
+            scheduler.requestControl(CONTROL_ACK);
+          }
+          break;
+        }
+      }
+    }
+  }
+
+  private void onAck(int sequence) {
+    replay.ack(sequence);
+    // the writer may be waiting for room in the replay buffer
+    scheduler.signal();
+  }
+
+  // called with writeLock held
+  private void writeStreamFrame(Frame frame) {
+    if (encoder == null) return;
+    try {
+      if (received - receivedAcked >= ACK_EVERY_FRAMES) {
+        writeAckFrame();
+      }
+      encoder.write(frame.connectionId, frame.type, frame.buffer, 0, frame.size);
+      dirty = true;
+      FrameCapture capture = this.capture;
+      if (capture != null) {
+        capture.sent(frame.connectionId, frame.type, frame.buffer, 0, frame.size);
+      }
+    } catch (IOException e) {
+      // the frame stays in the replay buffer, the reader notices the broken socket
+      dropSocket();
+    }
+  }
+
+  // called with writeLock held
+  private void writeControl(int control) {
+    if (encoder == null) return;
+    try {
+      if ((control & CONTROL_PING) != 0) {
+        writeTimestampFrame(TYPE_PING, System.nanoTime());
+      }
+      if ((control & CONTROL_PONG) != 0) {
+        writeTimestampFrame(TYPE_PONG, pongTimestamp);
+      }
+      if ((control & CONTROL_ACK) != 0) {
+        writeAckFrame();
+      }
+      encoder.flush();
+      dirty = false;
+    } catch (IOException e) {
+      dropSocket();
+    }
+  }
+
+  // called with writeLock held
+  private void flush() {
+    if (encoder == null) return;
+    try {
+      encoder.flush();
+      dirty = false;
+    } catch (IOException e) {
+      dropSocket();
+    }
+  }
+
+  private void dropSocket() {
+    Util.closeQuietly(socket);
+    encoder = null;
+    dirty = false;
+  }
+
+  private void writeTimestampFrame(int type, long timestamp) throws IOException {
+    Util.putLong(controlBuffer, 0, timestamp);
+    int count = received;
+    Util.putInt(controlBuffer, 8, count);
+    encoder.write(CONTROL_CONNECTION_ID, type, controlBuffer, 0, 12);
+    receivedAcked = count;
+  }
+
+  private void writeAckFrame() throws IOException {
+    int count = received;
+    Util.putInt(controlBuffer, 0, count);
+    encoder.write(CONTROL_CONNECTION_ID, TYPE_ACK, controlBuffer, 0, 4);
+    receivedAcked = count;
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
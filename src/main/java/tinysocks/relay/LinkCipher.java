@@ -0,0 +1,318 @@
+package tinysocks.relay;
+
+import tinysocks.Util;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * AES-GCM encryption of the relay link.
+ * <p>
+ * Both ends send an ephemeral P-256 key in the HELLO. The ECDH secret goes through HKDF-SHA256
+ * salted with the shared secret both ends are configured with, so only ends knowing it derive
+ * the same keys. Each direction has its own key and a 12 byte nonce made of a 4 byte prefix
+ * and a record counter. A third key MACs the handshake transcript, see
+ * {@link #writeConfirmation}: neither end acts on the handshake before the peer proved it.
+ * <p>
+ * Everything the link writer flushes becomes one record: {@code [length][ciphertext][tag]}.
+ * Cipher objects and record buffers are created once per connection and reused.
+ */
+public final class LinkCipher {
+  public static final int NONE = 0;
+  public static final int AES_GCM = 1;
+
+  static final int MAX_RECORD_SIZE = 16 * 1024;
+  private static final int TAG_SIZE = 16;
+  private static final int KEY_SIZE = 32;
+  private static final int NONCE_PREFIX_SIZE = 4;
+  private static final int CONFIRMATION_SIZE = 32;
+  private static final byte[] INFO = "tinysocks link v1".getBytes(Util.ASCII);
+
+  private final KeyPair keyPair;
+  private final byte[] publicKey;
+  private byte[] material;
+  private int sendOffset;
+  private int receiveOffset;
+
+  private LinkCipher(KeyPair keyPair) {
+    this.keyPair = keyPair;
+    this.publicKey = keyPair.getPublic().getEncoded();
+  }
+
+  /**
+   * a fresh key pair, one per connection attempt.
+   */
+  public static LinkCipher newHandshake() throws IOException {
+    try {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+      generator.initialize(new ECGenParameterSpec("secp256r1"));
+      return new LinkCipher(generator.generateKeyPair());
+    } catch (GeneralSecurityException e) {
+      throw new IOException("EC key generation not available", e);
+    }
+  }
+
+  public static byte[] secretOf(String passphrase) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(passphrase.getBytes(Util.ASCII));
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e); //sha-256 is always there
+    }
+  }
+
+  public void writePublicKey(OutputStream out) throws IOException {
+    Util.writeShort(out, publicKey.length);
+    out.write(publicKey);
+  }
+
+  public static byte[] readPublicKey(InputStream in) throws IOException {
+    int length = Util.readUnsignedShort(in);
+    if (length > 1024) throw new IOException("bad public key.");
+    byte[] key = new byte[length];
+    if (Util.readNBytes(in, key, 0, length) < length) throw new EOFException();
+    return key;
+  }
+
+  /**
+   * derives the keys of this connection, call before wrapping the streams.
+   */
+  public void agree(byte[] secret, byte[] peerPublicKey, boolean client) throws IOException {
+    try {
+      PublicKey peer = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(peerPublicKey));
+      KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+      agreement.init(keyPair.getPrivate());
+      agreement.doPhase(peer, true);
+      byte[] shared = agreement.generateSecret();
+
+      byte[] clientKey = client ? publicKey : peerPublicKey;
+      byte[] serverKey = client ? peerPublicKey : publicKey;
+      material = hkdf(secret, shared, clientKey, serverKey, 2 * (KEY_SIZE + NONCE_PREFIX_SIZE) + KEY_SIZE);
+      int half = KEY_SIZE + NONCE_PREFIX_SIZE;
+      sendOffset = client ? 0 : half;
+      receiveOffset = client ? half : 0;
+    } catch (GeneralSecurityException e) {
+      throw new IOException("key exchange failed", e);
+    }
+  }
+
+  /**
+   * sends the HMAC of everything sent both ways so far, which only an end that knows the
+   * shared secret and took part in this exchange can compute. call after {@link #agree}.
+   *
+   * @param client whose confirmation this is, so one can not be reflected as the other
+   */
+  public void writeConfirmation(OutputStream out, byte[] transcript, boolean client) throws IOException {
+    out.write(confirmation(transcript, client));
+  }
+
+  /**
+   * reads the peer's confirmation and fails unless it matches the transcript.
+   */
+  public void verifyConfirmation(InputStream in, byte[] transcript, boolean client) throws IOException {
+    byte[] received = new byte[CONFIRMATION_SIZE];
+    if (Util.readNBytes(in, received, 0, received.length) < received.length) throw new EOFException();
+    if (!MessageDigest.isEqual(received, confirmation(transcript, client))) {
+      throw new IOException("handshake confirmation does not match, wrong secret?");
+    }
+  }
+
+  private byte[] confirmation(byte[] transcript, boolean client) throws IOException {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(material, 2 * (KEY_SIZE + NONCE_PREFIX_SIZE), KEY_SIZE, "HmacSHA256"));
+      mac.update((byte) (client ? 'C' : 'S'));
+      return mac.doFinal(transcript);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("HMAC-SHA256 not available", e);
+    }
+  }
+
+  public InputStream wrap(InputStream in) throws IOException {
+    try {
+      return new SecureInputStream(in, new Direction(material, receiveOffset));
+    } catch (GeneralSecurityException e) {
+      throw new IOException("AES-GCM not available", e);
+    }
+  }
+
+  public OutputStream wrap(OutputStream out) throws IOException {
+    try {
+      return new SecureOutputStream(out, new Direction(material, sendOffset));
+    } catch (GeneralSecurityException e) {
+      throw new IOException("AES-GCM not available", e);
+    }
+  }
+
+  private static byte[] hkdf(byte[] salt, byte[] ikm, byte[] clientKey, byte[] serverKey, int length)
+    throws GeneralSecurityException {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+    byte[] prk = mac.doFinal(ikm);
+    mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+    byte[] result = new byte[length];
+    byte[] block = new byte[0];
+    int filled = 0;
+    for (int counter = 1; filled < length; counter++) {
+      mac.update(block);
+      mac.update(INFO);
+      mac.update(clientKey);
+      mac.update(serverKey);
+      mac.update((byte) counter);
+      block = mac.doFinal();
+      int n = Math.min(block.length, length - filled);
+      System.arraycopy(block, 0, result, filled, n);
+      filled += n;
+    }
+    return result;
+  }
+
+  private static final class Direction {
+    final Cipher cipher;
+    final SecretKeySpec key;
+    final byte[] nonce = new byte[12];
+    long counter;
+
+    Direction(byte[] material, int offset) throws GeneralSecurityException {
+      this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      this.key = new SecretKeySpec(material, offset, KEY_SIZE, "AES");
+      System.arraycopy(material, offset + KEY_SIZE, nonce, 0, NONCE_PREFIX_SIZE);
+    }
+
+    void init(int mode) throws IOException {
+      Util.putLong(nonce, NONCE_PREFIX_SIZE, counter++);
+      try {
+        cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  static final class SecureOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final Direction direction;
+    private final byte[] plain = new byte[MAX_RECORD_SIZE];
+    private final byte[] record = new byte[4 + MAX_RECORD_SIZE + TAG_SIZE];
+    private int count;
+
+    SecureOutputStream(OutputStream out, Direction direction) {
+      this.out = out;
+      this.direction = direction;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == plain.length) seal();
+      plain[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == plain.length) seal();
+        int n = Math.min(len, plain.length - count);
+        System.arraycopy(b, off, plain, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (count > 0) seal();
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+
+    private void seal() throws IOException {
+      direction.init(Cipher.ENCRYPT_MODE);
+      int sealed;
+      try {
+        sealed = direction.cipher.doFinal(plain, 0, count, record, 4);
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+      Util.putInt(record, 0, sealed);
+      out.write(record, 0, 4 + sealed);
+      count = 0;
+    }
+  }
+
+  static final class SecureInputStream extends InputStream {
+    private final InputStream in;
+    private final Direction direction;
+    private final byte[] record = new byte[MAX_RECORD_SIZE + TAG_SIZE];
+    private final byte[] plain = new byte[MAX_RECORD_SIZE];
+    private final byte[] header = new byte[4];
+    private int position;
+    private int limit;
+
+    SecureInputStream(InputStream in, Direction direction) {
+      this.in = in;
+      this.direction = direction;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position == limit && !open()) return -1;
+      return plain[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (position == limit && !open()) return -1;
+      int n = Math.min(len, limit - position);
+      System.arraycopy(plain, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+
+    private boolean open() throws IOException {
+      do {
+        if (Util.readNBytes(in, header, 0, 4) < 4) return false;
+        int size = (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16 | (header[2] & 0xFF) << 8 | header[3] & 0xFF;
+        if (size < TAG_SIZE || size > record.length) throw new IOException("bad record size: " + size);
+        if (Util.readNBytes(in, record, 0, size) < size) throw new EOFException();
+        direction.init(Cipher.DECRYPT_MODE);
+        try {
+          limit = direction.cipher.doFinal(record, 0, size, plain, 0);
+        } catch (GeneralSecurityException e) {
+          throw new IOException("record authentication failed", e);
+        }
+        position = 0;
+      } while (limit == 0);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package tinysocks.relay;
+
+import tinysocks.annotation.Nullable;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide budget for the bytes relay streams hold in memory: the arrays of the
+ * {@link ByteArrayPool} from allocation until they are dropped, which covers the send queues,
+ * the replay buffers and pending egress writes, the unread frames of every {@link ReceiveRing}
+ * and the buffers of the blocking pipes.
+ * <p>
+ * pressure is the used share of the limit in four levels, and the per-stream send queue
+ * limits and receive windows shrink with it, see {@link #streamLimit(int)}: a burst slows the
+ * streams that hold the most instead of running the heap out. a stream with nothing queued may
+ * always queue one frame, so none starves; the receiving side never waits at all, it hands the
+ * peer less window instead. reservations beyond the limit are counted, not refused. under high
+ * pressure pools stop keeping arrays.
+ */
+public final class MemoryGovernor implements MemoryGovernorMXBean {
+  public static final int PRESSURE_NONE = 0;
+  public static final int PRESSURE_ELEVATED = 1;// half of the limit used
+  public static final int PRESSURE_HIGH = 2;// three quarters
+  public static final int PRESSURE_CRITICAL = 3;// 90%
+
+  // stream limits are divided by these at each pressure level
+  private static final int[] SHRINK = {1, 2, 8, 32};
+  private static final MemoryGovernor GLOBAL = new MemoryGovernor(defaultLimit());
+
+  private final AtomicLong used = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private volatile long limit;
+  @Nullable
+  private volatile ObjectName mbeanName;
+
+  public MemoryGovernor(long limitBytes) {
+    this.limit = limitBytes;
+  }
+
+  /**
+   * the budget every queue and pool of the process reserves from, half the maximum heap
+   * unless {@link #setLimit(long) set}.
+   */
+  public static MemoryGovernor global() {
+    return GLOBAL;
+  }
+
+  private static long defaultLimit() {
+    long heap = Runtime.getRuntime().maxMemory();
+    return heap == Long.MAX_VALUE ? 1024L * 1024 * 1024 : heap / 2;
+  }
+
+  public void setLimit(long limitBytes) {
+    this.limit = limitBytes;
+  }
+
+  /**
+   * counts bytes that are about to be allocated, even beyond the limit.
+   */
+  public void reserve(long bytes) {
+    used.addAndGet(bytes);
+  }
+
+  public void release(long bytes) {
+    used.addAndGet(-bytes);
+  }
+
+  /**
+   * whether {@code bytes} more would still be within the limit.
+   */
+  public boolean hasRoom(long bytes) {
+    return used.get() + bytes <= limit;
+  }
+
+  /**
+   * one of the {@code PRESSURE_} levels.
+   */
+  public int pressure() {
+    long used = this.used.get();
+    long limit = this.limit;
+    if (used < limit / 2) return PRESSURE_NONE;
+    if (used < limit - limit / 4) return PRESSURE_ELEVATED;
+    if (used < limit - limit / 10) return PRESSURE_HIGH;
+    return PRESSURE_CRITICAL;
+  }
+
+  /**
+   * what a stream may queue or have in flight now, out of {@code maxBytes} when there is no
+   * pressure.
+   */
+  public int streamLimit(int maxBytes) {
+    return maxBytes / SHRINK[pressure()];
+  }
+
+  /**
+   * counts a sender waiting for its stream queue to drain, shown in {@link #getWaits()}.
+   */
+  public void waited() {
+    waits.incrementAndGet();
+  }
+
+  @Override
+  public long getLimitBytes() {
+    return limit;
+  }
+
+  @Override
+  public long getUsedBytes() {
+    return used.get();
+  }
+
+  @Override
+  public int getPressure() {
+    return pressure();
+  }
+
+  @Override
+  public long getWaits() {
+    return waits.get();
+  }
+
+  /**
+   * registers the governor with the platform MBean server as
+   * {@code tinysocks:type=MemoryGovernor,name=<name>}.
+   */
+  public void registerMBean(String name) throws JMException {
+    ObjectName objectName = new ObjectName("tinysocks:type=MemoryGovernor,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    mbeanName = objectName;
+  }
+
+  public void unregisterMBean() {
+    ObjectName objectName = mbeanName;
+    if (objectName == null) return;
+    mbeanName = null;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException ignored) {
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryGovernor[used=" + getUsedBytes() + " limit=" + limit + " pressure=" + pressure()
+      + " waits=" + getWaits() + "]";
+  }
+}
@@ -0,0 +1,20 @@
+package tinysocks.relay;
+
+/**
+ * JMX view of a {@link MemoryGovernor}, see {@link MemoryGovernor#registerMBean(String)}.
+ */
+public interface MemoryGovernorMXBean {
+  long getLimitBytes();
+
+  long getUsedBytes();
+
+  /**
+   * 0 to 3, see {@link MemoryGovernor#PRESSURE_NONE} and the levels after it.
+   */
+  int getPressure();
+
+  /**
+   * times a sender waited because its stream had queued its share.
+   */
+  long getWaits();
+}
@@ -2,53 +2,127 @@ package tinysocks.relay;
 
 import tinysocks.Connection;
 import tinysocks.Endpoint;
-import tinysocks.Util;
 import tinysocks.annotation.Nullable;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
-public final class Protocol {
-  private static final int TYPE_DATA = 1;
-  private static final int TYPE_CONNECT = 2;
-  private static final int TYPE_CLOSE = 3;
+import static tinysocks.relay.Link.TYPE_CLOSE;
+import static tinysocks.relay.Link.TYPE_CONNECT;
+import static tinysocks.relay.Link.TYPE_DATA;
+
+public final class Protocol implements Link.Handler, StreamWindow {
+  public static final long DEFAULT_SESSION_TIMEOUT_MILLIS = 60 * 1000;
 
   private final AtomicInteger idGenerator = new AtomicInteger(1);
 
-  private final Socket socket;
-  private final InputStream in;
-  private final OutputStream out;
-  private boolean closed;
-  private final Object writeLock = new Object();
+  private final Link link;
+  private final StreamPriority priority;
+  private final long sessionTimeoutMillis;
+  private volatile boolean closed;
+  private int generation;// guarded by this, bumped on every attach
 
-  private final Map<Integer, RelayConnection> connections = new HashMap<>();
+  // each map guarded by itself
+  private final IntMap<RelayConnection> connections = new IntMap<>();
 
-  private final Map<Integer, RelayConnection> pendingConnections = new HashMap<>();
+  private final IntMap<RelayConnection> pendingConnections = new IntMap<>();
 
-  private final Thread readerThread;
+  // streams relayed frame by frame for a forwarding node, see forward()
+  private final IntMap<Link.Handler> forwards = new IntMap<>();
 
-  @SuppressWarnings("FieldCanBeLocal")
-  private final Runnable readerRunnable = new Runnable() {
-    @Override
-    public void run() {
-      try {
-        loopReader();
-      } catch (IOException e) {
-        close();
-      }
+  public Protocol(long sessionToken, StreamPriority priority) {
+    this(sessionToken, priority, Link.DEFAULT_REPLAY_BYTES, Link.DEFAULT_PING_INTERVAL_MILLIS, DEFAULT_SESSION_TIMEOUT_MILLIS);
+  }
+
+  public Protocol(long sessionToken, StreamPriority priority, int maxReplayBytes,
+                  long pingIntervalMillis, long sessionTimeoutMillis) {
+    this.link = new Link("Protocol", this, sessionToken, maxReplayBytes, pingIntervalMillis);
+    this.priority = priority;
+    this.sessionTimeoutMillis = sessionTimeoutMillis;
+  }
+
+  public long sessionToken() {
+    return link.sessionToken();
+  }
+
+  public int receivedCount() {
+    return link.receivedCount();
+  }
+
+  public boolean canResume(int peerReceived) {
+    return link.canResume(peerReceived);
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public void setCapture(@Nullable FrameCapture capture) {
+    link.setCapture(capture);
+  }
+
+  public long rttMillis() {
+    return link.rttMillis();
+  }
+
+  /**
+   * how long the session has been without a relay node, 0 while one is attached.
+   */
+  public long detachedMillis() {
+    return link.detachedMillis();
+  }
+
+  /**
+   * drops the current socket (if any) before the session is resumed on a new one.
+   */
+  public void detach() {
+    link.detach();
+  }
+
+  /**
+   * runs the link on the given socket. if it drops and no new socket is attached
+   * within the session timeout, the protocol and all its connections are closed.
+   */
+  public void attach(final Closeable socket, final InputStream in, final OutputStream out, final int peerReceived) {
+    final int attachGeneration;
+    synchronized (this) {
+      attachGeneration = ++generation;
+      notifyAll();
     }
-  };
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          link.run(socket, in, out, peerReceived);
+        } catch (IOException e) {
+          if (!closed) {
+            System.out.println("Relay node disconnected, waiting for it to resume.");
+          }
+        }
+        awaitResume(attachGeneration);
+      }
+    }, "Protocol-Reader");
+    reader.start();
+  }
 
-  public Protocol(Socket socket, InputStream in, OutputStream out) {
-    this.socket = socket;
-    this.in = in;
-    this.out = out;
-    this.readerThread = new Thread(readerRunnable, "Protocol-Reader");
-    this.readerThread.start();
+  private void awaitResume(int attachGeneration) {
+    synchronized (this) {
+      long deadline = System.currentTimeMillis() + sessionTimeoutMillis;
+      long remaining;
+      while (!closed && generation == attachGeneration && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        try {
+          wait(remaining);
+        } catch (InterruptedException ignored) {
+        }
+      }
+      if (closed || generation != attachGeneration) return;
+    }
+    close();
   }
 
   public Connection newConnection(Endpoint endpoint) {
@@ -58,111 +132,200 @@ public final class Protocol {
     synchronized (pendingConnections) {
       pendingConnections.put(newId, connection);
     }
+    if (closed) {
+      synchronized (pendingConnections) {
+        pendingConnections.remove(newId);
+      }
+      return null;
+    }
 
+    link.openStream(newId, priority.weightOf(endpoint));
     byte[] hostBytes = endpoint.toBytes();
-    sendPacket(newId, TYPE_CONNECT, hostBytes, 0, hostBytes.length);
+    try {
+      link.send(newId, TYPE_CONNECT, hostBytes, 0, hostBytes.length);
+    } catch (IOException e) {
+      synchronized (pendingConnections) {
+        pendingConnections.remove(newId);
+      }
+      link.closeStream(newId);
+      return null;
+    }
 
     boolean connected = connection.waitConnectResult();
-    if (connected) {
-      synchronized (connections) {
-        connections.put(newId, connection);
+    if (!connected) {
+      link.closeStream(newId);
+    }
+    return connected ? connection : null;
+  }
+
+  /**
+   * opens a stream without terminating it here: every frame the relay node sends on it
+   * (connect result, data, close) is handed to {@code handler} as it is read, and
+   * {@link #sendForward(int, int, byte[], int, int)} sends frames the other way. the handler
+   * must not block, and hands the window of the data back through {@link #consumed(int, int)}.
+   *
+   * @param endpoint the connect payload, see {@link Endpoint#toBytes()}
+   * @return the id of the stream on this link
+   */
+  public int forward(byte[] endpoint, int weight, Link.Handler handler) throws IOException {
+    if (closed) throw new IOException("protocol closed.");
+    int newId = idGenerator.getAndIncrement();
+    synchronized (forwards) {
+      forwards.put(newId, handler);
+    }
+    link.openStream(newId, weight);
+    try {
+      link.send(newId, TYPE_CONNECT, endpoint, 0, endpoint.length);
+    } catch (IOException e) {
+      synchronized (forwards) {
+        forwards.remove(newId);
       }
+      link.closeStream(newId);
+      throw e;
     }
+    return newId;
+  }
 
-    return connected ? connection : null;
-//    while (connection.connectState == 0) {
-//      try {
-//        //noinspection BusyWait
-//        Thread.sleep(Long.MAX_VALUE);
-//      } catch (InterruptedException ignored) {
-//      }
-//    }
-//    if(connection.connectState == 2) {
-//      synchronized (connections) {
-//        connections.remove(newId);
-//      }
-//    }
-//    return connection.connectState == 1 ? connection : null;
-  }
-
-  private void loopReader() throws IOException {
-    while (!closed) {
-      int connectionId = Util.readInt(in);
-      int type = in.read();
-      int size = Util.readUnsignedShort(in);
-//      System.out.println("received: id=" + connectionId + ",type=" + type + ", size=" + size);
-//      Util.logData("receive", connectionId, type, size);
-
-      @Nullable RelayConnection connection = connections.get(connectionId);
-      switch (type) {
-        case TYPE_CLOSE: {
-          connections.remove(connectionId);
-          if (connection != null) {
-            connection.close();
-          }
-          break;
+  public void sendForward(int connectionId, int type, @Nullable byte[] buffer, int offset, int size) throws IOException {
+    if (closed) throw new IOException("protocol closed.");
+    if (type == TYPE_CLOSE) {
+      synchronized (forwards) {
+        if (forwards.remove(connectionId) == null) return;
+      }
+    }
+    link.send(connectionId, type, buffer, offset, size);
+  }
+
+  /**
+   * forwards data of a stream received on another link, see {@link Link#forward}.
+   */
+  public void forwardData(int connectionId, byte[] buffer, int offset, int size, StreamWindow origin, int originId)
+    throws IOException {
+    if (closed) throw new IOException("protocol closed.");
+    link.forward(connectionId, buffer, offset, size, origin, originId);
+  }
+
+  @Override
+  public void consumed(int connectionId, int cost) {
+    link.consumed(connectionId, cost);
+  }
+
+  @Override
+  public void onFrame(int connectionId, int type, ByteBuffer payload) throws IOException {
+    Link.Handler forward;
+    synchronized (forwards) {
+      forward = forwards.isEmpty() ? null : forwards.get(connectionId);
+    }
+    if (forward != null) {
+      boolean failed = type == TYPE_CONNECT
+        && (!payload.hasRemaining() || payload.get(payload.position()) != RelayConnection.CONNECT_STATE_CONNECTED);
+      if (type == TYPE_CLOSE || failed) {
+        synchronized (forwards) {
+          forwards.remove(connectionId);
         }
-        case TYPE_CONNECT: {
-          synchronized (pendingConnections) {
-            RelayConnection conn = pendingConnections.remove(connectionId);
-            if(conn != null) conn.onConnectStateChanged(in.read());
-          }
-          break;
+        link.closeStream(connectionId);
+      }
+      forward.onFrame(connectionId, type, payload);
+      return;
+    }
+    switch (type) {
+      case TYPE_CLOSE: {
+        RelayConnection connection;
+        synchronized (connections) {
+          connection = connections.remove(connectionId);
+        }
+        link.closeStream(connectionId);
+        if (connection != null) {
+          connection.onRemoteClosed();
         }
-        case TYPE_DATA: {
-          byte[] buffer = ByteArrayPool.take(size);
-          Util.readNBytes(in, buffer, 0, size);
-          if(connection != null) {
-            connection.onDataReceived(buffer, size);
+        break;
+      }
+      case TYPE_CONNECT: {
+        int state = payload.hasRemaining() ? payload.get(payload.position()) : RelayConnection.CONNECT_STATE_FAILED;
+        RelayConnection conn;
+        synchronized (pendingConnections) {
+          conn = pendingConnections.remove(connectionId);
+        }
+        if (conn != null) {
+          // registered before waking the caller, data may follow right away
+          if (state == RelayConnection.CONNECT_STATE_CONNECTED) {
+            synchronized (connections) {
+              connections.put(connectionId, conn);
+            }
           }
-          break;
+          conn.onConnectStateChanged(state);
+        }
+        break;
+      }
+      case TYPE_DATA: {
+        RelayConnection connection;
+        synchronized (connections) {
+          connection = connections.get(connectionId);
+        }
+        if (connection != null && payload.hasRemaining()) {
+          connection.onDataReceived(payload);
         }
-        default:
-          break;
+        break;
       }
+      default:
+        break;
     }
   }
 
   public void write(RelayConnection connection, byte[] buffer, int offset, int count) throws IOException {
     if (closed) throw new IOException("connection closed.");
-    sendPacket(connection.connectionId(), TYPE_DATA, buffer, offset, count);
+    link.send(connection.connectionId(), TYPE_DATA, buffer, offset, count);
   }
 
   public void close(RelayConnection connection) {
     if (closed) return;
-    if (socket.isClosed()) {
-      close();
-      return;
+    RelayConnection removed;
+    synchronized (connections) {
+      removed = connections.remove(connection.connectionId());
     }
-    RelayConnection removed = connections.remove(connection.connectionId());
     if (removed != null) {
-      sendPacket(connection.connectionId(), TYPE_CLOSE, null, 0, 0);
+      try {
+        link.send(connection.connectionId(), TYPE_CLOSE, null, 0, 0);
+      } catch (IOException ignored) {
+      }
     }
   }
 
   public void close() {
-    closed = true;
-    Util.closeQuietly(socket);
-    System.out.println("Relay node disconnected.");
-  }
-
-  /**
-   * core send method, called frequently and concurrently
-   */
-  private void sendPacket(int connectionId, int type, byte[] buffer, int offset, int count) {
-    synchronized (writeLock) {
-//      Util.logData("send", connectionId, type, count);
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      notifyAll();
+    }
+    link.close();
+    List<RelayConnection> open;
+    synchronized (connections) {
+      open = connections.values();
+      connections.clear();
+    }
+    for (RelayConnection connection : open) {
+      connection.onRemoteClosed();
+    }
+    int[] ids;
+    List<Link.Handler> handlers;
+    synchronized (forwards) {
+      ids = forwards.keys();
+      handlers = forwards.values();
+      forwards.clear();
+    }
+    ByteBuffer empty = ByteBuffer.allocate(0);
+    for (int i = 0; i < ids.length; i++) {
       try {
-        Util.writeInt(out, connectionId);
-        out.write(type);
-        Util.writeShort(out, (short) count);// max count is 4096
-        if (count > 0) {
-          out.write(buffer, offset, count);
-        }
-        out.flush();
-      } catch (IOException e) {
-        close();
+        handlers.get(i).onFrame(ids[i], TYPE_CLOSE, empty);
+      } catch (IOException ignored) {
       }
     }
+    synchronized (pendingConnections) {
+      for (RelayConnection connection : pendingConnections.values()) {
+        connection.onConnectStateChanged(RelayConnection.CONNECT_STATE_FAILED);
+      }
+      pendingConnections.clear();
+    }
+    System.out.println("Relay node disconnected.");
   }
-}
\ No newline at end of file
+}
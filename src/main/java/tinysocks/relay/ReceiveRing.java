@@ -0,0 +1,185 @@
+package tinysocks.relay;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue between one producer (the link reader) and one consumer (the thread reading
+ * a stream). the producer copies each frame into an array of the {@link ByteArrayPool} and the
+ * consumer recycles it once read, so the steady state allocates nothing. a thread parks only
+ * when the ring is empty (consumer) or full (producer) and is unparked only if it announced
+ * that it waits.
+ * <p>
+ * the ring never waits on memory: the sender is held to the stream window, which shrinks with
+ * the pressure on the {@link MemoryGovernor}, see {@link Link#consumed(int, int)}, and a window
+ * fits in the slots. it holds no more than the unread frames of that window, an idle stream
+ * holds nothing; the arrays count against the budget as every pooled array does.
+ */
+public final class ReceiveRing {
+  // null once read or dropped; taking one out with getAndSet settles whether the consumer
+  // recycles it or close() drops it
+  private final AtomicReferenceArray<byte[]> buffers;
+  private final int[] sizes;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();// next slot to read
+  private final AtomicLong tail = new AtomicLong();// next slot to fill
+  private volatile Thread waitingConsumer;
+  private volatile Thread waitingProducer;
+  private volatile boolean finished;
+  private volatile boolean closed;
+  private int consumed;// of the head slot, consumer only
+  private int consumedCost;// window cost of the slots read, consumer only
+
+  /**
+   * @param slots rounded up to a power of two, each holds one frame
+   */
+  public ReceiveRing(int slots) {
+    int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+    this.buffers = new AtomicReferenceArray<>(size);
+    this.sizes = new int[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * copies the remaining bytes of {@code data} into the ring, waiting while it is full.
+   *
+   * @return false when the ring was closed and the data dropped
+   */
+  public boolean offer(ByteBuffer data) {
+    int size = data.remaining();
+    long t = tail.get();
+    while (isFull(t)) {
+      if (closed) return false;
+      waitingProducer = Thread.currentThread();
+      if (isFull(t) && !closed) {
+        LockSupport.park(this);
+      }
+      waitingProducer = null;
+    }
+    if (closed) return false;
+    int index = (int) t & mask;
+    byte[] buffer = ByteArrayPool.take(size);
+    data.get(buffer, 0, size);
+    sizes[index] = size;
+    buffers.lazySet(index, buffer);// published by the tail
+    tail.set(t + 1);
+    // closed meanwhile, close() may have swept the slots before this one was filled
+    if (closed) drop(index);
+    Thread consumer = waitingConsumer;
+    if (consumer != null) {
+      LockSupport.unpark(consumer);
+    }
+    return true;
+  }
+
+  private boolean isFull(long t) {
+    return t - head.get() > mask;
+  }
+
+  private void drop(int index) {
+    byte[] buffer = buffers.getAndSet(index, null);
+    if (buffer != null) ByteArrayPool.drop(buffer);
+  }
+
+  /**
+   * copies as many queued bytes as fit, across slots, waiting while the ring is empty.
+   *
+   * @return -1 once the ring is finished and drained, or closed
+   */
+  public int read(byte[] b, int off, int len) {
+    long h = head.get();
+    while (h == tail.get()) {
+      if (closed) return -1;
+      if (finished) {
+        if (h == tail.get()) return -1;
+        break;// offered right before finishing
+      }
+      waitingConsumer = Thread.currentThread();
+      if (h == tail.get() && !closed && !finished) {
+        LockSupport.park(this);
+      }
+      waitingConsumer = null;
+    }
+    if (closed) return -1;
+    return copy(b, off, len);
+  }
+
+  /**
+   * like {@link #read(byte[], int, int)} without waiting, 0 when the ring is empty.
+   * the caller must be the only consumer at that time.
+   */
+  public int poll(byte[] b, int off, int len) {
+    if (closed) return -1;
+    return copy(b, off, len);
+  }
+
+  private int copy(byte[] b, int off, int len) {
+    long h = head.get();
+    long available = tail.get();
+    int copied = 0;
+    while (copied < len && h != available) {
+      int index = (int) h & mask;
+      byte[] buffer = buffers.get(index);
+      if (buffer == null) break;// dropped by close()
+      int n = Math.min(sizes[index] - consumed, len - copied);
+      System.arraycopy(buffer, consumed, b, off + copied, n);
+      copied += n;
+      consumed += n;
+      if (consumed == sizes[index]) {
+        consumed = 0;
+        consumedCost += Link.windowCost(sizes[index]);
+        buffer = buffers.getAndSet(index, null);
+        if (buffer != null) ByteArrayPool.recycle(buffer);
+        h++;
+      }
+    }
+    if (copied == 0 && closed) return -1;
+    if (h != head.get()) {
+      head.set(h);
+      Thread producer = waitingProducer;
+      if (producer != null) {
+        LockSupport.unpark(producer);
+      }
+    }
+    return copied;
+  }
+
+  /**
+   * the {@link Link#windowCost(int)} of the frames read since the last call, for the stream to
+   * hand back. consumer only.
+   */
+  public int takeConsumedCost() {
+    int cost = consumedCost;
+    consumedCost = 0;
+    return cost;
+  }
+
+  /**
+   * no more data will be offered, the consumer sees the end once the ring is drained.
+   */
+  public void finish() {
+    finished = true;
+    wakeUp();
+  }
+
+  /**
+   * drops queued data and wakes both sides. the arrays are not recycled, the consumer may still
+   * be copying from one.
+   */
+  public void close() {
+    closed = true;
+    for (int i = 0; i <= mask; i++) {
+      drop(i);
+    }
+    wakeUp();
+  }
+
+  private void wakeUp() {
+    Thread thread = waitingConsumer;
+    if (thread != null) LockSupport.unpark(thread);
+    thread = waitingProducer;
+    if (thread != null) LockSupport.unpark(thread);
+  }
+}
@@ -6,27 +6,36 @@ import tinysocks.Endpoint;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.ByteBuffer;
 
-final class RelayConnection implements Connection {
-  private static final int CONNECT_STATE_UNKNOWN = 0;
-  private static final int CONNECT_STATE_CONNECTED = 1;
-  private static final int CONNECT_STATE_FAILED = 2;
+final class RelayConnection implements Connection, Connection.Pushing {
+  static final int CONNECT_STATE_UNKNOWN = 0;
+  static final int CONNECT_STATE_CONNECTED = 1;
+  static final int CONNECT_STATE_FAILED = 2;
 
-  public static final int MAX_QUEUE_BYTES = 2 * 1024 * 1024;// 2MB
+  // the most frames a stream window holds
+  private static final int RECEIVE_SLOTS = Link.STREAM_WINDOW / Link.MIN_FRAME_COST;
 
   private final Protocol protocol;
   private final int connectionId;
   private final Endpoint endpoint;
-  private boolean closed = false;
+  private volatile boolean closed = false;
+  private volatile boolean remoteClosed = false;
   private volatile Thread readThread;
   private volatile int connectState = 0;// 0: response not received yet, 1: connected, 2: failed.
-  private final Queue<ReceivedData> receiveQueue = new LinkedList<>();
-
-  private int queueBytes = 0;
-
-  private volatile Thread receiveThread;
+  private final ReceiveRing receiveRing = new ReceiveRing(RECEIVE_SLOTS);
+
+  // push mode: once the ring is drained, frames go from the link read buffer to the sink
+  private final Object pushLock = new Object();
+  private volatile Connection.Sink sink;
+  private volatile boolean pushing;
+  private boolean closeDelivered;// guarded by pushLock
+  private byte[] drainBuffer;// guarded by pushLock
+  // what a paused sink left of the drain buffer, read before the ring. the sink owner's
+  // reading thread starts after it is set
+  private byte[] leftover;
+  private int leftoverOffset;
+  private int leftoverEnd;
 
   RelayConnection(Protocol protocol, int connectionId, Endpoint endpoint) {
     this.protocol = protocol;
@@ -43,6 +52,73 @@ final class RelayConnection implements Connection {
     if (closed) return;
     closed = true;
     protocol.close(this);
+    receiveRing.close();
+  }
+
+  /**
+   * the relay node closed the stream or the link is gone, pending data can still be read.
+   */
+  void onRemoteClosed() {
+    remoteClosed = true;
+    receiveRing.finish();
+    if (sink != null) {
+      drain();
+    }
+  }
+
+  @Override
+  public void push(Connection.Sink sink) {
+    this.sink = sink;
+    drain();
+  }
+
+  // hands what the ring holds to the sink, then switches to direct delivery
+  private void drain() {
+    synchronized (pushLock) {
+      Connection.Sink sink = this.sink;
+      if (sink == null) return;// paused meanwhile
+      if (drainBuffer == null) {
+        drainBuffer = new byte[16 * 1024];
+      }
+      int n;
+      while ((n = receiveRing.poll(drainBuffer, 0, drainBuffer.length)) > 0) {
+        int taken = deliver(sink, drainBuffer, 0, n);
+        if (taken < 0) return;
+        protocol.consumed(connectionId, receiveRing.takeConsumedCost());
+        if (taken < n) {
+          leftover = drainBuffer;
+          leftoverOffset = taken;
+          leftoverEnd = n;
+          drainBuffer = null;
+          pause(sink);
+          return;
+        }
+      }
+      if (n < 0) return;// closed locally
+      pushing = true;
+      if (remoteClosed && !closeDelivered) {
+        closeDelivered = true;
+        sink.onClosed(null);
+      }
+    }
+  }
+
+  // with pushLock held. the reader of the sink owner takes over from the ring
+  private void pause(Connection.Sink sink) {
+    pushing = false;
+    this.sink = null;
+    sink.onPaused();
+  }
+
+  // the bytes the sink took, -1 when it failed and the connection is closed
+  private int deliver(Connection.Sink sink, byte[] buffer, int offset, int size) {
+    try {
+      return sink.onData(buffer, offset, size);
+    } catch (IOException e) {
+      close();
+      sink.onClosed(e);
+      return -1;
+    }
   }
 
   @Override
@@ -71,31 +147,19 @@ final class RelayConnection implements Connection {
 
       @Override
       public int read(byte[] b, int off, int len) {
-        synchronized (receiveQueue) {
-          readThread = Thread.currentThread();
-          while (receiveQueue.isEmpty()) {
-            try {
-              receiveQueue.wait();
-            } catch (InterruptedException ignored) {
-            }
-          }
-          readThread = null;
-          ReceivedData data = receiveQueue.peek();
-          int copied = Math.min(data.size - data.consumed, len);
-          System.arraycopy(data.buffer, data.consumed, b, off, copied);
-          // update state
-          queueBytes -= copied;
-          data.consumed += copied;
-          if (data.consumed >= data.size) {
-            receiveQueue.poll();
-            ByteArrayPool.recycle(data.buffer);
-          }
-          // if receiveThread is waiting，notify it
-          if (receiveThread != null) {
-            receiveQueue.notify();
-          }
-          return copied;
+        if (leftover != null) {
+          int n = Math.min(len, leftoverEnd - leftoverOffset);
+          System.arraycopy(leftover, leftoverOffset, b, off, n);
+          leftoverOffset += n;
+          if (leftoverOffset == leftoverEnd) leftover = null;
+          return n;
+        }
+        int read = receiveRing.read(b, off, len);
+        int cost = receiveRing.takeConsumedCost();
+        if (cost > 0) {
+          protocol.consumed(connectionId, cost);
         }
+        return read;
       }
     };
   }
@@ -110,6 +174,7 @@ final class RelayConnection implements Connection {
 
       @Override
       public void write(byte[] b, int off, int len) throws IOException {
+        if (closed || remoteClosed) throw new IOException("connection closed.");
         protocol.write(RelayConnection.this, b, off, len);
       }
 
@@ -120,22 +185,38 @@ final class RelayConnection implements Connection {
     };
   }
 
-  public void onDataReceived(byte[] buffer, int size) {
-    synchronized (receiveQueue) {
-      while (queueBytes + size > MAX_QUEUE_BYTES) {// receive queue is full, consumer thread are slow
-        try {
-          receiveThread = Thread.currentThread();
-          receiveQueue.wait();
-        } catch (InterruptedException ignored) {
+  /**
+   * called on the link reader. queued until read, or handed to the sink right away in push
+   * mode; what the sink can not take without blocking is queued and pauses it.
+   */
+  public void onDataReceived(ByteBuffer payload) {
+    if (pushing) {
+      synchronized (pushLock) {
+        if (pushing) {
+          if (!closed) push(payload);
+          return;
         }
       }
-      receiveThread = null;
-      ReceivedData data = new ReceivedData(buffer, size);
-      queueBytes += size;
-      receiveQueue.offer(data);
-      if (readThread != null) {
-        receiveQueue.notify();
-      }
+    }
+    receiveRing.offer(payload);
+    if (sink != null) {
+      drain();
+    }
+  }
+
+  // with pushLock held
+  private void push(ByteBuffer payload) {
+    Connection.Sink sink = this.sink;
+    int size = payload.remaining();
+    int taken = deliver(sink, payload.array(), payload.arrayOffset() + payload.position(), size);
+    if (taken == size) {
+      protocol.consumed(connectionId, Link.windowCost(size));
+    } else if (taken >= 0) {
+      // the window of the rest comes back as the ring is read
+      payload.position(payload.position() + taken);
+      receiveRing.offer(payload);
+      protocol.consumed(connectionId, Link.windowCost(size) - Link.windowCost(size - taken));
+      pause(sink);
     }
   }
 
@@ -158,16 +239,4 @@ final class RelayConnection implements Connection {
       readThread.interrupt();
     }
   }
-
-  private static class ReceivedData {
-    byte[] buffer;
-    int size;
-    int consumed;
-
-    public ReceivedData(byte[] buffer, int size) {
-      this.buffer = buffer;
-      this.size = size;
-      this.consumed = 0;
-    }
-  }
-}
\ No newline at end of file
+}
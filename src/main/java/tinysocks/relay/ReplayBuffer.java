@@ -0,0 +1,72 @@
+package tinysocks.relay;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps sequenced frames until the peer acknowledges them, so they can be
+ * written again after the link has been re-established.
+ */
+final class ReplayBuffer {
+  private final int maxBytes;
+  private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+  private int acked;// sequence of the last frame the peer has received
+  private int bytes;
+
+  ReplayBuffer(int maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * takes ownership of the frame.
+   */
+  synchronized void append(Frame frame) {
+    frames.add(frame);
+    bytes += frame.size;
+  }
+
+  synchronized void ack(int sequence) {
+    while (sequence - acked > 0 && !frames.isEmpty()) {
+      Frame frame = frames.poll();
+      acked++;
+      bytes -= frame.size;
+      frame.recycle();
+    }
+  }
+
+  /**
+   * an empty buffer always accepts a frame.
+   */
+  synchronized boolean hasSpace(int size) {
+    return bytes == 0 || bytes + size <= maxBytes;
+  }
+
+  synchronized boolean canResume(int peerReceived) {
+    int missing = peerReceived - acked;
+    return missing >= 0 && missing <= frames.size();
+  }
+
+  synchronized int bytes() {
+    return bytes;
+  }
+
+  synchronized void writeTo(FrameEncoder encoder) throws IOException {
+    for (Frame frame : frames) {
+      encoder.write(frame.connectionId, frame.type, frame.buffer, 0, frame.size);
+    }
+    encoder.flush();
+  }
+
+  synchronized void reset() {
+    clear();
+    acked = 0;
+  }
+
+  private void clear() {
+    for (Frame frame : frames) {
+      frame.recycle();
+    }
+    frames.clear();
+    bytes = 0;
+  }
+}
@@ -0,0 +1,370 @@
+package tinysocks.relay;
+
+import tinysocks.Util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Link transport for a relay server and a relay node on the same host: two single producer,
+ * single consumer byte rings in one memory mapped file, one per direction, carrying the same
+ * bytes a socket would. a frame costs two copies and no system call.
+ * <p>
+ * there is no futex to wake the other process with, so a side waiting for data or room spins,
+ * then yields, then parks for doubling intervals up to {@link #MAX_PARK_NANOS}; busy links
+ * never park, an idle reader wakes a few thousand times per second.
+ * <p>
+ * the relay server {@link #listen(File, int)}s on the file and owns its layout. a node
+ * {@link #connect(File, int)}s by bumping the requested generation; the server resets the
+ * rings and accepts it. a transport is closed once either side closes it or a newer one is
+ * accepted, so a node that reconnects never reads what was left in the rings.
+ * <p>
+ * positions are plain longs in the mapping. a volatile write between writing the data and
+ * publishing its position, and a volatile read between reading a position and the data, keep
+ * the accesses to the mapping in order on both sides.
+ * <pre>
+ *   0 int  magic, 4 int version, 8 int ring size
+ *  64 long generation requested by the node
+ * 128 long generation accepted by the server
+ * 192 long generation closed by either side
+ * 256 ring node to server: 256 long write position, 320 long read position, 384 data
+ *     ring server to node: the same layout right after the first ring's data
+ * </pre>
+ */
+public final class SharedMemoryTransport implements Closeable {
+  public static final int DEFAULT_RING_SIZE = 1024 * 1024;
+  static final long MAX_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  private static final int MAGIC = 0x5453534D;// TSSM
+  private static final int VERSION = 1;
+  private static final int RING_SIZE = 8;
+  private static final int REQUESTED = 64;
+  private static final int ACCEPTED = 128;
+  private static final int CLOSED = 192;
+  private static final int RINGS = 256;
+  private static final int RING_HEADER_SIZE = 128;
+  // spinning on one core only holds up the other side
+  private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+  private static final int YIELDS = 50;
+
+  private static volatile int fence;
+
+  private final MappedByteBuffer mapping;
+  private final long generation;
+  private final Ring input;
+  private final Ring output;
+  private final Object readLock = new Object();
+  private final Object writeLock = new Object();
+  private volatile boolean closed;
+  private volatile int soTimeoutMillis;
+
+  private final InputStream inputStream = new InputStream() {
+    private final byte[] single = new byte[1];
+
+    @Override
+    public int read() throws IOException {
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int size) throws IOException {
+      return SharedMemoryTransport.this.read(buffer, offset, size);
+    }
+
+    @Override
+    public void close() {
+      SharedMemoryTransport.this.close();
+    }
+  };
+
+  private final OutputStream outputStream = new OutputStream() {
+    private final byte[] single = new byte[1];
+
+    @Override
+    public void write(int b) throws IOException {
+      single[0] = (byte) b;
+      write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int size) throws IOException {
+      SharedMemoryTransport.this.write(buffer, offset, size);
+    }
+
+    @Override
+    public void close() {
+      SharedMemoryTransport.this.close();
+    }
+  };
+
+  private SharedMemoryTransport(MappedByteBuffer mapping, long generation, boolean server) {
+    this.mapping = mapping;
+    this.generation = generation;
+    int ringSize = mapping.getInt(RING_SIZE);
+    Ring toServer = new Ring(mapping, RINGS, ringSize);
+    Ring toNode = new Ring(mapping, RINGS + RING_HEADER_SIZE + ringSize, ringSize);
+    this.input = server ? toServer : toNode;
+    this.output = server ? toNode : toServer;
+  }
+
+  /**
+   * creates or takes over the file for a relay server.
+   *
+   * @param ringSize bytes per direction, rounded up to a power of two
+   */
+  public static Server listen(File file, int ringSize) throws IOException {
+    return new Server(file, Integer.highestOneBit(Math.max(4096, ringSize) - 1) << 1);
+  }
+
+  /**
+   * connects a relay node to the server listening on the file.
+   */
+  public static SharedMemoryTransport connect(File file, int timeoutMillis) throws IOException {
+    if (!file.isFile()) throw new IOException("no relay server on " + file);
+    MappedByteBuffer mapping = map(file, 0);
+    if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+      throw new IOException("no relay server on " + file);
+    }
+    long generation = mapping.getLong(REQUESTED) + 1;
+    mapping.putLong(REQUESTED, generation);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    for (int attempt = 0; mapping.getLong(ACCEPTED) != generation; attempt++) {
+      if (System.nanoTime() - deadline > 0) throw new IOException("relay server on " + file + " did not answer");
+      pause(attempt, TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    return new SharedMemoryTransport(mapping, generation, false);
+  }
+
+  /**
+   * sets the read timeout of a socket or of this transport, 0 waits forever.
+   */
+  public static void setSoTimeout(Closeable transport, int millis) throws IOException {
+    if (transport instanceof Socket) {
+      ((Socket) transport).setSoTimeout(millis);
+    } else if (transport instanceof SharedMemoryTransport) {
+      ((SharedMemoryTransport) transport).soTimeoutMillis = millis;
+    }
+  }
+
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  public boolean isClosed() {
+    return closed || mapping.getLong(CLOSED) == generation || mapping.getLong(ACCEPTED) != generation;
+  }
+
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+    // waiting readers and writers give up, the ones copying finish before the locks are free
+    synchronized (readLock) {
+      synchronized (writeLock) {
+        if (mapping.getLong(ACCEPTED) == generation) {
+          mapping.putLong(CLOSED, generation);
+        }
+      }
+    }
+  }
+
+  private int read(byte[] buffer, int offset, int size) throws IOException {
+    if (size == 0) return 0;
+    synchronized (readLock) {
+      long deadline = soTimeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(soTimeoutMillis) : 0;
+      long available;
+      for (int attempt = 0; (available = input.available()) == 0; attempt++) {
+        if (isClosed()) return -1;
+        if (deadline != 0 && System.nanoTime() - deadline > 0) throw new SocketTimeoutException("read timed out");
+        pause(attempt, MAX_PARK_NANOS);
+      }
+      if (isClosed()) return -1;
+      return input.read(buffer, offset, (int) Math.min(size, available));
+    }
+  }
+
+  private void write(byte[] buffer, int offset, int size) throws IOException {
+    synchronized (writeLock) {
+      while (size > 0) {
+        long room;
+        for (int attempt = 0; (room = output.room()) == 0; attempt++) {
+          if (isClosed()) throw new IOException("transport closed.");
+          pause(attempt, MAX_PARK_NANOS);
+        }
+        if (isClosed()) throw new IOException("transport closed.");
+        int chunk = (int) Math.min(size, room);
+        output.write(buffer, offset, chunk);
+        offset += chunk;
+        size -= chunk;
+      }
+    }
+  }
+
+  private static void pause(int attempt, long maxParkNanos) {
+    if (attempt < SPINS) return;
+    if (attempt < SPINS + YIELDS) {
+      Thread.yield();
+      return;
+    }
+    int doublings = Math.min(attempt - SPINS - YIELDS, 20);
+    LockSupport.parkNanos(Math.min(maxParkNanos, 1000L << doublings));
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (size > 0) {
+        raf.setLength(size);
+      } else {
+        size = raf.length();
+        if (size < RINGS) throw new IOException("no relay server on " + file);
+      }
+      // the mapping stays valid after the file is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      Util.closeQuietly(raf);
+    }
+  }
+
+  // one direction: only one side writes data and the write position, the other the read position
+  private static final class Ring {
+    private final MappedByteBuffer mapping;
+    private final int writePosition;
+    private final int readPosition;
+    private final ByteBuffer data;
+    private final int size;
+
+    Ring(MappedByteBuffer mapping, int offset, int size) {
+      this.mapping = mapping;
+      this.writePosition = offset;
+      this.readPosition = offset + 64;
+      this.size = size;
+      ByteBuffer view = mapping.duplicate();
+      view.position(offset + RING_HEADER_SIZE);
+      view.limit(offset + RING_HEADER_SIZE + size);
+      this.data = view.slice();
+    }
+
+    void reset() {
+      mapping.putLong(writePosition, 0);
+      mapping.putLong(readPosition, 0);
+    }
+
+    long available() {
+      long available = mapping.getLong(writePosition) - mapping.getLong(readPosition);
+      int ignored = fence;// the data is read after its position
+      return available;
+    }
+
+    long room() {
+      long room = size - (mapping.getLong(writePosition) - mapping.getLong(readPosition));
+      int ignored = fence;// the space is written after it was freed
+      return room;
+    }
+
+    int read(byte[] buffer, int offset, int count) {
+      long position = mapping.getLong(readPosition);
+      int index = (int) (position & (size - 1));
+      int first = Math.min(count, size - index);
+      data.position(index);
+      data.get(buffer, offset, first);
+      if (first < count) {
+        data.position(0);
+        data.get(buffer, offset + first, count - first);
+      }
+      fence = 0;// the data is read before the space is handed back
+      mapping.putLong(readPosition, position + count);
+      return count;
+    }
+
+    void write(byte[] buffer, int offset, int count) {
+      long position = mapping.getLong(writePosition);
+      int index = (int) (position & (size - 1));
+      int first = Math.min(count, size - index);
+      data.position(index);
+      data.put(buffer, offset, first);
+      if (first < count) {
+        data.position(0);
+        data.put(buffer, offset + first, count - first);
+      }
+      fence = 0;// the data is written before it is published
+      mapping.putLong(writePosition, position + count);
+    }
+  }
+
+  /**
+   * The relay server side of the file, accepts one node at a time.
+   */
+  public static final class Server implements Closeable {
+    private final File file;
+    private final MappedByteBuffer mapping;
+    private volatile boolean closed;
+    private SharedMemoryTransport current;
+
+    private Server(File file, int ringSize) throws IOException {
+      this.file = file;
+      this.mapping = map(file, RINGS + 2 * (RING_HEADER_SIZE + ringSize));
+      for (int i = 0; i < RINGS + 2 * RING_HEADER_SIZE; i += 8) {
+        mapping.putLong(i, 0);
+      }
+      mapping.putInt(RING_SIZE, ringSize);
+      mapping.putInt(4, VERSION);
+      fence = 0;// the layout is complete before nodes see the magic
+      mapping.putInt(0, MAGIC);
+    }
+
+    public File file() {
+      return file;
+    }
+
+    /**
+     * waits for a node to connect.
+     */
+    public SharedMemoryTransport accept() throws IOException {
+      long accepted = mapping.getLong(ACCEPTED);
+      for (int attempt = 0; !closed; attempt++) {
+        long requested = mapping.getLong(REQUESTED);
+        if (requested <= accepted) {
+          pause(attempt, TimeUnit.MILLISECONDS.toNanos(10));
+          continue;
+        }
+        if (current != null) {
+          // its threads must not touch the rings once they are reset
+          current.close();
+        }
+        SharedMemoryTransport transport = new SharedMemoryTransport(mapping, requested, true);
+        transport.input.reset();
+        transport.output.reset();
+        fence = 0;
+        mapping.putLong(ACCEPTED, requested);
+        current = transport;
+        return transport;
+      }
+      throw new IOException("shared memory server closed.");
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      if (current != null) {
+        current.close();
+      }
+      mapping.putInt(0, 0);
+    }
+  }
+}
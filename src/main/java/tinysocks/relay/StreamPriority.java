@@ -0,0 +1,44 @@
+package tinysocks.relay;
+
+import tinysocks.Endpoint;
+
+/**
+ * Weight of a stream on the relay link. a stream with weight 4 gets four times the
+ * bandwidth of a weight 1 stream when both have data queued.
+ */
+public interface StreamPriority {
+  int MAX_WEIGHT = 64;
+
+  int weightOf(Endpoint endpoint);
+
+  StreamPriority UNIFORM = new StreamPriority() {
+    @Override
+    public int weightOf(Endpoint endpoint) {
+      return 1;
+    }
+  };
+
+  /**
+   * interactive protocols (ssh, dns, remote desktop) first, then web, then everything else.
+   */
+  StreamPriority BY_PORT = new StreamPriority() {
+    @Override
+    public int weightOf(Endpoint endpoint) {
+      switch (endpoint.port) {
+        case 22:
+        case 23:
+        case 53:
+        case 3389:
+        case 5900:
+          return 8;
+        case 80:
+        case 443:
+        case 8080:
+        case 8443:
+          return 4;
+        default:
+          return 1;
+      }
+    }
+  };
+}
@@ -0,0 +1,12 @@
+package tinysocks.relay;
+
+/**
+ * The receiving end of stream windows, see {@link Link#STREAM_WINDOW}.
+ */
+public interface StreamWindow {
+  /**
+   * the receiver of a stream is done with {@code cost} of its window, the sum of
+   * {@link Link#windowCost(int)} of the frames it consumed.
+   */
+  void consumed(int connectionId, int cost);
+}
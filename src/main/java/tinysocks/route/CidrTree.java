@@ -0,0 +1,101 @@
+package tinysocks.route;
+
+import tinysocks.Connection;
+import tinysocks.annotation.Nullable;
+
+/**
+ * IPv4 prefixes in a path compressed binary radix tree, a lookup walks at most
+ * one node per distinct prefix length on the way and returns the longest match.
+ */
+final class CidrTree {
+  @Nullable
+  private Node root;
+  private int size;
+
+  void put(int prefix, int length, Connection.Factory target) {
+    root = insert(root, prefix & mask(length), length, target);
+  }
+
+  @Nullable
+  Connection.Factory match(int ip) {
+    Connection.Factory best = null;
+    Node node = root;
+    while (node != null) {
+      if (((ip ^ node.prefix) & mask(node.length)) != 0) break;
+      if (node.target != null) best = node.target;
+      if (node.length == 32) break;
+      node = bitAt(ip, node.length) == 0 ? node.left : node.right;
+    }
+    return best;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private Node insert(@Nullable Node node, int prefix, int length, Connection.Factory target) {
+    if (node == null) {
+      size++;
+      return new Node(prefix, length, target);
+    }
+    int common = Math.min(Math.min(node.length, length), Integer.numberOfLeadingZeros(node.prefix ^ prefix));
+    if (common == node.length && common == length) {
+      if (node.target == null) size++;
+      node.target = target;
+      return node;
+    }
+    if (common == node.length) {// the new prefix goes below this node
+      if (bitAt(prefix, common) == 0) {
+        node.left = insert(node.left, prefix, length, target);
+      } else {
+        node.right = insert(node.right, prefix, length, target);
+      }
+      return node;
+    }
+    Node parent;
+    if (common == length) {// the new prefix covers this node
+      size++;
+      parent = new Node(prefix, length, target);
+    } else {// split at the first differing bit
+      parent = new Node(prefix & mask(common), common, null);
+      Node leaf = new Node(prefix, length, target);
+      size++;
+      if (bitAt(prefix, common) == 0) {
+        parent.left = leaf;
+      } else {
+        parent.right = leaf;
+      }
+    }
+    if (bitAt(node.prefix, common) == 0) {
+      parent.left = node;
+    } else {
+      parent.right = node;
+    }
+    return parent;
+  }
+
+  private static int mask(int length) {
+    return length == 0 ? 0 : -1 << (32 - length);
+  }
+
+  private static int bitAt(int value, int index) {
+    return (value >>> (31 - index)) & 1;
+  }
+
+  private static final class Node {
+    final int prefix;
+    final int length;
+    @Nullable
+    Connection.Factory target;
+    @Nullable
+    Node left;
+    @Nullable
+    Node right;
+
+    Node(int prefix, int length, @Nullable Connection.Factory target) {
+      this.prefix = prefix;
+      this.length = length;
+      this.target = target;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package tinysocks.route;
+
+import tinysocks.Connection;
+import tinysocks.annotation.Nullable;
+
+import java.util.HashMap;
+
+/**
+ * Domain suffixes keyed by their labels in reverse order, {@code www.example.com} is
+ * stored as com -> example -> www. a rule matches the domain itself and all its subdomains,
+ * the longest matching suffix wins.
+ */
+final class DomainTrie {
+  private final Node root = new Node();
+  private int size;
+
+  void put(String domain, Connection.Factory target) {
+    Node node = root;
+    int end = domain.length();
+    while (end > 0) {
+      int dot = domain.lastIndexOf('.', end - 1);
+      String label = domain.substring(dot + 1, end);
+      end = dot;
+      if (label.isEmpty()) continue;
+      if (node.children == null) {
+        node.children = new HashMap<>(4);
+      }
+      Node child = node.children.get(label);
+      if (child == null) {
+        child = new Node();
+        node.children.put(label, child);
+      }
+      node = child;
+    }
+    if (node.target == null) size++;
+    node.target = target;
+  }
+
+  /**
+   * @param hostname lower case
+   */
+  @Nullable
+  Connection.Factory match(String hostname) {
+    Node node = root;
+    Connection.Factory best = root.target;
+    int end = hostname.length();
+    if (end > 0 && hostname.charAt(end - 1) == '.') end--;// fully qualified
+    while (end > 0 && node.children != null) {
+      int dot = hostname.lastIndexOf('.', end - 1);
+      node = node.children.get(hostname.substring(dot + 1, end));
+      if (node == null) break;
+      if (node.target != null) best = node.target;
+      end = dot;
+    }
+    return best;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private static final class Node {
+    @Nullable
+    HashMap<String, Node> children;
+    @Nullable
+    Connection.Factory target;
+  }
+}
@@ -0,0 +1,148 @@
+package tinysocks.route;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.NoRelay;
+import tinysocks.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Connection factory picking another factory per destination, e.g. intranet and CDN
+ * destinations direct and everything else through a {@link tinysocks.TinyRelay}:
+ * <pre>
+ * Connection.Factory direct = NoRelay.connectionFactory();
+ * Router router = new Router.Builder()
+ *   .rules(new RuleSet.Builder()
+ *     .cidr("10.0.0.0/8", direct)
+ *     .domain("corp.example.com", direct)
+ *     .build())
+ *   .fallback(relay.connectionFactory())
+ *   .build();
+ * </pre>
+ * recent decisions are kept in a small LRU cache. {@link #setRules(RuleSet)} swaps the
+ * rules and the cache in one volatile write, lookups never wait for it.
+ */
+public final class Router implements Connection.Factory {
+  private static final int STRIPES = 16;
+
+  private final Connection.Factory fallback;
+  private final int cacheSize;
+  private volatile Table table;
+
+  private Router(Builder builder) {
+    this.fallback = builder.fallback;
+    this.cacheSize = builder.cacheSize;
+    this.table = new Table(builder.rules, cacheSize);
+  }
+
+  @Override
+  public Connection newConnection(Socket socksClient, Endpoint endpoint) throws IOException {
+    return route(endpoint).newConnection(socksClient, endpoint);
+  }
+
+  public Connection.Factory route(Endpoint endpoint) {
+    Table table = this.table;
+    Object key;
+    if (endpoint.ip != null) {
+      key = RuleSet.toInt(endpoint.ip);
+    } else if (endpoint.hostname != null) {
+      key = endpoint.hostname;
+    } else {
+      return fallback;
+    }
+    if (table.stripes == null) {
+      Connection.Factory target = table.rules.match(endpoint);
+      return target != null ? target : fallback;
+    }
+    Stripe stripe = table.stripes[(key.hashCode() * 0x9E3779B9 >>> 28) & (STRIPES - 1)];
+    Connection.Factory target;
+    synchronized (stripe) {
+      target = stripe.get(key);
+    }
+    if (target != null) return target;
+
+    target = table.rules.match(endpoint);
+    if (target == null) target = fallback;
+    synchronized (stripe) {
+      stripe.put(key, target);
+    }
+    return target;
+  }
+
+  /**
+   * replaces the rules, connections already routed stay where they are.
+   */
+  public void setRules(RuleSet rules) {
+    table = new Table(rules, cacheSize);
+  }
+
+  public RuleSet rules() {
+    return table.rules;
+  }
+
+  private static final class Table {
+    final RuleSet rules;
+    @Nullable
+    final Stripe[] stripes;
+
+    Table(RuleSet rules, int cacheSize) {
+      this.rules = rules;
+      this.stripes = cacheSize > 0 ? new Stripe[STRIPES] : null;
+      for (int i = 0; cacheSize > 0 && i < STRIPES; i++) {
+        stripes[i] = new Stripe(Math.max(1, cacheSize / STRIPES));
+      }
+    }
+  }
+
+  // one lock per stripe, so concurrent lookups rarely meet
+  private static final class Stripe extends LinkedHashMap<Object, Connection.Factory> {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    Stripe(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Object, Connection.Factory> eldest) {
+      return size() > capacity;
+    }
+  }
+
+  public static class Builder {
+    private RuleSet rules = RuleSet.EMPTY;
+    private Connection.Factory fallback = NoRelay.connectionFactory();
+    private int cacheSize = 4096;
+
+    public Builder rules(RuleSet rules) {
+      this.rules = rules;
+      return this;
+    }
+
+    /**
+     * carries destinations no rule matches, direct by default.
+     */
+    public Builder fallback(Connection.Factory fallback) {
+      this.fallback = fallback;
+      return this;
+    }
+
+    /**
+     * routing decisions to remember, 0 disables the cache.
+     */
+    public Builder cacheSize(int cacheSize) {
+      this.cacheSize = cacheSize;
+      return this;
+    }
+
+    public Router build() {
+      return new Router(this);
+    }
+  }
+}
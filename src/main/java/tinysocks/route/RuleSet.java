@@ -0,0 +1,150 @@
+package tinysocks.route;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Immutable routing rules: domain suffixes and IPv4 CIDR blocks, each pointing at the
+ * connection factory that should carry matching destinations.
+ * <p>
+ * hostnames are matched as names, they are never resolved for routing. a hostname that is
+ * an IPv4 literal is matched against the CIDR rules.
+ */
+public final class RuleSet {
+  public static final RuleSet EMPTY = new Builder().build();
+
+  private final DomainTrie domains;
+  private final CidrTree cidrs;
+
+  private RuleSet(Builder builder) {
+    this.domains = builder.domains;
+    this.cidrs = builder.cidrs;
+  }
+
+  /**
+   * @return null when no rule matches
+   */
+  @Nullable
+  public Connection.Factory match(Endpoint endpoint) {
+    if (endpoint.ip != null) {
+      return cidrs.match(toInt(endpoint.ip));
+    }
+    if (endpoint.hostname != null) {
+      return matchHost(endpoint.hostname.toLowerCase(Locale.ROOT));
+    }
+    return null;
+  }
+
+  /**
+   * @param hostname lower case
+   */
+  @Nullable
+  Connection.Factory matchHost(String hostname) {
+    long ip = parseIp(hostname, 0, hostname.length());
+    return ip >= 0 ? cidrs.match((int) ip) : domains.match(hostname);
+  }
+
+  public int domainCount() {
+    return domains.size();
+  }
+
+  public int cidrCount() {
+    return cidrs.size();
+  }
+
+  static int toInt(byte[] ip) {
+    return (ip[0] & 0xFF) << 24 | (ip[1] & 0xFF) << 16 | (ip[2] & 0xFF) << 8 | (ip[3] & 0xFF);
+  }
+
+  // dotted quad to unsigned int, -1 when it is not one
+  private static long parseIp(String text, int from, int to) {
+    long ip = 0;
+    int octets = 0;
+    int value = -1;
+    for (int i = from; i < to; i++) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') {
+        value = (value < 0 ? 0 : value * 10) + (c - '0');
+        if (value > 255) return -1;
+      } else if (c == '.' && value >= 0 && octets < 3) {
+        ip = ip << 8 | value;
+        octets++;
+        value = -1;
+      } else {
+        return -1;
+      }
+    }
+    if (value < 0 || octets != 3) return -1;
+    return ip << 8 | value;
+  }
+
+  public static class Builder {
+    private final DomainTrie domains = new DomainTrie();
+    private final CidrTree cidrs = new CidrTree();
+    private boolean built;
+
+    /**
+     * routes {@code domain} and all its subdomains, e.g. {@code example.com}.
+     */
+    public Builder domain(String domain, Connection.Factory target) {
+      if (built) throw new IllegalStateException("already built");
+      String name = domain.trim().toLowerCase(Locale.ROOT);
+      if (name.startsWith("*.")) name = name.substring(2);
+      domains.put(name, target);
+      return this;
+    }
+
+    /**
+     * routes an IPv4 block, e.g. {@code 10.0.0.0/8}; a plain address is a /32.
+     */
+    public Builder cidr(String cidr, Connection.Factory target) {
+      if (built) throw new IllegalStateException("already built");
+      String text = cidr.trim();
+      int slash = text.indexOf('/');
+      int length = 32;
+      if (slash >= 0) {
+        length = Integer.parseInt(text.substring(slash + 1));
+        if (length < 0 || length > 32) throw new IllegalArgumentException("bad cidr: " + cidr);
+      }
+      long ip = parseIp(text, 0, slash >= 0 ? slash : text.length());
+      if (ip < 0) throw new IllegalArgumentException("bad cidr: " + cidr);
+      cidrs.put((int) ip, length, target);
+      return this;
+    }
+
+    /**
+     * reads a rule list with one domain or CIDR per line, all routed to {@code target}.
+     * empty lines and lines starting with '#' are skipped.
+     */
+    public Builder load(Reader reader, Connection.Factory target) throws IOException {
+      BufferedReader lines = new BufferedReader(reader);
+      String line;
+      while ((line = lines.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.charAt(0) == '#') continue;
+        int slash = line.indexOf('/');
+        if (parseIp(line, 0, slash >= 0 ? slash : line.length()) >= 0) {
+          cidr(line, target);
+        } else {
+          domain(line, target);
+        }
+      }
+      return this;
+    }
+
+    /**
+     * the rules are handed over, a builder can only build once.
+     */
+    public RuleSet build() {
+      if (built) throw new IllegalStateException("already built");
+      built = true;
+      return new RuleSet(this);
+    }
+  }
+}
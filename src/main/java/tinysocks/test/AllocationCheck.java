@@ -0,0 +1,156 @@
+package tinysocks.test;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.EventListener;
+import tinysocks.RelayNode;
+import tinysocks.TinyRelay;
+import tinysocks.TinySocks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Fails (exit status 1) when the steady state data path allocates. bytes allocated by all
+ * threads are measured while {@code frames} chunks are uploaded to a discarding server and the
+ * same amount is downloaded from a sending one, once through a relay link and once directly
+ * through a socks server, after a warm up.
+ * <p>
+ * usage: AllocationCheck [frames] [chunk size] [budget bytes]
+ */
+public class AllocationCheck {
+  private static final int DISCARD_PORT = 10190;
+  private static final int SOURCE_PORT = 10191;
+  private static final int RELAY_PORT = 10192;
+  private static final int DIRECT_SOCKS_PORT = 10193;
+
+  public static void main(String[] args) throws Exception {
+    int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+    long budget = args.length > 2 ? Long.parseLong(args[2]) : 64 * 1024;
+    startDiscardServer(DISCARD_PORT);
+    Fixtures.startSource(SOURCE_PORT, Long.MAX_VALUE);
+
+    final TinyRelay relay = new TinyRelay(RELAY_PORT);
+    relay.start();
+    new RelayNode.Builder().port(RELAY_PORT).nodeName("alloc").build().start();
+    new TinySocks.Builder().port(DIRECT_SOCKS_PORT).eventListener(new EventListener() {
+    }).build().start();
+    Thread.sleep(1500);
+
+    Opener viaRelay = new Opener() {
+      @Override
+      public Stream open(int port) throws IOException {
+        final Connection connection = relay.connectionFactory().newConnection(null, Endpoint.ofHost("127.0.0.1", port));
+        if (connection == null) throw new IOException("relay connect failed");
+        return new Stream(connection.inputStream(), connection.outputStream()) {
+          @Override
+          void close() {
+            connection.close();
+          }
+        };
+      }
+    };
+    Opener direct = new Opener() {
+      @Override
+      public Stream open(int port) throws IOException {
+        final Socket socket = new Socket(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", DIRECT_SOCKS_PORT)));
+        socket.connect(InetSocketAddress.createUnresolved("127.0.0.1", port));
+        return new Stream(socket.getInputStream(), socket.getOutputStream()) {
+          @Override
+          void close() throws IOException {
+            socket.close();
+          }
+        };
+      }
+    };
+    boolean ok = check("relay ", viaRelay, frames, chunkSize, budget);
+    ok &= check("direct", direct, frames, chunkSize, budget);
+    System.exit(ok ? 0 : 1);
+  }
+
+  private static boolean check(String name, Opener opener, int frames, int chunkSize, long budget) throws Exception {
+    byte[] chunk = new byte[chunkSize];
+    // one stream at a time: unread data of another stream would hold up the link reader
+    Stream upload = opener.open(DISCARD_PORT);
+    upload(upload, chunk, frames / 10);
+    Thread.sleep(200);
+    long before = allocatedBytes();
+    upload(upload, chunk, frames);
+    long uploaded = allocatedBytes() - before;
+    upload.close();
+
+    Stream download = opener.open(SOURCE_PORT);
+    // longer: the pooled arrays of the receive rings take a while to reach their peak
+    download(download, chunk, frames / 2);
+    Thread.sleep(200);
+    before = allocatedBytes();
+    download(download, chunk, frames);
+    long downloaded = allocatedBytes() - before;
+    download.close();
+
+    boolean ok = uploaded <= budget && downloaded <= budget;
+    System.out.printf("%s %,d frames of %dB: upload %,d bytes allocated, download %,d, budget %,d  %s%n", name,
+      frames, chunkSize, uploaded, downloaded, budget, ok ? "OK" : "FAILED");
+    return ok;
+  }
+
+  private static void upload(Stream stream, byte[] chunk, int frames) throws IOException {
+    for (int i = 0; i < frames; i++) {
+      stream.out.write(chunk, 0, chunk.length);
+    }
+    stream.out.flush();
+  }
+
+  private static void download(Stream stream, byte[] buffer, int frames) throws IOException {
+    long remaining = (long) frames * buffer.length;
+    while (remaining > 0) {
+      int read = stream.in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (read < 0) throw new IOException("eof with " + remaining + " bytes missing");
+      remaining -= read;
+    }
+  }
+
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long total = 0;
+    for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      if (allocated > 0) total += allocated;
+    }
+    return total;
+  }
+
+  private interface Opener {
+    Stream open(int port) throws IOException;
+  }
+
+  private abstract static class Stream {
+    final InputStream in;
+    final OutputStream out;
+
+    Stream(InputStream in, OutputStream out) {
+      this.in = in;
+      this.out = out;
+    }
+
+    abstract void close() throws IOException;
+  }
+
+  private static void startDiscardServer(int port) throws IOException {
+    Fixtures.serve(new ServerSocket(port), new Fixtures.Handler() {
+      @Override
+      public void handle(Socket socket) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = socket.getInputStream();
+        while (in.read(buffer) > 0) {
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,263 @@
+package tinysocks.test;
+
+import tinysocks.EventListener;
+import tinysocks.TinySocks;
+import tinysocks.auth.Authenticator;
+import tinysocks.auth.CredentialStore;
+import tinysocks.auth.UserAccount;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Username/password authentication and per-user accounting:
+ * <ul>
+ * <li>logins per second of 100 users against a store hashing passwords with PBKDF2 (10k
+ * rounds), with and without the cache of the {@link Authenticator}</li>
+ * <li>threads charging 4KB chunks to one user: a single AtomicLong against the striped
+ * counters of a {@link UserAccount.Meter}, and a meter under a byte quota</li>
+ * <li>socks connections per second through a TinySocks without and with authentication</li>
+ * <li>a user with a 1MB quota pulling from a source until the quota closes its stream</li>
+ * </ul>
+ * usage: AuthBenchmark [threads] [millis per run]
+ */
+public class AuthBenchmark {
+  private static final int ECHO_PORT = 10360;
+  private static final int SOURCE_PORT = 10361;
+  private static final int OPEN_PORT = 10362;
+  private static final int AUTH_PORT = 10363;
+  private static final int USERS = 1000;
+  // the logins go to these, each cached once before the cached run
+  private static final int LOGIN_USERS = 100;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+    final HashedCredentials store = new HashedCredentials();
+    for (int i = 0; i < USERS; i++) {
+      store.put("user" + i, "password" + i);
+    }
+    store.put("quota", "quota");
+    Fixtures.startEchoServer(ECHO_PORT);
+    Fixtures.startSource(SOURCE_PORT, 16 * 1024 * 1024);
+    EventListener quiet = new EventListener() {
+    };
+    new TinySocks.Builder().port(OPEN_PORT).eventListener(quiet).build().start();
+    Authenticator socksAuthenticator = new Authenticator.Builder()
+      .credentials(store)
+      .quota("quota", 1024 * 1024, 0)
+      .build();
+    new TinySocks.Builder().port(AUTH_PORT).authenticator(socksAuthenticator).eventListener(quiet).build().start();
+    Thread.sleep(500);
+
+    for (int round = 0; round < 3; round++) {
+      Authenticator uncached = new Authenticator.Builder().credentials(store).cacheMillis(0).build();
+      Authenticator cached = new Authenticator.Builder().credentials(store).build();
+      for (int i = 0; i < LOGIN_USERS; i++) {
+        cached.authenticate("user" + i, ("password" + i).getBytes(StandardCharsets.UTF_8));
+      }
+      System.out.printf("logins      store every time %,10.0f/s   cached %,10.0f/s%n",
+        logins(uncached, threads, millis), logins(cached, threads, millis));
+
+      final AtomicLong single = new AtomicLong();
+      final UserAccount.Meter[] striped = meters(new Authenticator.Builder().credentials(store).build(), threads);
+      final UserAccount.Meter[] quota = meters(new Authenticator.Builder().credentials(store)
+        .defaultQuota(Long.MAX_VALUE / 2, 0).build(), threads);
+      System.out.printf("accounting  atomic %,10.0f chunks/s   striped %,10.0f chunks/s   striped+quota %,10.0f chunks/s%n",
+        run(threads, millis, new Charger() {
+          @Override
+          public void charge(int thread) {
+            single.addAndGet(4096);
+          }
+        }),
+        run(threads, millis, new Charger() {
+          @Override
+          public void charge(int thread) throws IOException {
+            striped[thread].consume(4096);
+          }
+        }),
+        run(threads, millis, new Charger() {
+          @Override
+          public void charge(int thread) throws IOException {
+            quota[thread].consume(4096);
+          }
+        }));
+
+      System.out.printf("socks       no auth %,8.0f conn/s   password %,8.0f conn/s%n",
+        connections(OPEN_PORT, null, threads, millis), connections(AUTH_PORT, "user7", threads, millis));
+    }
+    System.out.println(socksAuthenticator.account("user7") + " store checks=" + socksAuthenticator.storeChecks()
+      + " cache hits=" + socksAuthenticator.cacheHits());
+
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), AUTH_PORT);
+    long received = 0;
+    try {
+      connect(socket, "quota", SOURCE_PORT);
+      InputStream in = socket.getInputStream();
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        received += n;
+      }
+    } catch (IOException ignored) {
+    } finally {
+      socket.close();
+    }
+    Thread.sleep(200);
+    UserAccount account = socksAuthenticator.account("quota");
+    System.out.printf("quota       1MB quota, stream closed after %,d bytes, %s%n", received, account);
+    System.exit(received <= 1024 * 1024 && account.activeConnections() == 0 ? 0 : 1);
+  }
+
+  private static UserAccount.Meter[] meters(Authenticator authenticator, int threads) throws IOException {
+    UserAccount account = authenticator.authenticate("user1", "password1".getBytes(StandardCharsets.UTF_8));
+    UserAccount.Meter[] meters = new UserAccount.Meter[threads];
+    for (int i = 0; i < threads; i++) {
+      meters[i] = account.meter(i % 2 == 0);
+    }
+    return meters;
+  }
+
+  private static double logins(final Authenticator authenticator, int threads, long millis) throws Exception {
+    return run(threads, millis, new Charger() {
+      private final byte[][] passwords = new byte[LOGIN_USERS][];
+
+      {
+        for (int i = 0; i < LOGIN_USERS; i++) {
+          passwords[i] = ("password" + i).getBytes(StandardCharsets.UTF_8);
+        }
+      }
+
+      @Override
+      public void charge(int thread) throws IOException {
+        int user = ThreadLocalRandom.current().nextInt(LOGIN_USERS);
+        if (authenticator.authenticate("user" + user, passwords[user]) == null) throw new IOException("refused");
+      }
+    });
+  }
+
+  private static double connections(final int port, final String user, int threads, long millis) throws Exception {
+    return run(threads, millis, new Charger() {
+      @Override
+      public void charge(int thread) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+          socket.setTcpNoDelay(true);
+          connect(socket, user, ECHO_PORT);
+          OutputStream out = socket.getOutputStream();
+          out.write(1);
+          if (socket.getInputStream().read() != 1) throw new IOException("no echo");
+        } finally {
+          socket.close();
+        }
+      }
+    });
+  }
+
+  private static double run(int threads, long millis, final Charger charger) throws Exception {
+    final AtomicLong count = new AtomicLong();
+    final long deadline = System.nanoTime() + millis * 1000000;
+    final List<Exception> failures = new ArrayList<>();
+    List<Thread> running = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      running.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long done = 0;
+          try {
+            while ((done & 15) != 0 || System.nanoTime() < deadline) {
+              charger.charge(thread);
+              done++;
+            }
+          } catch (Exception e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+          count.addAndGet(done);
+        }
+      }));
+    }
+    long start = System.nanoTime();
+    for (Thread thread : running) thread.start();
+    for (Thread thread : running) thread.join();
+    if (!failures.isEmpty()) throw failures.get(0);
+    return count.get() / ((System.nanoTime() - start) / 1e9);
+  }
+
+  private static void connect(Socket socket, String user, int port) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    InputStream in = socket.getInputStream();
+    if (user == null) {
+      out.write(new byte[]{5, 1, 0});
+      Fixtures.readFully(in, new byte[2]);
+    } else {
+      String password = user.equals("quota") ? "quota" : "password" + user.substring(4);
+      byte[] name = user.getBytes(StandardCharsets.UTF_8);
+      byte[] secret = password.getBytes(StandardCharsets.UTF_8);
+      byte[] greeting = new byte[3 + 3 + name.length + secret.length];
+      greeting[0] = 5;
+      greeting[1] = 1;
+      greeting[2] = 2;
+      greeting[3] = 1;
+      greeting[4] = (byte) name.length;
+      System.arraycopy(name, 0, greeting, 5, name.length);
+      greeting[5 + name.length] = (byte) secret.length;
+      System.arraycopy(secret, 0, greeting, 6 + name.length, secret.length);
+      out.write(greeting);
+      byte[] replies = new byte[4];
+      Fixtures.readFully(in, replies);
+      if (replies[1] != 2 || replies[3] != 0) throw new IOException("login refused");
+    }
+    out.write(new byte[]{5, 1, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port});
+    byte[] reply = new byte[10];
+    Fixtures.readFully(in, reply);
+    if (reply[1] != 0) throw new IOException("socks connect failed: " + reply[1]);
+  }
+
+  private interface Charger {
+    void charge(int thread) throws IOException;
+  }
+
+  /**
+   * a store doing what a real one does per check: derive the password hash and compare.
+   */
+  private static final class HashedCredentials implements CredentialStore {
+    private final ConcurrentMap<String, byte[]> hashes = new ConcurrentHashMap<>();
+
+    void put(String username, String password) {
+      hashes.put(username, hash(username, password.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public boolean verify(String username, byte[] password) {
+      byte[] expected = hashes.get(username);
+      return expected != null && MessageDigest.isEqual(expected, hash(username, password));
+    }
+
+    private static byte[] hash(String salt, byte[] password) {
+      char[] chars = new String(password, StandardCharsets.UTF_8).toCharArray();
+      try {
+        PBEKeySpec spec = new PBEKeySpec(chars, salt.getBytes(StandardCharsets.UTF_8), 10000, 256);
+        return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+      } catch (GeneralSecurityException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,444 @@
+package tinysocks.test;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.RelayNode;
+import tinysocks.Util;
+import tinysocks.relay.FrameCapture;
+import tinysocks.relay.FrameDecoder;
+import tinysocks.relay.FrameEncoder;
+import tinysocks.relay.IntMap;
+import tinysocks.relay.Link;
+import tinysocks.relay.LinkCipher;
+import tinysocks.relay.Protocol;
+import tinysocks.relay.StreamPriority;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds the frames a {@link tinysocks.relay.FrameCapture} recorded as received into a fresh
+ * {@link Protocol} or {@link RelayNode} over a loopback socket, at the recorded pace or as
+ * fast as possible, and reports how quickly they were decoded and dispatched.
+ * <p>
+ * a capture taken on a relay node is replayed into a node: this side plays the relay server,
+ * connect frames are pointed at a local discarding server. a capture taken on a relay server
+ * is replayed into a protocol: this side plays the node, streams are opened where the capture
+ * opened them and their data is pushed to a discarding sink. data payloads that were not
+ * recorded are replayed as zeros. recorded window frames are not replayed, this side keeps to
+ * the windows of the replayed side and hands back the window of what it discards.
+ * <p>
+ * usage: CaptureReplay capture-file [recorded|fast] [selector threads]
+ */
+public class CaptureReplay {
+  // see TinyRelay.handshake()
+  private static final byte[] HELLO = "tiny_relay(v0.0.5)@".getBytes(Util.ASCII);
+  private static final int ACK_EVERY_FRAMES = 32;
+
+  private static final AtomicLong delivered = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println("usage: CaptureReplay capture-file [recorded|fast] [selector threads]");
+      System.exit(2);
+    }
+    File file = new File(args[0]);
+    boolean fast = args.length > 1 && args[1].equals("fast");
+    int selectorThreads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+    boolean node = capturedOnNode(file);
+    System.out.println("Replaying " + file + " into a " + (node ? "relay node" : "protocol")
+      + (fast ? ", as fast as possible." : ", at the recorded pace."));
+
+    Result result = node ? replayIntoNode(file, fast, selectorThreads) : replayIntoProtocol(file, fast);
+    long deadline = System.currentTimeMillis() + 30 * 1000;
+    while (delivered.get() < result.dataBytes && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    long drainedNanos = System.nanoTime() - result.startNanos;
+    System.out.printf("%,d frames replayed, %,d data bytes in %,d ms, %,.0f frames/s%n",
+      result.frames, result.dataBytes, result.writeNanos / 1000000, result.frames * 1e9 / result.writeNanos);
+    System.out.printf("%,d data bytes delivered in %,d ms, %.1f MB/s%n",
+      delivered.get(), drainedNanos / 1000000, delivered.get() * 1e3 / drainedNanos);
+    if (!fast) {
+      System.out.printf("fell behind the recording by up to %,d us%n", result.maxLagNanos / 1000);
+    }
+    System.exit(delivered.get() >= result.dataBytes ? 0 : 1);
+  }
+
+  // a node receives connect frames carrying an endpoint, a protocol only one byte replies
+  private static boolean capturedOnNode(File file) throws IOException {
+    FrameCapture.Reader reader = new FrameCapture.Reader(file);
+    try {
+      while (reader.next()) {
+        if (reader.type() != Link.TYPE_CONNECT) continue;
+        if (reader.sent()) return reader.size() <= 1;
+        return reader.size() > 1;
+      }
+      throw new IOException("no stream opened in " + file);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static Result replayIntoNode(File file, boolean fast, int selectorThreads) throws Exception {
+    int sinkPort = startDiscardServer();
+    byte[] sink = Endpoint.ofAddress(InetAddress.getLoopbackAddress().getAddress(), sinkPort).toBytes();
+    ServerSocket server = new ServerSocket(0);
+    new RelayNode.Builder().port(server.getLocalPort()).nodeName("replay")
+      .selectorThreads(selectorThreads).build().start();
+    Socket socket = server.accept();
+    server.close();
+    acceptNode(socket);
+    Peer peer = new Peer(socket, null);
+
+    // like the relay server, a stream's data follows its connect reply
+    IntMap<Boolean> connected = new IntMap<>();
+    FrameCapture.Reader reader = new FrameCapture.Reader(file);
+    Pacer pacer = new Pacer(fast);
+    Result result = new Result();
+    byte[] zeros = new byte[0xFFFF];
+    try {
+      while (reader.next()) {
+        if (reader.sent()) continue;
+        int type = reader.type();
+        if (type == Link.TYPE_WINDOW) continue;
+        int id = reader.connectionId();
+        pacer.await(reader.nanos(), peer);
+        if (type == Link.TYPE_CONNECT) {
+          peer.write(id, type, sink, sink.length);
+          result.count(type, sink.length);
+          connected.remove(id);
+          continue;
+        }
+        Boolean ok = connected.get(id);
+        if (ok == null) {
+          ok = peer.awaitConnectReply(id);
+          connected.put(id, ok);
+        }
+        if (!ok) continue;
+        peer.write(id, type, reader.payload() != null ? reader.payload() : zeros, reader.size());
+        result.count(type, reader.size());
+      }
+    } finally {
+      reader.close();
+    }
+    peer.flush();
+    return result.finish(pacer);
+  }
+
+  private static Result replayIntoProtocol(File file, boolean fast) throws Exception {
+    final Protocol protocol = new Protocol(1, StreamPriority.BY_PORT);
+    ServerSocket server = new ServerSocket(0);
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    Socket accepted = server.accept();
+    server.close();
+    protocol.attach(accepted, accepted.getInputStream(), accepted.getOutputStream(), 0);
+    BlockingQueue<Integer> opened = new LinkedBlockingQueue<>();
+    Peer peer = new Peer(socket, opened);
+    ExecutorService openers = Executors.newCachedThreadPool();
+    final Endpoint endpoint = Endpoint.ofHost("127.0.0.1", 80);
+
+    // capture stream id -> the id the protocol gave the same stream
+    IntMap<Integer> ids = new IntMap<>();
+    FrameCapture.Reader reader = new FrameCapture.Reader(file);
+    Pacer pacer = new Pacer(fast);
+    Result result = new Result();
+    byte[] zeros = new byte[0xFFFF];
+    byte[] connected = {1};
+    try {
+      while (reader.next()) {
+        int type = reader.type();
+        if (reader.sent()) {
+          if (type != Link.TYPE_CONNECT) continue;
+          pacer.await(reader.nanos(), peer);
+          peer.flush();
+          openers.execute(new Runnable() {
+            @Override
+            public void run() {
+              Connection connection = protocol.newConnection(endpoint);
+              if (connection != null) {
+                ((Connection.Pushing) connection).push(new DiscardSink());
+              }
+            }
+          });
+          Integer id = opened.poll(5, TimeUnit.SECONDS);
+          if (id == null) throw new IOException("protocol did not open a stream");
+          ids.put(reader.connectionId(), id);
+          continue;
+        }
+        Integer id = ids.get(reader.connectionId());
+        if (id == null || type == Link.TYPE_WINDOW) continue;// opened before the capture started
+        byte[] payload = reader.payload() != null ? reader.payload() : type == Link.TYPE_CONNECT ? connected : zeros;
+        int size = type == Link.TYPE_CONNECT && reader.payload() == null ? 1 : reader.size();
+        pacer.await(reader.nanos(), peer);
+        peer.write(id, type, payload, size);
+        result.count(type, size);
+        if (type == Link.TYPE_CLOSE) {
+          ids.remove(reader.connectionId());
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    peer.flush();
+    openers.shutdown();
+    return result.finish(pacer);
+  }
+
+  // the server side of RelayNode.handshake(), always a new unencrypted session
+  private static void acceptNode(Socket socket) throws IOException {
+    InputStream in = socket.getInputStream();
+    Util.readNBytes(in, HELLO.length);
+    Util.readNBytes(in, in.read());// node name
+    Util.readLong(in);
+    Util.readInt(in);
+    if (in.read() != LinkCipher.NONE) throw new IOException("replay needs an unencrypted link");
+    OutputStream out = socket.getOutputStream();
+    out.write(Link.SESSION_NEW);
+    Util.writeLong(out, 1);
+    Util.writeInt(out, 0);
+    out.flush();
+  }
+
+  /**
+   * the other end of the link: writes the replayed frames, answers pings and acknowledges
+   * what the replayed side sends so its replay buffer never fills.
+   */
+  private static final class Peer {
+    private final FrameEncoder encoder;
+    private final byte[] control = new byte[12];
+    // connect replies by stream id, guarded by itself
+    private final IntMap<Boolean> replies = new IntMap<>();
+    // window left to send by stream id, guarded by itself
+    private final IntMap<int[]> windows = new IntMap<>();
+    // window to hand back by stream id, guarded by this
+    private final IntMap<int[]> consumed = new IntMap<>();
+    private int received;
+
+    Peer(Socket socket, final BlockingQueue<Integer> opened) throws IOException {
+      this.encoder = new FrameEncoder(socket.getOutputStream(), 64 * 1024);
+      final FrameDecoder decoder = new FrameDecoder(socket.getInputStream());
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (decoder.next()) {
+              onFrame(decoder, opened);
+            }
+          } catch (IOException ignored) {
+          }
+        }
+      }, "CaptureReplay-Reader");
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    private void onFrame(FrameDecoder decoder, BlockingQueue<Integer> opened) throws IOException {
+      int type = decoder.type();
+      if (type == Link.TYPE_PING) {
+        ByteBuffer payload = decoder.payload();
+        synchronized (this) {
+          Util.putLong(control, 0, payload.getLong(payload.position()));
+          Util.putInt(control, 8, received);
+          encoder.write(0, Link.TYPE_PONG, control, 0, 12);
+          encoder.flush();
+        }
+        return;
+      }
+      if (type == Link.TYPE_PONG || type == Link.TYPE_ACK) return;
+      if (type == Link.TYPE_WINDOW) {
+        ByteBuffer payload = decoder.payload();
+        synchronized (windows) {
+          window(decoder.connectionId())[0] += payload.getInt(payload.position());
+          windows.notifyAll();
+        }
+      }
+      if (type == Link.TYPE_CONNECT) {
+        if (opened != null) {
+          opened.add(decoder.connectionId());
+        } else {
+          ByteBuffer payload = decoder.payload();
+          boolean ok = decoder.size() > 0 && payload.get(payload.position()) == 1;
+          synchronized (replies) {
+            replies.put(decoder.connectionId(), ok);
+            replies.notifyAll();
+          }
+        }
+      }
+      synchronized (this) {
+        if (type == Link.TYPE_DATA) {
+          // discarded right away
+          int[] owed = consumed.get(decoder.connectionId());
+          if (owed == null) {
+            owed = new int[1];
+            consumed.put(decoder.connectionId(), owed);
+          }
+          owed[0] += Link.windowCost(decoder.size());
+          if (owed[0] >= Link.STREAM_WINDOW / 4) {
+            Util.putInt(control, 0, owed[0]);
+            encoder.write(decoder.connectionId(), Link.TYPE_WINDOW, control, 0, 4);
+            encoder.flush();
+            owed[0] = 0;
+          }
+        }
+        if (++received % ACK_EVERY_FRAMES == 0) {
+          Util.putInt(control, 0, received);
+          encoder.write(0, Link.TYPE_ACK, control, 0, 4);
+          encoder.flush();
+        }
+      }
+    }
+
+    /**
+     * waits for the node to answer the connect of a stream, false if it failed or never came.
+     */
+    boolean awaitConnectReply(int connectionId) throws IOException, InterruptedException {
+      flush();
+      long deadline = System.currentTimeMillis() + 10 * 1000;
+      synchronized (replies) {
+        Boolean ok;
+        long remaining;
+        while ((ok = replies.remove(connectionId)) == null) {
+          if ((remaining = deadline - System.currentTimeMillis()) <= 0) return false;
+          replies.wait(remaining);
+        }
+        return ok;
+      }
+    }
+
+    void write(int connectionId, int type, byte[] payload, int size) throws IOException, InterruptedException {
+      if (type == Link.TYPE_DATA) {
+        awaitWindow(connectionId, Link.windowCost(size));
+      }
+      synchronized (this) {
+        encoder.write(connectionId, type, payload, 0, size);
+      }
+    }
+
+    // like a link, sends data only while the stream has window left
+    private void awaitWindow(int connectionId, int cost) throws IOException, InterruptedException {
+      synchronized (windows) {
+        int[] left = window(connectionId);
+        if (left[0] > 0) {
+          left[0] -= cost;
+          return;
+        }
+      }
+      flush();
+      long deadline = System.currentTimeMillis() + 10 * 1000;
+      synchronized (windows) {
+        int[] left = window(connectionId);
+        long remaining;
+        while (left[0] <= 0) {
+          if ((remaining = deadline - System.currentTimeMillis()) <= 0) {
+            throw new IOException("no window for stream " + connectionId);
+          }
+          windows.wait(remaining);
+        }
+        left[0] -= cost;
+      }
+    }
+
+    // with windows locked
+    private int[] window(int connectionId) {
+      int[] left = windows.get(connectionId);
+      if (left == null) {
+        left = new int[]{Link.STREAM_WINDOW};
+        windows.put(connectionId, left);
+      }
+      return left;
+    }
+
+    synchronized void flush() throws IOException {
+      encoder.flush();
+    }
+  }
+
+  // sleeps until each record is due, unless replaying as fast as possible
+  private static final class Pacer {
+    private final boolean fast;
+    private final long startNanos = System.nanoTime();
+    private long firstRecordNanos = -1;
+    private long maxLagNanos;
+
+    Pacer(boolean fast) {
+      this.fast = fast;
+    }
+
+    void await(long recordNanos, Peer peer) throws IOException, InterruptedException {
+      if (fast) return;
+      if (firstRecordNanos < 0) firstRecordNanos = recordNanos;
+      long wait = startNanos + recordNanos - firstRecordNanos - System.nanoTime();
+      if (wait > 100 * 1000) {
+        // everything before this record is due now
+        peer.flush();
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } else if (-wait > maxLagNanos) {
+        maxLagNanos = -wait;
+      }
+    }
+  }
+
+  private static final class Result {
+    final long startNanos = System.nanoTime();
+    long frames;
+    long dataBytes;
+    long writeNanos;
+    long maxLagNanos;
+
+    void count(int type, int size) {
+      frames++;
+      if (type == Link.TYPE_DATA) dataBytes += size;
+    }
+
+    Result finish(Pacer pacer) {
+      writeNanos = Math.max(1, System.nanoTime() - startNanos);
+      maxLagNanos = pacer.maxLagNanos;
+      return this;
+    }
+  }
+
+  private static final class DiscardSink implements Connection.Sink {
+    @Override
+    public int onData(byte[] buffer, int offset, int size) {
+      delivered.addAndGet(size);
+      return size;
+    }
+
+    @Override
+    public void onPaused() {
+    }
+
+    @Override
+    public void onClosed(IOException ex) {
+    }
+  }
+
+  private static int startDiscardServer() throws IOException {
+    ServerSocket server = new ServerSocket(0);
+    Fixtures.serve(server, new Fixtures.Handler() {
+      @Override
+      public void handle(Socket socket) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = socket.getInputStream();
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          delivered.addAndGet(read);
+        }
+      }
+    });
+    return server.getLocalPort();
+  }
+}
@@ -0,0 +1,98 @@
+package tinysocks.test;
+
+import tinysocks.EventListener;
+import tinysocks.RelayNode;
+import tinysocks.TinyRelay;
+import tinysocks.TinySocks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Loopback chain front end -> regional relay -> exit node, against the exit node connected
+ * to the front end directly: echo latency and bulk throughput through each.
+ * <p>
+ * usage: ChainBenchmark [echo requests] [bulk MB]
+ */
+public class ChainBenchmark {
+  private static final int ECHO_PORT = 10170;
+  private static final int BULK_PORT = 10171;
+  private static final int DIRECT_RELAY_PORT = 10172;
+  private static final int DIRECT_SOCKS_PORT = 10173;
+  private static final int FRONT_RELAY_PORT = 10174;
+  private static final int REGIONAL_RELAY_PORT = 10175;
+  private static final int CHAIN_SOCKS_PORT = 10176;
+
+  public static void main(String[] args) throws Exception {
+    int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int bulkMb = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+    Fixtures.startEchoServer(ECHO_PORT);
+    Fixtures.startSource(BULK_PORT, Long.MAX_VALUE);
+
+    // one hop: socks -> relay <- exit node
+    TinyRelay direct = new TinyRelay(DIRECT_RELAY_PORT);
+    direct.start();
+    new RelayNode.Builder().port(DIRECT_RELAY_PORT).nodeName("exit-1").build().start();
+    startSocks(DIRECT_SOCKS_PORT, direct);
+
+    // three hops: socks -> front relay <- regional node/relay <- exit node
+    TinyRelay front = new TinyRelay(FRONT_RELAY_PORT);
+    front.start();
+    TinyRelay regional = new TinyRelay(REGIONAL_RELAY_PORT);
+    regional.start();
+    new RelayNode.Builder().port(FRONT_RELAY_PORT).nodeName("regional").forwardTo(regional).build().start();
+    new RelayNode.Builder().port(REGIONAL_RELAY_PORT).nodeName("exit-2").build().start();
+    startSocks(CHAIN_SOCKS_PORT, front);
+    Thread.sleep(1500);
+
+    for (int round = 0; round < 2; round++) {
+      report("direct", DIRECT_SOCKS_PORT, requests, bulkMb);
+      report("chain ", CHAIN_SOCKS_PORT, requests, bulkMb);
+    }
+    System.exit(0);
+  }
+
+  private static void report(String name, int socksPort, int requests, int bulkMb) throws IOException {
+    long[] latencies = new long[requests];
+    Socket socket = Fixtures.connect(socksPort, ECHO_PORT);
+    OutputStream out = socket.getOutputStream();
+    InputStream in = socket.getInputStream();
+    byte[] request = new byte[64];
+    for (int i = 0; i < requests; i++) {
+      long start = System.nanoTime();
+      out.write(request);
+      Fixtures.readFully(in, request);
+      latencies[i] = System.nanoTime() - start;
+    }
+    socket.close();
+    Arrays.sort(latencies);
+
+    socket = Fixtures.connect(socksPort, BULK_PORT);
+    in = socket.getInputStream();
+    byte[] buffer = new byte[64 * 1024];
+    long total = (long) bulkMb * 1024 * 1024;
+    long received = 0;
+    long start = System.nanoTime();
+    int read;
+    while (received < total && (read = in.read(buffer)) > 0) {
+      received += read;
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    socket.close();
+    System.out.printf("%s echo p50=%dus p99=%dus   bulk %.0f MB/s%n", name,
+      latencies[requests / 2] / 1000, latencies[requests * 99 / 100] / 1000, received / seconds / (1024 * 1024));
+  }
+
+  private static void startSocks(int port, TinyRelay relay) {
+    new TinySocks.Builder()
+      .port(port)
+      .connectionFactory(relay.connectionFactory())
+      .eventListener(new EventListener() {
+      })
+      .build()
+      .start();
+  }
+}
@@ -0,0 +1,127 @@
+package tinysocks.test;
+
+import tinysocks.relay.LinkCipher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Single core throughput of the link encryption, 4KB frames flushed as 16KB records.
+ * <p>
+ * usage: CipherBenchmark [seconds per phase]
+ */
+public class CipherBenchmark {
+  private static final int FRAME = 4096;
+  private static final int FRAMES_PER_FLUSH = 4;
+  private static final int RECORD = FRAME * FRAMES_PER_FLUSH;
+
+  public static void main(String[] args) throws IOException {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    LinkCipher client = LinkCipher.newHandshake();
+    LinkCipher server = LinkCipher.newHandshake();
+    byte[] secret = LinkCipher.secretOf("benchmark");
+    client.agree(secret, publicKey(server), true);
+    server.agree(secret, publicKey(client), false);
+    byte[] frame = new byte[FRAME];
+
+    long allocated = allocatedBytes();
+    long bytes = write(new Sink(64 * 1024), frame, seconds);
+    report("plain", bytes, seconds, allocatedBytes() - allocated);
+
+    OutputStream sealed = client.wrap(new Sink(64 * 1024));
+    allocated = allocatedBytes();
+    bytes = write(sealed, frame, seconds);
+    report("encrypt", bytes, seconds, allocatedBytes() - allocated);
+
+    // records are captured once and opened again on every pass, each pass with a
+    // fresh wrapper whose record counter starts over like on a new connection
+    Sink capture = new Sink(64 * 1024 * 1024);
+    OutputStream captureOut = client.wrap(capture);
+    captureOut.flush();
+    long capturedBytes = 0;
+    while (capture.size + 2 * RECORD < capture.data.length) {
+      for (int i = 0; i < FRAMES_PER_FLUSH; i++) {
+        captureOut.write(frame);
+      }
+      captureOut.flush();
+      capturedBytes += RECORD;
+    }
+    byte[] buffer = new byte[FRAME];
+    bytes = 0;
+    long elapsed = 0;
+    long passAllocated = 0;
+    while (elapsed < seconds * 1000000000L) {
+      InputStream opened = server.wrap(new ByteArrayInputStream(capture.data, 0, capture.size));
+      long start = System.nanoTime();
+      allocated = allocatedBytes();
+      long passBytes = 0;
+      int read;
+      while (passBytes < capturedBytes && (read = opened.read(buffer)) > 0) {
+        passBytes += read;
+      }
+      passAllocated += allocatedBytes() - allocated;
+      elapsed += System.nanoTime() - start;
+      bytes += passBytes;
+    }
+    report("decrypt", bytes, elapsed / 1e9, passAllocated);
+  }
+
+  private static long write(OutputStream out, byte[] frame, int seconds) throws IOException {
+    long bytes = 0;
+    long deadline = System.nanoTime() + seconds * 1000000000L;
+    while (System.nanoTime() < deadline) {
+      for (int i = 0; i < FRAMES_PER_FLUSH; i++) {
+        out.write(frame);
+      }
+      out.flush();
+      bytes += RECORD;
+    }
+    return bytes;
+  }
+
+  private static void report(String name, long bytes, double seconds, long allocated) {
+    long records = bytes / RECORD;
+    System.out.printf("%-8s %6.2f Gbit/s per core, %d bytes allocated per 16KB record%n",
+      name, bytes * 8 / 1e9 / seconds, records > 0 ? allocated / records : 0);
+  }
+
+  private static byte[] publicKey(LinkCipher cipher) throws IOException {
+    Sink sink = new Sink(1024);
+    cipher.writePublicKey(sink);
+    return LinkCipher.readPublicKey(new ByteArrayInputStream(sink.data, 0, sink.size));
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  private static final class Sink extends OutputStream {
+    final byte[] data;
+    int size;
+
+    Sink(int capacity) {
+      this.data = new byte[capacity];
+    }
+
+    @Override
+    public void write(int b) {
+      if (size == data.length) size = 0;
+      data[size++] = (byte) b;
+    }
+
+    // wraps around when full, like a socket buffer being drained
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (size + len > data.length) size = 0;
+      System.arraycopy(b, off, data, size, len);
+      size += len;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package tinysocks.test;
+
+import tinysocks.ConnectionRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection churn against the worker bookkeeping of TinySocks: with a number of connections
+ * live, threads keep closing a random one and accepting a new one, and the connections per
+ * second are counted. the {@link ConnectionRegistry} against the locked ArrayList with
+ * remove(Object) used before.
+ * <p>
+ * usage: ConnectionRegistryBenchmark [threads] [millis per run]
+ */
+public class ConnectionRegistryBenchmark {
+  private static final int[] LIVE = {1000, 10000, 50000, 100000};
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+    long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+    for (int round = 0; round < 3; round++) {
+      for (int live : LIVE) {
+        System.out.printf("live=%,7d  locked list %,11.0f conn/s   registry %,11.0f conn/s%n", live,
+          run(new LockedList(), live, threads, millis), run(new Registry(), live, threads, millis));
+      }
+    }
+  }
+
+  private static double run(final Workers workers, int live, int threads, final long millis) throws InterruptedException {
+    // each thread owns a share of the live connections, like the workers closing themselves
+    final List<Object[]> shares = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      Object[] share = new Object[live / threads];
+      for (int i = 0; i < share.length; i++) {
+        share[i] = new Object();
+        workers.add(share[i]);
+      }
+      shares.add(share);
+    }
+    final AtomicLong churned = new AtomicLong();
+    final long deadline = System.nanoTime() + millis * 1000000;
+    List<Thread> running = new ArrayList<>();
+    for (final Object[] share : shares) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          long count = 0;
+          while ((count & 255) != 0 || System.nanoTime() < deadline) {
+            int i = random.nextInt(share.length);
+            workers.remove(share[i]);
+            share[i] = new Object();
+            workers.add(share[i]);
+            count++;
+          }
+          churned.addAndGet(count);
+        }
+      });
+      running.add(thread);
+    }
+    long start = System.nanoTime();
+    for (Thread thread : running) thread.start();
+    for (Thread thread : running) thread.join();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (workers.size() != live / threads * threads) throw new IllegalStateException("lost connections");
+    return churned.get() / seconds;
+  }
+
+  private interface Workers {
+    void add(Object worker);
+
+    void remove(Object worker);
+
+    int size();
+  }
+
+  private static final class Registry implements Workers {
+    private final ConnectionRegistry<Object> registry = new ConnectionRegistry<>(1024);
+
+    @Override
+    public void add(Object worker) {
+      registry.add(worker);
+    }
+
+    @Override
+    public void remove(Object worker) {
+      registry.remove(worker);
+    }
+
+    @Override
+    public int size() {
+      return registry.size();
+    }
+  }
+
+  private static final class LockedList implements Workers {
+    private final List<Object> list = new ArrayList<>();
+
+    @Override
+    public synchronized void add(Object worker) {
+      list.add(worker);
+    }
+
+    @Override
+    public synchronized void remove(Object worker) {
+      list.remove(worker);
+    }
+
+    @Override
+    public synchronized int size() {
+      return list.size();
+    }
+  }
+}
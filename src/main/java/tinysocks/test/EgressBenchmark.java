@@ -0,0 +1,175 @@
+package tinysocks.test;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.RelayNode;
+import tinysocks.TinyRelay;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds many concurrent streams through a relay node and reports the node's threads and the
+ * heap they take, then echoes 64 bytes on every stream. run once per mode, in its own JVM.
+ * the heap includes the relay side connections, which are the same in both modes.
+ * each stream takes two file descriptors on loopback.
+ * <p>
+ * usage: EgressBenchmark [threads|nio] [streams] [selector threads]
+ */
+public class EgressBenchmark {
+  private static final int ECHO_PORT = 10180;
+  private static final int RELAY_PORT = 10181;
+
+  public static void main(String[] args) throws Exception {
+    boolean nio = args.length == 0 || args[0].equals("nio");
+    int streams = args.length > 1 ? Integer.parseInt(args[1]) : 8000;
+    int selectorThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+    startEchoServer();
+    TinyRelay relay = new TinyRelay(RELAY_PORT);
+    relay.start();
+    new RelayNode.Builder()
+      .port(RELAY_PORT)
+      .nodeName("egress")
+      .selectorThreads(nio ? selectorThreads : 0)
+      .build()
+      .start();
+    Thread.sleep(1500);
+    long heapBefore = usedHeap();
+    int threadsBefore = Thread.activeCount();
+
+    List<Connection> connections = open(relay.connectionFactory(), streams);
+    long heapAfter = usedHeap();
+    System.out.printf("%s: %d streams open, +%d threads, +%.1f MB heap (%.1f KB per stream)%n",
+      nio ? "nio" : "threads", connections.size(), Thread.activeCount() - threadsBefore,
+      (heapAfter - heapBefore) / 1048576.0, (heapAfter - heapBefore) / 1024.0 / connections.size());
+
+    final CountDownLatch echoed = new CountDownLatch(connections.size());
+    byte[] request = new byte[64];
+    long start = System.nanoTime();
+    for (Connection connection : connections) {
+      final AtomicInteger received = new AtomicInteger();
+      ((Connection.Pushing) connection).push(new Connection.Sink() {
+        @Override
+        public int onData(byte[] buffer, int offset, int size) {
+          if (received.addAndGet(size) == 64) echoed.countDown();
+          return size;
+        }
+
+        @Override
+        public void onPaused() {
+        }
+
+        @Override
+        public void onClosed(IOException ex) {
+        }
+      });
+      connection.outputStream().write(request);
+    }
+    echoed.await();
+    System.out.printf("echo on every stream: %d ms%n", (System.nanoTime() - start) / 1000000);
+    System.exit(0);
+  }
+
+  private static List<Connection> open(final Connection.Factory factory, int streams) throws InterruptedException {
+    final List<Connection> connections = new ArrayList<>();
+    final AtomicInteger remaining = new AtomicInteger(streams);
+    Thread[] openers = new Thread[8];
+    for (int i = 0; i < openers.length; i++) {
+      openers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (remaining.getAndDecrement() > 0) {
+            Connection connection = null;
+            try {
+              connection = factory.newConnection(null, Endpoint.ofHost("127.0.0.1", ECHO_PORT));
+            } catch (IOException ignored) {
+            }
+            if (connection == null) {
+              System.out.println("open failed");
+              continue;
+            }
+            synchronized (connections) {
+              connections.add(connection);
+            }
+          }
+        }
+      });
+      openers[i].start();
+    }
+    for (Thread opener : openers) {
+      opener.join();
+    }
+    return connections;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(200);
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  // single threaded, echoes whatever it reads
+  private static void startEchoServer() throws IOException {
+    final Selector selector = Selector.open();
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.socket().setReuseAddress(true);
+    server.bind(new InetSocketAddress("127.0.0.1", ECHO_PORT), 4096);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        try {
+          while (true) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+              SelectionKey key = keys.next();
+              keys.remove();
+              if (key.isAcceptable()) {
+                SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                if (channel == null) continue;
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+              } else if (key.isReadable()) {
+                SocketChannel channel = (SocketChannel) key.channel();
+                buffer.clear();
+                int read;
+                try {
+                  read = channel.read(buffer);
+                } catch (IOException e) {
+                  read = -1;
+                }
+                if (read < 0) {
+                  key.cancel();
+                  channel.close();
+                  continue;
+                }
+                buffer.flip();
+                channel.write(buffer);
+              }
+            }
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
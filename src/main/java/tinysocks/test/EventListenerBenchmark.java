@@ -0,0 +1,73 @@
+package tinysocks.test;
+
+import tinysocks.AsyncEventListener;
+import tinysocks.Endpoint;
+import tinysocks.EventListener;
+import tinysocks.TinySocks;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of an event on the publishing threads, calling a synchronized listener inline
+ * versus publishing to an {@link AsyncEventListener} in front of it.
+ * <p>
+ * usage: EventListenerBenchmark [threads] [events per thread]
+ */
+public class EventListenerBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int events = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    for (int round = 0; round < 3; round++) {
+      Counting inline = new Counting();
+      double inlineNanos = run(inline, threads, events);
+
+      Counting delegate = new Counting();
+      AsyncEventListener async = new AsyncEventListener(delegate);
+      double asyncNanos = run(async, threads, events);
+      async.close();
+      long total = (long) threads * events;
+      while (delegate.count.get() + async.droppedCount() < total) {
+        Thread.sleep(1);
+      }
+      System.out.printf("inline %6.1f ns/event, async %6.1f ns/event, dispatched %d dropped %d%n",
+        inlineNanos, asyncNanos, delegate.count.get(), async.droppedCount());
+    }
+  }
+
+  private static double run(final EventListener listener, int threads, final int events) throws InterruptedException {
+    final Endpoint endpoint = Endpoint.ofHost("example.com", 443);
+    final IOException ex = new IOException("closed");
+    Thread[] workers = new Thread[threads];
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int n = 0; n < events; n++) {
+            listener.onConnectionClosed(null, endpoint, ex);
+          }
+        }
+      });
+      workers[i].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return (double) (System.nanoTime() - start) * threads / ((long) threads * events);
+  }
+
+  // stands in for LOG_LISTENER, which serializes on System.out
+  private static final class Counting extends EventListener {
+    final AtomicLong count = new AtomicLong();
+    private final StringBuilder line = new StringBuilder();
+
+    @Override
+    public synchronized void onConnectionClosed(TinySocks tinySocks, Endpoint endpoint, IOException ex) {
+      line.setLength(0);
+      line.append("Connection(").append(endpoint).append(") closed.");
+      count.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package tinysocks.test;
+
+import tinysocks.Endpoint;
+import tinysocks.EventListener;
+import tinysocks.RelayNode;
+import tinysocks.TinyRelay;
+import tinysocks.TinySocks;
+import tinysocks.relay.StreamPriority;
+import tinysocks.wan.Impairment;
+import tinysocks.wan.WanEmulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request/response latency of interactive streams while a bulk download saturates the relay link.
+ * <p>
+ * the link runs through a {@link WanEmulator} capped at {@code link KB/s}, so the link writer
+ * of the node is the bottleneck. the link window bounds what is in flight beyond the writer;
+ * everything else queues in front of it, where the weights apply. with a window far above what
+ * the link moves in a round trip, the frames queue in socket buffers and in the emulator
+ * instead, and no mode makes a difference. on plain loopback the link is faster than the
+ * servers and the same holds.
+ * <p>
+ * fifo weights the bulk stream so its whole queue goes out in one turn, as if all streams
+ * shared one queue in arrival order. with uniform weights a small response waits for at most
+ * a quantum of the bulk stream; a response of several quanta needs the weights to go out
+ * in one turn.
+ * <p>
+ * usage: FairnessBenchmark [fifo|uniform|weighted] [interactive streams] [requests per stream]
+ * [link window KB] [request bytes] [link KB/s, 0 for no cap]
+ */
+public class FairnessBenchmark {
+  private static final int ECHO_PORT = 10150;
+  private static final int BULK_PORT = 10151;
+  private static final int RELAY_PORT = 10152;
+  private static final int SOCKS_PORT = 10153;
+  private static final int LINK_PORT = 10154;
+
+  public static void main(String[] args) throws Exception {
+    final String mode = args.length > 0 ? args[0] : "weighted";
+    int streams = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    final int requests = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    int windowBytes = (args.length > 3 ? Integer.parseInt(args[3]) : 64) * 1024;
+    final int requestSize = args.length > 4 ? Integer.parseInt(args[4]) : 64 * 1024;
+    long bandwidth = (args.length > 5 ? Long.parseLong(args[5]) : 2048) * 1024;
+
+    StreamPriority priority;
+    switch (mode) {
+      case "fifo":
+        priority = new StreamPriority() {
+          @Override
+          public int weightOf(Endpoint endpoint) {
+            return endpoint.port == BULK_PORT ? MAX_WEIGHT : 1;
+          }
+        };
+        break;
+      case "uniform":
+        priority = StreamPriority.UNIFORM;
+        break;
+      case "weighted":
+        priority = new StreamPriority() {
+          @Override
+          public int weightOf(Endpoint endpoint) {
+            return endpoint.port == ECHO_PORT ? 8 : 1;
+          }
+        };
+        break;
+      default:
+        throw new IllegalArgumentException("unknown mode: " + mode);
+    }
+
+    Fixtures.startEchoServer(ECHO_PORT);
+    Fixtures.startSource(BULK_PORT, Long.MAX_VALUE);
+    TinyRelay relay = new TinyRelay(RELAY_PORT, priority);
+    relay.start();
+    WanEmulator link = new WanEmulator.Builder()
+      .listenPort(LINK_PORT)
+      .target("127.0.0.1", RELAY_PORT)
+      .impairment(new Impairment.Builder().bandwidth(bandwidth).build())
+      .build();
+    link.start();
+    new RelayNode.Builder()
+      .port(LINK_PORT)
+      .nodeName("bench")
+      .streamPriority(priority)
+      .maxReplayBytes(windowBytes)
+      .build()
+      .start();
+    new TinySocks.Builder()
+      .port(SOCKS_PORT)
+      .connectionFactory(relay.connectionFactory())
+      .eventListener(new EventListener() {
+      })
+      .build()
+      .start();
+    Thread.sleep(1000);
+
+    final AtomicLong bulkBytes = new AtomicLong();
+    Thread bulk = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          InputStream in = Fixtures.connect(SOCKS_PORT, BULK_PORT).getInputStream();
+          byte[] buffer = new byte[64 * 1024];
+          int read;
+          while ((read = in.read(buffer)) > 0) {
+            bulkBytes.addAndGet(read);
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    bulk.setDaemon(true);
+    bulk.start();
+    Thread.sleep(2000);// let the bulk stream fill every buffer on the way
+
+    final long[][] latencies = new long[streams][requests];
+    Thread[] clients = new Thread[streams];
+    long bulkStart = bulkBytes.get();
+    long start = System.nanoTime();
+    for (int i = 0; i < streams; i++) {
+      final long[] samples = latencies[i];
+      clients[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Socket socket = Fixtures.connect(SOCKS_PORT, ECHO_PORT);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] request = new byte[requestSize];
+            for (int n = 0; n < samples.length; n++) {
+              long t0 = System.nanoTime();
+              out.write(request);
+              out.flush();
+              Fixtures.readFully(in, request);
+              samples[n] = System.nanoTime() - t0;
+            }
+            socket.close();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+      clients[i].start();
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    double bulkMb = (bulkBytes.get() - bulkStart) / (1024 * 1024.0);
+
+    long[] all = new long[streams * requests];
+    for (int i = 0; i < streams; i++) {
+      System.arraycopy(latencies[i], 0, all, i * requests, requests);
+    }
+    Arrays.sort(all);
+    System.out.println("mode=" + mode + " streams=" + streams + " requests=" + all.length
+      + " window=" + windowBytes / 1024 + "KB request=" + requestSize + "B link=" + link.impairment());
+    System.out.println("p50=" + micros(all, 0.50) + "us p90=" + micros(all, 0.90)
+      + "us p99=" + micros(all, 0.99) + "us max=" + all[all.length - 1] / 1000 + "us");
+    System.out.printf("bulk=%.2fMB/s%n", bulkMb / seconds);
+    System.exit(0);
+  }
+
+  private static long micros(long[] sorted, double percentile) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))] / 1000;
+  }
+}
@@ -0,0 +1,131 @@
+package tinysocks.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Servers and client helpers the benchmarks share. the servers run on daemon threads, one per
+ * connection, so a benchmark only has to exit.
+ */
+final class Fixtures {
+  private Fixtures() {
+  }
+
+  interface Handler {
+    void handle(Socket socket) throws IOException;
+  }
+
+  static void readFully(InputStream in, byte[] buffer) throws IOException {
+    readFully(in, buffer, buffer.length);
+  }
+
+  static void readFully(InputStream in, byte[] buffer, int size) throws IOException {
+    int got = 0;
+    while (got < size) {
+      int read = in.read(buffer, got, size - got);
+      if (read < 0) throw new IOException("eof after " + got + " bytes");
+      got += read;
+    }
+  }
+
+  /**
+   * a socks5 connect to 127.0.0.1:{@code port} without authentication, with TCP_NODELAY set.
+   */
+  static Socket connect(int socksPort, int port) throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), socksPort);
+    socket.setTcpNoDelay(true);
+    OutputStream out = socket.getOutputStream();
+    InputStream in = socket.getInputStream();
+    out.write(new byte[]{5, 1, 0});
+    readFully(in, new byte[2]);
+    out.write(new byte[]{5, 1, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port});
+    byte[] reply = new byte[10];
+    readFully(in, reply);
+    if (reply[1] != 0) {
+      socket.close();
+      throw new IOException("socks connect failed: " + reply[1]);
+    }
+    return socket;
+  }
+
+  /**
+   * echoes whatever it reads, with TCP_NODELAY set.
+   */
+  static void startEchoServer(int port) throws IOException {
+    serve(new ServerSocket(port), new Handler() {
+      @Override
+      public void handle(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          out.write(buffer, 0, read);
+        }
+      }
+    });
+  }
+
+  /**
+   * writes {@code bytes} bytes to every client and closes, {@link Long#MAX_VALUE} for a source
+   * that never ends. byte {@code i} is {@code (byte) (i % 251)}, so a client can check each one.
+   */
+  static void startSource(int port, final long bytes) throws IOException {
+    final byte[] chunk = new byte[251 * 256];
+    for (int i = 0; i < chunk.length; i++) {
+      chunk[i] = (byte) (i % 251);
+    }
+    serve(new ServerSocket(port, 256), new Handler() {
+      @Override
+      public void handle(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        for (long sent = 0; sent < bytes; sent += chunk.length) {
+          out.write(chunk, 0, (int) Math.min(chunk.length, bytes - sent));
+        }
+      }
+    });
+  }
+
+  /**
+   * accepts until the server socket closes and hands each connection to {@code handler} on a
+   * thread of its own. the connection is closed when the handler returns or fails.
+   */
+  static void serve(final ServerSocket server, final Handler handler) {
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          final Socket socket;
+          try {
+            socket = server.accept();
+          } catch (IOException e) {
+            return;
+          }
+          Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                handler.handle(socket);
+              } catch (IOException ignored) {
+              } finally {
+                try {
+                  socket.close();
+                } catch (IOException ignored) {
+                }
+              }
+            }
+          });
+          thread.setDaemon(true);
+          thread.start();
+        }
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+}
@@ -0,0 +1,152 @@
+package tinysocks.test;
+
+import tinysocks.Util;
+import tinysocks.relay.FrameDecoder;
+import tinysocks.relay.FrameEncoder;
+import tinysocks.relay.Link;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Frames per second through the relay frame codec, against reading headers field by field
+ * from the socket stream and writing them through a BufferedOutputStream as before.
+ * decoding runs over a loopback socket, so the saved reads show up as saved syscalls.
+ * <p>
+ * usage: FrameCodecBenchmark [payload size] [seconds per phase]
+ */
+public class FrameCodecBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int payloadSize = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    byte[] payload = new byte[payloadSize];
+
+    for (int round = 0; round < 2; round++) {
+      System.out.printf("encode  stream %,12d frames/s   codec %,12d frames/s%n",
+        encodeStream(payload, seconds), encodeCodec(payload, seconds));
+      System.out.printf("decode  stream %,12d frames/s   codec %,12d frames/s%n",
+        decode(payload, seconds, false), decode(payload, seconds, true));
+    }
+    System.exit(0);
+  }
+
+  private static long encodeStream(byte[] payload, int seconds) throws IOException {
+    OutputStream out = new BufferedOutputStream(new NullOutputStream(), 16 * 1024);
+    long frames = 0;
+    long deadline = System.nanoTime() + seconds * 1000000000L;
+    while (System.nanoTime() < deadline) {
+      for (int i = 0; i < 1024; i++) {
+        Util.writeInt(out, i);
+        out.write(Link.TYPE_DATA);
+        Util.writeShort(out, (short) payload.length);
+        out.write(payload, 0, payload.length);
+      }
+      out.flush();
+      frames += 1024;
+    }
+    return frames / seconds;
+  }
+
+  private static long encodeCodec(byte[] payload, int seconds) throws IOException {
+    FrameEncoder encoder = new FrameEncoder(new NullOutputStream());
+    long frames = 0;
+    long deadline = System.nanoTime() + seconds * 1000000000L;
+    while (System.nanoTime() < deadline) {
+      for (int i = 0; i < 1024; i++) {
+        encoder.write(i, Link.TYPE_DATA, payload, 0, payload.length);
+      }
+      encoder.flush();
+      frames += 1024;
+    }
+    return frames / seconds;
+  }
+
+  private static long decode(byte[] payload, int seconds, boolean codec) throws Exception {
+    final ServerSocket server = new ServerSocket(0);
+    final byte[] chunk = encodedFrames(payload, 256 * 1024);
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          OutputStream out = socket.getOutputStream();
+          while (true) {
+            out.write(chunk);
+          }
+        } catch (IOException ignored) {
+        }
+      }
+    });
+    writer.setDaemon(true);
+    writer.start();
+    Socket socket = new Socket();
+    socket.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+    InputStream in = socket.getInputStream();
+    byte[] buffer = new byte[0xFFFF];
+    FrameDecoder decoder = new FrameDecoder(in);
+    long frames = 0;
+    long sum = 0;
+    long deadline = System.nanoTime() + seconds * 1000000000L;
+    while (System.nanoTime() < deadline) {
+      for (int i = 0; i < 1024; i++) {
+        if (codec) {
+          decoder.next();
+          sum += decoder.connectionId() + decoder.payload().remaining();
+        } else {
+          int connectionId = Util.readInt(in);
+          in.read();
+          int size = Util.readUnsignedShort(in);
+          Util.readNBytes(in, buffer, 0, size);
+          sum += connectionId + size;
+        }
+      }
+      frames += 1024;
+    }
+    socket.close();
+    server.close();
+    if (sum == 42) System.out.println();
+    return frames / seconds;
+  }
+
+  // whole frames, about {@code size} bytes
+  private static byte[] encodedFrames(byte[] payload, int size) throws IOException {
+    final int frameSize = FrameDecoder.HEADER_SIZE + payload.length;
+    int count = Math.max(1, size / frameSize);
+    final byte[] frames = new byte[count * frameSize];
+    FrameEncoder encoder = new FrameEncoder(new OutputStream() {
+      int position;
+
+      @Override
+      public void write(int b) {
+        frames[position++] = (byte) b;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        System.arraycopy(b, off, frames, position, len);
+        position += len;
+      }
+    });
+    for (int i = 0; i < count; i++) {
+      encoder.write(i, Link.TYPE_DATA, payload, 0, payload.length);
+    }
+    encoder.flush();
+    return frames;
+  }
+
+  private static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package tinysocks.test;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.EventListener;
+import tinysocks.TinySocks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SOCKS5 handshakes per second against a connection factory that connects nowhere, so only
+ * the handshake and the worker life cycle are measured.
+ * <p>
+ * usage: HandshakeBenchmark [pipelined|sequential] [client threads] [seconds]
+ */
+public class HandshakeBenchmark {
+  private static final int SOCKS_PORT = 10160;
+  private static final byte[] GREETING = {5, 1, 0};
+  private static final byte[] REQUEST = {5, 1, 0, 1, 127, 0, 0, 1, 0, 80};
+
+  public static void main(String[] args) throws Exception {
+    final boolean pipelined = args.length == 0 || !"sequential".equals(args[0]);
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    new TinySocks.Builder()
+      .port(SOCKS_PORT)
+      .connectionFactory(new Connection.Factory() {
+        @Override
+        public Connection newConnection(Socket socksClient, Endpoint endpoint) {
+          return new NullConnection(endpoint);
+        }
+      })
+      .eventListener(new EventListener() {
+      })
+      .build()
+      .start();
+    Thread.sleep(500);
+
+    final AtomicLong handshakes = new AtomicLong();
+    final long deadline = System.nanoTime() + seconds * 1000000000L;
+    Thread[] clients = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      clients[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          byte[] pipelinedRequest = new byte[GREETING.length + REQUEST.length];
+          System.arraycopy(GREETING, 0, pipelinedRequest, 0, GREETING.length);
+          System.arraycopy(REQUEST, 0, pipelinedRequest, GREETING.length, REQUEST.length);
+          byte[] reply = new byte[12];
+          try {
+            while (System.nanoTime() < deadline) {
+              Socket socket = new Socket();
+              socket.setTcpNoDelay(true);
+              socket.connect(new InetSocketAddress("127.0.0.1", SOCKS_PORT));
+              OutputStream out = socket.getOutputStream();
+              InputStream in = socket.getInputStream();
+              if (pipelined) {
+                out.write(pipelinedRequest);
+                Fixtures.readFully(in, reply, 12);
+              } else {
+                out.write(GREETING);
+                Fixtures.readFully(in, reply, 2);
+                out.write(REQUEST);
+                Fixtures.readFully(in, reply, 10);
+              }
+              socket.close();
+              handshakes.incrementAndGet();
+            }
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+      clients[i].start();
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+    System.out.println((pipelined ? "pipelined" : "sequential") + " threads=" + threads
+      + " handshakes/s=" + handshakes.get() / seconds);
+    System.exit(0);
+  }
+
+  private static final class NullConnection implements Connection {
+    private final Endpoint endpoint;
+    private final OutputStream sink = new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    };
+
+    NullConnection(Endpoint endpoint) {
+      this.endpoint = endpoint;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public byte[] remoteAddress() {
+      return new byte[]{127, 0, 0, 1};
+    }
+
+    @Override
+    public int remotePort() {
+      return endpoint.port;
+    }
+
+    @Override
+    public Endpoint endpoint() {
+      return endpoint;
+    }
+
+    @Override
+    public InputStream inputStream() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public OutputStream outputStream() {
+      return sink;
+    }
+  }
+}
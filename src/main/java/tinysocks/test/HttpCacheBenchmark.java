@@ -0,0 +1,273 @@
+package tinysocks.test;
+
+import tinysocks.EventListener;
+import tinysocks.TinySocks;
+import tinysocks.http.HttpCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive clients fetching artifacts through a socks server from an origin on loopback,
+ * without and with an {@link HttpCache} in front of it. popularity is skewed: one request
+ * in two goes to the first tenth of the artifacts. the origin serves three kinds:
+ * <ul>
+ * <li>/fresh/n: max-age=600, served from the cache until it expires</li>
+ * <li>/etag/n: no-cache with an ETag, revalidated on every request</li>
+ * <li>/chunked/n: max-age=600, chunked transfer encoding</li>
+ * </ul>
+ * and /private/n with no-store, never cached. every body is checked byte by byte.
+ * <p>
+ * usage: HttpCacheBenchmark [clients] [requests per client] [artifacts] [artifact KB]
+ */
+public class HttpCacheBenchmark {
+  private static final int ORIGIN_PORT = 10320;
+  private static final int DIRECT_PORT = 10321;
+  private static final int CACHED_PORT = 10322;
+  private static final String[] KINDS = {"fresh", "fresh", "etag", "chunked", "private"};
+
+  private static final AtomicLong originBytes = new AtomicLong();
+  private static final AtomicLong originRequests = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int artifacts = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+    int artifactKb = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+    startOrigin(artifactKb * 1024);
+
+    File directory = File.createTempFile("tinysocks", "");
+    if (!directory.delete() || !directory.mkdir()) throw new IOException("can not create " + directory);
+    HttpCache cache = new HttpCache.Builder()
+      .directory(directory)
+      .ports(ORIGIN_PORT)
+      .maxBytes(64L * 1024 * 1024)
+      .segmentSize(8 * 1024 * 1024)
+      .build();
+    EventListener quiet = new EventListener() {
+    };
+    new TinySocks.Builder().port(DIRECT_PORT).eventListener(quiet).build().start();
+    new TinySocks.Builder().port(CACHED_PORT).connectionFactory(cache).eventListener(quiet).build().start();
+    Thread.sleep(500);
+
+    for (int round = 0; round < 2; round++) {
+      report("direct", DIRECT_PORT, clients, requests, artifacts, null);
+      report("cached", CACHED_PORT, clients, requests, artifacts, cache);
+    }
+    System.out.println(cache);
+    for (File file : directory.listFiles()) {
+      file.deleteOnExit();
+    }
+    directory.deleteOnExit();
+    System.exit(0);
+  }
+
+  private static void report(String name, final int socksPort, int clients, final int requests, final int artifacts,
+                             HttpCache cache) throws Exception {
+    long originBefore = originBytes.get();
+    long originRequestsBefore = originRequests.get();
+    long hitsBefore = cache != null ? cache.hits() : 0;
+    long missesBefore = cache != null ? cache.misses() : 0;
+    long savedBefore = cache != null ? cache.bytesSaved() : 0;
+    final AtomicLong received = new AtomicLong();
+    final List<Exception> failures = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int c = 0; c < clients; c++) {
+      final long seed = c;
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            received.addAndGet(runClient(socksPort, requests, artifacts, new Random(seed)));
+          } catch (Exception e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      }));
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (!failures.isEmpty()) throw failures.get(0);
+    long total = (long) clients * requests;
+    System.out.printf("%s  %,8.0f req/s  %,6.1f MB/s to clients  origin: %,d requests %,.1f MB", name,
+      total / seconds, received.get() / seconds / 1048576, originRequests.get() - originRequestsBefore,
+      (originBytes.get() - originBefore) / 1048576.0);
+    if (cache != null) {
+      long hits = cache.hits() - hitsBefore;
+      long misses = cache.misses() - missesBefore;
+      System.out.printf("  hit rate %.1f%%  saved %,.1f MB", 100.0 * hits / Math.max(1, hits + misses),
+        (cache.bytesSaved() - savedBefore) / 1048576.0);
+    }
+    System.out.println();
+  }
+
+  private static long runClient(int socksPort, int requests, int artifacts, Random random) throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), socksPort);
+    socket.setTcpNoDelay(true);
+    OutputStream out = socket.getOutputStream();
+    InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+    out.write(new byte[]{5, 1, 0});
+    Fixtures.readFully(in, new byte[2]);
+    out.write(new byte[]{5, 1, 0, 1, 127, 0, 0, 1, (byte) (ORIGIN_PORT >> 8), (byte) ORIGIN_PORT});
+    byte[] reply = new byte[10];
+    Fixtures.readFully(in, reply);
+    if (reply[1] != 0) throw new IOException("socks connect failed");
+    long received = 0;
+    for (int i = 0; i < requests; i++) {
+      int n = random.nextBoolean() ? random.nextInt(Math.max(1, artifacts / 10)) : random.nextInt(artifacts);
+      String kind = KINDS[n % KINDS.length];
+      out.write(("GET /" + kind + "/" + n + " HTTP/1.1\r\nHost: origin.test\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      byte[] body = readResponse(in);
+      check(n, body);
+      received += body.length;
+    }
+    socket.close();
+    return received;
+  }
+
+  private static void check(int n, byte[] body) throws IOException {
+    for (int i = 0; i < body.length; i++) {
+      if (body[i] != (byte) (n * 31 + i)) throw new IOException("corrupt body of artifact " + n + " at " + i);
+    }
+  }
+
+  private static byte[] readResponse(InputStream in) throws IOException {
+    String status = readLine(in);
+    if (!status.startsWith("HTTP/1.1 200")) throw new IOException("unexpected " + status);
+    long length = -1;
+    boolean chunked = false;
+    String line;
+    while (!(line = readLine(in)).isEmpty()) {
+      String lower = line.toLowerCase(Locale.ROOT);
+      if (lower.startsWith("content-length:")) length = Long.parseLong(lower.substring(15).trim());
+      if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) chunked = true;
+    }
+    if (!chunked) {
+      byte[] body = new byte[(int) length];
+      Fixtures.readFully(in, body);
+      return body;
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    while (true) {
+      int size = Integer.parseInt(readLine(in).trim(), 16);
+      if (size == 0) {
+        while (!readLine(in).isEmpty()) {
+        }
+        return body.toByteArray();
+      }
+      byte[] chunk = new byte[size];
+      Fixtures.readFully(in, chunk);
+      body.write(chunk);
+      readLine(in);
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c < 0) throw new IOException("eof");
+      if (c != '\r') line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  private static void startOrigin(final int size) throws IOException {
+    Fixtures.serve(new ServerSocket(ORIGIN_PORT), new Fixtures.Handler() {
+      @Override
+      public void handle(Socket socket) throws IOException {
+        serve(socket, size);
+      }
+    });
+  }
+
+  private static void serve(Socket socket, int size) throws IOException {
+    socket.setTcpNoDelay(true);
+    InputStream in = new BufferedInputStream(socket.getInputStream());
+    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+    while (true) {
+      String request = readLine(in);
+      String ifNoneMatch = null;
+      String line;
+      while (!(line = readLine(in)).isEmpty()) {
+        if (line.toLowerCase(Locale.ROOT).startsWith("if-none-match:")) ifNoneMatch = line.substring(14).trim();
+      }
+      originRequests.incrementAndGet();
+      String path = request.split(" ")[1];
+      String kind = path.substring(1, path.indexOf('/', 1));
+      int n = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+      byte[] body = new byte[size + n % 7 * 1000];
+      for (int i = 0; i < body.length; i++) {
+        body[i] = (byte) (n * 31 + i);
+      }
+      String etag = "\"v1-" + n + "\"";
+      StringBuilder head = new StringBuilder();
+      if (kind.equals("etag") && etag.equals(ifNoneMatch)) {
+        head.append("HTTP/1.1 304 Not Modified\r\nETag: ").append(etag).append("\r\n\r\n");
+        byte[] bytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        out.write(bytes);
+        out.flush();
+        originBytes.addAndGet(bytes.length);
+        continue;
+      }
+      head.append("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n");
+      switch (kind) {
+        case "fresh":
+          head.append("Cache-Control: max-age=600\r\n");
+          break;
+        case "etag":
+          head.append("Cache-Control: no-cache\r\nETag: ").append(etag).append("\r\n");
+          break;
+        case "chunked":
+          head.append("Cache-Control: max-age=600\r\n");
+          break;
+        default:
+          head.append("Cache-Control: no-store\r\n");
+      }
+      long sent;
+      if (kind.equals("chunked")) {
+        head.append("Transfer-Encoding: chunked\r\n\r\n");
+        byte[] bytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        out.write(bytes);
+        sent = bytes.length;
+        for (int offset = 0; offset < body.length; offset += 8192) {
+          int chunk = Math.min(8192, body.length - offset);
+          byte[] chunkHead = (Integer.toHexString(chunk) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+          out.write(chunkHead);
+          out.write(body, offset, chunk);
+          out.write('\r');
+          out.write('\n');
+          sent += chunkHead.length + chunk + 2;
+        }
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        sent += 5;
+      } else {
+        head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+        byte[] bytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        out.write(bytes);
+        out.write(body);
+        sent = bytes.length + body.length;
+      }
+      out.flush();
+      originBytes.addAndGet(sent);
+    }
+  }
+}
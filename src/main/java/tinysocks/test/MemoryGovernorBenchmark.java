@@ -0,0 +1,133 @@
+package tinysocks.test;
+
+import tinysocks.EventListener;
+import tinysocks.RelayNode;
+import tinysocks.TinyRelay;
+import tinysocks.TinySocks;
+import tinysocks.limit.RateLimits;
+import tinysocks.relay.MemoryGovernor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Relay memory under a burst, with and without a tight {@link MemoryGovernor} budget. many
+ * streams download at once through TinySocks, TinyRelay and a RelayNode in this process; the
+ * socks side is rate limited, so the streams are read more slowly than the link delivers and
+ * their receive rings fill. prints the most the governor saw in use, the highest pressure and
+ * how often senders waited, and checks that every stream still gets all its bytes.
+ * <p>
+ * usage: MemoryGovernorBenchmark [streams] [MB per stream] [budget MB]
+ */
+public class MemoryGovernorBenchmark {
+  private static final int SOURCE_PORT = 10390;
+  private static final int RELAY_PORT = 10391;
+  private static final int SOCKS_PORT = 10392;
+  private static final long RATE = 64 * 1024 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    int streams = args.length > 0 ? Integer.parseInt(args[0]) : 48;
+    final int streamBytes = (args.length > 1 ? Integer.parseInt(args[1]) : 4) * 1024 * 1024;
+    long budget = (args.length > 2 ? Long.parseLong(args[2]) : 16) * 1024 * 1024;
+    Fixtures.startSource(SOURCE_PORT, streamBytes);
+    EventListener quiet = new EventListener() {
+    };
+    TinyRelay relay = new TinyRelay(RELAY_PORT);
+    relay.start();
+    new TinySocks.Builder().port(SOCKS_PORT).connectionFactory(relay.connectionFactory()).eventListener(quiet)
+      .rateLimits(new RateLimits.Builder().perClient(RATE, RATE / 8).build())
+      .build().start();
+    Thread.sleep(300);
+    new RelayNode.Builder().port(RELAY_PORT).nodeName("memory").build().start();
+    Thread.sleep(1000);
+
+    MemoryGovernor governor = MemoryGovernor.global();
+    System.out.println("budget          peak used   max pressure   waits        MB/s");
+    for (int round = 0; round < 2; round++) {
+      run("unbounded", Long.MAX_VALUE / 4, governor, streams, streamBytes);
+      run(budget / 1048576 + "MB", budget, governor, streams, streamBytes);
+    }
+    Thread.sleep(500);
+    // what is left are the pooled arrays and the buffers of the link
+    System.out.printf("after the runs %.1f MB in use%n", governor.getUsedBytes() / 1048576.0);
+    System.exit(0);
+  }
+
+  private static void run(String name, long limit, final MemoryGovernor governor, int streams, final int streamBytes)
+    throws Exception {
+    governor.setLimit(limit);
+    long waits = governor.getWaits();
+    final long[] peak = new long[2];// used bytes, pressure
+    Thread sampler = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          peak[0] = Math.max(peak[0], governor.getUsedBytes());
+          peak[1] = Math.max(peak[1], governor.getPressure());
+          try {
+            Thread.sleep(5);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    });
+    sampler.start();
+    final List<Exception> failures = new ArrayList<>();
+    List<Thread> readers = new ArrayList<>();
+    for (int i = 0; i < streams; i++) {
+      readers.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            download(streamBytes);
+          } catch (Exception e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      }));
+    }
+    long start = System.nanoTime();
+    for (Thread reader : readers) reader.start();
+    for (Thread reader : readers) reader.join();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    sampler.interrupt();
+    sampler.join();
+    if (!failures.isEmpty()) throw failures.get(0);
+    System.out.printf("%-12s %9.1f MB   %12d   %,7d   %9.1f%n", name, peak[0] / 1048576.0, peak[1],
+      governor.getWaits() - waits, (double) streams * streamBytes / 1048576 / seconds);
+  }
+
+  private static void download(int bytes) throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), SOCKS_PORT);
+    try {
+      OutputStream out = socket.getOutputStream();
+      InputStream in = socket.getInputStream();
+      out.write(new byte[]{5, 1, 0});
+      Fixtures.readFully(in, new byte[2]);
+      out.write(new byte[]{5, 1, 0, 1, 127, 0, 0, 1, (byte) (SOURCE_PORT >> 8), (byte) SOURCE_PORT});
+      byte[] reply = new byte[10];
+      Fixtures.readFully(in, reply);
+      if (reply[1] != 0) throw new IOException("socks connect failed");
+      byte[] buffer = new byte[64 * 1024];
+      long received = 0;
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        for (int i = 0; i < n; i++) {
+          if (buffer[i] != (byte) ((received + i) % 251)) throw new IOException("corrupt at " + (received + i));
+        }
+        received += n;
+      }
+      if (received != bytes) throw new IOException("received " + received + " of " + bytes);
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package tinysocks.test;
+
+import tinysocks.EventListener;
+import tinysocks.RelayNode;
+import tinysocks.Splice;
+import tinysocks.TinyRelay;
+import tinysocks.TinySocks;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that relayed socks streams are pushed to their clients: each stream through TinySocks,
+ * TinyRelay and a RelayNode should take one thread of TinySocks, not two, and a second one only
+ * once its client falls behind. a client that reads slowly fills its socket, and the stream
+ * must then pause to a pipe of its own and still deliver every byte. prints the most threads a
+ * fast and a slow download took, and exits with status 1 when a byte is wrong or, where pushing
+ * is supported, an idle stream took more than one thread.
+ * <p>
+ * pushing needs what {@link Splice} needs: Linux and JDK 21 or later started with
+ * {@code --add-opens java.base/java.net=ALL-UNNAMED --add-opens java.base/java.io=ALL-UNNAMED},
+ * and {@code --enable-preview} on 21. elsewhere every stream takes two threads.
+ * <p>
+ * usage: PushCheck [idle streams] [MB per download]
+ */
+public class PushCheck {
+  private static final int ECHO_PORT = 10400;
+  private static final int SOURCE_PORT = 10401;
+  private static final int RELAY_PORT = 10402;
+  private static final int SOCKS_PORT = 10403;
+
+  public static void main(String[] args) throws Exception {
+    int streams = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int bytes = (args.length > 1 ? Integer.parseInt(args[1]) : 16) * 1024 * 1024;
+    Fixtures.startEchoServer(ECHO_PORT);
+    Fixtures.startSource(SOURCE_PORT, bytes);
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>());
+    TinyRelay relay = new TinyRelay(RELAY_PORT);
+    relay.start();
+    new TinySocks.Builder().port(SOCKS_PORT).executor(executor).connectionFactory(relay.connectionFactory())
+      .eventListener(new EventListener() {
+      }).build().start();
+    new RelayNode.Builder().port(RELAY_PORT).nodeName("push").build().start();
+    Thread.sleep(1500);
+
+    boolean push = Splice.isSupported();
+    System.out.println(push ? "push supported" : "push not supported: " + Splice.unsupportedReason());
+    boolean ok = true;
+
+    // the accepting loop of TinySocks runs on the pool too
+    int before = executor.getActiveCount();
+    List<Socket> open = new ArrayList<>();
+    byte[] message = "ping".getBytes("ASCII");
+    for (int i = 0; i < streams; i++) {
+      Socket socket = Fixtures.connect(SOCKS_PORT, ECHO_PORT);
+      open.add(socket);
+      socket.getOutputStream().write(message);
+      byte[] echoed = new byte[message.length];
+      Fixtures.readFully(socket.getInputStream(), echoed);
+      ok &= Arrays.equals(message, echoed);
+    }
+    Thread.sleep(300);
+    double idle = (double) (executor.getActiveCount() - before) / streams;
+    for (Socket socket : open) {
+      socket.close();
+    }
+    System.out.printf("idle streams    %.2f threads per stream%n", idle);
+    Thread.sleep(500);
+
+    before = executor.getActiveCount();
+    Sampler sampler = new Sampler(executor);
+    long start = System.nanoTime();
+    ok &= download(bytes, false);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    int fast = sampler.finish() - before;
+    System.out.printf("fast download   %d threads, %.0f MB/s%n", fast, bytes / 1048576.0 / seconds);
+    Thread.sleep(500);
+
+    sampler = new Sampler(executor);
+    ok &= download(bytes, true);
+    System.out.printf("slow download   %d threads%n", sampler.finish() - before);
+
+    if (push) ok &= idle == 1;
+    System.out.println(ok ? "OK" : "FAILED");
+    System.exit(ok ? 0 : 1);
+  }
+
+  // a slow reader sleeps between small reads of the first 8MB
+  private static boolean download(int bytes, boolean slow) throws Exception {
+    Socket socket = Fixtures.connect(SOCKS_PORT, SOURCE_PORT);
+    try {
+      InputStream in = socket.getInputStream();
+      byte[] buffer = new byte[slow ? 4096 : 64 * 1024];
+      long received = 0;
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        for (int i = 0; i < n; i++) {
+          if (buffer[i] != (byte) ((received + i) % 251)) {
+            System.out.println("corrupt at " + (received + i));
+            return false;
+          }
+        }
+        received += n;
+        if (slow && received < 8 * 1024 * 1024) Thread.sleep(1);
+      }
+      return received == bytes;
+    } finally {
+      socket.close();
+    }
+  }
+
+  // the most threads of the pool busy at once
+  private static final class Sampler extends Thread {
+    private final ThreadPoolExecutor executor;
+    private volatile boolean stopped;
+    private int max;
+
+    Sampler(ThreadPoolExecutor executor) {
+      this.executor = executor;
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        max = Math.max(max, executor.getActiveCount());
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    int finish() throws InterruptedException {
+      stopped = true;
+      join();
+      return max;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package tinysocks.test;
+
+import tinysocks.relay.ReceiveRing;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * Throughput of a relay stream receive queue with one producer and one consumer thread:
+ * the ring against the synchronized list RelayConnection used before, both bounded to 2MB.
+ * <p>
+ * usage: ReceiveQueueBenchmark [chunk size] [chunks]
+ */
+public class ReceiveQueueBenchmark {
+  private static final int READ_SIZE = 8192;
+
+  public static void main(String[] args) throws Exception {
+    final int chunkSize = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+    final int chunks = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+    for (int round = 0; round < 3; round++) {
+      System.out.printf("chunk=%dB  locked list %,8.0f MB/s   ring %,8.0f MB/s%n", chunkSize,
+        runLocked(chunkSize, chunks), runRing(chunkSize, chunks));
+    }
+  }
+
+  private static double runRing(final int chunkSize, final int chunks) throws InterruptedException {
+    final ReceiveRing ring = new ReceiveRing(2 * 1024 * 1024 / 4096);
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ByteBuffer payload = ByteBuffer.allocate(chunkSize);
+        for (int i = 0; i < chunks; i++) {
+          payload.clear();
+          ring.offer(payload);
+        }
+        ring.finish();
+      }
+    });
+    long start = System.nanoTime();
+    producer.start();
+    byte[] buffer = new byte[READ_SIZE];
+    long bytes = 0;
+    int read;
+    while ((read = ring.read(buffer, 0, buffer.length)) > 0) {
+      bytes += read;
+    }
+    producer.join();
+    return check(bytes, (long) chunkSize * chunks) / ((System.nanoTime() - start) / 1e9) / (1024 * 1024);
+  }
+
+  private static double runLocked(final int chunkSize, final int chunks) throws InterruptedException {
+    final LockedQueue queue = new LockedQueue();
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < chunks; i++) {
+          queue.onDataReceived(new byte[chunkSize], chunkSize);
+        }
+        queue.finish();
+      }
+    });
+    long start = System.nanoTime();
+    producer.start();
+    byte[] buffer = new byte[READ_SIZE];
+    long bytes = 0;
+    int read;
+    while ((read = queue.read(buffer, 0, buffer.length)) > 0) {
+      bytes += read;
+    }
+    producer.join();
+    return check(bytes, (long) chunkSize * chunks) / ((System.nanoTime() - start) / 1e9) / (1024 * 1024);
+  }
+
+  private static long check(long bytes, long expected) {
+    if (bytes != expected) throw new AssertionError(bytes + " != " + expected);
+    return bytes;
+  }
+
+  // the previous RelayConnection queue, the producer allocated each chunk from a pool
+  private static final class LockedQueue {
+    private static final int MAX_QUEUE_BYTES = 2 * 1024 * 1024;
+    private final Queue<ReceivedData> receiveQueue = new LinkedList<>();
+    private int queueBytes;
+    private volatile Thread readThread;
+    private volatile Thread receiveThread;
+    private boolean finished;
+
+    void finish() {
+      synchronized (receiveQueue) {
+        finished = true;
+        receiveQueue.notifyAll();
+      }
+    }
+
+    int read(byte[] b, int off, int len) {
+      synchronized (receiveQueue) {
+        readThread = Thread.currentThread();
+        while (receiveQueue.isEmpty()) {
+          if (finished) {
+            readThread = null;
+            return -1;
+          }
+          try {
+            receiveQueue.wait();
+          } catch (InterruptedException ignored) {
+          }
+        }
+        readThread = null;
+        ReceivedData data = receiveQueue.peek();
+        int copied = Math.min(data.size - data.consumed, len);
+        System.arraycopy(data.buffer, data.consumed, b, off, copied);
+        queueBytes -= copied;
+        data.consumed += copied;
+        if (data.consumed >= data.size) {
+          receiveQueue.poll();
+        }
+        if (receiveThread != null) {
+          receiveQueue.notify();
+        }
+        return copied;
+      }
+    }
+
+    void onDataReceived(byte[] buffer, int size) {
+      synchronized (receiveQueue) {
+        while (queueBytes + size > MAX_QUEUE_BYTES) {
+          try {
+            receiveThread = Thread.currentThread();
+            receiveQueue.wait();
+          } catch (InterruptedException ignored) {
+          }
+        }
+        receiveThread = null;
+        queueBytes += size;
+        receiveQueue.offer(new ReceivedData(buffer, size));
+        if (readThread != null) {
+          receiveQueue.notify();
+        }
+      }
+    }
+
+    private static final class ReceivedData {
+      final byte[] buffer;
+      final int size;
+      int consumed;
+
+      ReceivedData(byte[] buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package tinysocks.test;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.route.Router;
+import tinysocks.route.RuleSet;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Lookup cost of the routing rules with large rule lists, with and without the cache.
+ * <p>
+ * usage: RoutingBenchmark [domain rules] [cidr rules]
+ */
+public class RoutingBenchmark {
+  private static final int LOOKUPS = 2000000;
+
+  public static void main(String[] args) throws Exception {
+    int domainCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int cidrCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    Connection.Factory direct = new Named("direct");
+    Connection.Factory relay = new Named("relay");
+    Connection.Factory blocked = new Named("blocked");
+
+    Random random = new Random(42);
+    String[] domains = new String[domainCount];
+    long start = System.nanoTime();
+    RuleSet.Builder builder = new RuleSet.Builder();
+    for (int i = 0; i < domainCount; i++) {
+      domains[i] = "d" + Integer.toString(random.nextInt(), 36) + "." + TLDS[i % TLDS.length];
+      builder.domain(domains[i], direct);
+    }
+    for (int i = 0; i < cidrCount; i++) {
+      int ip = random.nextInt();
+      int length = 16 + random.nextInt(17);
+      builder.cidr(ipString(ip) + "/" + length, direct);
+    }
+    builder.domain("ads.example.com", blocked)
+      .domain("example.com", direct)
+      .cidr("10.0.0.0/8", direct)
+      .cidr("10.1.0.0/16", blocked);
+    RuleSet rules = builder.build();
+    System.out.println("built " + rules.domainCount() + " domains, " + rules.cidrCount() + " cidrs in "
+      + (System.nanoTime() - start) / 1000000 + "ms");
+
+    check(rules.match(Endpoint.ofHost("example.com", 80)) == direct, "exact domain");
+    check(rules.match(Endpoint.ofHost("WWW.Example.com.", 80)) == direct, "subdomain");
+    check(rules.match(Endpoint.ofHost("x.ads.example.com", 80)) == blocked, "longest suffix");
+    check(rules.match(Endpoint.ofHost("badexample.com", 80)) == null, "label boundary");
+    check(rules.match(Endpoint.ofHost("10.2.3.4", 80)) == direct, "ip literal");
+    check(rules.match(Endpoint.ofHost("10.1.3.4", 80)) == blocked, "longest prefix");
+    check(rules.match(Endpoint.ofHost("10.1.3.4.example.org", 80)) == null, "not an ip");
+
+    Endpoint[] endpoints = new Endpoint[4096];
+    for (int i = 0; i < endpoints.length; i++) {
+      switch (i % 3) {
+        case 0:
+          endpoints[i] = Endpoint.ofHost("www." + domains[random.nextInt(domainCount)], 443);
+          break;
+        case 1:
+          endpoints[i] = Endpoint.ofHost("miss" + i + ".example.net", 443);
+          break;
+        default:
+          endpoints[i] = Endpoint.ofHost(ipString(random.nextInt()), 443);
+      }
+    }
+    Router uncached = new Router.Builder().rules(rules).fallback(relay).cacheSize(0).build();
+    Router cached = new Router.Builder().rules(rules).fallback(relay).build();
+    for (int round = 0; round < 3; round++) {
+      System.out.printf("uncached %5.0f ns/lookup, cached %5.0f ns/lookup%n",
+        measure(uncached, endpoints), measure(cached, endpoints));
+    }
+
+    // readers keep routing while the rules are swapped under them
+    final Router swapped = new Router.Builder().rules(rules).fallback(relay).build();
+    final Endpoint probe = Endpoint.ofHost("10.9.9.9", 80);
+    final boolean[] failed = new boolean[1];
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < LOOKUPS; i++) {
+          if (swapped.route(probe) == null) failed[0] = true;
+        }
+      }
+    });
+    reader.start();
+    for (int i = 0; i < 100; i++) {
+      swapped.setRules(i % 2 == 0 ? RuleSet.EMPTY : new RuleSet.Builder().cidr("10.0.0.0/8", direct).build());
+    }
+    reader.join();
+    check(!failed[0], "lookups during swaps");
+    swapped.setRules(new RuleSet.Builder().cidr("10.0.0.0/8", blocked).build());
+    check(swapped.route(probe) == blocked, "swap drops the cache");
+    System.out.println("checks passed");
+  }
+
+  private static double measure(Router router, Endpoint[] endpoints) {
+    int sink = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < LOOKUPS; i++) {
+      sink += router.route(endpoints[i & (endpoints.length - 1)]).hashCode() & 1;
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sink == -1) System.out.println();
+    return (double) elapsed / LOOKUPS;
+  }
+
+  private static void check(boolean ok, String what) {
+    if (!ok) throw new AssertionError(what);
+  }
+
+  private static String ipString(int ip) {
+    return (ip >>> 24) + "." + (ip >> 16 & 0xFF) + "." + (ip >> 8 & 0xFF) + "." + (ip & 0xFF);
+  }
+
+  private static final String[] TLDS = {"com", "net", "org", "cn", "io"};
+
+  private static final class Named implements Connection.Factory {
+    private final String name;
+
+    Named(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Connection newConnection(Socket socksClient, Endpoint endpoint) throws IOException {
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+}
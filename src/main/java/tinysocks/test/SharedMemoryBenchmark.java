@@ -0,0 +1,87 @@
+package tinysocks.test;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.RelayNode;
+import tinysocks.TinyRelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A relay server and node linked over loopback TCP, against the same pair linked through a
+ * {@link tinysocks.relay.SharedMemoryTransport} file: echo latency and bulk throughput of
+ * streams opened on the relay.
+ * <p>
+ * usage: SharedMemoryBenchmark [echo requests] [bulk MB] [shared memory file]
+ */
+public class SharedMemoryBenchmark {
+  private static final int ECHO_PORT = 10200;
+  private static final int BULK_PORT = 10201;
+  private static final int RELAY_PORT = 10202;
+
+  public static void main(String[] args) throws Exception {
+    int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int bulkMb = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+    File file = args.length > 2 ? new File(args[2]) : File.createTempFile("tinysocks", ".shm");
+    file.deleteOnExit();
+    Fixtures.startEchoServer(ECHO_PORT);
+    Fixtures.startSource(BULK_PORT, Long.MAX_VALUE);
+
+    TinyRelay tcp = new TinyRelay(RELAY_PORT);
+    tcp.start();
+    new RelayNode.Builder().port(RELAY_PORT).nodeName("tcp").build().start();
+
+    TinyRelay shared = new TinyRelay.Builder().sharedMemory(file).build();
+    shared.start();
+    Thread.sleep(500);
+    new RelayNode.Builder().sharedMemory(file).nodeName("shm").build().start();
+    Thread.sleep(1500);
+
+    for (int round = 0; round < 3; round++) {
+      report("tcp", tcp, requests, bulkMb);
+      report("shm", shared, requests, bulkMb);
+    }
+    System.exit(0);
+  }
+
+  private static void report(String name, TinyRelay relay, int requests, int bulkMb) throws IOException {
+    long[] latencies = new long[requests];
+    Connection connection = open(relay, ECHO_PORT);
+    OutputStream out = connection.outputStream();
+    InputStream in = connection.inputStream();
+    byte[] request = new byte[64];
+    for (int i = 0; i < requests; i++) {
+      long start = System.nanoTime();
+      out.write(request);
+      Fixtures.readFully(in, request);
+      latencies[i] = System.nanoTime() - start;
+    }
+    connection.close();
+    Arrays.sort(latencies);
+
+    connection = open(relay, BULK_PORT);
+    in = connection.inputStream();
+    byte[] buffer = new byte[64 * 1024];
+    long total = (long) bulkMb * 1024 * 1024;
+    long received = 0;
+    long start = System.nanoTime();
+    int read;
+    while (received < total && (read = in.read(buffer)) > 0) {
+      received += read;
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    connection.close();
+    System.out.printf("%s echo p50=%dus p99=%dus   bulk %.0f MB/s%n", name,
+      latencies[requests / 2] / 1000, latencies[requests * 99 / 100] / 1000, received / seconds / (1024 * 1024));
+  }
+
+  private static Connection open(TinyRelay relay, int port) throws IOException {
+    Connection connection = relay.connectionFactory().newConnection(null, Endpoint.ofHost("127.0.0.1", port));
+    if (connection == null) throw new IOException("relay connect failed");
+    return connection;
+  }
+}
@@ -0,0 +1,156 @@
+package tinysocks.test;
+
+import tinysocks.EventListener;
+import tinysocks.Splice;
+import tinysocks.TinySocks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU spent per gigabit forwarded by direct socks streams, copied through the Java heap against
+ * spliced in the kernel, see {@link Splice}. each run downloads through a TinySocks from a local
+ * source; the CPU is the time of the TinySocks threads alone, system time included, next to
+ * that of the whole process, which also pays for the source and the reader. an echo of 4MB
+ * checks both directions of a spliced stream byte for byte first.
+ * <p>
+ * splicing needs Linux and JDK 21 or later started with
+ * {@code --add-opens java.base/java.net=ALL-UNNAMED --add-opens java.base/java.io=ALL-UNNAMED},
+ * and {@code --enable-preview} on 21, otherwise only the copying path runs.
+ * <p>
+ * usage: SpliceBenchmark [MB per run] [runs]
+ */
+public class SpliceBenchmark {
+  private static final int ECHO_PORT = 10380;
+  private static final int SOURCE_PORT = 10381;
+  private static final int COPY_PORT = 10382;
+  private static final int SPLICE_PORT = 10383;
+
+  public static void main(String[] args) throws Exception {
+    long bytes = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    Fixtures.startEchoServer(ECHO_PORT);
+    Fixtures.startSource(SOURCE_PORT, bytes);
+    EventListener quiet = new EventListener() {
+    };
+    List<Thread> copyThreads = new ArrayList<>();
+    List<Thread> spliceThreads = new ArrayList<>();
+    new TinySocks.Builder().port(COPY_PORT).executor(executor(copyThreads)).eventListener(quiet).build().start();
+    new TinySocks.Builder().port(SPLICE_PORT).executor(executor(spliceThreads)).eventListener(quiet).splice(true)
+      .build().start();
+    Thread.sleep(300);
+
+    boolean splice = Splice.isSupported();
+    if (splice) {
+      checkEcho(SPLICE_PORT);
+    } else {
+      System.out.println("splice not supported: " + Splice.unsupportedReason());
+    }
+    System.out.println("path     MB/s    socks cpu ms/Gbit   process cpu ms/Gbit");
+    for (int run = 0; run < runs; run++) {
+      report("copy", COPY_PORT, copyThreads, bytes);
+      if (splice) report("splice", SPLICE_PORT, spliceThreads, bytes);
+    }
+    System.exit(0);
+  }
+
+  private static void report(String name, int port, List<Thread> threads, long bytes) throws Exception {
+    long cpu = cpuNanos(threads);
+    long processCpu = processCpuNanos();
+    long start = System.nanoTime();
+    download(port, bytes);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    double gbit = bytes * 8 / 1e9;
+    System.out.printf("%-7s %6.0f    %10.1f          %10.1f%n", name, bytes / 1048576.0 / seconds,
+      (cpuNanos(threads) - cpu) / 1e6 / gbit, (processCpuNanos() - processCpu) / 1e6 / gbit);
+  }
+
+  private static long cpuNanos(List<Thread> threads) {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    long total = 0;
+    synchronized (threads) {
+      for (Thread thread : threads) {
+        long nanos = bean.getThreadCpuTime(thread.getId());
+        if (nanos > 0) total += nanos;
+      }
+    }
+    return total;
+  }
+
+  private static long processCpuNanos() {
+    return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+      .getProcessCpuTime();
+  }
+
+  // the default pool of TinySocks, remembering its threads
+  private static ThreadPoolExecutor executor(final List<Thread> threads) {
+    return new ThreadPoolExecutor(20, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r);
+          synchronized (threads) {
+            threads.add(thread);
+          }
+          return thread;
+        }
+      });
+  }
+
+  private static void download(int port, long bytes) throws IOException {
+    Socket socket = Fixtures.connect(port, SOURCE_PORT);
+    try {
+      InputStream in = socket.getInputStream();
+      byte[] buffer = new byte[256 * 1024];
+      long received = 0;
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        received += n;
+      }
+      if (received != bytes) throw new IOException("received " + received + " of " + bytes);
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static void checkEcho(int port) throws Exception {
+    final byte[] sent = new byte[4 * 1024 * 1024];
+    for (int i = 0; i < sent.length; i++) {
+      sent[i] = (byte) (i % 251);
+    }
+    final Socket socket = Fixtures.connect(port, ECHO_PORT);
+    try {
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < sent.length; i += 1000) {
+              out.write(sent, i, Math.min(1000, sent.length - i));
+            }
+          } catch (IOException ignored) {
+          }
+        }
+      });
+      writer.start();
+      byte[] received = new byte[sent.length];
+      Fixtures.readFully(socket.getInputStream(), received);
+      writer.join();
+      if (!Arrays.equals(sent, received)) throw new IOException("spliced echo differs");
+    } finally {
+      socket.close();
+    }
+    System.out.println("spliced echo of " + sent.length + " bytes ok");
+  }
+}
@@ -0,0 +1,146 @@
+package tinysocks.test;
+
+import tinysocks.EventListener;
+import tinysocks.TinyRelay;
+import tinysocks.TinySocks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time to first proxied byte of a freshly launched process: from starting it until one byte
+ * sent through it comes back from an echo server on loopback.
+ * <ul>
+ * <li>socks: the command is a TinySocks front end, given --port; the byte goes through it
+ * directly</li>
+ * <li>node: the command is a RelayNode, given --port of a relay this process listens on; the
+ * byte goes through a socks server in this process, the relay and the new node</li>
+ * </ul>
+ * the command is anything that runs one of the two mains, a JVM with or without a CDS archive
+ * or a native image, see the startup tasks of the build.
+ * <p>
+ * usage: StartupBenchmark runs socks|node command...
+ */
+public class StartupBenchmark {
+  static final int ECHO_PORT = 10340;
+  private static final int SOCKS_PORT = 10341;
+  private static final int NODE_SOCKS_PORT = 10342;
+  private static final int RELAY_PORT = 10343;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3 || !(args[1].equals("socks") || args[1].equals("node"))) {
+      System.out.println("usage: StartupBenchmark runs socks|node command...");
+      System.exit(2);
+    }
+    int runs = Integer.parseInt(args[0]);
+    boolean node = args[1].equals("node");
+    List<String> command = new ArrayList<>(Arrays.asList(args).subList(2, args.length));
+    if (node) {
+      command.addAll(Arrays.asList("--port", String.valueOf(RELAY_PORT), "--name", "startup"));
+      TinyRelay relay = new TinyRelay(RELAY_PORT);
+      relay.start();
+      new TinySocks.Builder()
+        .port(NODE_SOCKS_PORT)
+        .connectionFactory(relay.connectionFactory())
+        .eventListener(new EventListener() {
+        })
+        .build()
+        .start();
+    } else {
+      command.addAll(Arrays.asList("--port", String.valueOf(SOCKS_PORT)));
+    }
+    Fixtures.startEchoServer(ECHO_PORT);
+    File log = File.createTempFile("startup", ".log");
+    int socksPort = node ? NODE_SOCKS_PORT : SOCKS_PORT;
+
+    long[] millis = new long[runs];
+    for (int run = 0; run < runs; run++) {
+      long start = System.nanoTime();
+      Process process = new ProcessBuilder(command)
+        .redirectErrorStream(true)
+        .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+        .start();
+      try {
+        while (!echoOnce(socksPort)) {
+          Thread.sleep(1);
+          if (System.nanoTime() - start > 60 * 1000000000L) throw new IOException("no byte after a minute, see " + log);
+        }
+        millis[run] = (System.nanoTime() - start) / 1000000;
+      } finally {
+        process.destroy();
+        process.waitFor();
+      }
+      // lets the relay notice the node is gone before the next one starts
+      Thread.sleep(node ? 1000 : 200);
+    }
+    Arrays.sort(millis);
+    System.out.printf("%s  first byte after: min %d ms  median %d ms  max %d ms  (%d runs)%n", join(args, 1),
+      millis[0], millis[runs / 2], millis[runs - 1], runs);
+    System.exit(0);
+  }
+
+  private static String join(String[] args, int from) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = from; i < args.length; i++) {
+      if (i > from) builder.append(' ');
+      builder.append(args[i]);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * one socks connection to the echo server through {@code socksPort}, one byte there and back.
+   *
+   * @return false when the port is not listening yet or can not reach the echo server yet
+   */
+  static boolean echoOnce(int socksPort) throws IOException {
+    Socket socket;
+    try {
+      socket = new Socket(InetAddress.getLoopbackAddress(), socksPort);
+    } catch (IOException e) {
+      return false;
+    }
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(5000);
+      return echo(socket, 1);
+    } catch (IOException e) {
+      return false;
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * negotiates a connection to the echo server on {@code socket} and sends {@code size} bytes
+   * through it.
+   *
+   * @return false when the socks server refused the connection
+   */
+  static boolean echo(Socket socket, int size) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    InputStream in = socket.getInputStream();
+    out.write(new byte[]{5, 1, 0});
+    Fixtures.readFully(in, new byte[2]);
+    out.write(new byte[]{5, 1, 0, 1, 127, 0, 0, 1, (byte) (ECHO_PORT >> 8), (byte) ECHO_PORT});
+    byte[] reply = new byte[10];
+    Fixtures.readFully(in, reply);
+    if (reply[1] != 0) return false;
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) i;
+    }
+    out.write(data);
+    byte[] echoed = new byte[size];
+    Fixtures.readFully(in, echoed);
+    if (!Arrays.equals(data, echoed)) throw new IOException("corrupt echo");
+    return true;
+  }
+}
@@ -0,0 +1,81 @@
+package tinysocks.test;
+
+import tinysocks.RelayNode;
+import tinysocks.TinySocks;
+import tinysocks.UnixSockets;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * A loopback workload through the TinySocks and RelayNode mains, run once when the build
+ * trains a CDS archive or collects native image configuration, so the classes and reflection
+ * of a real session are covered: direct egress, an encrypted relay link, selector egress and,
+ * on JDK 16 or later, a unix domain socket listener. exits when done, which is when the JVM
+ * writes the archive.
+ * <p>
+ * usage: StartupTraining [connections]
+ */
+public class StartupTraining {
+  private static final int DIRECT_PORT = 10344;
+  private static final int RELAY_SOCKS_PORT = 10345;
+  private static final int RELAY_PORT = 10346;
+  private static final int NIO_SOCKS_PORT = 10347;
+  private static final int NIO_RELAY_PORT = 10348;
+
+  public static void main(String[] args) throws Exception {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    Fixtures.startEchoServer(StartupBenchmark.ECHO_PORT);
+
+    TinySocks.main(new String[]{"--port", String.valueOf(DIRECT_PORT)});
+    TinySocks.main(new String[]{"--port", String.valueOf(RELAY_SOCKS_PORT), "--relay-port", String.valueOf(RELAY_PORT),
+      "--secret", "training"});
+    RelayNode.main(new String[]{"--port", String.valueOf(RELAY_PORT), "--name", "training", "--secret", "training"});
+    TinySocks.main(new String[]{"--port", String.valueOf(NIO_SOCKS_PORT), "--relay-port", String.valueOf(NIO_RELAY_PORT)});
+    RelayNode.main(new String[]{"--port", String.valueOf(NIO_RELAY_PORT), "--name", "training-nio",
+      "--selector-threads", "1"});
+
+    for (int port : new int[]{DIRECT_PORT, RELAY_SOCKS_PORT, NIO_SOCKS_PORT}) {
+      long deadline = System.currentTimeMillis() + 30 * 1000;
+      while (!StartupBenchmark.echoOnce(port)) {
+        if (System.currentTimeMillis() > deadline) throw new IOException("port " + port + " does not proxy");
+        Thread.sleep(10);
+      }
+      for (int i = 0; i < connections; i++) {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+          socket.setTcpNoDelay(true);
+          if (!StartupBenchmark.echo(socket, 16 * 1024)) throw new IOException("refused on port " + port);
+        } finally {
+          socket.close();
+        }
+      }
+    }
+
+    if (UnixSockets.isSupported()) {
+      File path = File.createTempFile("training", ".sock");
+      TinySocks.main(new String[]{"--unix-socket", path.getPath()});
+      long deadline = System.currentTimeMillis() + 30 * 1000;
+      for (int i = 0; i < connections; ) {
+        Socket socket;
+        try {
+          socket = UnixSockets.connect(path);
+        } catch (IOException e) {
+          if (System.currentTimeMillis() > deadline) throw e;
+          Thread.sleep(10);
+          continue;
+        }
+        try {
+          if (!StartupBenchmark.echo(socket, 16 * 1024)) throw new IOException("refused on " + path);
+        } finally {
+          socket.close();
+        }
+        i++;
+      }
+      path.deleteOnExit();
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,163 @@
+package tinysocks.test;
+
+import tinysocks.Connection;
+import tinysocks.Endpoint;
+import tinysocks.EventListener;
+import tinysocks.RelayNode;
+import tinysocks.TinyRelay;
+import tinysocks.TinySocks;
+import tinysocks.UnixSockets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Loopback TCP against unix domain sockets, JDK 16 or later: socks connection setup (connect,
+ * negotiate, one echo, close) and bulk throughput through a socks server, then echo latency
+ * and bulk throughput of streams on a relay link.
+ * <p>
+ * usage: UnixSocketBenchmark [connections] [bulk MB]
+ */
+public class UnixSocketBenchmark {
+  private static final int ECHO_PORT = 10210;
+  private static final int BULK_PORT = 10211;
+  private static final int SOCKS_PORT = 10212;
+  private static final int RELAY_PORT = 10213;
+
+  public static void main(String[] args) throws Exception {
+    if (!UnixSockets.isSupported()) {
+      System.out.println("unix domain sockets need JDK 16 or later.");
+      System.exit(1);
+    }
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int bulkMb = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+    File directory = File.createTempFile("tinysocks", "");
+    if (!directory.delete() || !directory.mkdir()) throw new IOException("can not create " + directory);
+    directory.deleteOnExit();
+    final File socksPath = new File(directory, "socks.sock");
+    File relayPath = new File(directory, "relay.sock");
+    Fixtures.startEchoServer(ECHO_PORT);
+    Fixtures.startSource(BULK_PORT, Long.MAX_VALUE);
+
+    EventListener quiet = new EventListener() {
+    };
+    new TinySocks.Builder().port(SOCKS_PORT).eventListener(quiet).build().start();
+    new TinySocks.Builder().unixSocket(socksPath).eventListener(quiet).build().start();
+
+    TinyRelay tcpRelay = new TinyRelay(RELAY_PORT);
+    tcpRelay.start();
+    new RelayNode.Builder().port(RELAY_PORT).nodeName("tcp").build().start();
+    TinyRelay unixRelay = new TinyRelay.Builder().unixSocket(relayPath).build();
+    unixRelay.start();
+    Thread.sleep(500);
+    new RelayNode.Builder().unixSocket(relayPath).nodeName("unix").build().start();
+    Thread.sleep(1500);
+
+    Dialer tcp = new Dialer() {
+      @Override
+      public Socket dial() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), SOCKS_PORT);
+        socket.setTcpNoDelay(true);
+        return socket;
+      }
+    };
+    Dialer unix = new Dialer() {
+      @Override
+      public Socket dial() throws IOException {
+        return UnixSockets.connect(socksPath);
+      }
+    };
+    for (int round = 0; round < 3; round++) {
+      socks("socks tcp ", tcp, connections, bulkMb);
+      socks("socks unix", unix, connections, bulkMb);
+      relay("relay tcp ", tcpRelay, connections * 4, bulkMb);
+      relay("relay unix", unixRelay, connections * 4, bulkMb);
+    }
+    System.exit(0);
+  }
+
+  private static void socks(String name, Dialer dialer, int connections, int bulkMb) throws IOException {
+    long[] setups = new long[connections];
+    byte[] echo = new byte[1];
+    for (int i = 0; i < connections; i++) {
+      long start = System.nanoTime();
+      Socket socket = dialer.dial();
+      negotiate(socket, ECHO_PORT);
+      socket.getOutputStream().write(echo);
+      Fixtures.readFully(socket.getInputStream(), echo);
+      socket.close();
+      setups[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(setups);
+
+    Socket socket = dialer.dial();
+    negotiate(socket, BULK_PORT);
+    double mbps = bulk(socket.getInputStream(), bulkMb);
+    socket.close();
+    System.out.printf("%s setup p50=%dus p99=%dus   bulk %.0f MB/s%n", name,
+      setups[connections / 2] / 1000, setups[connections * 99 / 100] / 1000, mbps);
+  }
+
+  private static void relay(String name, TinyRelay relay, int requests, int bulkMb) throws IOException {
+    long[] latencies = new long[requests];
+    Connection connection = open(relay, ECHO_PORT);
+    OutputStream out = connection.outputStream();
+    InputStream in = connection.inputStream();
+    byte[] request = new byte[64];
+    for (int i = 0; i < requests; i++) {
+      long start = System.nanoTime();
+      out.write(request);
+      Fixtures.readFully(in, request);
+      latencies[i] = System.nanoTime() - start;
+    }
+    connection.close();
+    Arrays.sort(latencies);
+
+    connection = open(relay, BULK_PORT);
+    double mbps = bulk(connection.inputStream(), bulkMb);
+    connection.close();
+    System.out.printf("%s echo  p50=%dus p99=%dus   bulk %.0f MB/s%n", name,
+      latencies[requests / 2] / 1000, latencies[requests * 99 / 100] / 1000, mbps);
+  }
+
+  // socks5, no authentication, connect to 127.0.0.1:port
+  private static void negotiate(Socket socket, int port) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    InputStream in = socket.getInputStream();
+    out.write(new byte[]{5, 1, 0});
+    Fixtures.readFully(in, new byte[2]);
+    out.write(new byte[]{5, 1, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port});
+    byte[] reply = new byte[4];
+    Fixtures.readFully(in, reply);
+    if (reply[1] != 0) throw new IOException("socks connect failed: " + reply[1]);
+    Fixtures.readFully(in, new byte[(reply[3] == 4 ? 16 : 4) + 2]);
+  }
+
+  private static double bulk(InputStream in, int bulkMb) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    long total = (long) bulkMb * 1024 * 1024;
+    long received = 0;
+    long start = System.nanoTime();
+    int read;
+    while (received < total && (read = in.read(buffer)) > 0) {
+      received += read;
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    return received / seconds / (1024 * 1024);
+  }
+
+  private static Connection open(TinyRelay relay, int port) throws IOException {
+    Connection connection = relay.connectionFactory().newConnection(null, Endpoint.ofHost("127.0.0.1", port));
+    if (connection == null) throw new IOException("relay connect failed");
+    return connection;
+  }
+
+  private interface Dialer {
+    Socket dial() throws IOException;
+  }
+}
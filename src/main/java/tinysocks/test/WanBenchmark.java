@@ -0,0 +1,164 @@
+package tinysocks.test;
+
+import tinysocks.EventListener;
+import tinysocks.RelayNode;
+import tinysocks.TinyRelay;
+import tinysocks.TinySocks;
+import tinysocks.wan.Impairment;
+import tinysocks.wan.WanEmulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Socks streams under emulated WAN conditions, see {@link WanEmulator}. two paths:
+ * <ul>
+ * <li>direct: TinySocks connecting to a destination behind an emulator</li>
+ * <li>relay: TinySocks, TinyRelay, an emulated link, RelayNode, then the destination</li>
+ * </ul>
+ * for each profile, switched on the running emulators: connect plus first echo, echo round
+ * trips on an idle stream, bulk download, and echo round trips on one stream while another
+ * downloads on the same path, which shows head of line blocking on the relay link.
+ * <p>
+ * usage: WanBenchmark [bulk MB]
+ */
+public class WanBenchmark {
+  private static final int ECHO_PORT = 10370;
+  private static final int BULK_PORT = 10371;
+  private static final int DIRECT_SOCKS_PORT = 10372;
+  private static final int RELAY_SOCKS_PORT = 10373;
+  private static final int RELAY_PORT = 10374;
+  private static final int ECHOES = 20;
+
+  private static final String[] NAMES = {"loopback", "metro", "continental", "intercontinental", "lossy"};
+  private static final Impairment[] PROFILES = {
+    Impairment.NONE,
+    new Impairment.Builder().latency(2).jitter(1).bandwidth(100 * 1000 * 1000 / 8).build(),
+    new Impairment.Builder().latency(20).jitter(3).bandwidth(50 * 1000 * 1000 / 8).build(),
+    new Impairment.Builder().latency(75).jitter(10).bandwidth(20 * 1000 * 1000 / 8).build(),
+    new Impairment.Builder().latency(20).jitter(3).bandwidth(50 * 1000 * 1000 / 8).stalls(1000, 200).build(),
+  };
+
+  public static void main(String[] args) throws Exception {
+    final int bulkBytes = (args.length > 0 ? Integer.parseInt(args[0]) : 8) * 1024 * 1024;
+    Fixtures.startEchoServer(ECHO_PORT);
+    Fixtures.startSource(BULK_PORT, bulkBytes);
+    WanEmulator echoWan = new WanEmulator.Builder().target("127.0.0.1", ECHO_PORT).build();
+    WanEmulator bulkWan = new WanEmulator.Builder().target("127.0.0.1", BULK_PORT).build();
+    WanEmulator linkWan = new WanEmulator.Builder().target("127.0.0.1", RELAY_PORT).build();
+    echoWan.start();
+    bulkWan.start();
+    linkWan.start();
+
+    EventListener quiet = new EventListener() {
+    };
+    new TinySocks.Builder().port(DIRECT_SOCKS_PORT).eventListener(quiet).build().start();
+    TinyRelay relay = new TinyRelay(RELAY_PORT);
+    relay.start();
+    new TinySocks.Builder().port(RELAY_SOCKS_PORT).connectionFactory(relay.connectionFactory()).eventListener(quiet)
+      .build().start();
+    Thread.sleep(300);
+    new RelayNode.Builder().port(linkWan.port()).nodeName("wan").build().start();
+    while (!echoOnce(RELAY_SOCKS_PORT, ECHO_PORT)) {
+      Thread.sleep(50);
+    }
+
+    System.out.println("profile            path    connect+echo   idle echo p50/p99   bulk MB/s   echo under bulk p50/p99");
+    for (int i = 0; i < PROFILES.length; i++) {
+      Impairment profile = PROFILES[i];
+      // the destinations are behind an emulator on the direct path, the link is on the relay path
+      echoWan.impair(profile);
+      bulkWan.impair(profile);
+      linkWan.impair(Impairment.NONE);
+      report(NAMES[i], "direct", DIRECT_SOCKS_PORT, echoWan.port(), bulkWan.port(), bulkBytes);
+      echoWan.impair(Impairment.NONE);
+      bulkWan.impair(Impairment.NONE);
+      linkWan.impair(profile);
+      report(NAMES[i], "relay", RELAY_SOCKS_PORT, ECHO_PORT, BULK_PORT, bulkBytes);
+      System.out.println("                   " + profile);
+    }
+    System.exit(0);
+  }
+
+  private static void report(String name, String path, final int socksPort, int echoPort, final int bulkPort,
+                             final int bulkBytes) throws Exception {
+    long start = System.nanoTime();
+    Socket echo = Fixtures.connect(socksPort, echoPort);
+    echo(echo);
+    double connectMillis = (System.nanoTime() - start) / 1e6;
+    double[] idle = echoes(echo);
+
+    start = System.nanoTime();
+    download(socksPort, bulkPort, bulkBytes);
+    double mbPerSecond = bulkBytes / 1048576.0 / ((System.nanoTime() - start) / 1e9);
+
+    final Exception[] failure = new Exception[1];
+    Thread bulk = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          download(socksPort, bulkPort, bulkBytes);
+        } catch (Exception e) {
+          failure[0] = e;
+        }
+      }
+    });
+    bulk.start();
+    Thread.sleep(100);
+    double[] loaded = echoes(echo);
+    bulk.join();
+    echo.close();
+    if (failure[0] != null) throw failure[0];
+    System.out.printf("%-18s %-7s %8.1f ms    %6.1f/%6.1f ms    %7.1f     %6.1f/%6.1f ms%n", name, path, connectMillis,
+      idle[0], idle[1], mbPerSecond, loaded[0], loaded[1]);
+  }
+
+  // p50 and p99 in millis
+  private static double[] echoes(Socket socket) throws IOException {
+    long[] nanos = new long[ECHOES];
+    for (int i = 0; i < ECHOES; i++) {
+      long start = System.nanoTime();
+      echo(socket);
+      nanos[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(nanos);
+    return new double[]{nanos[ECHOES / 2] / 1e6, nanos[ECHOES * 99 / 100] / 1e6};
+  }
+
+  private static void echo(Socket socket) throws IOException {
+    socket.getOutputStream().write(7);
+    if (socket.getInputStream().read() != 7) throw new IOException("bad echo");
+  }
+
+  private static void download(int socksPort, int bulkPort, int bulkBytes) throws IOException {
+    Socket socket = Fixtures.connect(socksPort, bulkPort);
+    try {
+      InputStream in = socket.getInputStream();
+      byte[] buffer = new byte[64 * 1024];
+      long received = 0;
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        received += n;
+      }
+      if (received != bulkBytes) throw new IOException("received " + received + " of " + bulkBytes);
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static boolean echoOnce(int socksPort, int port) {
+    try {
+      Socket socket = Fixtures.connect(socksPort, port);
+      try {
+        echo(socket);
+        return true;
+      } finally {
+        socket.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
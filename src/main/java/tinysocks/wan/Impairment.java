@@ -0,0 +1,81 @@
+package tinysocks.wan;
+
+/**
+ * Network conditions a {@link WanEmulator} imposes on each direction of its connections.
+ * <ul>
+ * <li>latency and jitter: one-way delay of every chunk, uniform in latency +/- jitter; chunks
+ * never overtake each other, as on a single TCP path</li>
+ * <li>bandwidth: bytes per second per direction, shared by all connections like a link</li>
+ * <li>stalls: every {@code stallEveryMillis} nothing moves for {@code stallMillis}, the way
+ * a lost packet waiting for its retransmission timeout holds up a stream</li>
+ * </ul>
+ */
+public final class Impairment {
+  public static final Impairment NONE = new Builder().build();
+
+  final long latencyMillis;
+  final long jitterMillis;
+  final long bytesPerSecond;
+  final long stallEveryMillis;
+  final long stallMillis;
+
+  private Impairment(Builder builder) {
+    this.latencyMillis = builder.latencyMillis;
+    this.jitterMillis = Math.min(builder.jitterMillis, builder.latencyMillis);
+    this.bytesPerSecond = builder.bytesPerSecond;
+    this.stallEveryMillis = builder.stallEveryMillis;
+    this.stallMillis = builder.stallMillis;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder().append(latencyMillis).append("+-").append(jitterMillis).append("ms");
+    builder.append(bytesPerSecond > 0 ? String.format(" %.1fMbit/s", bytesPerSecond * 8 / 1e6) : " unlimited");
+    if (stallEveryMillis > 0) {
+      builder.append(" stall ").append(stallMillis).append("ms every ").append(stallEveryMillis).append("ms");
+    }
+    return builder.toString();
+  }
+
+  public static class Builder {
+    private long latencyMillis;
+    private long jitterMillis;
+    private long bytesPerSecond;
+    private long stallEveryMillis;
+    private long stallMillis;
+
+    /**
+     * one-way delay, so the round trip through the emulator is twice this.
+     */
+    public Builder latency(long millis) {
+      this.latencyMillis = millis;
+      return this;
+    }
+
+    /**
+     * at most the latency.
+     */
+    public Builder jitter(long millis) {
+      this.jitterMillis = millis;
+      return this;
+    }
+
+    /**
+     * per direction, 0 for no cap.
+     */
+    public Builder bandwidth(long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+      return this;
+    }
+
+    public Builder stalls(long everyMillis, long stallMillis) {
+      this.stallEveryMillis = everyMillis;
+      this.stallMillis = stallMillis;
+      return this;
+    }
+
+    public Impairment build() {
+      return new Impairment(this);
+    }
+  }
+}
@@ -0,0 +1,421 @@
+package tinysocks.wan;
+
+import tinysocks.Endpoint;
+import tinysocks.Util;
+import tinysocks.annotation.Nullable;
+import tinysocks.limit.TokenBucket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A TCP proxy that makes a loopback hop look like a WAN path, for benchmarks on one box. put
+ * it in front of a destination, or between a relay node and its relay server:
+ * <pre>
+ * WanEmulator wan = new WanEmulator.Builder()
+ *   .target("localhost", 10140)
+ *   .impairment(new Impairment.Builder().latency(40).jitter(5).bandwidth(2500000).build())
+ *   .build();
+ * wan.start();
+ * new RelayNode.Builder().port(wan.port()).build().start();
+ * </pre>
+ * the {@link Impairment} can be replaced while connections are open, and {@link #stall(long)}
+ * stops everything for a while, so a harness can script changing conditions.
+ * <p>
+ * each direction of a connection has a reader, which stamps every chunk with the time it may
+ * leave, and a writer, which holds it until then and paces it to the bandwidth. chunks wait in
+ * a delay line of {@link Builder#queueBytes(int)}; when it is full the reader stops reading
+ * and TCP flow control pushes back on the sender, like a bottleneck buffer. packet loss can
+ * not be reproduced above TCP, stalls stand in for its effect on a stream.
+ */
+public final class WanEmulator implements Closeable {
+  private static final int CHUNK_BYTES = 16 * 1024;
+
+  private final int listenPort;
+  private final InetSocketAddress target;
+  private final int queueBytes;
+  private final long epochNanos = System.nanoTime();
+  private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+  private volatile Impairment impairment;
+  // per direction: to the target, back from it; null when not capped
+  @Nullable
+  private volatile TokenBucket[] buckets;
+  private volatile long stallUntilNanos;
+  private volatile boolean closed;
+  @Nullable
+  private volatile ServerSocket serverSocket;
+
+  private WanEmulator(Builder builder) {
+    if (builder.target == null) throw new IllegalArgumentException("no target");
+    this.listenPort = builder.listenPort;
+    this.target = builder.target;
+    this.queueBytes = builder.queueBytes;
+    impair(builder.impairment);
+  }
+
+  /**
+   * runs an emulator until the process is stopped.
+   * <p>
+   * usage: WanEmulator --listen port --target host:port [--latency ms] [--jitter ms]
+   * [--bandwidth bytes/s] [--stall-every ms --stall ms]
+   */
+  public static void main(String[] args) throws IOException {
+    Builder builder = new Builder();
+    Impairment.Builder impairment = new Impairment.Builder();
+    long stallEvery = 0;
+    long stall = 0;
+    try {
+      for (int i = 0; i + 1 < args.length; i += 2) {
+        String value = args[i + 1];
+        switch (args[i]) {
+          case "--listen":
+            builder.listenPort(Integer.parseInt(value));
+            break;
+          case "--target":
+            int colon = value.lastIndexOf(':');
+            builder.target(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+            break;
+          case "--latency":
+            impairment.latency(Long.parseLong(value));
+            break;
+          case "--jitter":
+            impairment.jitter(Long.parseLong(value));
+            break;
+          case "--bandwidth":
+            impairment.bandwidth(Long.parseLong(value));
+            break;
+          case "--stall-every":
+            stallEvery = Long.parseLong(value);
+            break;
+          case "--stall":
+            stall = Long.parseLong(value);
+            break;
+          default:
+            throw new IllegalArgumentException("unknown option: " + args[i]);
+        }
+      }
+      if (args.length % 2 != 0) throw new IllegalArgumentException("missing value of " + args[args.length - 1]);
+      WanEmulator emulator = builder.impairment(impairment.stalls(stallEvery, stall).build()).build();
+      emulator.start();
+      System.out.println("WanEmulator " + emulator.port() + " -> " + emulator.target.getHostString() + ":"
+        + emulator.target.getPort() + ": " + emulator.impairment);
+    } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+      System.err.println(e.getMessage());
+      System.err.println("usage: WanEmulator --listen port --target host:port [--latency ms] [--jitter ms]"
+        + " [--bandwidth bytes/s] [--stall-every ms --stall ms]");
+      System.exit(2);
+    }
+  }
+
+  /**
+   * binds the listening port before it returns, so {@link #port()} is known.
+   */
+  public void start() throws IOException {
+    if (serverSocket != null) throw new IllegalStateException("already started");
+    final ServerSocket server = new ServerSocket(listenPort, 128, InetAddress.getLoopbackAddress());
+    serverSocket = server;
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!closed) {
+          try {
+            accepted(server.accept());
+          } catch (IOException e) {
+            if (!closed) System.out.println("WanEmulator accept failed: " + e.getMessage());
+            return;
+          }
+        }
+      }
+    }, "WanEmulator[" + server.getLocalPort() + "]");
+    acceptor.start();
+  }
+
+  public int port() {
+    ServerSocket server = serverSocket;
+    return server != null ? server.getLocalPort() : listenPort;
+  }
+
+  /**
+   * applies to everything from now on, chunks already on their way keep their delay.
+   */
+  public void impair(Impairment impairment) {
+    this.impairment = impairment;
+    this.buckets = impairment.bytesPerSecond > 0
+      ? new TokenBucket[]{bucket(impairment.bytesPerSecond), bucket(impairment.bytesPerSecond)}
+      : null;
+  }
+
+  public Impairment impairment() {
+    return impairment;
+  }
+
+  /**
+   * stops both directions of every connection for {@code millis}, starting now.
+   */
+  public void stall(long millis) {
+    stallUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  public int connectionCount() {
+    return sockets.size() / 2;
+  }
+
+  /**
+   * closes the listening port and every connection.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Util.closeQuietly(serverSocket);
+    for (Socket socket : sockets) {
+      Util.closeQuietly(socket);
+    }
+  }
+
+  private static TokenBucket bucket(long bytesPerSecond) {
+    // a burst of a chunk, so pacing stays smooth at any rate
+    return new TokenBucket(bytesPerSecond, CHUNK_BYTES);
+  }
+
+  private void accepted(Socket client) {
+    Socket server = Util.connectSocket(Endpoint.ofHost(target.getHostString(), target.getPort()));
+    if (server == null) {
+      Util.closeQuietly(client);
+      return;
+    }
+    try {
+      client.setTcpNoDelay(true);
+      server.setTcpNoDelay(true);
+    } catch (IOException e) {
+      Util.closeQuietly(client);
+      Util.closeQuietly(server);
+      return;
+    }
+    sockets.add(client);
+    sockets.add(server);
+    // the client saw its connect complete at once; on a WAN path the handshake costs a round
+    // trip before its first bytes even leave, so they arrive after three one-way delays
+    long now = System.nanoTime();
+    Connection connection = new Connection(client, server);
+    connection.start(client, server, 0, now + TimeUnit.MILLISECONDS.toNanos(3 * impairment.latencyMillis));
+    connection.start(server, client, 1, now);
+  }
+
+  private final class Connection {
+    private final Socket client;
+    private final Socket server;
+    // guarded by this
+    private int open = 2;
+
+    Connection(Socket client, Socket server) {
+      this.client = client;
+      this.server = server;
+    }
+
+    void start(final Socket from, final Socket to, final int direction, final long notBeforeNanos) {
+      final DelayLine line = new DelayLine();
+      String name = "WanEmulator[" + client.getPort() + (direction == 0 ? " >]" : " <]");
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          read(from, line, notBeforeNanos);
+        }
+      }, name + " read");
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          write(line, to, direction);
+        }
+      }, name + " write");
+      reader.setDaemon(true);
+      writer.setDaemon(true);
+      reader.start();
+      writer.start();
+    }
+
+    private void read(Socket from, DelayLine line, long lastRelease) {
+      try {
+        InputStream in = from.getInputStream();
+        while (true) {
+          byte[] buffer = new byte[CHUNK_BYTES];
+          int n = in.read(buffer);
+          if (n < 0) break;
+          Impairment current = impairment;
+          long delay = current.latencyMillis;
+          if (current.jitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(-current.jitterMillis, current.jitterMillis + 1);
+          }
+          long release = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+          // no overtaking: a chunk leaves after the one before it
+          if (release - lastRelease > 0) lastRelease = release;
+          line.put(new Chunk(buffer, n, lastRelease));
+        }
+      } catch (IOException | InterruptedException ignored) {
+      }
+      try {
+        line.put(new Chunk(null, 0, lastRelease));
+      } catch (InterruptedException ignored) {
+      }
+    }
+
+    private void write(DelayLine line, Socket to, int direction) {
+      try {
+        OutputStream out = to.getOutputStream();
+        while (true) {
+          Chunk chunk = line.take();
+          sleepUntil(chunk.releaseNanos);
+          if (chunk.data == null) {
+            to.shutdownOutput();
+            break;
+          }
+          waitOutStalls();
+          TokenBucket[] buckets = WanEmulator.this.buckets;
+          if (buckets != null) {
+            long now = System.nanoTime();
+            sleepUntil(now + buckets[direction].reserve(chunk.length, now));
+          }
+          out.write(chunk.data, 0, chunk.length);
+        }
+      } catch (IOException | InterruptedException ignored) {
+        line.drain();
+        Util.closeQuietly(client);
+        Util.closeQuietly(server);
+      }
+      finished();
+    }
+
+    private void finished() {
+      synchronized (this) {
+        if (--open > 0) return;
+      }
+      Util.closeQuietly(client);
+      Util.closeQuietly(server);
+      sockets.remove(client);
+      sockets.remove(server);
+    }
+  }
+
+  private void waitOutStalls() {
+    while (true) {
+      long now = System.nanoTime();
+      long until = stallUntilNanos;
+      Impairment current = impairment;
+      if (current.stallEveryMillis > 0 && current.stallMillis > 0) {
+        long every = TimeUnit.MILLISECONDS.toNanos(current.stallEveryMillis);
+        long phase = (now - epochNanos) % every;
+        long periodic = now - phase + TimeUnit.MILLISECONDS.toNanos(current.stallMillis);
+        // the stall opens each period, the first one a period after the start
+        if (now - epochNanos >= every && periodic > until) until = periodic;
+      }
+      if (until - now <= 0) return;
+      sleepUntil(until);
+    }
+  }
+
+  private static void sleepUntil(long deadline) {
+    long wait;
+    while ((wait = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(wait);
+    }
+  }
+
+  private static final class Chunk {
+    @Nullable
+    final byte[] data;// null marks the end of the stream
+    final int length;
+    final long releaseNanos;
+
+    Chunk(@Nullable byte[] data, int length, long releaseNanos) {
+      this.data = data;
+      this.length = length;
+      this.releaseNanos = releaseNanos;
+    }
+  }
+
+  /**
+   * chunks between the reader and the writer of a direction, bounded in bytes.
+   */
+  private final class DelayLine {
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private int bytes;
+    private boolean drained;
+
+    synchronized void put(Chunk chunk) throws InterruptedException {
+      while (!drained && bytes > 0 && bytes + chunk.length > queueBytes) {
+        wait();
+      }
+      if (drained) return;
+      chunks.add(chunk);
+      bytes += chunk.length;
+      notifyAll();
+    }
+
+    synchronized Chunk take() throws InterruptedException {
+      while (chunks.isEmpty()) {
+        wait();
+      }
+      Chunk chunk = chunks.poll();
+      bytes -= chunk.length;
+      notifyAll();
+      return chunk;
+    }
+
+    // the writer is gone, the reader must not block on a full line
+    synchronized void drain() {
+      drained = true;
+      chunks.clear();
+      bytes = 0;
+      notifyAll();
+    }
+  }
+
+  public static class Builder {
+    private int listenPort;
+    private InetSocketAddress target;
+    private int queueBytes = 4 * 1024 * 1024;
+    private Impairment impairment = Impairment.NONE;
+
+    /**
+     * on the loopback address, 0 by default for any free port, see {@link WanEmulator#port()}.
+     */
+    public Builder listenPort(int port) {
+      this.listenPort = port;
+      return this;
+    }
+
+    public Builder target(String host, int port) {
+      this.target = InetSocketAddress.createUnresolved(host, port);
+      return this;
+    }
+
+    /**
+     * bytes a direction holds in flight before the sender is pushed back, 4MB by default.
+     */
+    public Builder queueBytes(int queueBytes) {
+      this.queueBytes = queueBytes;
+      return this;
+    }
+
+    public Builder impairment(Impairment impairment) {
+      this.impairment = impairment;
+      return this;
+    }
+
+    public WanEmulator build() {
+      return new WanEmulator(this);
+    }
+  }
+}